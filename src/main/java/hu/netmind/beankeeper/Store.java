@@ -21,6 +21,8 @@ package hu.netmind.beankeeper;
 import hu.netmind.beankeeper.service.impl.StoreContextImpl;
 import hu.netmind.beankeeper.service.StoreContext;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
 import org.apache.log4j.Logger;
 import javax.sql.DataSource;
 import hu.netmind.beankeeper.transaction.TransactionTracker;
@@ -31,7 +33,11 @@ import hu.netmind.beankeeper.object.PersistenceMetaData;
 import hu.netmind.beankeeper.object.ObjectTracker;
 import hu.netmind.beankeeper.store.StoreService;
 import hu.netmind.beankeeper.query.QueryService;
+import hu.netmind.beankeeper.query.ResultCursor;
+import hu.netmind.beankeeper.query.QueryControl;
 import hu.netmind.beankeeper.type.TypeHandlerTracker;
+import hu.netmind.beankeeper.history.HistoryCompactor;
+import hu.netmind.beankeeper.async.AsyncService;
 
 /**
  * This store class is the entry point to the persistence library. To
@@ -53,6 +59,8 @@ public class Store
    private ObjectTracker objectTracker = null;
    private QueryService queryService = null;
    private TypeHandlerTracker typeHandlerTracker = null;
+   private HistoryCompactor historyCompactor = null;
+   private AsyncService asyncService = null;
 
    /**
     * Instantiate a store. Note that you should only make one
@@ -83,6 +91,23 @@ public class Store
       init(parameters);
    }
 
+   /**
+    * Instantiate a store with a read-only replica of the database. 
+    * Queries which are older than the configured replication lag
+    * (<code>beankeeper.db.replica_lag</code>), and which do not see
+    * the changes of the current transaction, are run on the replica.
+    * All other queries and all modifications use the primary datasource.
+    * @param dataSource The primary datasource.
+    * @param replicaDataSource The datasource of the replica.
+    */
+   public Store(DataSource dataSource, DataSource replicaDataSource)
+   {
+      Map parameters = new HashMap();
+      parameters.put(StoreContext.PARAM_DATASOURCE,dataSource);
+      parameters.put(StoreContext.PARAM_REPLICA_DATASOURCE,replicaDataSource);
+      init(parameters);
+   }
+
    /**
     * Construct this store with the given parameters.
     */
@@ -150,6 +175,25 @@ public class Store
       return eventDispatcher;
    }
 
+   /**
+    * Get the history compactor, which removes versions older than the
+    * configured retention. It runs periodically, but can be invoked
+    * directly too.
+    */
+   public HistoryCompactor getHistoryCompactor()
+   {
+      return historyCompactor;
+   }
+
+   /**
+    * Get the async service, which runs the asynchronous operations. The
+    * executor of the operations can be set here.
+    */
+   public AsyncService getAsyncService()
+   {
+      return asyncService;
+   }
+
    /**
     * Get the persistence id for an object. This method always returns
     * a valid id, even if the object is not saved, or otherwise has
@@ -209,6 +253,51 @@ public class Store
       store.save(obj);
    }
 
+   /**
+    * Save all objects given in a single transaction. This is the same
+    * as saving each object, but new objects are written to the database
+    * in large batches (see <code>beankeeper.db.bulk_batch_size</code>), and
+    * on Postgres with the <code>copy</code> command if the driver supports it.
+    * @param objs The objects to save.
+    * @throws StoreException If save is not successfull.
+    */
+   public void saveAll(Collection objs)
+   {
+      store.saveAll(objs);
+   }
+
+   /**
+    * Save the object in the background. If there is a current transaction,
+    * the save runs in that transaction in the calling thread, and it is
+    * finished when this method returns.
+    * @param obj The object to save.
+    * @return The future of the save, which throws the exception
+    * of the save, if it was not successful.
+    */
+   public Future saveAsync(final Object obj)
+   {
+      return asyncService.submit(new Callable()
+            {
+               public Object call()
+               {
+                  store.save(obj);
+                  return null;
+               }
+            });
+   }
+
+   /**
+    * Run the given work in the background in a new transaction. All store
+    * operations of the work run in this transaction. The transaction is
+    * committed if the work returns normally, and rolled back otherwise.
+    * @param work The work to do.
+    * @return The future of the work's result.
+    */
+   public <T> Future<T> transactionAsync(Callable<T> work)
+   {
+      return asyncService.submitTransaction(work);
+   }
+
    /**
     * Remove the object given. If the object is not stored yet, no
     * operation will take place.
@@ -220,6 +309,21 @@ public class Store
       store.remove(obj);
    }
 
+   /**
+    * Load the attributes of an object which were not selected because
+    * of a fetch group (<code>find book{title}</code>). Attributes not
+    * loaded hold the value they had after the object was constructed, and
+    * setting them to this same value can not be noticed on save. Call this
+    * before setting such an attribute to its initial value. The object is
+    * also loaded when it is first saved.
+    * @param obj The object to load.
+    * @throws StoreException If the object could not be selected.
+    */
+   public void load(Object obj)
+   {
+      store.load(obj);
+   }
+
    /**
     * Query an object from the datastore. The List returned is 
     * a lazy list, the implementation tries to limit the communication
@@ -318,6 +422,103 @@ public class Store
       return queryService.find(statement,parameters);
    }
 
+   /**
+    * Same as <code>find(statement,parameters)</code>, but the selects of
+    * the result list are run with the given control. The control
+    * gives the timeout of each select, and can cancel the selects from
+    * another thread. If a select is cancelled or times out, a
+    * <code>QueryCancelledException</code> is thrown, and the transaction
+    * is marked rollback-only.
+    * @param statement The query statement to execute.
+    * @param parameters The parameters.
+    * @param control The control of the query.
+    */
+   public List find(String statement, Object[] parameters, QueryControl control)
+   {
+      return queryService.find(statement,parameters,control);
+   }
+
+   /**
+    * Select more independent statements at once. All statements see the
+    * database at the same time, and the first pages of the results are
+    * selected together, in a single round trip if the database supports
+    * it. This is faster than running the statements one by one, if
+    * the results are all needed.
+    * @param statements The query statements to execute.
+    * @param parameters The parameters of each statement in the same
+    * order, or null if there are no parameters.
+    * @return The result lists in the order of the statements.
+    */
+   public List<List> findBatch(List<String> statements, List<Object[]> parameters)
+   {
+      return new ArrayList<List>(queryService.findBatch(statements,parameters));
+   }
+
+   /**
+    * Run the query in the background. The first page of the result
+    * is selected before the future completes, further pages are selected
+    * when accessed (see <code>LazyList.prefetch()</code>). If there is a
+    * current transaction, the query runs in that transaction in the calling
+    * thread, and it is finished when this method returns. Queries without
+    * a transaction run concurrently.
+    * @param statement The query statement to execute.
+    * @param parameters The parameters.
+    * @return The future of the result list.
+    */
+   public Future<List> findAsync(final String statement, final Object[] parameters)
+   {
+      return asyncService.submit(new Callable<List>()
+            {
+               public List call()
+               {
+                  List result = queryService.find(statement,parameters);
+                  result.iterator(); // Selects the first page
+                  return result;
+               }
+            });
+   }
+
+   /**
+    * Run the query in the background.
+    * @param statement The query statement to execute.
+    * @return The future of the result list.
+    */
+   public Future<List> findAsync(String statement)
+   {
+      return findAsync(statement,null);
+   }
+
+   /**
+    * Select the objects of the statement as a forward-only cursor. Unlike
+    * the list returned by <code>find(statement)</code>, the cursor does not
+    * keep the objects already iterated, and reads the rows from a single
+    * open database cursor, so it is suitable to process results which
+    * do not fit into memory. The cursor holds a transaction and a
+    * database connection until it is closed. It is closed automatically
+    * when iterated to the end, otherwise <code>close()</code> must be
+    * called. If called inside a transaction, the cursor reads in that
+    * transaction, otherwise its transaction is not the current transaction
+    * of the thread, so other operations do not join it.
+    * @param statement The query statement to select.
+    * @return The cursor of the result objects.
+    */
+   public ResultCursor stream(String statement)
+   {
+      return queryService.stream(statement,null);
+   }
+
+   /**
+    * Same as <code>stream(statement)</code>, but with parameters for
+    * the question marks in the statement.
+    * @param statement The query statement to select.
+    * @param parameters The parameters.
+    * @return The cursor of the result objects.
+    */
+   public ResultCursor stream(String statement, Object[] parameters)
+   {
+      return queryService.stream(statement,parameters);
+   }
+
    /**
     * Same as <code>find(statement,parameters)</code>, but the result should be
     * a single object.
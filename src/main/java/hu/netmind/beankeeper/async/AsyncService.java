@@ -0,0 +1,62 @@
+/**
+ * Copyright (C) 2008 NetMind Consulting Bt.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package hu.netmind.beankeeper.async;
+
+import hu.netmind.beankeeper.service.Service;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Runs store operations in the background on an executor. Operations
+ * only run concurrently outside of a transaction, operations in a
+ * transaction run in the thread of the transaction instead.
+ * @author Brautigam Robert
+ * @version Revision: $Revision$
+ */
+public interface AsyncService extends Service
+{
+   /**
+    * Run a task on the executor. If the calling thread has a current
+    * transaction, the task runs in that transaction in the calling thread
+    * before this method returns, because a transaction and its connection
+    * can not be used by more threads. So tasks only run concurrently if
+    * they are submitted outside of a transaction.
+    * @param task The task to run.
+    * @return The future result of the task.
+    */
+   <T> Future<T> submit(Callable<T> task);
+
+   /**
+    * Run a task on the executor in a new transaction. The transaction
+    * is committed if the task returns normally, and rolled back
+    * if it throws an exception.
+    * @param task The task to run.
+    * @return The future result of the task.
+    */
+   <T> Future<T> submitTransaction(Callable<T> task);
+
+   /**
+    * Set the executor the tasks run on. By default an executor with
+    * <code>beankeeper.async.threads</code> threads is used, which is shut
+    * down when the store closes. An executor given here is not shut down
+    * by the store.
+    */
+   void setExecutor(ExecutorService executor);
+}
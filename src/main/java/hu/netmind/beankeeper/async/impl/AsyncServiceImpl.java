@@ -0,0 +1,174 @@
+/**
+ * Copyright (C) 2008 NetMind Consulting Bt.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package hu.netmind.beankeeper.async.impl;
+
+import hu.netmind.beankeeper.async.AsyncService;
+import hu.netmind.beankeeper.config.ConfigurationTracker;
+import hu.netmind.beankeeper.config.ExtendedConfigurationListener;
+import hu.netmind.beankeeper.transaction.Transaction;
+import hu.netmind.beankeeper.transaction.TransactionTracker;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.configuration.event.ConfigurationEvent;
+import org.apache.log4j.Logger;
+
+/**
+ * Async service implementation. Tasks run on a thread pool of daemon
+ * threads, which is sized by the <code>beankeeper.async.threads</code>
+ * configuration property, unless an executor is given. Tasks submitted
+ * in a transaction run in the calling thread.
+ * @author Brautigam Robert
+ * @version Revision: $Revision$
+ */
+public class AsyncServiceImpl implements AsyncService, ExtendedConfigurationListener
+{
+   private static Logger logger = Logger.getLogger(AsyncServiceImpl.class);
+
+   private static int THREADS = 10;
+
+   private ThreadPoolExecutor defaultExecutor = null;
+   private ExecutorService executor = null;
+
+   private ConfigurationTracker configurationTracker = null; // Injected
+   private TransactionTracker transactionTracker = null; // Injected
+
+   public void init(Map parameters)
+   {
+      configurationReload();
+      defaultExecutor = new ThreadPoolExecutor(THREADS,THREADS,60,TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(),new ThreadFactory()
+            {
+               private int count = 0;
+
+               public synchronized Thread newThread(Runnable runnable)
+               {
+                  Thread thread = new Thread(runnable);
+                  thread.setName("BeanKeeper Async "+(++count));
+                  thread.setDaemon(true);
+                  return thread;
+               }
+            });
+      executor = defaultExecutor;
+      configurationTracker.addListener(this);
+   }
+
+   public void release()
+   {
+      configurationTracker.removeListener(this);
+      defaultExecutor.shutdown();
+   }
+
+   public synchronized void setExecutor(ExecutorService executor)
+   {
+      if ( executor == null )
+         this.executor = defaultExecutor;
+      else
+         this.executor = executor;
+   }
+
+   private synchronized ExecutorService getExecutor()
+   {
+      return executor;
+   }
+
+   /**
+    * Run a task on the executor, or in the current transaction of the
+    * calling thread if there is one. Tasks in a transaction run in the
+    * calling thread, because the transaction and its connection may only
+    * be used by the thread it belongs to.
+    */
+   public <T> Future<T> submit(Callable<T> task)
+   {
+      Transaction transaction = transactionTracker.getTransaction(TransactionTracker.TX_OPTIONAL);
+      if ( transaction == null )
+         return getExecutor().submit(task);
+      if ( logger.isDebugEnabled() )
+         logger.debug("running task in the calling thread, in transaction: "+transaction);
+      FutureTask<T> future = new FutureTask<T>(task);
+      future.run();
+      return future;
+   }
+
+   /**
+    * Run a task in a new transaction.
+    */
+   public <T> Future<T> submitTransaction(final Callable<T> task)
+   {
+      return getExecutor().submit(new Callable<T>()
+            {
+               public T call()
+                  throws Exception
+               {
+                  Transaction transaction = transactionTracker.getTransaction(TransactionTracker.TX_NEW);
+                  transaction.begin();
+                  try
+                  {
+                     return task.call();
+                  } catch ( Exception e ) {
+                     transaction.markRollbackOnly();
+                     throw e;
+                  } catch ( Error e ) {
+                     transaction.markRollbackOnly();
+                     throw e;
+                  } finally {
+                     transaction.commit();
+                  }
+               }
+            });
+   }
+
+   public void configurationChanged(ConfigurationEvent event)
+   {
+      if ( (event.getPropertyName()!=null) && 
+            (event.getPropertyName().startsWith("beankeeper.async")) )
+         configurationReload();
+   }
+
+   public void configurationReload()
+   {
+      THREADS = configurationTracker.getConfiguration().
+         getInt("beankeeper.async.threads",10);
+      if ( THREADS < 1 )
+      {
+         logger.warn("async thread count must be at least 1, but was: "+THREADS+", using 1");
+         THREADS = 1;
+      }
+      if ( defaultExecutor != null )
+      {
+         // Pool size must never be above the maximum
+         if ( THREADS > defaultExecutor.getMaximumPoolSize() )
+         {
+            defaultExecutor.setMaximumPoolSize(THREADS);
+            defaultExecutor.setCorePoolSize(THREADS);
+         } else {
+            defaultExecutor.setCorePoolSize(THREADS);
+            defaultExecutor.setMaximumPoolSize(THREADS);
+         }
+      }
+      if ( logger.isDebugEnabled() )
+         logger.debug("async service uses "+THREADS+" threads");
+   }
+}
@@ -0,0 +1,58 @@
+/**
+ * Copyright (C) 2008 NetMind Consulting Bt.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package hu.netmind.beankeeper.cache;
+
+import hu.netmind.beankeeper.service.Service;
+import java.util.*;
+
+/**
+ * This service caches the attributes of single objects, shared by
+ * all queries. An object is cached with the version it was selected in,
+ * so the cache answers queries only at serials the version is valid.
+ * @author Brautigam Robert
+ * @version Revision: $Revision$
+ */
+public interface ObjectCache extends Service
+{
+   /**
+    * Get the marshalled attributes of an object.
+    * @param id The persistence id of the object.
+    * @param serial The serial at which the object should be valid.
+    * @return The marshalled attributes of the object, which must not
+    * be modified, or null if the object is not cached at the given serial.
+    */
+   Map getObject(Long id, Long serial);
+
+   /**
+    * Add the marshalled attributes of an object selected from the database.
+    * The object is only cached, if all its tables were selected, and
+    * none of them changed since the select.
+    * @param marshalledValues The attributes of the object as selected,
+    * these must not be modified later.
+    * @param selectedTables The tables the attributes were selected from.
+    * @param serial The serial of the query which selected the object.
+    */
+   void addObject(Map marshalledValues, Set<String> selectedTables, Long serial);
+
+   /**
+    * Clear the cache.
+    */
+   void clear();
+}
+
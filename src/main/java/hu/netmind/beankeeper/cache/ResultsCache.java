@@ -47,6 +47,22 @@ public interface ResultsCache extends Service
     */
    void addEntry(QueryStatement stmt, Limits limits, SearchResult result);
 
+   /**
+    * Get the entry of the concatenated result of more statements.
+    * @param stmts The statements to look for.
+    * @param limits The limits of the whole result.
+    * @return A SearchResult object if the query was cached, null otherwise.
+    */
+   SearchResult getEntry(List<QueryStatement> stmts, Limits limits);
+
+   /**
+    * Add the concatenated result of more statements to the cache.
+    * @param stmts The statements source of result.
+    * @param limits The limits of the whole result.
+    * @param result The SearchResult object.
+    */
+   void addEntry(List<QueryStatement> stmts, Limits limits, SearchResult result);
+
    /**
     * Clear the cache.
     */
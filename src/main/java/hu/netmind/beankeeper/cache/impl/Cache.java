@@ -19,18 +19,26 @@
 package hu.netmind.beankeeper.cache.impl;
 
 import hu.netmind.beankeeper.cache.ResultsCache;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
- * Cache management bean.
+ * Cache management bean. Counters are atomic, so they can be updated
+ * without locking.
  * @author Brautigam Robert
  * @version Revision: $Revision$
  */
 public class Cache implements CacheMBean
 {
-   private long hitCount;
-   private long missCount;
-   private long objectCount;
-   private long resultCount;
+   private AtomicLong hitCount = new AtomicLong();
+   private AtomicLong missCount = new AtomicLong();
+   private AtomicLong objectCount = new AtomicLong();
+   private AtomicLong resultCount = new AtomicLong();
+   private AtomicLong byteCount = new AtomicLong();
+   private AtomicLong expiredCount = new AtomicLong();
+   private AtomicLong memoryEvictionCount = new AtomicLong();
+   private AtomicLong sizeEvictionCount = new AtomicLong();
+   private AtomicLong invalidationCount = new AtomicLong();
+   private AtomicLong rejectedCount = new AtomicLong();
 
    private ResultsCache cache = null;
 
@@ -39,40 +47,143 @@ public class Cache implements CacheMBean
       this.cache=cache;
    }
 
+   public double getHitRatio()
+   {
+      long hits = hitCount.get();
+      long misses = missCount.get();
+      if ( hits+misses == 0 )
+         return 0;
+      return (double) hits/(hits+misses);
+   }
+
    public long getHitCount()
    {
-      return hitCount;
+      return hitCount.get();
    }
    public void setHitCount(long hitCount)
    {
-      this.hitCount=hitCount;
+      this.hitCount.set(hitCount);
+   }
+   public void addHitCount(long delta)
+   {
+      hitCount.addAndGet(delta);
    }
 
    public long getMissCount()
    {
-      return missCount;
+      return missCount.get();
    }
    public void setMissCount(long missCount)
    {
-      this.missCount=missCount;
+      this.missCount.set(missCount);
+   }
+   public void addMissCount(long delta)
+   {
+      missCount.addAndGet(delta);
    }
 
    public long getObjectCount()
    {
-      return objectCount;
+      return objectCount.get();
    }
    public void setObjectCount(long objectCount)
    {
-      this.objectCount=objectCount;
+      this.objectCount.set(objectCount);
+   }
+   public void addObjectCount(long delta)
+   {
+      objectCount.addAndGet(delta);
    }
 
    public long getResultCount()
    {
-      return resultCount;
+      return resultCount.get();
    }
    public void setResultCount(long resultCount)
    {
-      this.resultCount=resultCount;
+      this.resultCount.set(resultCount);
+   }
+   public void addResultCount(long delta)
+   {
+      resultCount.addAndGet(delta);
+   }
+
+   public long getByteCount()
+   {
+      return byteCount.get();
+   }
+   public void setByteCount(long byteCount)
+   {
+      this.byteCount.set(byteCount);
+   }
+   public void addByteCount(long delta)
+   {
+      byteCount.addAndGet(delta);
+   }
+
+   public long getExpiredCount()
+   {
+      return expiredCount.get();
+   }
+   public void setExpiredCount(long expiredCount)
+   {
+      this.expiredCount.set(expiredCount);
+   }
+   public void addExpiredCount(long delta)
+   {
+      expiredCount.addAndGet(delta);
+   }
+
+   public long getMemoryEvictionCount()
+   {
+      return memoryEvictionCount.get();
+   }
+   public void setMemoryEvictionCount(long memoryEvictionCount)
+   {
+      this.memoryEvictionCount.set(memoryEvictionCount);
+   }
+   public void addMemoryEvictionCount(long delta)
+   {
+      memoryEvictionCount.addAndGet(delta);
+   }
+
+   public long getSizeEvictionCount()
+   {
+      return sizeEvictionCount.get();
+   }
+   public void setSizeEvictionCount(long sizeEvictionCount)
+   {
+      this.sizeEvictionCount.set(sizeEvictionCount);
+   }
+   public void addSizeEvictionCount(long delta)
+   {
+      sizeEvictionCount.addAndGet(delta);
+   }
+
+   public long getInvalidationCount()
+   {
+      return invalidationCount.get();
+   }
+   public void setInvalidationCount(long invalidationCount)
+   {
+      this.invalidationCount.set(invalidationCount);
+   }
+   public void addInvalidationCount(long delta)
+   {
+      invalidationCount.addAndGet(delta);
+   }
+
+   public long getRejectedCount()
+   {
+      return rejectedCount.get();
+   }
+   public void setRejectedCount(long rejectedCount)
+   {
+      this.rejectedCount.set(rejectedCount);
+   }
+   public void addRejectedCount(long delta)
+   {
+      rejectedCount.addAndGet(delta);
    }
 
    public void clear()
@@ -81,4 +192,3 @@ public class Cache implements CacheMBean
    }
 }
 
-
@@ -29,6 +29,13 @@ public interface CacheMBean
    long getMissCount();
    long getObjectCount();
    long getResultCount();
+   double getHitRatio();
+   long getByteCount();
+   long getExpiredCount();
+   long getMemoryEvictionCount();
+   long getSizeEvictionCount();
+   long getInvalidationCount();
+   long getRejectedCount();
 
    void clear();
 }
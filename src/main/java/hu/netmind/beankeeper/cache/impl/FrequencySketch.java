@@ -0,0 +1,109 @@
+/**
+ * Copyright (C) 2008 NetMind Consulting Bt.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package hu.netmind.beankeeper.cache.impl;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Approximate access frequencies of keys in a fixed amount of memory. This
+ * is a count-min sketch with small counters: each key increments one
+ * counter in each row, and the frequency is the minimum of those. When
+ * enough accesses are counted, all counters are halved, so old
+ * accesses count less than recent ones.<br>
+ * Counters are updated without locking. Concurrent increments of the
+ * same counter may be lost, which only makes the estimate a bit lower.
+ * @author Brautigam Robert
+ * @version Revision: $Revision$
+ */
+class FrequencySketch
+{
+   private static final int[] SEEDS = { 0x9E3779B1, 0x85EBCA77, 0xC2B2AE3D, 0x27D4EB2F };
+   private static final int MAX_COUNT = 15;
+
+   private byte[][] counters;
+   private int mask;
+   private AtomicInteger additions = new AtomicInteger();
+   private int sampleSize;
+
+   /**
+    * Create a sketch.
+    * @param capacity The number of distinct keys which should be counted
+    * with good accuracy.
+    */
+   FrequencySketch(int capacity)
+   {
+      int width = 16;
+      while ( (width < capacity) && (width < (1<<24)) )
+         width <<= 1;
+      counters = new byte[SEEDS.length][width];
+      mask = width-1;
+      sampleSize = 10*width;
+   }
+
+   /**
+    * Count an access of the key.
+    */
+   void increment(String key)
+   {
+      int hash = key.hashCode();
+      boolean added = false;
+      for ( int i=0; i<SEEDS.length; i++ )
+      {
+         int index = getIndex(hash,i);
+         if ( counters[i][index] < MAX_COUNT )
+         {
+            counters[i][index]++;
+            added = true;
+         }
+      }
+      // Only the thread reaching the sample size ages the counters
+      if ( (added) && (additions.incrementAndGet() == sampleSize) )
+         age();
+   }
+
+   /**
+    * Get the approximate number of recent accesses of the key.
+    */
+   int getFrequency(String key)
+   {
+      int hash = key.hashCode();
+      int frequency = MAX_COUNT;
+      for ( int i=0; i<SEEDS.length; i++ )
+         frequency = Math.min(frequency,counters[i][getIndex(hash,i)]);
+      return frequency;
+   }
+
+   /**
+    * Halve all counters.
+    */
+   private void age()
+   {
+      for ( int i=0; i<counters.length; i++ )
+         for ( int o=0; o<counters[i].length; o++ )
+            counters[i][o] >>= 1;
+      additions.addAndGet(-sampleSize/2);
+   }
+
+   private int getIndex(int hash, int row)
+   {
+      int h = hash*SEEDS[row];
+      h ^= h >>> 16;
+      return h & mask;
+   }
+}
@@ -37,6 +37,9 @@ import hu.netmind.beankeeper.store.event.ObjectsFinalizationEvent;
 import hu.netmind.beankeeper.node.event.NodeStateChangeEvent;
 import org.apache.log4j.Logger;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
 import org.apache.commons.configuration.event.ConfigurationEvent;
 
 /**
@@ -90,7 +93,30 @@ import org.apache.commons.configuration.event.ConfigurationEvent;
  * a large overhead for the cache, with little benefit if at all.<br>
  * In effect, cache hits will occur mostly, when the same non-historical 
  * query, for a common table (not frequently changed) is run multiple times 
- * in short period of time.
+ * in short period of time.<br>
+ * If a byte budget is configured (<code>beankeeper.cache.max_bytes</code>),
+ * the free memory heuristics are not used. The size of each result is
+ * estimated from its row and column count, and the estimated size of
+ * all entries is kept under the budget. A new result only replaces
+ * entries if it was requested more often recently than each of the
+ * replaced entries, so results of one-off queries do not evict
+ * frequently used results.<br>
+ * Cache hits do not lock: entries are in concurrent maps, and a hit only
+ * moves the deadline of the entry forward. Expired entries are removed
+ * by a sweep at most a few times in each expiration interval, and
+ * only adding entries which need room locks. Because invalidations do
+ * not lock the whole cache, an entry is also checked against the last
+ * modification serials of its tables when it is hit.<br>
+ * Small results of simple statements (a single class, without joins to
+ * other objects) also remember the ids of the objects in them. A change
+ * of an object of the same class only removes such a result, if the
+ * object is in the result, or it may match the statement now. An object
+ * may match, except if the statement only selects given ids, the object
+ * was removed and the result contains all matching objects, or none of
+ * the attributes the statement's condition references changed.<br>
+ * A change which did not affect an entry is remembered for each table of
+ * the entry, and only if the entry was valid before that change, so
+ * an entry added concurrently with an affecting change is never hit.
  * @author Brautigam Robert
  * @version Revision: $Revision$
  */
@@ -103,13 +129,30 @@ public class MinimalResultsCache
    private static int MIN_FREE_RATE = 60; // Min free memory in percentage to total allocated
    private static int FREE_RATE = 2; // How many entries to free for a single entry if needed
    private static long EXPIRATION_INTERVAL = 1*60*1000; // Expiration in millis
+   private static long MAX_BYTES = 0; // Byte budget, 0 if memory heuristics are used
+   private static int MAX_TRACKED_IDS = 100; // Max result size invalidated by object ids
+
+   private static final int ENTRY_BYTES = 256; // Estimated size of an entry without rows
+   private static final int ROW_BYTES = 64; // Estimated size of a row without values
+   private static final int VALUE_BYTES = 48; // Estimated size of a single value
+   private static final int SWEEPS_PER_EXPIRATION = 4; // Sweeps in an expiration interval
+
+   private static final int CAUSE_NONE = -1;
+   private static final int CAUSE_EXPIRATION = 0;
+   private static final int CAUSE_MEMORY = 1;
+   private static final int CAUSE_SIZE = 2;
+   private static final int CAUSE_INVALIDATION = 3;
  
-   private SortedSet entriesByExpiration; // The cache entries sorted by expiration
-   private Map entriesByRepresentation; // Entries by statement representation
-   private Map entriesByTables; // Entries by table names
-   private Object cacheMutex = new Object(); // Mutex for cache
-   private Long startSerial; // The serial on which the cache started
-   private Map serialsByTables; // Last modification serials of tables
+   private ConcurrentMap<String,CacheEntry> entriesByRepresentation = 
+      new ConcurrentHashMap<String,CacheEntry>(); // Entries by statement representation
+   private ConcurrentMap<String,ConcurrentMap<CacheEntry,Boolean>> entriesByTables = 
+      new ConcurrentHashMap<String,ConcurrentMap<CacheEntry,Boolean>>(); // Entries by table names
+   private ConcurrentMap<String,Long> serialsByTables = 
+      new ConcurrentHashMap<String,Long>(); // Last modification serials of tables
+   private Object evictionMutex = new Object(); // Mutex for making room for entries
+   private AtomicLong nextSweep = new AtomicLong(); // Time of next expiration sweep
+   private volatile Long startSerial; // The serial on which the cache started
+   private volatile FrequencySketch sketch; // Recent request frequencies of results
 
    private Cache cache = null;
    private ConfigurationTracker configurationTracker = null; // Injected
@@ -120,19 +163,14 @@ public class MinimalResultsCache
    
    public void init(Map parameters)
    {
-      this.startSerial=null;
       this.cache=new Cache(this);
-      clear();
       // Configure
       configurationReload();
       configurationTracker.addListener(this);
       // Initialize
-      synchronized ( cacheMutex )
-      {
-         clear();
-         // TODO: this should be refreshed when node manager reconnects
-         startSerial = Serial.getSerial(new Date()).getValue();
-      }
+      clear();
+      // TODO: this should be refreshed when node manager reconnects
+      startSerial = Serial.getSerial(new Date()).getValue();
       // Listen for updates
       eventDispatcher.registerListener(this);
       // Register mbean
@@ -152,12 +190,51 @@ public class MinimalResultsCache
       return cache;
    }
 
-   private String getRepresentation(QueryStatement stmt, Limits limits)
+   private String getRepresentation(List<QueryStatement> stmts, Limits limits)
    {
+      StringBuffer representation = new StringBuffer();
+      for ( QueryStatement stmt : stmts )
+      {
+         // Statements without static representation are not cacheable
+         if ( stmt.getStaticRepresentation() == null )
+            return null;
+         if ( representation.length() > 0 )
+            representation.append(" union ");
+         representation.append(stmt.getStaticRepresentation());
+      }
       if ( limits != null )
-         return stmt.getStaticRepresentation()+limits.toString();
-      else
-         return stmt.getStaticRepresentation();
+         representation.append(limits.toString());
+      return representation.toString();
+   }
+
+   /**
+    * Only those results are cached, which are global, so not modified
+    * in the current transaction.
+    */
+   private boolean isApplyTransaction(List<QueryStatement> stmts)
+   {
+      for ( QueryStatement stmt : stmts )
+         if ( stmt.getTimeControl().isApplyTransaction() )
+            return true;
+      return false;
+   }
+
+   /**
+    * Determine whether a table of the entry was modified after the
+    * entry was selected.
+    */
+   private boolean isModified(CacheEntry entry)
+   {
+      for ( String tableName : entry.tables )
+      {
+         Long lastModificationSerial = serialsByTables.get(tableName);
+         if ( lastModificationSerial == null )
+            lastModificationSerial = startSerial;
+         // Modifications which did not affect the entry are checked already
+         if ( lastModificationSerial.longValue() > entry.getValidSerial(tableName) )
+            return true;
+      }
+      return false;
    }
    
    /**
@@ -167,77 +244,254 @@ public class MinimalResultsCache
     * @return A SearchResult object if the query was cached, null otherwise.
     */
    public SearchResult getEntry(QueryStatement stmt, Limits limits)
+   {
+      return getEntry(Collections.singletonList(stmt),limits);
+   }
+
+   /**
+    * Get the entry of the concatenated result of more statements.
+    * @param stmts The statements to look for.
+    * @param limits The limits of the whole result.
+    * @return A SearchResult object if the query was cached, null otherwise.
+    */
+   public SearchResult getEntry(List<QueryStatement> stmts, Limits limits)
    {
       // Check whether entry was modified in the same transaction. Only
       // those results are cached, which are global.
-      if ( stmt.getTimeControl().isApplyTransaction() )
+      if ( isApplyTransaction(stmts) )
          return null;
       // Get entry
-      String rep = getRepresentation(stmt,limits);
+      QueryStatement stmt = stmts.get(0);
+      String rep = getRepresentation(stmts,limits);
       if ( logger.isDebugEnabled() )
-         logger.debug("searching in cache for: "+rep+", entries: "+entriesByExpiration.size());
+         logger.debug("searching in cache for: "+rep+", entries: "+entriesByRepresentation.size());
       if ( (rep==null) || ("".equals(rep)) )
          return null;
-      CacheEntry entry = null;
-      synchronized ( cacheMutex )
-      {
-         entry = (CacheEntry) entriesByRepresentation.get(rep);
-      }
+      FrequencySketch currentSketch = sketch;
+      if ( currentSketch != null )
+         currentSketch.increment(rep);
+      CacheEntry entry = entriesByRepresentation.get(rep);
       if ( entry == null )
       {
          // Cache miss
-         synchronized ( cache )
-         {
-            cache.setMissCount(cache.getMissCount()+1);
-         }
+         cache.addMissCount(1);
          return null;
       }
       // Check whether query is after result became active
       if ( entry.startSerial > stmt.getTimeControl().getSerial().longValue() )
          return null;
-      // All OK, result is valid set statistics
-      synchronized ( cacheMutex )
+      // Check whether an invalidation is still checking this entry
+      if ( isModified(entry) )
       {
-         entriesByExpiration.remove(entry); // Remove, because it will be re-ordered
-         entry.accessCount++;
-         entry.lastAccess = System.currentTimeMillis();
-         entry.expiration += EXPIRATION_INTERVAL;
-         entriesByExpiration.add(entry);
+         cache.addMissCount(1);
+         return null;
       }
+      // All OK, result is valid set statistics. Concurrent hits may
+      // move the expiration only once, which does not matter.
+      long currentTime = System.currentTimeMillis();
+      entry.accessCount++;
+      entry.lastAccess = currentTime;
+      entry.expiration += EXPIRATION_INTERVAL;
       // Return with cache hit
       logger.debug("cache HIT.");
-      synchronized ( cache )
-      {
-         cache.setHitCount(cache.getHitCount()+1);
-      }
+      cache.addHitCount(1);
       return entry.result;
    }
 
    /**
-    * Remove an entry from cache.
+    * Remove an entry from cache, if it is still in the cache.
+    * @param cause The reason of the removal, for statistics.
+    * @return True if the entry was removed by this call.
     */
-   private void removeEntry(CacheEntry entry)
+   private boolean removeEntry(CacheEntry entry, int cause)
    {
-      synchronized ( cacheMutex )
+      if ( ! entriesByRepresentation.remove(entry.representation,entry) )
+         return false; // Already removed or replaced
+      unlinkEntry(entry,cause);
+      return true;
+   }
+
+   /**
+    * Remove an entry already removed from the representation map from
+    * the table sets and the statistics.
+    */
+   private void unlinkEntry(CacheEntry entry, int cause)
+   {
+      for ( String tableName : entry.tables )
       {
-         entriesByExpiration.remove(entry);
-         entriesByRepresentation.remove(entry.representation);
-         Iterator tableIterator = entry.tables.iterator();
-         while ( tableIterator.hasNext() )
-         {
-            String tableName = (String) tableIterator.next();
-            Set tableEntries = (Set) entriesByTables.get(tableName); // This shouldn't be null
+         Map<CacheEntry,Boolean> tableEntries = entriesByTables.get(tableName);
+         if ( tableEntries != null )
             tableEntries.remove(entry);
-            if ( tableEntries.size() == 0 )
-               entriesByTables.remove(tableName);
-         }
-         // Remove from management bean
-         synchronized ( cache )
+      }
+      // Remove from management bean
+      cache.addResultCount(-1);
+      cache.addObjectCount(-entry.result.getResult().size());
+      cache.addByteCount(-entry.weight);
+      switch ( cause )
+      {
+         case CAUSE_NONE:
+            break;
+         case CAUSE_EXPIRATION:
+            cache.addExpiredCount(1);
+            break;
+         case CAUSE_MEMORY:
+            cache.addMemoryEvictionCount(1);
+            break;
+         case CAUSE_SIZE:
+            cache.addSizeEvictionCount(1);
+            break;
+         default:
+            cache.addInvalidationCount(1);
+      }
+   }
+
+   /**
+    * Remove the expired entries, if the last sweep was long enough ago.
+    * Only one thread sweeps at a time, the others return immediately.
+    */
+   private void sweep(long currentTime)
+   {
+      long sweepTime = nextSweep.get();
+      if ( (currentTime < sweepTime) || 
+            (! nextSweep.compareAndSet(sweepTime,currentTime+EXPIRATION_INTERVAL/SWEEPS_PER_EXPIRATION)) )
+         return;
+      int count = 0;
+      for ( CacheEntry entry : entriesByRepresentation.values() )
+         if ( (entry.expiration < currentTime) && (removeEntry(entry,CAUSE_EXPIRATION)) )
+            count++;
+      if ( logger.isDebugEnabled() )
+         logger.debug("swept "+count+" expired entries, entries left: "+entriesByRepresentation.size());
+   }
+
+   /**
+    * Get all entries, the one expiring first first. Must be called
+    * with the eviction mutex held.
+    */
+   private List<CacheEntry> getEntriesByExpiration()
+   {
+      List<CacheEntry> entries = new ArrayList<CacheEntry>(entriesByRepresentation.values());
+      // Hits move the expiration concurrently, so sort by a copy
+      for ( CacheEntry entry : entries )
+         entry.sortExpiration = entry.expiration;
+      Collections.sort(entries);
+      return entries;
+   }
+
+   /**
+    * Estimate the memory used by a result.
+    */
+   private long getWeight(SearchResult result)
+   {
+      List rows = result.getResult();
+      int columnCount = 0;
+      if ( rows.size() > 0 )
+         columnCount = ((Map) rows.get(0)).size();
+      return ENTRY_BYTES + rows.size()*(ROW_BYTES+(long) columnCount*VALUE_BYTES);
+   }
+
+   /**
+    * Select the entries to remove, so a new entry fits into the byte
+    * budget. Expired entries are removed first, then entries which expire
+    * first, but only if the new entry was requested more often recently.
+    * Must be called with the eviction mutex held.
+    * @return The entries to remove, or null if the new entry should not
+    * be cached.
+    */
+   private List<CacheEntry> getVictims(FrequencySketch currentSketch, 
+         String representation, long weight, long currentTime)
+   {
+      if ( weight > MAX_BYTES )
+         return null;
+      List<CacheEntry> victims = new ArrayList<CacheEntry>();
+      long freeBytes = MAX_BYTES-cache.getByteCount();
+      if ( freeBytes >= weight )
+         return victims;
+      int frequency = currentSketch.getFrequency(representation);
+      for ( CacheEntry victim : getEntriesByExpiration() )
+      {
+         if ( freeBytes >= weight )
+            break;
+         if ( (victim.sortExpiration >= currentTime) && 
+               (currentSketch.getFrequency(victim.representation) >= frequency) )
+            return null;
+         victims.add(victim);
+         freeBytes += victim.weight;
+      }
+      return victims;
+   }
+   
+   /**
+    * Remember the ids of the objects in the result, if the statement
+    * selects a single class and the result is small enough.
+    */
+   private void trackObjects(CacheEntry entry, QueryStatement stmt, Limits limits, SearchResult result)
+   {
+      if ( (stmt.getMode() != QueryStatement.MODE_FIND) || (stmt.getSpecifiedTerms().size() != 1) || 
+            (result.getResult().size() > MAX_TRACKED_IDS) )
+         return;
+      SpecifiedTableTerm mainTerm = (SpecifiedTableTerm) stmt.getSpecifiedTerms().iterator().next();
+      // Ids of the result
+      Set<Long> ids = new HashSet<Long>();
+      for ( Map row : result.getResult() )
+      {
+         Object id = row.get("persistence_id");
+         if ( ! (id instanceof Long) )
+            return; // Not a result of objects
+         ids.add((Long) id);
+      }
+      // Tables which contain the selected objects themselves
+      Set<String> objectTables = new HashSet<String>();
+      objectTables.add(mainTerm.getTableName());
+      for ( int i=0; i<mainTerm.getRelatedLeftTerms().size(); i++ )
+         objectTables.add(((SpecifiedTableTerm.LeftjoinEntry) 
+                  mainTerm.getRelatedLeftTerms().get(i)).term.getTableName());
+      entry.ids = ids;
+      entry.objectTables = objectTables;
+      entry.columns = stmt.computeColumns(objectTables);
+      entry.complete = ( (limits==null) || (limits.getOffset()==0) ) &&
+         (result.getResultSize() <= result.getResult().size());
+      entry.boundIds = stmt.computeBoundIds();
+   }
+
+   /**
+    * Determine whether the changes may have changed the result of the
+    * entry. If the entry does not know the ids of its objects, it is
+    * always affected.
+    * @param tablesById The tables of each changed object.
+    * @param removedIds The ids of removed objects.
+    * @param changedAttributes The changed attributes of updated objects.
+    */
+   private boolean isAffected(CacheEntry entry, Map<Long,Set<String>> tablesById, Set<Long> removedIds,
+         Map<Long,Set<String>> changedAttributes)
+   {
+      if ( entry.ids == null )
+         return true;
+      List<String> entryTables = Arrays.asList(entry.tables);
+      for ( Map.Entry<Long,Set<String>> change : tablesById.entrySet() )
+      {
+         Long id = change.getKey();
+         boolean touched = false;
+         for ( String tableName : change.getValue() )
          {
-            cache.setResultCount(cache.getResultCount()-1);
-            cache.setObjectCount(cache.getObjectCount()-entry.result.getResult().size());
+            if ( ! entryTables.contains(tableName) )
+               continue;
+            if ( ! entry.objectTables.contains(tableName) )
+               return true; // Table is joined, not known how it affects the result
+            touched = true;
          }
+         if ( (! touched) || ((entry.boundIds != null) && (! entry.boundIds.contains(id))) )
+            continue; // Object can not be in the result
+         if ( entry.ids.contains(id) )
+            return true; // Object of the result changed
+         if ( (entry.complete) && (removedIds.contains(id)) )
+            continue; // Object was not in the result, and now it is removed
+         Set<String> changedNames = changedAttributes.get(id);
+         if ( (entry.columns != null) && (changedNames != null) && 
+               (Collections.disjoint(entry.columns,changedNames)) )
+            continue; // Object was not in the result, and still does not match
+         return true; // Object may match now
       }
+      return false;
    }
 
    /**
@@ -247,98 +501,129 @@ public class MinimalResultsCache
     * @param result The SearchResult object.
     */
    public void addEntry(QueryStatement stmt, Limits limits, SearchResult result)
+   {
+      addEntry(Collections.singletonList(stmt),limits,result);
+   }
+
+   /**
+    * Add the concatenated result of more statements to the cache. The
+    * entry is invalidated if any of the statements' tables change.
+    * @param stmts The statements source of result.
+    * @param limits The limits of the whole result.
+    * @param result The SearchResult object.
+    */
+   public void addEntry(List<QueryStatement> stmts, Limits limits, SearchResult result)
    {
       // Check whether entry was modified in the same transaction. Only
       // those results are cached, which are global.
-      if ( stmt.getTimeControl().isApplyTransaction() )
+      if ( isApplyTransaction(stmts) )
          return;
       // Rep
-      String rep = getRepresentation(stmt,limits);
+      QueryStatement stmt = stmts.get(0);
+      String rep = getRepresentation(stmts,limits);
       if ( logger.isDebugEnabled() )
-         logger.debug("adding to cache: "+rep+", entries: "+entriesByExpiration.size());
+         logger.debug("adding to cache: "+rep+", entries: "+entriesByRepresentation.size());
       if ( (rep==null) || ("".equals(rep)) )
          return;
-      // First, determine how many entries to free. By default, all expired
-      // entries are freed, but if there is not enough memory, entries
-      // can be forced to be removed.
-      int forceFreeResultsCount = 0; // By default none are forced
-      long freeMem = Runtime.getRuntime().freeMemory();
-      long totalMem = Runtime.getRuntime().totalMemory();
-      if ( (freeMem<MIN_FREE_BYTES) || (100.0*freeMem/totalMem>MIN_FREE_RATE) )
-      {
-         if ( logger.isDebugEnabled() )
-            logger.debug("not enough memory to cache, free: "+freeMem+", total: "+totalMem);
-         // Not enough memory, set force free count
-         forceFreeResultsCount = result.getResult().size()*FREE_RATE+1;
-      }
-      // Free entries
       long currentTime = System.currentTimeMillis();
-      long lastExpiration = currentTime;
-      while ( ((forceFreeResultsCount>0) || (lastExpiration<currentTime)) && 
-         (entriesByExpiration.size()>0) )
-      {
-         // Get top entry
-         CacheEntry entry = null;
-         synchronized ( cacheMutex )
-         {
-            entry = (CacheEntry) entriesByExpiration.first();
-         }
-         // Set indicators
-         lastExpiration = entry.expiration;
-         forceFreeResultsCount -= entry.result.getResult().size();
-         // Free it
-         removeEntry(entry);
-      }
-      if ( logger.isDebugEnabled() )
-         logger.debug("cache entries after free: "+entriesByExpiration.size());
+      sweep(currentTime);
       // Create new entry
       CacheEntry entry = new CacheEntry();
       entry.representation=rep;
       entry.result=result;
+      entry.weight=getWeight(result);
       entry.accessCount=0;
       entry.firstAccess=currentTime;
       entry.lastAccess=currentTime;
       entry.expiration=currentTime+EXPIRATION_INTERVAL;
-      entry.tables=stmt.computeTables();
+      Set<String> tables = new HashSet<String>();
+      for ( QueryStatement tableStmt : stmts )
+         tables.addAll(tableStmt.computeTables());
+      entry.tables=tables.toArray(new String[tables.size()]);
       entry.startSerial=stmt.getTimeControl().getSerial().longValue();
-      // Add new entry to cache
-      synchronized ( cacheMutex )
+      if ( stmts.size() == 1 )
+         trackObjects(entry,stmt,limits,result);
+      // Determine whether entry is current (all table
+      // modifications are previous to entry)
+      if ( isModified(entry) )
+         return; // Table is newer than query, so query is historical
+      FrequencySketch currentSketch = sketch;
+      if ( (MAX_BYTES <= 0) || (currentSketch == null) )
       {
-         // Determine whether entry is current (all table
-         // modifications are previous to entry)
-         Iterator tableIterator = entry.tables.iterator();
-         while ( tableIterator.hasNext() )
+         // Determine whether entries should be forced to be freed,
+         // because there is not enough memory.
+         long freeMem = Runtime.getRuntime().freeMemory();
+         long totalMem = Runtime.getRuntime().totalMemory();
+         if ( (freeMem<MIN_FREE_BYTES) || (100.0*freeMem/totalMem>MIN_FREE_RATE) )
          {
-            String tableName = (String) tableIterator.next();
-            Long lastModificationSerial = (Long) serialsByTables.get(tableName);
-            if ( lastModificationSerial == null )
-               lastModificationSerial = startSerial;
-            if ( lastModificationSerial.longValue() > entry.startSerial )
-               return; // Table is newer than query, so query is historical
+            if ( logger.isDebugEnabled() )
+               logger.debug("not enough memory to cache, free: "+freeMem+", total: "+totalMem);
+            // Not enough memory, free entries expiring first
+            int forceFreeResultsCount = result.getResult().size()*FREE_RATE+1;
+            synchronized ( evictionMutex )
+            {
+               Iterator<CacheEntry> entryIterator = getEntriesByExpiration().iterator();
+               while ( (forceFreeResultsCount>0) && (entryIterator.hasNext()) )
+               {
+                  CacheEntry victim = entryIterator.next();
+                  if ( removeEntry(victim,CAUSE_MEMORY) )
+                     forceFreeResultsCount -= victim.result.getResult().size();
+               }
+            }
          }
-         // Add to maps
-         entriesByExpiration.add(entry);
-         entriesByRepresentation.put(entry.representation,entry);
-         // Add to table indexed map
-         tableIterator = entry.tables.iterator();
-         while ( tableIterator.hasNext() )
+         linkEntry(entry);
+      } else {
+         // Make room for the new entry if it is admitted. The entry is
+         // added while holding the mutex, so the budget is not exceeded
+         // by concurrent additions.
+         synchronized ( evictionMutex )
          {
-            String tableName = (String) tableIterator.next();
-            Set tableEntries = (Set) entriesByTables.get(tableName);
-            if ( tableEntries == null )
+            List<CacheEntry> victims = getVictims(currentSketch,rep,entry.weight,currentTime);
+            if ( victims == null )
             {
-               tableEntries = new HashSet();
-               entriesByTables.put(tableName,tableEntries);
+               if ( logger.isDebugEnabled() )
+                  logger.debug("result not admitted to cache: "+rep);
+               cache.addRejectedCount(1);
+               return;
             }
-            tableEntries.add(entry);
+            for ( CacheEntry victim : victims )
+               removeEntry(victim,victim.sortExpiration<currentTime?CAUSE_EXPIRATION:CAUSE_SIZE);
+            linkEntry(entry);
          }
-         // Add to management bean
-         synchronized ( cache )
+      }
+      if ( logger.isDebugEnabled() )
+         logger.debug("cache entries after add: "+entriesByRepresentation.size());
+   }
+
+   /**
+    * Add a new entry to the maps. The entry is added to the table sets
+    * first, so a concurrent invalidation of a table either finds it there,
+    * or the modification serial of the table is already visible when the
+    * entry is hit.
+    */
+   private void linkEntry(CacheEntry entry)
+   {
+      for ( String tableName : entry.tables )
+      {
+         ConcurrentMap<CacheEntry,Boolean> tableEntries = entriesByTables.get(tableName);
+         if ( tableEntries == null )
          {
-            cache.setResultCount(cache.getResultCount()+1);
-            cache.setObjectCount(cache.getObjectCount()+entry.result.getResult().size());
+            tableEntries = new ConcurrentHashMap<CacheEntry,Boolean>();
+            ConcurrentMap<CacheEntry,Boolean> otherEntries = 
+               entriesByTables.putIfAbsent(tableName,tableEntries);
+            if ( otherEntries != null )
+               tableEntries = otherEntries;
          }
+         tableEntries.put(entry,Boolean.TRUE);
       }
+      // Add to management bean
+      cache.addResultCount(1);
+      cache.addObjectCount(entry.result.getResult().size());
+      cache.addByteCount(entry.weight);
+      // Add to representation map, replacing an entry of the same result
+      CacheEntry oldEntry = entriesByRepresentation.put(entry.representation,entry);
+      if ( oldEntry != null )
+         unlinkEntry(oldEntry,CAUSE_INVALIDATION);
    }
 
    /**
@@ -347,19 +632,9 @@ public class MinimalResultsCache
    public void clear()
    {
       logger.debug("clearing the cache");
-      synchronized ( cacheMutex )
-      {
-         entriesByExpiration = new TreeSet();
-         entriesByRepresentation = new HashMap();
-         entriesByTables = new HashMap();
-         serialsByTables = new HashMap();
-         // Clear management bean
-         synchronized ( cache )
-         {
-            cache.setResultCount(0);
-            cache.setObjectCount(0);
-         }
-      }
+      serialsByTables.clear();
+      for ( CacheEntry entry : entriesByRepresentation.values() )
+         removeEntry(entry,CAUSE_NONE);
    }
 
    public void handle(PersistenceEvent event)
@@ -369,7 +644,8 @@ public class MinimalResultsCache
          // All object finalizations are handled, even
          // from remote nodes, to maintain a fair cache
          ObjectsFinalizationEvent finEvent = (ObjectsFinalizationEvent) event;
-         updateEntries(finEvent.getMetas(),finEvent.getSerial());
+         updateEntries(finEvent.getMetas(),finEvent.getSerial(),finEvent.getRemovedIds(),
+               finEvent.getChangedAttributes());
       }
       if ( event instanceof NodeStateChangeEvent )
       {
@@ -382,63 +658,86 @@ public class MinimalResultsCache
     * Update the tables for given ids.
     */
    public void updateEntries(List<PersistenceMetaData> metas, Long modifySerial)
+   {
+      updateEntries(metas,modifySerial,new ArrayList<Long>(),new HashMap<Long,Set<String>>());
+   }
+
+   /**
+    * Update the entries which contain or may contain the given objects. 
+    * If an object is updated, the old resultsets could be theoretically
+    * kept, with an other time control, but empirically that does not add
+    * to cache hits, because more often, only current resultsets are selected.
+    * @param metas The metas of all objects changed.
+    * @param modifySerial The modification serial of the changes.
+    * @param removedIds The ids of objects which were removed.
+    * @param changedAttributes The changed attributes of objects which
+    * were updated, objects not contained may have changed entirely.
+    */
+   public void updateEntries(List<PersistenceMetaData> metas, Long modifySerial, List<Long> removedIds,
+         Map<Long,Set<String>> changedAttributes)
    {
       if ( logger.isDebugEnabled() )
          logger.debug("cache will be updated because following metas were modified: "+metas);
       // Assemble all tables which changed according
       // to ids.
-      Set tableNames = new HashSet();
-      Iterator metaIterator = metas.iterator();
-      while ( metaIterator.hasNext() )
+      Set<String> tableNames = new HashSet<String>();
+      Map<Long,Set<String>> tablesById = new HashMap<Long,Set<String>>();
+      for ( PersistenceMetaData meta : metas )
       {
-         Identifier id = new Identifier(((PersistenceMetaData)metaIterator.next()).getPersistenceId());
+         Identifier id = new Identifier(meta.getPersistenceId());
          ClassEntry entry = classTracker.getClassEntry(id.getClassId());
          ClassInfo info = classTracker.getClassInfo(entry);
+         Set<String> objectTableNames = new HashSet<String>();
          // Get all supertables too, because those all got modified potentially
          while ( (entry!=null) && (info.isStorable()) )
          {
-            tableNames.add(schemaManager.getTableName(entry));
+            objectTableNames.add(schemaManager.getTableName(entry));
             entry = entry.getSuperEntry();
             if ( entry != null )
                info = classTracker.getClassInfo(entry);
          }
+         tableNames.addAll(objectTableNames);
+         tablesById.put(meta.getPersistenceId(),objectTableNames);
       }
-      // Go through all tables an update cache
-      synchronized ( cacheMutex )
+      // Update table serials first, so entries added or checked
+      // concurrently are not hit after this
+      Set<CacheEntry> entries = new HashSet<CacheEntry>();
+      Map<String,Long> previousSerials = new HashMap<String,Long>();
+      for ( String tableName : tableNames )
       {
-         Iterator tableNameIterator = tableNames.iterator();
-         while ( tableNameIterator.hasNext() )
-            updateEntries((String) tableNameIterator.next(),modifySerial);
+         Long previousSerial = serialsByTables.put(tableName,modifySerial);
+         previousSerials.put(tableName,(previousSerial==null)?startSerial:previousSerial);
+         Map<CacheEntry,Boolean> tableEntries = entriesByTables.get(tableName);
+         if ( tableEntries != null )
+            entries.addAll(tableEntries.keySet());
       }
-   }
-
-   /**
-    * Tell the cache, that a table was updated. If an object is updated,
-    * the old resultsets could be theoretically kept, with an other time
-    * control, but empirically that does not add to cache hits, because more
-    * often, only current resultsets are selected.
-    * @param tableName The table to update.
-    * @param modifySerial The modification serial of table.
-    */
-   private void updateEntries(String tableName, Long modifySerial)
-   {
-      // Update table
-      synchronized ( cacheMutex )
+      // Remove affected entries, the others are valid after these changes too
+      Set<Long> removedIdSet = new HashSet<Long>(removedIds);
+      int removedCount = 0;
+      for ( CacheEntry entry : entries )
       {
-         serialsByTables.put(tableName,modifySerial);
-         // Get entries
-         Set entries = null;
-         entries = (Set) entriesByTables.get(tableName);
-         if ( entries != null )
+         if ( isAffected(entry,tablesById,removedIdSet,changedAttributes) )
          {
-            // Remove all entries 
-            for ( CacheEntry entry : new HashSet<CacheEntry>(entries) )
-               removeEntry(entry);
-            entriesByTables.remove(tableName);
-            if ( logger.isDebugEnabled() )
-               logger.debug("updated cache table '"+tableName+"', entry count: "+entriesByExpiration.size());
+            if ( ! removeEntry(entry,CAUSE_INVALIDATION) )
+               for ( String tableName : entry.tables )
+               {
+                  Map<CacheEntry,Boolean> tableEntries = entriesByTables.get(tableName);
+                  if ( tableEntries != null )
+                     tableEntries.remove(entry);
+               }
+            removedCount++;
+         } else {
+            for ( String tableName : entry.tables )
+            {
+               Long previousSerial = previousSerials.get(tableName);
+               if ( previousSerial != null )
+                  entry.setChecked(tableName,previousSerial.longValue(),modifySerial.longValue());
+            }
          }
       }
+      if ( logger.isDebugEnabled() )
+         logger.debug("updated cache tables "+tableNames+", removed "+removedCount+" of "+
+               entries.size()+" entries, entry count: "+entriesByRepresentation.size());
    }
 
    /**
@@ -447,22 +746,61 @@ public class MinimalResultsCache
    private class CacheEntry implements Comparable
    {
       // Statistics
-      public int accessCount;
-      public long firstAccess;
-      public long lastAccess;
-      public long expiration;
+      public volatile int accessCount;
+      public volatile long firstAccess;
+      public volatile long lastAccess;
+      public volatile long expiration;
+      public long sortExpiration; // Copy of expiration while sorting
+      public long weight; // Estimated size in bytes
 
       // Data
       public String representation;
-      public Set tables;
+      public String[] tables;
       public SearchResult result;
 
       // Valid markers
       public long startSerial; // Maximum of touched table last changed serials
+      public ConcurrentMap<String,Long> checkedSerials = 
+         new ConcurrentHashMap<String,Long>(); // Last modifications which did not affect entry by tables
+
+      // Objects, if known
+      public Set<Long> ids; // Ids of objects in result
+      public Set<String> objectTables; // Tables of the objects, not joined tables
+      public Set<Long> boundIds; // Only these ids may match, null if any may
+      public boolean complete; // Result contains all matching objects
+      public Set<String> columns; // Columns of the condition, null if not known
+
+      /**
+       * Get the serial up to which the entry is valid for the given table.
+       */
+      public long getValidSerial(String tableName)
+      {
+         Long checkedSerial = checkedSerials.get(tableName);
+         if ( checkedSerial == null )
+            return startSerial;
+         return Math.max(startSerial,checkedSerial.longValue());
+      }
+
+      /**
+       * Mark a modification of a table as checked, if the entry was
+       * valid before the modification. If the entry was not valid, a
+       * previous modification may have affected it without removing it.
+       */
+      public synchronized void setChecked(String tableName, long previousSerial, long modifySerial)
+      {
+         long validSerial = getValidSerial(tableName);
+         if ( (validSerial >= previousSerial) && (validSerial < modifySerial) )
+            checkedSerials.put(tableName,modifySerial);
+      }
 
       public int compareTo(Object obj)
       {
-         return (int) (expiration - ((CacheEntry) obj).expiration);
+         CacheEntry other = (CacheEntry) obj;
+         if ( sortExpiration != other.sortExpiration )
+            return sortExpiration < other.sortExpiration ? -1 : 1;
+         // Entries expiring at the same time are ordered by
+         // representation, which is unique in the cache
+         return representation.compareTo(other.representation);
       }
    }
 
@@ -483,6 +821,19 @@ public class MinimalResultsCache
          getInt("beankeeper.cache.force_free_rate",2);
       EXPIRATION_INTERVAL = configurationTracker.getConfiguration().
          getInt("beankeeper.cache.expiration",60*1000);
+      MAX_TRACKED_IDS = configurationTracker.getConfiguration().
+         getInt("beankeeper.cache.max_tracked_ids",100);
+      long maxBytes = configurationTracker.getConfiguration().
+         getLong("beankeeper.cache.max_bytes",0);
+      synchronized ( evictionMutex )
+      {
+         // The sketch counts about as many results as fit into the budget
+         if ( (maxBytes > 0) && (sketch == null) )
+            sketch = new FrequencySketch((int) Math.min(maxBytes/1024,1<<20));
+         if ( maxBytes <= 0 )
+            sketch = null;
+         MAX_BYTES = maxBytes;
+      }
    }
 }
 
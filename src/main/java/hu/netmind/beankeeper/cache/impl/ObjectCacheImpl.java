@@ -0,0 +1,299 @@
+/**
+ * Copyright (C) 2008 NetMind Consulting Bt.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package hu.netmind.beankeeper.cache.impl;
+
+import hu.netmind.beankeeper.config.ConfigurationTracker;
+import hu.netmind.beankeeper.config.ExtendedConfigurationListener;
+import hu.netmind.beankeeper.event.EventDispatcher;
+import hu.netmind.beankeeper.event.PersistenceEventListener;
+import hu.netmind.beankeeper.event.PersistenceEvent;
+import hu.netmind.beankeeper.model.*;
+import hu.netmind.beankeeper.cache.ObjectCache;
+import hu.netmind.beankeeper.object.Identifier;
+import hu.netmind.beankeeper.object.PersistenceMetaData;
+import hu.netmind.beankeeper.serial.Serial;
+import hu.netmind.beankeeper.schema.SchemaManager;
+import hu.netmind.beankeeper.store.event.ObjectsFinalizationEvent;
+import hu.netmind.beankeeper.node.event.NodeStateChangeEvent;
+import org.apache.log4j.Logger;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import org.apache.commons.configuration.event.ConfigurationEvent;
+
+/**
+ * Caches the last selected version of objects by their persistence id.
+ * A version is identified by its start serial, and it is valid until
+ * its end serial. When an object changes, the end serial of the cached
+ * version is set to the serial of the change, so later queries do not
+ * see it, but queries running before the change still do.<br>
+ * Coherence works the same way as in the results cache: the last
+ * modification serial of each table is remembered, and a version is only
+ * added if its tables did not change since it was selected. All changes
+ * are received as events, even from remote nodes.<br>
+ * If there are more objects than the configured maximum, the least
+ * recently used objects are removed.
+ * @author Brautigam Robert
+ * @version Revision: $Revision$
+ */
+public class ObjectCacheImpl 
+   implements ObjectCache, ExtendedConfigurationListener, PersistenceEventListener
+{
+   private static Logger logger = Logger.getLogger(ObjectCacheImpl.class);
+
+   private static int MAX_OBJECTS = 10000; // Max number of objects, 0 if disabled
+
+   private ConcurrentMap<Long,CachedObject> objects = 
+      new ConcurrentHashMap<Long,CachedObject>();
+   private ConcurrentMap<String,Long> serialsByTables = 
+      new ConcurrentHashMap<String,Long>();
+   private ConcurrentMap<Integer,Set<String>> tablesByClass = 
+      new ConcurrentHashMap<Integer,Set<String>>();
+   private Object evictionMutex = new Object(); // Mutex for removing objects
+   private volatile Long startSerial; // The serial on which the cache started
+
+   private ConfigurationTracker configurationTracker = null; // Injected
+   private EventDispatcher eventDispatcher = null; // Injected
+   private ClassTracker classTracker = null; // Injected
+   private SchemaManager schemaManager = null; // Injected
+
+   public void init(Map parameters)
+   {
+      configurationReload();
+      configurationTracker.addListener(this);
+      startSerial = Serial.getSerial(new Date()).getValue();
+      eventDispatcher.registerListener(this);
+   }
+
+   public void release()
+   {
+      clear();
+      eventDispatcher.unregisterListener(this);
+      configurationTracker.removeListener(this);
+   }
+
+   /**
+    * Get the tables an object is stored in, these are the tables of
+    * its class and all storable superclasses.
+    * @return The table names, or null if the class is not known.
+    */
+   private Set<String> getTables(Long id)
+   {
+      Integer classId = new Identifier(id).getClassId();
+      Set<String> tableNames = tablesByClass.get(classId);
+      if ( tableNames != null )
+         return tableNames;
+      ClassEntry entry = classTracker.getClassEntry(classId);
+      if ( entry == null )
+         return null;
+      ClassInfo info = classTracker.getClassInfo(entry);
+      tableNames = new HashSet<String>();
+      while ( (entry!=null) && (info!=null) && (info.isStorable()) )
+      {
+         tableNames.add(schemaManager.getTableName(entry));
+         entry = entry.getSuperEntry();
+         if ( entry != null )
+            info = classTracker.getClassInfo(entry);
+      }
+      tablesByClass.put(classId,tableNames);
+      return tableNames;
+   }
+
+   /**
+    * Determine whether a table of the object was modified after the
+    * given serial.
+    */
+   private boolean isModified(Set<String> tableNames, Long serial)
+   {
+      for ( String tableName : tableNames )
+      {
+         Long lastModificationSerial = serialsByTables.get(tableName);
+         if ( lastModificationSerial == null )
+            lastModificationSerial = startSerial;
+         if ( lastModificationSerial.longValue() > serial.longValue() )
+            return true;
+      }
+      return false;
+   }
+
+   public Map getObject(Long id, Long serial)
+   {
+      CachedObject object = objects.get(id);
+      if ( (object == null) || (serial.longValue() < object.start) || 
+            (serial.longValue() >= object.end) )
+         return null;
+      object.lastAccess = System.currentTimeMillis();
+      // The version may have ended since it was selected
+      Long end = new Long(object.end);
+      if ( end.equals(object.values.get("persistence_end")) )
+         return object.values;
+      Map values = new HashMap(object.values);
+      values.put("persistence_end",end);
+      return values;
+   }
+
+   public void addObject(Map marshalledValues, Set<String> selectedTables, Long serial)
+   {
+      if ( MAX_OBJECTS <= 0 )
+         return;
+      Object id = marshalledValues.get("persistence_id");
+      Object start = marshalledValues.get("persistence_start");
+      Object end = marshalledValues.get("persistence_end");
+      if ( (! (id instanceof Long)) || (! (start instanceof Long)) || (! (end instanceof Long)) )
+         return;
+      // The same or newer versions are not replaced
+      CachedObject current = objects.get(id);
+      if ( (current != null) && (current.start >= ((Long) start).longValue()) )
+         return;
+      // All attributes of the object must be selected, and the
+      // object must not have changed since
+      Set<String> tableNames = getTables((Long) id);
+      if ( (tableNames == null) || (tableNames.isEmpty()) || 
+            (! selectedTables.containsAll(tableNames)) || (isModified(tableNames,serial)) )
+         return;
+      CachedObject object = new CachedObject();
+      object.start = ((Long) start).longValue();
+      object.end = ((Long) end).longValue();
+      object.values = marshalledValues;
+      object.lastAccess = System.currentTimeMillis();
+      objects.put((Long) id,object);
+      // Changes are registered before versions are ended, so if the
+      // object changed meanwhile, the change is seen here
+      if ( isModified(tableNames,serial) )
+      {
+         objects.remove(id,object);
+         return;
+      }
+      if ( objects.size() > MAX_OBJECTS )
+         evict();
+   }
+
+   /**
+    * Remove the least recently used objects, so a quarter of the
+    * maximum count is free.
+    */
+   private void evict()
+   {
+      synchronized ( evictionMutex )
+      {
+         if ( objects.size() <= MAX_OBJECTS )
+            return;
+         List<Map.Entry<Long,CachedObject>> entries = new ArrayList<Map.Entry<Long,CachedObject>>();
+         for ( Map.Entry<Long,CachedObject> entry : objects.entrySet() )
+         {
+            entry.getValue().sortAccess = entry.getValue().lastAccess;
+            entries.add(entry);
+         }
+         Collections.sort(entries,new Comparator<Map.Entry<Long,CachedObject>>() {
+               public int compare(Map.Entry<Long,CachedObject> e1, Map.Entry<Long,CachedObject> e2)
+               {
+                  long a1 = e1.getValue().sortAccess;
+                  long a2 = e2.getValue().sortAccess;
+                  return a1 < a2 ? -1 : (a1 == a2 ? 0 : 1);
+               }
+            });
+         int count = entries.size() - MAX_OBJECTS*3/4;
+         for ( int i=0; i<count; i++ )
+            objects.remove(entries.get(i).getKey(),entries.get(i).getValue());
+         if ( logger.isDebugEnabled() )
+            logger.debug("evicted "+count+" objects, object count: "+objects.size());
+      }
+   }
+
+   public void clear()
+   {
+      logger.debug("clearing the object cache");
+      serialsByTables.clear();
+      tablesByClass.clear();
+      objects.clear();
+   }
+
+   public void handle(PersistenceEvent event)
+   {
+      if ( event instanceof ObjectsFinalizationEvent )
+      {
+         ObjectsFinalizationEvent finEvent = (ObjectsFinalizationEvent) event;
+         updateObjects(finEvent.getMetas(),finEvent.getSerial());
+      }
+      if ( event instanceof NodeStateChangeEvent )
+      {
+         // Changes may be lost in the state change
+         clear();
+      }
+   }
+
+   /**
+    * End the cached versions of the changed objects.
+    * @param metas The metas of all objects changed.
+    * @param modifySerial The modification serial of the changes.
+    */
+   private void updateObjects(List<PersistenceMetaData> metas, Long modifySerial)
+   {
+      // Update table serials first, so objects added concurrently
+      // are not cached after this
+      for ( PersistenceMetaData meta : metas )
+      {
+         Set<String> tableNames = getTables(meta.getPersistenceId());
+         if ( tableNames != null )
+            for ( String tableName : tableNames )
+               serialsByTables.put(tableName,modifySerial);
+      }
+      for ( PersistenceMetaData meta : metas )
+      {
+         CachedObject object = objects.get(meta.getPersistenceId());
+         if ( object == null )
+            continue;
+         synchronized ( object )
+         {
+            if ( object.end > modifySerial.longValue() )
+               object.end = modifySerial.longValue();
+         }
+      }
+      if ( logger.isDebugEnabled() )
+         logger.debug("ended cached versions of "+metas.size()+" objects, object count: "+objects.size());
+   }
+
+   /**
+    * A single version of an object.
+    */
+   private static class CachedObject
+   {
+      public long start;
+      public volatile long end;
+      public Map values;
+      public volatile long lastAccess;
+      public long sortAccess; // Copy of last access while sorting
+   }
+
+   public void configurationChanged(ConfigurationEvent event)
+   {
+      if ( (event.getPropertyName()!=null) && 
+            (event.getPropertyName().startsWith("beankeeper.cache")) )
+         configurationReload();
+   }
+
+   public void configurationReload()
+   {
+      MAX_OBJECTS = configurationTracker.getConfiguration().
+         getInt("beankeeper.cache.max_objects",10000);
+      if ( MAX_OBJECTS <= 0 )
+         objects.clear();
+   }
+}
+
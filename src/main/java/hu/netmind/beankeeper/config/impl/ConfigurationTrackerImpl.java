@@ -28,7 +28,10 @@ import org.apache.commons.configuration.PropertiesConfiguration;
 import java.util.*;
 
 /**
- * Configuration can be queried and altered through this tracker.
+ * Configuration can be queried and altered through this tracker. The
+ * defaults are read from <code>beankeeper.properties</code>, system
+ * properties starting with <code>beankeeper.</code> override them, so
+ * settings which are only read when the store starts can be given too.
  * @author Brautigam Robert
  * @version Revision: $Revision$
  */
@@ -42,7 +45,16 @@ public class ConfigurationTrackerImpl implements ConfigurationTracker
       try
       {
          // Initialize with property reader configuration
-         setConfiguration(new PropertiesConfiguration("beankeeper.properties"));
+         PropertiesConfiguration defaults = new PropertiesConfiguration("beankeeper.properties");
+         // Override with system properties
+         Properties properties = System.getProperties();
+         for ( Object key : new ArrayList(properties.keySet()) )
+         {
+            String value = properties.getProperty(key.toString());
+            if ( (key.toString().startsWith("beankeeper.")) && (value != null) )
+               defaults.setProperty(key.toString(),value);
+         }
+         setConfiguration(defaults);
       } catch ( Exception e ) {
          throw new StoreException("fatal error, could not load default configuration",e);
       }
@@ -41,6 +41,14 @@ public interface ConnectionSource
     */
    void releaseConnection(Connection connection);
 
+   /**
+    * Get the connection of the driver, which is behind a connection
+    * returned by this source.
+    * @return The driver's connection, or the given connection if it is
+    * not a pooled connection.
+    */
+   Connection getNativeConnection(Connection connection);
+
    /**
     * Release all connections.
     */
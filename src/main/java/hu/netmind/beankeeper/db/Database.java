@@ -21,6 +21,7 @@ package hu.netmind.beankeeper.db;
 import hu.netmind.beankeeper.service.Service;
 import java.util.Map;
 import java.util.List;
+import java.io.InputStream;
 import hu.netmind.beankeeper.parser.QueryStatement;
 import hu.netmind.beankeeper.transaction.Transaction;
 
@@ -45,6 +46,57 @@ public interface Database extends Service
    void save(Transaction transaction, String tableName, 
          Map keys, Map attributes);
 
+   /**
+    * Modify rows in more tables at once, with as few round trips to the
+    * database as possible. This is used to finalize the changes of a
+    * transaction when it commits, so the execution time is recorded as
+    * the commit finalization time.
+    * @param tableNames The tables to modify, one for each update.
+    * @param keysList The keys which select the rows to modify, one for
+    * each update.
+    * @param attributesList The attributes to set, one for each update.
+    */
+   void saveTables(Transaction transaction, List<String> tableNames,
+         List<Map> keysList, List<Map> attributesList);
+
+   /**
+    * Move the versions closed by the transaction to the history tables,
+    * if history tables are used for the given tables. This is called
+    * when the transaction commits, after the end serials of the closed
+    * versions are set.
+    * @param tableNames The tables the transaction closed versions in.
+    */
+   void moveHistory(Transaction transaction, List<String> tableNames);
+
+   /**
+    * Remove old closed versions from a table and its history table.
+    * Versions are removed in ascending order of their end serials, so
+    * the oldest are removed first. Unknown or not versioned tables are
+    * skipped.
+    * @param tableName The versioned table to remove from.
+    * @param serial Versions which ended before this serial are removed.
+    * @param maxCount The number of versions to remove at most. Versions
+    * which ended at the same serial are removed together, so this may be
+    * slightly exceeded.
+    * @return The number of versions removed.
+    */
+   int removeHistory(Transaction transaction, String tableName, Long serial, int maxCount);
+
+   /**
+    * Remove blobs which are not referenced by any version of their owner
+    * column, neither in the table nor in its history table. Blobs are
+    * never removed when the referencing object changes, only by this call.
+    * Only blobs owned by the given columns are removed, blobs of other
+    * owners, and blobs without a known owner are kept.
+    * @param blobColumns The names of the blob columns for each table name.
+    * @param serial Only blobs inserted before this serial are removed, newer
+    * blobs may belong to an owner which is not yet committed.
+    * @param maxCount The number of blobs to remove at most.
+    * @return The number of blobs removed.
+    */
+   int removeBlobs(Transaction transaction, Map<String,List<String>> blobColumns, 
+         Long serial, int maxCount);
+
    /**
     * Insert an object into the database.
     * @param tableName The table to save attributes to.
@@ -54,6 +106,40 @@ public interface Database extends Service
    void insert(Transaction transaction, String tableName, 
          Map attributes);
 
+   /**
+    * Write all inserts and updates of the transaction to the database, 
+    * which the implementation may have buffered until now.
+    */
+   void flush(Transaction transaction);
+
+   /**
+    * Mark the transaction as a bulk load of new objects. In bulk mode
+    * more operations are buffered, and inserts may be sent to the database
+    * in the fastest way the implementation knows.
+    * @param bulk True to switch bulk mode on, false to switch it off.
+    */
+   void setBulk(Transaction transaction, boolean bulk);
+
+   /**
+    * Insert a binary large object. Blobs are never modified, a changed
+    * content is always inserted with a new id.
+    * @param id The id of the new blob, which must be a serial allocated
+    * in the transaction.
+    * @param ownerTable The table of the object which references the blob.
+    * @param ownerColumn The column which references the blob.
+    * @param content The content of the blob, it is read to the end.
+    * @param length The number of bytes in the content.
+    */
+   void insertBlob(Transaction transaction, Long id, String ownerTable, String ownerColumn,
+         InputStream content, int length);
+
+   /**
+    * Open the content of a binary large object for reading. The stream
+    * must be closed before the transaction ends.
+    * @param id The id of the blob.
+    */
+   InputStream selectBlob(Transaction transaction, Long id);
+
    /**
     * Remove an entry from database.
     * @param tableName The table to remove object from.
@@ -83,6 +169,88 @@ public interface Database extends Service
     */
    SearchResult search(Transaction transaction, 
          QueryStatement stmt, Limits limits);
+
+   /**
+    * Determine whether the given statements can be selected together
+    * in a single select. This does not run any select.
+    * @param transaction The transaction to run in.
+    * @param stmts The query statements.
+    */
+   boolean isUnionSupported(Transaction transaction, List<QueryStatement> stmts);
+
+   /**
+    * Determine where the database sorts null values.
+    * @param ascending Whether the order is ascending.
+    * @return True if null values come after all other values in the
+    * given direction, false if they come first.
+    */
+   boolean isNullSortedLast(boolean ascending);
+
+   /**
+    * Select the concatenated results of more statements in a single
+    * select. Each row contains the index of the statement it belongs to
+    * in the <code>persistence_branch</code> attribute. The order and
+    * limits apply to the whole result.
+    * @param transaction The transaction to run in.
+    * @param stmts The query statements, all with the same order.
+    * @param limits The limits of the whole result.
+    * @return The result object.
+    */
+   SearchResult search(Transaction transaction, 
+         List<QueryStatement> stmts, Limits limits);
+
+   /**
+    * Select more independent statements, each with its own limits. If the
+    * database supports it, all statements are sent in a single round trip,
+    * and the results are read as multiple result sets.
+    * @param transaction The transaction to run in.
+    * @param stmts The query statements.
+    * @param limitsList The limits of each statement.
+    * @return The results in the order of the statements.
+    */
+   List<SearchResult> searchBatch(Transaction transaction,
+         List<QueryStatement> stmts, List<Limits> limitsList);
+
+   /**
+    * Determine whether there is a replica database which already contains
+    * all changes committed up to the given serial.
+    * @param serial The serial the query runs at.
+    * @return True, if a query at the serial may run on the replica.
+    */
+   boolean isReplicated(Long serial);
+
+   /**
+    * Select objects from the replica database. The replica does not see
+    * any changes of the transaction, so only statements which do not
+    * apply the transaction may be selected there.
+    * @param transaction The transaction the query belongs to.
+    * @param stmt The query statement.
+    * @param limits The limits of the result. (Offset, maximum result count)
+    * @return The result object.
+    */
+   SearchResult searchReplica(Transaction transaction, 
+         QueryStatement stmt, Limits limits);
+
+   /**
+    * Select the concatenated results of more statements from the replica
+    * database in a single select.
+    * @param transaction The transaction the query belongs to.
+    * @param stmts The query statements, all with the same order.
+    * @param limits The limits of the whole result.
+    * @return The result object.
+    */
+   SearchResult searchReplica(Transaction transaction, 
+         List<QueryStatement> stmts, Limits limits);
+
+   /**
+    * Select objects from database as a forward-only cursor of attribute
+    * maps. The rows are not held in memory, they are read as the cursor
+    * advances. The cursor must be closed before the transaction ends.
+    * @param transaction The transaction to run in.
+    * @param stmt The query statement.
+    * @return The cursor positioned before the first row.
+    */
+   SearchCursor stream(Transaction transaction, QueryStatement stmt);
 }
 
 
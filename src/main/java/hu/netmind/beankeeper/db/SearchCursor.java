@@ -0,0 +1,39 @@
+/**
+ * Copyright (C) 2008 NetMind Consulting Bt.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package hu.netmind.beankeeper.db;
+
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * A forward-only iteration over the rows of a query. The rows are
+ * read from the database one by one as the cursor advances, so the result
+ * is never held in memory as a whole. The cursor holds database resources,
+ * so it must be closed. It is closed automatically after the last row.
+ * @author Brautigam Robert
+ * @version Revision: $Revision$
+ */
+public interface SearchCursor extends Iterator<Map>
+{
+   /**
+    * Release the database resources of this cursor. Calling this method
+    * more than once has no effect.
+    */
+   void close();
+}
@@ -0,0 +1,116 @@
+/**
+ * Copyright (C) 2008 NetMind Consulting Bt.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package hu.netmind.beankeeper.db.impl;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Offers the occupancy and borrow statistics of the connection pool.
+ * Times are in milliseconds, the borrow time is the total time callers
+ * spent waiting for connections.
+ * @author Brautigam Robert
+ * @version Revision: $Revision$
+ */
+public class ConnectionPoolStatistics implements ConnectionPoolStatisticsMBean
+{
+   private ConnectionSourceImpl connectionSource;
+
+   private AtomicLong borrowCount = new AtomicLong();
+   private AtomicLong borrowTimeoutCount = new AtomicLong();
+   private AtomicLong reapCount = new AtomicLong();
+   private AtomicLong borrowTime = new AtomicLong();
+   private AtomicLong maxBorrowTime = new AtomicLong();
+
+   public ConnectionPoolStatistics(ConnectionSourceImpl connectionSource)
+   {
+      this.connectionSource=connectionSource;
+   }
+
+   /**
+    * Record a successful borrow which took the given time.
+    */
+   void borrowed(long time)
+   {
+      borrowCount.incrementAndGet();
+      borrowTime.addAndGet(time);
+      long max = maxBorrowTime.get();
+      while ( (time > max) && (!maxBorrowTime.compareAndSet(max,time)) )
+         max = maxBorrowTime.get();
+   }
+
+   void borrowTimedOut()
+   {
+      borrowTimeoutCount.incrementAndGet();
+   }
+
+   void reaped()
+   {
+      reapCount.incrementAndGet();
+   }
+
+   public int getActiveCount()
+   {
+      return connectionSource.getActiveCount();
+   }
+
+   public int getIdleCount()
+   {
+      return connectionSource.getTotalCount()-connectionSource.getActiveCount();
+   }
+
+   public int getTotalCount()
+   {
+      return connectionSource.getTotalCount();
+   }
+
+   public int getPeakCount()
+   {
+      return connectionSource.getPeakCount();
+   }
+
+   public int getWaitingCount()
+   {
+      return connectionSource.getWaitingCount();
+   }
+
+   public long getBorrowCount()
+   {
+      return borrowCount.get();
+   }
+
+   public long getBorrowTimeoutCount()
+   {
+      return borrowTimeoutCount.get();
+   }
+
+   public long getReapCount()
+   {
+      return reapCount.get();
+   }
+
+   public long getBorrowTime()
+   {
+      return borrowTime.get();
+   }
+
+   public long getMaxBorrowTime()
+   {
+      return maxBorrowTime.get();
+   }
+}
@@ -1,5 +1,5 @@
 /**
- * Copyright (C) 2006 NetMind Consulting Bt.
+ * Copyright (C) 2008 NetMind Consulting Bt.
  *
  * This library is free software; you can redistribute it and/or
  * modify it under the terms of the GNU Lesser General Public
@@ -18,15 +18,27 @@
 
 package hu.netmind.beankeeper.db.impl;
 
-import java.util.LinkedList;
-import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.Iterator;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import javax.sql.DataSource;
-import java.sql.DatabaseMetaData;
-import java.util.Iterator;
 import java.lang.reflect.Proxy;
 import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.Method;
+import java.lang.reflect.InvocationTargetException;
 import org.apache.log4j.Logger;
 import org.apache.commons.configuration.event.ConfigurationEvent;
 import hu.netmind.beankeeper.common.StoreException;
@@ -34,12 +46,24 @@ import hu.netmind.beankeeper.db.ConnectionSource;
 import hu.netmind.beankeeper.config.ExtendedConfigurationListener;
 import hu.netmind.beankeeper.config.ConfigurationTracker;
 import hu.netmind.beankeeper.logging.SnapshotLogger;
+import hu.netmind.beankeeper.management.ManagementTracker;
 
 /**
  * This is the connection source for database implementations. It pools
  * the connections so the database implementation does not need to
  * bother with connection allocation details. Be sure to return the
- * connection to this pool when ready.
+ * connection to this pool when ready.<br>
+ * Idle connections are kept on a lock-free stack, so the most recently
+ * used connection is borrowed first. If a maximum number of connections
+ * is configured, borrowers wait in a fair queue for a connection to
+ * become available, but only until the borrow timeout. Timed out and
+ * closed connections are dropped by a background reaper thread, which
+ * also keeps the pool at the configured minimum size, so the borrow path 
+ * does not check connections at all.<br>
+ * Each pooled connection also caches its prepared statements by sql text,
+ * so identical statements are not parsed and planned again by the
+ * driver. Closing a cached statement only returns it to the cache, it is
+ * only closed physically when it is evicted, or the connection is dropped.
  * @author Brautigam Robert
  * @version Revision: $Revision$
  */
@@ -51,29 +75,65 @@ public class ConnectionSourceImpl implements ConnectionSource,ExtendedConfigurat
    // Note: This could be exchanged for validating a connection, but
    // there is no certain way to do it, except running an sql statement.
    private static long TIMEOUT = 10*60*1000; // 10 mins
+   // Maximum number of prepared statements cached for each connection
+   private static int STATEMENT_CACHE_SIZE = 50;
+   // Pool size limits, maximum 0 means unlimited
+   private static int MIN_CONNECTIONS = 0;
+   private static int MAX_CONNECTIONS = 0;
+   // Maximum time to wait for a connection, if all are in use
+   private static long BORROW_TIMEOUT = 30*1000;
       
    private DataSource dataSource;
 
-   private int maxConnections;
-   private LinkedList pool;
-   private HashMap wrappers;
+   private AtomicReference<IdleNode> idleConnections = new AtomicReference<IdleNode>();
+   private Map<ConnectionWrapper,Boolean> wrappers = new ConcurrentHashMap<ConnectionWrapper,Boolean>();
+   private AtomicInteger totalCount = new AtomicInteger();
+   private AtomicInteger activeCount = new AtomicInteger();
+   private AtomicInteger peakCount = new AtomicInteger();
+   private volatile Semaphore permits = null;
+   private int permitCount = 0;
+
+   private volatile boolean running = true;
+   private Object reaperMutex = new Object();
+
+   private AtomicLong statementCacheHits = new AtomicLong();
+   private AtomicLong statementCacheMisses = new AtomicLong();
+   private ConnectionPoolStatistics poolStatistics;
 
    private ConfigurationTracker configurationTracker = null;
    private SnapshotLogger snapshotLogger = null;
+   private ManagementTracker managementTracker = null;
+   private String beanName;
 
-   public ConnectionSourceImpl(ConfigurationTracker configurationTracker, SnapshotLogger snapshotLogger, DataSource dataSource)
+   public ConnectionSourceImpl(ConfigurationTracker configurationTracker, SnapshotLogger snapshotLogger, 
+         ManagementTracker managementTracker, DataSource dataSource)
+   {
+      this(configurationTracker,snapshotLogger,managementTracker,dataSource,"ConnectionPool");
+   }
+
+   /**
+    * Create a connection source with the given name of the statistics bean.
+    */
+   public ConnectionSourceImpl(ConfigurationTracker configurationTracker, SnapshotLogger snapshotLogger, 
+         ManagementTracker managementTracker, DataSource dataSource, String beanName)
    {
       // Initialize variables
       this.dataSource=dataSource;
+      this.beanName=beanName;
       this.configurationTracker=configurationTracker;
       this.snapshotLogger=snapshotLogger;
-      pool = new LinkedList();
-      wrappers = new HashMap();
-      // Set max connection count to infinite for start
-      maxConnections = 0;
+      this.managementTracker=managementTracker;
       // Load configuration
       configurationReload();
       configurationTracker.addListener(this);
+      // Register statistics
+      poolStatistics = new ConnectionPoolStatistics(this);
+      managementTracker.registerBean(beanName,poolStatistics);
+      // Start reaper, which also allocates the minimum connections
+      Thread reaperThread = new Thread(new Reaper());
+      reaperThread.setName("BeanKeeper Connection Reaper");
+      reaperThread.setDaemon(true);
+      reaperThread.start();
    }
 
    DataSource getDataSource()
@@ -81,6 +141,45 @@ public class ConnectionSourceImpl implements ConnectionSource,ExtendedConfigurat
       return dataSource;
    }
 
+   /**
+    * Get the number of prepared statements which were served from the cache.
+    */
+   public long getStatementCacheHits()
+   {
+      return statementCacheHits.get();
+   }
+
+   /**
+    * Get the number of prepared statements which had to be prepared by the driver.
+    */
+   public long getStatementCacheMisses()
+   {
+      return statementCacheMisses.get();
+   }
+
+   int getActiveCount()
+   {
+      return activeCount.get();
+   }
+
+   int getTotalCount()
+   {
+      return totalCount.get();
+   }
+
+   int getPeakCount()
+   {
+      return peakCount.get();
+   }
+
+   int getWaitingCount()
+   {
+      Semaphore currentPermits = permits;
+      if ( currentPermits == null )
+         return 0;
+      return currentPermits.getQueueLength();
+   }
+
    /**
     * Returns whether the datasource is pooled. Currently, all
     * datasources allocated through JNDI are considered pooled.
@@ -94,105 +193,59 @@ public class ConnectionSourceImpl implements ConnectionSource,ExtendedConfigurat
     * Release all database connections. After calling this method, the
     * connection source is considered unusable.
     */
-   public synchronized void release()
+   public void release()
    {
-      // Close all connections
-      for ( int i=0; i<pool.size(); i++)
+      // Stop reaper
+      running = false;
+      synchronized ( reaperMutex )
       {
-         ConnectionWrapper wrapper = (ConnectionWrapper) pool.get(i);
-         try
-         {
-            if ( wrapper.connection != null )
-               wrapper.connection.close();
-         } catch ( Exception e ) {
-            logger.error("could not close connection on release.",e);
-         }
+         reaperMutex.notifyAll();
       }
-      // Empty pool
-      pool = new LinkedList();
-      wrappers = new HashMap();
+      configurationTracker.removeListener(this);
+      managementTracker.deregisterBean(beanName);
+      // Close all connections
+      idleConnections.set(null);
+      Iterator<ConnectionWrapper> wrapperIterator = 
+         new ArrayList<ConnectionWrapper>(wrappers.keySet()).iterator();
+      while ( wrapperIterator.hasNext() )
+         closeWrapper(wrapperIterator.next());
    }
 
    /**
     * Get a new pooled connection. This method get a connection from the
     * pool, or allocates a new connection is no pooled ones are available.
+    * If the pool already has the maximum number of connections, this method
+    * waits until one is released, or the borrow timeout is reached.
     * @return A new connection object.
     */
-   public synchronized Connection getConnection()
+   public Connection getConnection()
    {
-      // Find an available connection, if a connection becomes unusable, it
-      // is removed
-      long currentTime = System.currentTimeMillis();
+      long startTime = System.currentTimeMillis();
+      // Reserve a place in the pool
+      Semaphore currentPermits = permits;
+      acquirePermit(currentPermits);
       ConnectionWrapper wrapper = null;
-      Iterator iterator = new LinkedList(pool).iterator();
-      int usedCount = 0;
-      while ( iterator.hasNext() )
-      {
-         ConnectionWrapper current = (ConnectionWrapper) iterator.next();
-         boolean usable = true;
-         // If the connection is pooled elsewhere, and it is used,
-         // then we have no business with it
-         if ( (current.used) && (isDataSourcePooled()) )
-            continue;
-         // Check whether connection became closed somehow
-         try
-         {
-            usable = ! current.connection.isClosed();
-         } catch ( Exception e ) {
-            // Ok, probably closed
-            logger.debug("while checking closed status, connection threw",e);
-            usable = false;            
-         }
-         // Check for timeout
-         if ( current.lastUsed+TIMEOUT < currentTime )
-         {
-            usable = false;
-            if ( current.used )
-               logger.warn("a connection is used, but reached timeout and will be reclaimed, possible unbalanced transaction handling!");
-         }
-         // If usable, then return this wrapper, else close it
-         if ( usable )
-         {
-            if ( ! current.used )
-            {
-               // This is usable but not used, so return it. Next iterations 
-               // can override this still, so always the last usable 
-               // connection will be used.
-               wrapper = current; 
-            } else {
-               // Connection is used
-               usedCount++;
-            }
-         }
-      }
-      // Allocate connection if not yet found
-      if ( wrapper == null )
+      try
       {
-         // Allocate connection
-         wrapper = new ConnectionWrapper();
-         try
-         {
-            logger.debug("connection pool has: "+pool.size()+
-                  " connections, maximum connections allocated at any given time: "+maxConnections+", need new connection.");
-            wrapper.connection=dataSource.getConnection();
-            wrapper.connection.setAutoCommit(false);
-         } catch ( StoreException e ) {
-            throw e;
-         } catch ( Exception e ) {
-            throw new StoreException("could not get a new connection from datasouce, current pool size: "+pool.size(),e);
-         }
-         // Add to pool
-         pool.add(wrapper);
-         wrappers.put(wrapper.connection,wrapper);
-         // Successful connection
-         if ( pool.size() > maxConnections )
-            maxConnections = pool.size();
+         wrapper = popIdle();
+         if ( wrapper == null )
+            wrapper = createWrapper();
+      } catch ( RuntimeException e ) {
+         if ( currentPermits != null )
+            currentPermits.release();
+         throw e;
       }
-      // Profile
-      snapshotLogger.log("connectionpool","Connection used/pool/wrappers: "+usedCount+"/"+pool.size()+"/"+wrappers.size());
-      // Return connection if one has been found
-      wrapper.used=true;
+      // Mark as used
+      long currentTime = System.currentTimeMillis();
+      wrapper.permits=currentPermits;
       wrapper.lastUsed=currentTime;
+      wrapper.borrowTime=currentTime;
+      wrapper.leakReported=false;
+      wrapper.used.set(true);
+      int active = activeCount.incrementAndGet();
+      poolStatistics.borrowed(currentTime-startTime);
+      // Profile
+      snapshotLogger.log("connectionpool","Connection used/pool: "+active+"/"+totalCount.get());
       // Create a wrapper on the connection object, so each use
       // of it's prepareStatement() can update it's wrapper's last used time.
       try
@@ -205,16 +258,97 @@ public class ConnectionSourceImpl implements ConnectionSource,ExtendedConfigurat
       }
    }
 
+   /**
+    * Wait for a free place in the pool, if the pool is bounded.
+    */
+   private void acquirePermit(Semaphore currentPermits)
+   {
+      if ( currentPermits == null )
+         return;
+      try
+      {
+         if ( ! currentPermits.tryAcquire(BORROW_TIMEOUT,TimeUnit.MILLISECONDS) )
+         {
+            poolStatistics.borrowTimedOut();
+            throw new StoreException("could not get a connection in "+BORROW_TIMEOUT+
+                  " ms, all "+permitCount+" connections are in use, waiting: "+currentPermits.getQueueLength());
+         }
+      } catch ( InterruptedException e ) {
+         Thread.currentThread().interrupt();
+         throw new StoreException("interrupted while waiting for a connection",e);
+      }
+   }
+
+   /**
+    * Take the most recently used idle connection from the stack.
+    * @return The connection wrapper, or null if there are no idle connections.
+    */
+   private ConnectionWrapper popIdle()
+   {
+      while ( true )
+      {
+         IdleNode top = idleConnections.get();
+         if ( top == null )
+            return null;
+         if ( ! idleConnections.compareAndSet(top,top.next) )
+            continue; // Someone else was faster, try again
+         // Nodes taken by the reaper are simply dropped
+         if ( top.taken.compareAndSet(false,true) )
+            return top.wrapper;
+      }
+   }
+
+   /**
+    * Put an idle connection on top of the stack.
+    */
+   private void pushIdle(ConnectionWrapper wrapper)
+   {
+      IdleNode node = new IdleNode(wrapper);
+      do
+      {
+         node.next = idleConnections.get();
+      } while ( ! idleConnections.compareAndSet(node.next,node) );
+   }
+
+   /**
+    * Allocate a new physical connection.
+    */
+   private ConnectionWrapper createWrapper()
+   {
+      ConnectionWrapper wrapper = new ConnectionWrapper();
+      try
+      {
+         if ( logger.isDebugEnabled() )
+            logger.debug("connection pool has: "+totalCount.get()+
+                  " connections, maximum connections allocated at any given time: "+peakCount.get()+", need new connection.");
+         wrapper.connection=dataSource.getConnection();
+         wrapper.connection.setAutoCommit(false);
+      } catch ( StoreException e ) {
+         throw e;
+      } catch ( Exception e ) {
+         throw new StoreException("could not get a new connection from datasouce, current pool size: "+totalCount.get(),e);
+      }
+      // Add to pool
+      wrappers.put(wrapper,Boolean.TRUE);
+      int total = totalCount.incrementAndGet();
+      int peak = peakCount.get();
+      while ( (total > peak) && (!peakCount.compareAndSet(peak,total)) )
+         peak = peakCount.get();
+      return wrapper;
+   }
+
    /**
     * Close a wrapper, and drop from pool.
     */
    private void closeWrapper(ConnectionWrapper wrapper)
    {
-      pool.remove(wrapper);
-      wrappers.remove(wrapper.connection);
+      if ( wrappers.remove(wrapper) == null )
+         return; // Already closed
+      totalCount.decrementAndGet();
       // Close it too
       try
       {
+         wrapper.closeStatements();
          wrapper.connection.close();
       } catch ( Exception e ) {
          logger.debug("could not close wrapper, this is no problem, it may already been closed",e);
@@ -225,17 +359,219 @@ public class ConnectionSourceImpl implements ConnectionSource,ExtendedConfigurat
     * Release a connection back to the pool.
     * @param connection The connection to release.
     */
-   public synchronized void releaseConnection(Connection connection)
+   public void releaseConnection(Connection connection)
    {
-      ConnectionWrapper wrapper = (ConnectionWrapper) wrappers.get(connection);
-      if ( wrapper != null )
-         wrapper.used=false;
+      ConnectionWrapper wrapper = getWrapper(connection);
+      if ( (wrapper == null) || (!wrapper.used.compareAndSet(true,false)) )
+      {
+         logger.warn("tried to release a connection which was not borrowed from the pool: "+connection);
+         return;
+      }
+      activeCount.decrementAndGet();
       // If the data source is pool, then drop this wrapper and
       // do not return it to the pool
-      if ( isDataSourcePooled() )
+      if ( (isDataSourcePooled()) || (!running) )
          closeWrapper(wrapper);
+      else
+         pushIdle(wrapper);
+      // Let the next borrower in
+      if ( wrapper.permits != null )
+         wrapper.permits.release();
    }
-   
+
+   /**
+    * Get the connection of the driver behind a pooled connection.
+    */
+   public Connection getNativeConnection(Connection connection)
+   {
+      ConnectionWrapper wrapper = getWrapper(connection);
+      if ( wrapper == null )
+         return connection;
+      return wrapper.connection;
+   }
+
+   /**
+    * Get the wrapper of a connection returned by this pool.
+    */
+   private ConnectionWrapper getWrapper(Connection connection)
+   {
+      if ( (connection == null) || (!Proxy.isProxyClass(connection.getClass())) )
+         return null;
+      InvocationHandler handler = Proxy.getInvocationHandler(connection);
+      if ( ! (handler instanceof WrapperHandler) )
+         return null;
+      ConnectionWrapper wrapper = ((WrapperHandler) handler).wrapper;
+      if ( ! wrappers.containsKey(wrapper) )
+         return null;
+      return wrapper;
+   }
+
+   /**
+    * Drop idle connections which timed out or became closed, report
+    * connections which are in use for too long, and allocate connections
+    * up to the minimum pool size.
+    */
+   private void reap()
+   {
+      long currentTime = System.currentTimeMillis();
+      // Check idle connections. Nodes are never modified, so the stack
+      // can be traversed while others push and pop.
+      boolean dropped = false;
+      for ( IdleNode node = idleConnections.get(); node != null; node = node.next )
+      {
+         if ( node.taken.get() )
+         {
+            dropped = true;
+            continue;
+         }
+         ConnectionWrapper wrapper = node.wrapper;
+         boolean usable = (wrapper.lastUsed+TIMEOUT >= currentTime) || 
+            (totalCount.get() <= MIN_CONNECTIONS);
+         if ( usable )
+         {
+            try
+            {
+               usable = ! wrapper.connection.isClosed();
+            } catch ( Exception e ) {
+               // Ok, probably closed
+               logger.debug("while checking closed status, connection threw",e);
+               usable = false;            
+            }
+         }
+         if ( (!usable) && (node.taken.compareAndSet(false,true)) )
+         {
+            logger.debug("dropping idle connection from pool");
+            closeWrapper(wrapper);
+            poolStatistics.reaped();
+            dropped = true;
+         }
+      }
+      if ( dropped )
+         unlinkTaken();
+      // Report possible leaks
+      Iterator<ConnectionWrapper> wrapperIterator = wrappers.keySet().iterator();
+      while ( wrapperIterator.hasNext() )
+      {
+         ConnectionWrapper wrapper = wrapperIterator.next();
+         if ( (wrapper.used.get()) && (!wrapper.leakReported) &&
+               (wrapper.borrowTime+TIMEOUT < currentTime) )
+         {
+            logger.warn("a connection is used, but reached timeout, possible unbalanced transaction handling!");
+            wrapper.leakReported = true;
+         }
+      }
+      // Allocate minimum connections
+      try
+      {
+         while ( (running) && (totalCount.get() < MIN_CONNECTIONS) )
+            pushIdle(createWrapper());
+      } catch ( Exception e ) {
+         logger.warn("could not allocate minimum number of connections",e);
+      }
+      snapshotLogger.log("connectionpool","Connection used/pool: "+activeCount.get()+"/"+totalCount.get());
+   }
+
+   /**
+    * Remove the nodes taken by the reaper from the idle stack. The live
+    * nodes are copied to a new stack which replaces the old one, unless
+    * the stack changed in the meantime, in which case it is tried again.
+    * Copies share the taken flag with the original node, so a connection
+    * can still only be taken once.
+    */
+   private void unlinkTaken()
+   {
+      while ( true )
+      {
+         IdleNode top = idleConnections.get();
+         IdleNode newTop = null;
+         IdleNode last = null;
+         for ( IdleNode node = top; node != null; node = node.next )
+         {
+            if ( node.taken.get() )
+               continue;
+            IdleNode copy = new IdleNode(node.wrapper,node.taken);
+            if ( last == null )
+               newTop = copy;
+            else
+               last.next = copy;
+            last = copy;
+         }
+         if ( idleConnections.compareAndSet(top,newTop) )
+            return;
+      }
+   }
+
+   /**
+    * Determine whether the statement modifies the schema.
+    */
+   private boolean isSchemaStatement(String sql)
+   {
+      String prefix = sql.trim();
+      if ( prefix.length() > 6 )
+         prefix = prefix.substring(0,6);
+      prefix = prefix.toLowerCase();
+      return prefix.startsWith("create") || prefix.startsWith("alter") ||
+         prefix.startsWith("drop");
+   }
+
+   /**
+    * Close all cached statements of all connections.
+    */
+   private void clearStatements()
+   {
+      Iterator<ConnectionWrapper> wrapperIterator = wrappers.keySet().iterator();
+      while ( wrapperIterator.hasNext() )
+         wrapperIterator.next().closeStatements();
+   }
+
+   /**
+    * The reaper periodically checks the pool in the background.
+    */
+   private class Reaper implements Runnable
+   {
+      public void run()
+      {
+         while ( running )
+         {
+            try
+            {
+               reap();
+               synchronized ( reaperMutex )
+               {
+                  if ( running )
+                     reaperMutex.wait(Math.max(1000,Math.min(TIMEOUT/4,60*1000)));
+               }
+            } catch ( Exception e ) {
+               logger.error("connection reaper encountered an error",e);
+            }
+         }
+         logger.debug("connection reaper stopped");
+      }
+   }
+
+   /**
+    * Node of the idle stack. Nodes are not reused, a connection is pushed 
+    * with a new node each time, and a node can only be taken once. The
+    * reaper may replace nodes with copies, which share the taken flag.
+    */
+   private static class IdleNode
+   {
+      public ConnectionWrapper wrapper;
+      public IdleNode next;
+      public AtomicBoolean taken;
+
+      public IdleNode(ConnectionWrapper wrapper)
+      {
+         this(wrapper,new AtomicBoolean(false));
+      }
+
+      public IdleNode(ConnectionWrapper wrapper, AtomicBoolean taken)
+      {
+         this.wrapper=wrapper;
+         this.taken=taken;
+      }
+   }
+
    private class WrapperHandler implements InvocationHandler
    {
       private ConnectionWrapper wrapper;
@@ -251,7 +587,18 @@ public class ConnectionSourceImpl implements ConnectionSource,ExtendedConfigurat
          // If method is prepareStatement(), then update wrapper's
          // last used indicator.
          if ( method.getName().equals("prepareStatement") )
+         {
             wrapper.lastUsed = System.currentTimeMillis();
+            // Only the simple form is cached
+            if ( args.length == 1 )
+            {
+               String sql = (String) args[0];
+               // Schema changes make prepared statements stale
+               if ( isSchemaStatement(sql) )
+                  clearStatements();
+               return wrapper.prepareStatement(sql);
+            }
+         }
          // Call wrapped connection
          return method.invoke(wrapper.connection,args);
       }
@@ -259,14 +606,195 @@ public class ConnectionSourceImpl implements ConnectionSource,ExtendedConfigurat
    
    private class ConnectionWrapper
    {
-      public volatile boolean used = false;
+      public AtomicBoolean used = new AtomicBoolean(false);
       public volatile long lastUsed = 0;
+      public volatile long borrowTime = 0;
+      public volatile boolean leakReported = false;
+      public Semaphore permits = null;
       public Connection connection = null;
+      public StatementCache statements = new StatementCache();
+
+      /**
+       * Get a prepared statement from the cache, or prepare it if
+       * it is not cached, or the cached one is in use.
+       */
+      public PreparedStatement prepareStatement(String sql)
+         throws Exception
+      {
+         CachedStatement cached = null;
+         synchronized ( statements )
+         {
+            cached = (CachedStatement) statements.get(sql);
+            if ( (cached != null) && (!cached.used) )
+            {
+               statementCacheHits.incrementAndGet();
+               cached.used = true;
+               return cached.proxy;
+            }
+         }
+         statementCacheMisses.incrementAndGet();
+         PreparedStatement statement = connection.prepareStatement(sql);
+         if ( (cached != null) || (STATEMENT_CACHE_SIZE <= 0) )
+            return statement; // Same statement is in use, don't cache this
+         cached = new CachedStatement(statements,statement);
+         cached.used = true;
+         synchronized ( statements )
+         {
+            statements.put(sql,cached);
+         }
+         return cached.proxy;
+      }
+
+      /**
+       * Close all statements physically, and empty the cache. Statements
+       * currently in use are closed when they are given back.
+       */
+      public void closeStatements()
+      {
+         synchronized ( statements )
+         {
+            Iterator cachedIterator = statements.values().iterator();
+            while ( cachedIterator.hasNext() )
+            {
+               CachedStatement cached = (CachedStatement) cachedIterator.next();
+               cached.evicted = true;
+               if ( ! cached.used )
+                  cached.close();
+            }
+            statements.clear();
+         }
+      }
+   }
+
+   /**
+    * Cache of statements in the order they were used. If the cache
+    * grows beyond the limit, the least recently used statement is closed.
+    */
+   private static class StatementCache extends LinkedHashMap
+   {
+      public StatementCache()
+      {
+         super(16,0.75f,true);
+      }
+
+      protected boolean removeEldestEntry(Map.Entry eldest)
+      {
+         if ( size() <= STATEMENT_CACHE_SIZE )
+            return false;
+         CachedStatement cached = (CachedStatement) eldest.getValue();
+         cached.evicted = true;
+         if ( ! cached.used )
+            cached.close();
+         return true;
+      }
+   }
+
+   /**
+    * A cached statement. Callers receive a proxy, which does not
+    * close the statement, but resets it and gives it back to the cache.
+    */
+   private static class CachedStatement implements InvocationHandler
+   {
+      private static final Set RESET_METHODS = new HashSet();
+
+      static
+      {
+         RESET_METHODS.add("setMaxRows");
+         RESET_METHODS.add("setFetchSize");
+         RESET_METHODS.add("setFetchDirection");
+         RESET_METHODS.add("setQueryTimeout");
+         RESET_METHODS.add("addBatch");
+      }
+
+      public PreparedStatement statement;
+      public PreparedStatement proxy;
+      public boolean used = false;
+      public boolean evicted = false;
+      private StatementCache cache;
+      private Set modifications = new HashSet();
+
+      public CachedStatement(StatementCache cache, PreparedStatement statement)
+      {
+         this.cache=cache;
+         this.statement=statement;
+         this.proxy=(PreparedStatement) Proxy.newProxyInstance(getClass().getClassLoader(),
+               new Class[] { PreparedStatement.class },this);
+      }
+
+      public Object invoke(Object proxy, Method method, Object[] args)
+         throws Throwable
+      {
+         if ( method.getName().equals("close") )
+         {
+            giveBack();
+            return null;
+         }
+         if ( RESET_METHODS.contains(method.getName()) )
+            modifications.add(method.getName());
+         try
+         {
+            return method.invoke(statement,args);
+         } catch ( InvocationTargetException e ) {
+            throw e.getTargetException();
+         }
+      }
+
+      /**
+       * Reset the statement to the state it was prepared in, and mark
+       * it as unused. If it can not be reset, it is dropped from the cache.
+       */
+      private void giveBack()
+      {
+         synchronized ( cache )
+         {
+            if ( ! used )
+               return;
+            used = false;
+            if ( evicted )
+            {
+               close();
+               return;
+            }
+            try
+            {
+               statement.clearParameters();
+               if ( modifications.contains("setMaxRows") )
+                  statement.setMaxRows(0);
+               if ( modifications.contains("setFetchSize") )
+                  statement.setFetchSize(0);
+               if ( modifications.contains("setFetchDirection") )
+                  statement.setFetchDirection(ResultSet.FETCH_FORWARD);
+               if ( modifications.contains("setQueryTimeout") )
+                  statement.setQueryTimeout(0);
+               if ( modifications.contains("addBatch") )
+                  statement.clearBatch();
+               modifications.clear();
+            } catch ( Exception e ) {
+               logger.debug("could not reset cached statement, dropping it",e);
+               cache.values().remove(this);
+               close();
+            }
+         }
+      }
+
+      /**
+       * Close the statement physically.
+       */
+      public void close()
+      {
+         try
+         {
+            statement.close();
+         } catch ( Exception e ) {
+            logger.debug("could not close cached statement",e);
+         }
+      }
    }
 
    public void configurationChanged(ConfigurationEvent event)
    {
-      if ( "beankeeper.pool.connection_timeout".equals(event.getPropertyName()) )
+      if ( (event.getPropertyName()!=null) && 
+            (event.getPropertyName().startsWith("beankeeper.pool")) )
          configurationReload();
    }
 
@@ -274,8 +802,26 @@ public class ConnectionSourceImpl implements ConnectionSource,ExtendedConfigurat
    {
       TIMEOUT = configurationTracker.getConfiguration().
          getInt("beankeeper.pool.connection_timeout",10*60*1000);
+      STATEMENT_CACHE_SIZE = configurationTracker.getConfiguration().
+         getInt("beankeeper.pool.statement_cache_size",50);
+      MIN_CONNECTIONS = configurationTracker.getConfiguration().
+         getInt("beankeeper.pool.min_connections",0);
+      MAX_CONNECTIONS = configurationTracker.getConfiguration().
+         getInt("beankeeper.pool.max_connections",0);
+      BORROW_TIMEOUT = configurationTracker.getConfiguration().
+         getInt("beankeeper.pool.borrow_timeout",30*1000);
+      // If the maximum changed, create a new wait queue. Connections borrowed
+      // through the old one will give back their place to the old one.
+      synchronized ( reaperMutex )
+      {
+         if ( permitCount != MAX_CONNECTIONS )
+         {
+            permitCount = MAX_CONNECTIONS;
+            if ( permitCount > 0 )
+               permits = new Semaphore(permitCount,true);
+            else
+               permits = null;
+         }
+      }
    }
 }
-
-
-
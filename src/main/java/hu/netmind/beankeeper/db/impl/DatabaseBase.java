@@ -22,19 +22,28 @@ import java.util.*;
 import java.io.*;
 import java.sql.Connection;
 import java.sql.DatabaseMetaData;
+import java.sql.SQLException;
+import java.security.MessageDigest;
 import org.apache.log4j.Logger;
 import hu.netmind.beankeeper.service.StoreContext;
 import hu.netmind.beankeeper.parser.*;
 import hu.netmind.beankeeper.common.StoreException;
 import hu.netmind.beankeeper.transaction.*;
 import hu.netmind.beankeeper.transaction.event.TransactionEvent;
+import hu.netmind.beankeeper.transaction.event.TransactionCommittingEvent;
 import hu.netmind.beankeeper.transaction.event.TransactionCommittedEvent;
 import hu.netmind.beankeeper.transaction.event.TransactionRolledbackEvent;
+import hu.netmind.beankeeper.store.event.ObjectsFinalizationEvent;
 import hu.netmind.beankeeper.db.*;
+import hu.netmind.beankeeper.query.QueryCancelledException;
+import hu.netmind.beankeeper.serial.Serial;
 import hu.netmind.beankeeper.management.ManagementTracker;
+import hu.netmind.beankeeper.config.ConfigurationTracker;
+import hu.netmind.beankeeper.config.ExtendedConfigurationListener;
 import hu.netmind.beankeeper.event.EventDispatcher;
 import hu.netmind.beankeeper.event.PersistenceEventListener;
 import hu.netmind.beankeeper.event.PersistenceEvent;
+import org.apache.commons.configuration.event.ConfigurationEvent;
 
 /**
  * This is a database superclass offers basic functions that
@@ -49,27 +58,56 @@ import hu.netmind.beankeeper.event.PersistenceEvent;
  *    <li>Table column name handling. All attribute names are transformed
  *    to suitable column names. Reserved words will be escaped.</li>
  *    <li>Keeping track of transaction statistics.</li>
+ *    <li>Buffering inserts and updates of a transaction, so they can be
+ *    sent to the database in batches.</li>
+ *    <li>Remembering the fingerprint of each table's attributes, so
+ *    unchanged tables need not be compared with the database metadata.</li>
+ *    <li>Optionally keeping closed versions in history tables, and
+ *    selecting them only if the query may need them.</li>
  * </ul>
  * @author Brautigam Robert
  * @version Revision: $Revision$
  */
-public abstract class DatabaseBase implements PersistenceEventListener, Database
+public abstract class DatabaseBase 
+   implements PersistenceEventListener, ExtendedConfigurationListener, Database
 {
    private static Logger logger = Logger.getLogger(DatabaseBase.class);
+   private static final String WRITEBUFFER_KEY = WriteBuffer.class.getName();
+   private static final String BULK_KEY = DatabaseBase.class.getName()+".bulk";
+
+   private static int BATCH_SIZE = 100;
+   private static int BULK_BATCH_SIZE = 10000;
+   private static int FETCH_SIZE = 100;
+   private static long REPLICA_LAG = 10*1000;
+   private static boolean SCHEMA_FINGERPRINT = true;
+   private static boolean HISTORY_TABLES = false;
+   private static long QUERY_TIMEOUT = 0;
    
    private Map reservedWords; // Reserved words of database
    private Map reverseReservedWords; // Reverse of translated words
    
    private ConnectionSource connectionSource;
+   private ConnectionSource replicaSource; // Optional, for read-only queries
    private int maxTableNameLength;
+   private boolean nullsSortedHigh = true;
+   private boolean nullsSortedAtStart = false;
+   private boolean nullsSortedAtEnd = false;
 
    private Object tableNameMutex = new Object(); // Mutex for accessing table names
    private Map tableNames; // Contains alias->realname mappings
    private Map transactionNames; // Contains mapping for specific transaction
+   private Map schemaFingerprints; // Contains realname->fingerprint mappings
+   private Map transactionFingerprints; // Contains fingerprints for specific transaction
+   private boolean blobTableEnsured = false;
+   private Set blobTransactions = new HashSet(); // Transactions which ensured the blobs table
+   private Map historyTables = new HashMap(); // Contains realname->history realname mappings
+   private Set versionedTables = new HashSet(); // Contains realnames of created versioned tables
+   private long historySerial; // Highest end serial moved to history tables
 
    private SQLStatistics sqlStatistics = null;
    private EventDispatcher eventDispatcher = null; // Injected
    private ManagementTracker managementTracker = null; // Injected
+   private ConfigurationTracker configurationTracker = null; // Injected
 
    /**
     * Initialize this implementation.
@@ -78,6 +116,13 @@ public abstract class DatabaseBase implements PersistenceEventListener, Database
    {
       connectionSource=(ConnectionSource) parameters.get(
             StoreContext.PARAM_CONNECTIONSOURCE);
+      // Versions moved before now are not seen by current queries
+      historySerial = Serial.getSerial(new Date()).getValue().longValue();
+      replicaSource=(ConnectionSource) parameters.get(
+            StoreContext.PARAM_REPLICA_CONNECTIONSOURCE);
+      // Configure
+      configurationReload();
+      configurationTracker.addListener(this);
       // Init reserved words
       readReservedWords();
       // Register listener
@@ -96,6 +141,12 @@ public abstract class DatabaseBase implements PersistenceEventListener, Database
             maxTableNameLength = Integer.MAX_VALUE;
          if ( maxTableNameLength < 10 )
             throw new StoreException("database can't handle 10 charachter length table names (only "+maxTableNameLength+"). Must be Oracle or something.");
+         // Determine null ordering
+         nullsSortedAtStart = dmd.nullsAreSortedAtStart();
+         nullsSortedAtEnd = dmd.nullsAreSortedAtEnd();
+         nullsSortedHigh = !dmd.nullsAreSortedLow();
+         logger.debug("database sorts nulls: high="+nullsSortedHigh+", start="+
+               nullsSortedAtStart+", end="+nullsSortedAtEnd);
       } catch ( StoreException e ) {
          throw e;
       } catch ( Exception e ) {
@@ -105,7 +156,7 @@ public abstract class DatabaseBase implements PersistenceEventListener, Database
             connectionSource.releaseConnection(connection);
       }
       // Create and register mbean
-      sqlStatistics = new SQLStatistics();
+      sqlStatistics = new SQLStatistics(connectionSource);
       managementTracker.registerBean("SQLStatistics",sqlStatistics);
    }
 
@@ -116,7 +167,10 @@ public abstract class DatabaseBase implements PersistenceEventListener, Database
    {
       logger.debug("releasing all connections...");
       eventDispatcher.unregisterListener(this);
+      configurationTracker.removeListener(this);
       connectionSource.release();
+      if ( replicaSource != null )
+         replicaSource.release();
       managementTracker.deregisterBean("SQLStatistics");
    }
 
@@ -139,11 +193,262 @@ public abstract class DatabaseBase implements PersistenceEventListener, Database
    {
       if ( attributes.size() != 0 )
       {
-         TransactionStatistics stats=save(transaction.getConnection(), 
-               transformTableName(transaction,tableName), transformAttributes(keys), transformAttributes(attributes));
+         String realTableName = transformTableName(transaction,tableName);
+         Map realKeys = transformAttributes(keys);
+         Map realAttributes = transformAttributes(attributes);
+         WriteBuffer buffer = getWriteBuffer(transaction);
+         if ( buffer == null )
+         {
+            TransactionStatistics stats=save(transaction.getConnection(), 
+                  realTableName, realKeys, realAttributes);
+            transaction.getStats().add(stats);
+            sqlStatistics.add(stats); // To accumulated sql stats
+         } else {
+            // Updates select the rows to modify, so if a buffered
+            // row would be selected, that must be written first
+            if ( buffer.conflictsWithSave(realTableName,realKeys,realAttributes) )
+               flush(transaction);
+            buffer.addSave(realTableName,realKeys,realAttributes);
+            addStatistics(transaction,new TransactionStatistics(1,0,0,0,0));
+            if ( buffer.size() >= getBatchSize(transaction) )
+               flush(transaction);
+         }
+      }
+   }
+
+   /**
+    * Modify rows in more tables at once. Buffered operations are written
+    * first, then all updates are executed together.
+    * @param tableNames The tables to modify, one for each update.
+    * @param keysList The keys which select the rows to modify.
+    * @param attributesList The attributes to set.
+    */
+   public void saveTables(Transaction transaction, List<String> tableNames,
+         List<Map> keysList, List<Map> attributesList)
+   {
+      flush(transaction);
+      List<String> realTableNames = new ArrayList<String>(tableNames.size());
+      List<Map> realKeysList = new ArrayList<Map>(keysList.size());
+      List<Map> realAttributesList = new ArrayList<Map>(attributesList.size());
+      for ( int i=0; i<tableNames.size(); i++ )
+      {
+         if ( attributesList.get(i).size() == 0 )
+            continue;
+         realTableNames.add(transformTableName(transaction,tableNames.get(i)));
+         realKeysList.add(transformAttributes(keysList.get(i)));
+         realAttributesList.add(transformAttributes(attributesList.get(i)));
+      }
+      if ( realTableNames.isEmpty() )
+         return;
+      long startTime = System.currentTimeMillis();
+      TransactionStatistics stats = saveTables(transaction.getConnection(),
+            realTableNames, realKeysList, realAttributesList);
+      long endTime = System.currentTimeMillis();
+      addStatistics(transaction,stats);
+      sqlStatistics.addFinalization(endTime-startTime);
+   }
+
+   /**
+    * Move the versions closed by the transaction to the history tables
+    * of the given tables. Tables without history tables are skipped.
+    * @param tableNames The tables the transaction closed versions in.
+    */
+   public void moveHistory(Transaction transaction, List<String> tableNames)
+   {
+      List<String> realTableNames = new ArrayList<String>();
+      List<String> realHistoryTableNames = new ArrayList<String>();
+      for ( String tableName : tableNames )
+      {
+         String realTableName = transformTableName(transaction,tableName);
+         String realHistoryTableName = null;
+         synchronized ( historyTables )
+         {
+            realHistoryTableName = (String) historyTables.get(realTableName);
+         }
+         if ( realHistoryTableName != null )
+         {
+            realTableNames.add(realTableName);
+            realHistoryTableNames.add(realHistoryTableName);
+         }
+      }
+      if ( realTableNames.isEmpty() )
+         return;
+      // Queries started from now on must see the history tables too.
+      // This is raised before the move, so a query which selected only
+      // the live tables knows it has to select again.
+      updateHistorySerial(transaction.getEndSerial());
+      flush(transaction);
+      long startTime = System.currentTimeMillis();
+      TransactionStatistics stats = new TransactionStatistics();
+      for ( int i=0; i<realTableNames.size(); i++ )
+         stats.add(moveHistory(transaction.getConnection(),realTableNames.get(i),
+                  realHistoryTableNames.get(i),transaction.getSerial()));
+      long endTime = System.currentTimeMillis();
+      addStatistics(transaction,stats);
+      sqlStatistics.addFinalization(endTime-startTime);
+   }
+
+   /**
+    * Remove versions which ended before the given serial from the table
+    * and its history table.
+    * @param tableName The versioned table to remove from.
+    * @param serial Versions which ended before this serial are removed.
+    * @param maxCount The number of versions to remove at most.
+    * @return The number of versions removed.
+    */
+   public int removeHistory(Transaction transaction, String tableName, Long serial, int maxCount)
+   {
+      // Only look up the name, unknown tables are not registered
+      String realTableName = tableName;
+      if ( tableName.indexOf('_') >= 0 )
+      {
+         synchronized ( tableNameMutex )
+         {
+            if ( tableNames == null )
+               return 0;
+            realTableName = getTableName(transaction,tableName.toLowerCase());
+         }
+      }
+      List<String> realTableNames = new ArrayList<String>();
+      synchronized ( historyTables )
+      {
+         if ( ! versionedTables.contains(realTableName) )
+            return 0;
+         realTableNames.add(realTableName);
+         if ( historyTables.get(realTableName) != null )
+            realTableNames.add((String) historyTables.get(realTableName));
+      }
+      flush(transaction);
+      int count = 0;
+      for ( int i=0; (i<realTableNames.size()) && (count<maxCount); i++ )
+      {
+         TransactionStatistics stats = removeHistory(transaction.getConnection(),
+               realTableNames.get(i),serial,maxCount-count);
+         count += stats.getDeleteCount();
          transaction.getStats().add(stats);
          sqlStatistics.add(stats); // To accumulated sql stats
       }
+      return count;
+   }
+
+   /**
+    * Remove blobs which are not referenced by any version of their owner
+    * column. The table names are read from the database, so tables created
+    * by other nodes are also checked. Blobs of owners whose table is not
+    * found are kept.
+    * @param blobColumns The blob columns for each table name.
+    * @param serial Only blobs inserted before this serial are removed.
+    * @param maxCount The number of blobs to remove at most.
+    * @return The number of blobs removed.
+    */
+   public int removeBlobs(Transaction transaction, Map<String,List<String>> blobColumns,
+         Long serial, int maxCount)
+   {
+      synchronized ( tableNameMutex )
+      {
+         // If this node did not use any tables yet, do not remove anything
+         if ( tableNames == null )
+            return 0;
+      }
+      ensureBlobTable(transaction);
+      flush(transaction);
+      QueryStatement stmt = new QueryStatement("tablemap",null,null);
+      SearchResult result = new SearchResult();
+      TransactionStatistics stats = search(transaction.getConnection(),stmt,null,result);
+      transaction.getStats().add(stats);
+      sqlStatistics.add(stats); // To accumulated sql stats
+      Map currentNames = new HashMap();
+      for ( int i=0; i<result.getResult().size(); i++ )
+      {
+         Map attributes = (Map) result.getResult().get(i);
+         currentNames.put(attributes.get("alias"),attributes.get("realname"));
+      }
+      int count = 0;
+      for ( Map.Entry<String,List<String>> entry : blobColumns.entrySet() )
+      {
+         // Determine the live and history table of the owner
+         String tableName = entry.getKey().toLowerCase();
+         String historyTableName = tableName.endsWith("_")?
+            tableName+"hist_":tableName+"_hist_";
+         List<String> realTableNames = new ArrayList<String>();
+         if ( currentNames.get(tableName) != null )
+            realTableNames.add((String) currentNames.get(tableName));
+         if ( currentNames.get(historyTableName) != null )
+            realTableNames.add((String) currentNames.get(historyTableName));
+         if ( tableName.indexOf('_') < 0 )
+         {
+            // Names without packages are not mapped
+            synchronized ( historyTables )
+            {
+               if ( versionedTables.contains(tableName) )
+                  realTableNames.add(tableName);
+               if ( historyTables.get(tableName) != null )
+                  realTableNames.add((String) historyTables.get(tableName));
+            }
+         }
+         if ( realTableNames.isEmpty() )
+            continue;
+         for ( String columnName : entry.getValue() )
+         {
+            if ( count >= maxCount )
+               return count;
+            stats = removeBlobs(transaction.getConnection(),tableName,columnName.toLowerCase(),
+                  realTableNames,translateName(columnName),serial,maxCount-count);
+            transaction.getStats().add(stats);
+            sqlStatistics.add(stats); // To accumulated sql stats
+            count += stats.getDeleteCount();
+         }
+      }
+      return count;
+   }
+
+   /**
+    * Raise the highest end serial of versions in history tables.
+    */
+   private void updateHistorySerial(Long serial)
+   {
+      if ( serial == null )
+         return;
+      synchronized ( historyTables )
+      {
+         if ( serial.longValue() > historySerial )
+            historySerial = serial.longValue();
+      }
+   }
+
+   /**
+    * Determine whether the statement may select versions which are
+    * already in history tables. This is the case if a version was moved
+    * with an end serial after the serial the statement selects at.
+    */
+   private boolean isHistoryNeeded(QueryStatement stmt)
+   {
+      synchronized ( historyTables )
+      {
+         if ( historyTables.isEmpty() )
+            return false;
+         TimeControl timeControl = stmt.getTimeControl();
+         if ( (timeControl == null) || (timeControl.getSerial() == null) )
+            return true;
+         long safeSerial = timeControl.getSerial().longValue();
+         if ( (timeControl.getTxSerial() != null) &&
+               (timeControl.getTxSerial().longValue() < safeSerial) )
+            safeSerial = timeControl.getTxSerial().longValue();
+         return historySerial > safeSerial;
+      }
+   }
+
+   /**
+    * Determine whether any of the statements selected only the live
+    * tables, although versions were moved to history tables since, which
+    * it should have seen.
+    */
+   private boolean isHistoryMissed(List<QueryStatement> stmts)
+   {
+      for ( QueryStatement stmt : stmts )
+         if ( (stmt.getHistoryTables() == null) && (isHistoryNeeded(stmt)) )
+            return true;
+      return false;
    }
 
    /**
@@ -157,13 +462,105 @@ public abstract class DatabaseBase implements PersistenceEventListener, Database
    {
       if ( attributes.size() != 0 )
       {
-         TransactionStatistics stats=insert(transaction.getConnection(), 
-               transformTableName(transaction,tableName), transformAttributes(attributes));
-         transaction.getStats().add(stats);
-         sqlStatistics.add(stats); // To accumulated sql stats
+         String realTableName = transformTableName(transaction,tableName);
+         Map realAttributes = transformAttributes(attributes);
+         WriteBuffer buffer = getWriteBuffer(transaction);
+         if ( buffer == null )
+         {
+            TransactionStatistics stats=insert(transaction.getConnection(), 
+                  realTableName, realAttributes);
+            transaction.getStats().add(stats);
+            sqlStatistics.add(stats); // To accumulated sql stats
+         } else {
+            if ( buffer.conflictsWithInsert(realTableName,realAttributes) )
+               flush(transaction);
+            buffer.addInsert(realTableName,realAttributes);
+            addStatistics(transaction,new TransactionStatistics(0,1,0,0,0));
+            if ( buffer.size() >= getBatchSize(transaction) )
+               flush(transaction);
+         }
+      }
+   }
+
+   /**
+    * Get the write buffer of the given transaction. Only normal transactions
+    * are buffered, internal transactions (which have no serial) are written
+    * to the database immediately.
+    * @return The buffer, or null if operations should not be buffered.
+    */
+   private WriteBuffer getWriteBuffer(Transaction transaction)
+   {
+      if ( (BATCH_SIZE <= 1) || (transaction.getSerial() == null) )
+         return null;
+      WriteBuffer buffer = (WriteBuffer) transaction.get(WRITEBUFFER_KEY);
+      if ( buffer == null )
+      {
+         buffer = new WriteBuffer();
+         transaction.put(WRITEBUFFER_KEY,buffer);
+      }
+      return buffer;
+   }
+
+   /**
+    * Get the number of operations buffered before they are written.
+    */
+   private int getBatchSize(Transaction transaction)
+   {
+      if ( transaction.get(BULK_KEY) != null )
+         return BULK_BATCH_SIZE;
+      return BATCH_SIZE;
+   }
+
+   /**
+    * Switch bulk mode of transaction on or off. Bulk transactions buffer
+    * more operations, and use <code>insertBulk()</code> for inserts.
+    */
+   public void setBulk(Transaction transaction, boolean bulk)
+   {
+      if ( bulk )
+         transaction.put(BULK_KEY,Boolean.TRUE);
+      else
+         transaction.remove(BULK_KEY);
+   }
+
+   /**
+    * Execute all buffered inserts and updates of the given transaction.
+    */
+   public void flush(Transaction transaction)
+   {
+      WriteBuffer buffer = (WriteBuffer) transaction.get(WRITEBUFFER_KEY);
+      if ( (buffer == null) || (buffer.isEmpty()) )
+         return;
+      List<WriteBuffer.Batch> batches = buffer.getBatches();
+      if ( logger.isDebugEnabled() )
+         logger.debug("flushing "+buffer.size()+" operations in "+batches.size()+" batches");
+      buffer.clear();
+      for ( WriteBuffer.Batch batch : batches )
+      {
+         TransactionStatistics stats = null;
+         if ( (batch.isInsert()) && (transaction.get(BULK_KEY) != null) )
+            stats = insertBulk(transaction.getConnection(),batch.getTableName(),
+                  batch.getAttributesList());
+         else if ( batch.isInsert() )
+            stats = insert(transaction.getConnection(),batch.getTableName(),
+                  batch.getAttributesList());
+         else
+            stats = save(transaction.getConnection(),batch.getTableName(),
+                  batch.getKeysList(),batch.getAttributesList());
+         // Operations were already counted when they were buffered,
+         // only the time is added now
+         stats.setInsertCount(0);
+         stats.setUpdateCount(0);
+         addStatistics(transaction,stats);
       }
    }
 
+   private void addStatistics(Transaction transaction, TransactionStatistics stats)
+   {
+      transaction.getStats().add(stats);
+      sqlStatistics.add(stats); // To accumulated sql stats
+   }
+
    /**
     * Remove an entry from database.
     * @param tableName The table to remove object from.
@@ -173,6 +570,7 @@ public abstract class DatabaseBase implements PersistenceEventListener, Database
    public void remove(Transaction transaction, String tableName,
          Map attributes)
    {
+      flush(transaction);
       TransactionStatistics stats=remove(transaction.getConnection(), 
             transformTableName(transaction,tableName), transformAttributes(attributes));
       transaction.getStats().add(stats);
@@ -229,10 +627,216 @@ public abstract class DatabaseBase implements PersistenceEventListener, Database
    public void ensureTable(Transaction transaction, String tableName,
          Map attributeTypes, List keyAttributeNames, boolean create)
    {
+      flush(transaction);
+      String realTableName = ensureSchema(transaction,tableName,
+            attributeTypes,keyAttributeNames,create);
+      if ( (create) && (attributeTypes.containsKey("persistence_end")) )
+      {
+         synchronized ( historyTables )
+         {
+            versionedTables.add(realTableName);
+         }
+      }
+      // Versioned tables get a history table with the same columns
+      if ( (HISTORY_TABLES) && (attributeTypes.containsKey("persistence_end")) )
+      {
+         String historyTableName = tableName.endsWith("_")?
+            tableName+"hist_":tableName+"_hist_";
+         String realHistoryTableName = ensureSchema(transaction,historyTableName,
+               attributeTypes,keyAttributeNames,create);
+         synchronized ( historyTables )
+         {
+            historyTables.put(realTableName,realHistoryTableName);
+         }
+      }
+   }
+
+   /**
+    * Ensure a single table, unless it was last ensured with the same
+    * attributes.
+    * @return The real name of the table.
+    */
+   private String ensureSchema(Transaction transaction, String tableName,
+         Map attributeTypes, List keyAttributeNames, boolean create)
+   {
+      String realTableName = transformTableName(transaction,tableName);
+      Map realAttributeTypes = transformAttributes(attributeTypes);
+      List realKeyAttributeNames = transformAttributes(keyAttributeNames);
+      // If the table was last ensured with the same attributes, there is
+      // no need to compare it with the database metadata
+      String fingerprint = null;
+      if ( (create) && (SCHEMA_FINGERPRINT) )
+      {
+         fingerprint = getSchemaFingerprint(realAttributeTypes,realKeyAttributeNames);
+         if ( fingerprint.equals(getSchemaFingerprint(transaction,realTableName)) )
+         {
+            if ( logger.isDebugEnabled() )
+               logger.debug("table '"+realTableName+"' has the same fingerprint, it is not checked.");
+            create = false;
+            fingerprint = null;
+         }
+      }
       TransactionStatistics stats=ensureTable(transaction.getConnection(), 
-            transformTableName(transaction,tableName), transformAttributes(attributeTypes), transformAttributes(keyAttributeNames),create);
+            realTableName, realAttributeTypes, realKeyAttributeNames, create);
+      if ( fingerprint != null )
+         stats.add(setSchemaFingerprint(transaction,realTableName,fingerprint));
       transaction.getStats().add(stats);
       sqlStatistics.add(stats); // To accumulated sql stats
+      return realTableName;
+   }
+
+   /**
+    * Calculate the fingerprint of a table's attributes and keys.
+    */
+   private String getSchemaFingerprint(Map attributeTypes, List keyAttributeNames)
+   {
+      StringBuffer description = new StringBuffer();
+      Iterator entries = new TreeMap(attributeTypes).entrySet().iterator();
+      while ( entries.hasNext() )
+      {
+         Map.Entry entry = (Map.Entry) entries.next();
+         description.append(entry.getKey()).append(':').
+            append(((Class) entry.getValue()).getName()).append(';');
+      }
+      description.append("keys:").append(keyAttributeNames);
+      try
+      {
+         byte[] digest = MessageDigest.getInstance("MD5").digest(
+               description.toString().getBytes("UTF-8"));
+         StringBuffer result = new StringBuffer();
+         for ( int i=0; i<digest.length; i++ )
+            result.append(Integer.toHexString(0x100|(digest[i]&0xff)).substring(1));
+         return result.toString();
+      } catch ( Exception e ) {
+         throw new StoreException("could not calculate fingerprint of attributes: "+attributeTypes,e);
+      }
+   }
+
+   /**
+    * Get the fingerprint the table was last ensured with. On first
+    * call the fingerprints of all tables are read.
+    * @return The fingerprint, or null if it is not known.
+    */
+   private String getSchemaFingerprint(Transaction transaction, String tableName)
+   {
+      synchronized ( tableNameMutex )
+      {
+         if ( schemaFingerprints == null )
+         {
+            HashMap schemaAttributes = new HashMap();
+            schemaAttributes.put("tablename",String.class);
+            schemaAttributes.put("fingerprint",String.class);
+            ArrayList schemaKeys = new ArrayList();
+            schemaKeys.add("tablename");
+            TransactionStatistics stats = ensureTable(transaction.getConnection(),"schemamap",
+                  schemaAttributes,schemaKeys,true);
+            transaction.getStats().add(stats);
+            sqlStatistics.add(stats); // To accumulated sql stats
+            // Read all fingerprints
+            QueryStatement stmt = new QueryStatement("schemamap",null,null);
+            SearchResult result = new SearchResult();
+            stats = search(transaction.getConnection(),stmt,null,result);
+            transaction.getStats().add(stats);
+            sqlStatistics.add(stats); // To accumulated sql stats
+            schemaFingerprints = new HashMap();
+            for ( int i=0; i<result.getResult().size(); i++ )
+            {
+               Map attributes = (Map) result.getResult().get(i);
+               schemaFingerprints.put(attributes.get("tablename"),attributes.get("fingerprint"));
+            }
+            transactionFingerprints = new HashMap();
+         }
+         Map transactionTable = (Map) transactionFingerprints.get(transaction);
+         if ( (transactionTable!=null) && (transactionTable.get(tableName)!=null) )
+            return (String) transactionTable.get(tableName);
+         return (String) schemaFingerprints.get(tableName);
+      }
+   }
+
+   /**
+    * Remember the fingerprint of a table, which was just ensured. The
+    * fingerprint becomes visible to other transactions on commit.
+    */
+   private TransactionStatistics setSchemaFingerprint(Transaction transaction, 
+         String tableName, String fingerprint)
+   {
+      TransactionStatistics stats = new TransactionStatistics();
+      Map schemaAttributes = new HashMap();
+      schemaAttributes.put("tablename",tableName);
+      stats.add(remove(transaction.getConnection(),"schemamap",schemaAttributes));
+      schemaAttributes.put("fingerprint",fingerprint);
+      stats.add(insert(transaction.getConnection(),"schemamap",schemaAttributes));
+      synchronized ( tableNameMutex )
+      {
+         Map transactionTable = (Map) transactionFingerprints.get(transaction);
+         if ( transactionTable == null )
+         {
+            transactionTable = new HashMap();
+            transactionFingerprints.put(transaction,transactionTable);
+         }
+         transactionTable.put(tableName,fingerprint);
+      }
+      return stats;
+   }
+
+   /**
+    * Insert a binary large object into the blobs table.
+    * @param id The id of the new blob.
+    * @param ownerTable The table of the object which references the blob.
+    * @param ownerColumn The column which references the blob.
+    * @param content The content of the blob, it is read to the end.
+    * @param length The number of bytes in the content.
+    */
+   public void insertBlob(Transaction transaction, Long id, String ownerTable, String ownerColumn,
+         InputStream content, int length)
+   {
+      ensureBlobTable(transaction);
+      TransactionStatistics stats = insertBlob(transaction.getConnection(),id,
+            ownerTable.toLowerCase(),ownerColumn.toLowerCase(),content,length);
+      transaction.getStats().add(stats);
+      sqlStatistics.add(stats); // To accumulated sql stats
+   }
+
+   /**
+    * Open the content of a binary large object for reading.
+    * @param id The id of the blob.
+    * @return The stream of the content, which must be closed
+    * before the transaction ends.
+    */
+   public InputStream selectBlob(Transaction transaction, Long id)
+   {
+      ensureBlobTable(transaction);
+      TransactionStatistics stats = new TransactionStatistics();
+      InputStream content = selectBlob(transaction.getConnection(),id,stats);
+      transaction.getStats().add(stats);
+      sqlStatistics.add(stats); // To accumulated sql stats
+      return content;
+   }
+
+   /**
+    * Create the blobs table if it was not yet ensured. The table is
+    * known to exist for other transactions after the transaction commits.
+    */
+   private void ensureBlobTable(Transaction transaction)
+   {
+      synchronized ( tableNameMutex )
+      {
+         if ( (blobTableEnsured) || (blobTransactions.contains(transaction)) )
+            return;
+         HashMap blobAttributes = new HashMap();
+         blobAttributes.put("id",Long.class);
+         blobAttributes.put("content",byte[].class);
+         blobAttributes.put("owner_table",String.class);
+         blobAttributes.put("owner_column",String.class);
+         ArrayList blobKeys = new ArrayList();
+         blobKeys.add("id");
+         TransactionStatistics stats = ensureTable(transaction.getConnection(),"blobs",
+               blobAttributes,blobKeys,true);
+         transaction.getStats().add(stats);
+         sqlStatistics.add(stats); // To accumulated sql stats
+         // The table may be dropped again if the transaction rolls back
+         blobTransactions.add(transaction);
+      }
    }
 
    /**
@@ -245,39 +849,348 @@ public abstract class DatabaseBase implements PersistenceEventListener, Database
    public SearchResult search(Transaction transaction, 
          QueryStatement stmt, Limits limits)
    {
-      QueryStatement newStmt = new QueryStatement(stmt);
-      newStmt.setSpecifiedTerms(new HashSet(replaceTableNames(transaction,newStmt.getSpecifiedTerms())));
-      newStmt.setQueryExpression(replaceTableNames(transaction,newStmt.getQueryExpression()));
-      newStmt.setSelectTerms(replaceTableNames(transaction,newStmt.getSelectTerms()));
-      newStmt.setOrderByList(replaceOrderTableNames(transaction,newStmt.getOrderByList()));
+      // Buffered operations must be visible to the query
+      flush(transaction);
+      QueryStatement newStmt = getRealStatement(transaction,stmt);
       // Run query
       SearchResult rawResult = new SearchResult();
-      TransactionStatistics stats = search(transaction.getConnection(), 
-            newStmt, limits, rawResult);
+      TransactionStatistics stats = null;
+      try
+      {
+         stats = search(transaction.getConnection(),newStmt,limits,rawResult);
+         if ( isHistoryMissed(Collections.singletonList(newStmt)) )
+         {
+            // Versions were moved to history while selecting, select again
+            newStmt = getRealStatement(transaction,stmt);
+            rawResult = new SearchResult();
+            stats.add(search(transaction.getConnection(),newStmt,limits,rawResult));
+         }
+      } catch ( QueryCancelledException e ) {
+         transaction.markRollbackOnly();
+         throw e;
+      }
       transaction.getStats().add(stats);
       sqlStatistics.add(stats); // To accumulated sql stats
-      // Transform result. As the names of the select terms were altered,
-      // go through the original select terms and populate a new map based
-      // on the original names.
+      return reverseNames(rawResult);
+   }
+
+   /**
+    * Determine whether the given statements can be selected together
+    * in a single select.
+    * @param transaction The transaction to run in.
+    * @param stmts The query statements.
+    */
+   public boolean isUnionSupported(Transaction transaction, List<QueryStatement> stmts)
+   {
+      return isUnionSupported(getRealStatements(transaction,stmts));
+   }
+
+   /**
+    * Determine where the database sorts null values, as reported
+    * by the driver's metadata.
+    */
+   public boolean isNullSortedLast(boolean ascending)
+   {
+      if ( nullsSortedAtEnd )
+         return true;
+      if ( nullsSortedAtStart )
+         return false;
+      return ascending == nullsSortedHigh;
+   }
+
+   /**
+    * Select the concatenated results of more statements in a single
+    * select.
+    * @param transaction The transaction to run in.
+    * @param stmts The query statements.
+    * @param limits The limits of the whole result.
+    * @return The result object.
+    */
+   public SearchResult search(Transaction transaction, 
+         List<QueryStatement> stmts, Limits limits)
+   {
+      // Buffered operations must be visible to the query
+      flush(transaction);
+      List<QueryStatement> newStmts = getRealStatements(transaction,stmts);
+      // Run query
+      SearchResult rawResult = new SearchResult();
+      TransactionStatistics stats = null;
+      try
+      {
+         stats = search(transaction.getConnection(),newStmts,limits,rawResult);
+         if ( isHistoryMissed(newStmts) )
+         {
+            // Versions were moved to history while selecting, select again
+            newStmts = getRealStatements(transaction,stmts);
+            rawResult = new SearchResult();
+            stats.add(search(transaction.getConnection(),newStmts,limits,rawResult));
+         }
+      } catch ( QueryCancelledException e ) {
+         transaction.markRollbackOnly();
+         throw e;
+      }
+      transaction.getStats().add(stats);
+      sqlStatistics.add(stats); // To accumulated sql stats
+      return reverseNames(rawResult);
+   }
+
+   /**
+    * Select more independent statements, each with its own limits.
+    * @param transaction The transaction to run in.
+    * @param stmts The query statements.
+    * @param limitsList The limits of each statement.
+    * @return The results in the order of the statements.
+    */
+   public List<SearchResult> searchBatch(Transaction transaction,
+         List<QueryStatement> stmts, List<Limits> limitsList)
+   {
+      // Buffered operations must be visible to the query
+      flush(transaction);
+      List<QueryStatement> newStmts = getRealStatements(transaction,stmts);
+      // Run query
+      List<SearchResult> rawResults = new ArrayList<SearchResult>();
+      TransactionStatistics stats = null;
+      try
+      {
+         stats = searchBatch(transaction.getConnection(),newStmts,limitsList,rawResults);
+         if ( isHistoryMissed(newStmts) )
+         {
+            // Versions were moved to history while selecting, select again
+            newStmts = getRealStatements(transaction,stmts);
+            rawResults = new ArrayList<SearchResult>();
+            stats.add(searchBatch(transaction.getConnection(),newStmts,limitsList,rawResults));
+         }
+      } catch ( QueryCancelledException e ) {
+         transaction.markRollbackOnly();
+         throw e;
+      }
+      transaction.getStats().add(stats);
+      sqlStatistics.add(stats); // To accumulated sql stats
+      List<SearchResult> results = new ArrayList<SearchResult>();
+      for ( SearchResult rawResult : rawResults )
+         results.add(reverseNames(rawResult));
+      return results;
+   }
+
+   /**
+    * Determine whether the replica contains all changes up to the given
+    * serial. The replica is assumed to be at most the configured lag
+    * behind the primary database.
+    */
+   public boolean isReplicated(Long serial)
+   {
+      if ( (replicaSource == null) || (serial == null) )
+         return false;
+      return serial.longValue() <= Serial.getSerial(
+            new Date(System.currentTimeMillis()-REPLICA_LAG)).getValue().longValue();
+   }
+
+   /**
+    * Select objects from the replica database.
+    * @param transaction The transaction the query belongs to.
+    * @param stmt The query statement.
+    * @param limits The limits of the result.
+    * @return The result object.
+    */
+   public SearchResult searchReplica(Transaction transaction, 
+         QueryStatement stmt, Limits limits)
+   {
+      return searchReplica(transaction,Collections.singletonList(stmt),limits,false);
+   }
+
+   /**
+    * Select the concatenated results of more statements from the
+    * replica database in a single select.
+    * @param transaction The transaction the query belongs to.
+    * @param stmts The query statements.
+    * @param limits The limits of the whole result.
+    * @return The result object.
+    */
+   public SearchResult searchReplica(Transaction transaction, 
+         List<QueryStatement> stmts, Limits limits)
+   {
+      return searchReplica(transaction,stmts,limits,true);
+   }
+
+   private SearchResult searchReplica(Transaction transaction,
+         List<QueryStatement> stmts, Limits limits, boolean union)
+   {
+      if ( replicaSource == null )
+         throw new StoreException("there is no replica database configured");
+      // Table names are resolved in the transaction, the replica only
+      // runs the select
+      List<QueryStatement> newStmts = getRealStatements(transaction,stmts);
+      SearchResult rawResult = new SearchResult();
+      TransactionStatistics stats = null;
+      Connection connection = replicaSource.getConnection();
+      try
+      {
+         if ( union )
+            stats = search(connection,newStmts,limits,rawResult);
+         else
+            stats = search(connection,newStmts.get(0),limits,rawResult);
+         if ( isHistoryMissed(newStmts) )
+         {
+            // Versions were moved to history while selecting, select again
+            newStmts = getRealStatements(transaction,stmts);
+            rawResult = new SearchResult();
+            if ( union )
+               stats.add(search(connection,newStmts,limits,rawResult));
+            else
+               stats.add(search(connection,newStmts.get(0),limits,rawResult));
+         }
+         connection.commit();
+      } catch ( QueryCancelledException e ) {
+         transaction.markRollbackOnly();
+         throw e;
+      } catch ( SQLException e ) {
+         throw new StoreException("could not end read on replica",e);
+      } finally {
+         replicaSource.releaseConnection(connection);
+      }
+      transaction.getStats().add(stats);
+      sqlStatistics.add(stats); // To accumulated sql stats
+      return reverseNames(rawResult);
+   }
+
+   /**
+    * Transform result. As the names of the select terms were altered,
+    * go through the original select terms and populate a new map based
+    * on the original names.
+    */
+   private SearchResult reverseNames(SearchResult rawResult)
+   {
       SearchResult result = new SearchResult();
       result.setResultSize(rawResult.getResultSize());
       List<Map> rawResultList = rawResult.getResult();
       List<Map> resultList = new ArrayList<Map>();
       for ( Map rawResultMap : rawResultList )
-      {
-         Map resultMap = new HashMap();
-         Set<Map.Entry<String,Object>> rawResultMapEntries = rawResultMap.entrySet();
-         for ( Map.Entry<String,Object> rawResultEntry : rawResultMapEntries )
-            resultMap.put(reverseName(rawResultEntry.getKey()),rawResultEntry.getValue());
-         resultList.add(resultMap);
-         if ( logger.isDebugEnabled() )
-            logger.debug("transforming result: "+rawResultMap+", into: "+resultMap);
-      }
+         resultList.add(reverseNames(rawResultMap));
       result.setResult(resultList);
       // Return result transformed
       return result;
    }
 
+   /**
+    * Select objects from database as a forward-only cursor of attribute
+    * maps.
+    * @param transaction The transaction to run in.
+    * @param stmt The query statement.
+    * @return The cursor positioned before the first row.
+    */
+   public SearchCursor stream(Transaction transaction, QueryStatement stmt)
+   {
+      // Buffered operations must be visible to the query
+      flush(transaction);
+      QueryStatement newStmt = getRealStatement(transaction,stmt);
+      // Open cursor
+      TransactionStatistics stats = new TransactionStatistics();
+      SearchCursor openedCursor = null;
+      try
+      {
+         openedCursor = stream(transaction.getConnection(),newStmt,FETCH_SIZE,stats);
+         if ( isHistoryMissed(Collections.singletonList(newStmt)) )
+         {
+            // Versions were moved to history while opening, open again
+            openedCursor.close();
+            newStmt = getRealStatement(transaction,stmt);
+            openedCursor = stream(transaction.getConnection(),newStmt,FETCH_SIZE,stats);
+         }
+      } catch ( QueryCancelledException e ) {
+         transaction.markRollbackOnly();
+         throw e;
+      }
+      final SearchCursor rawCursor = openedCursor;
+      transaction.getStats().add(stats);
+      sqlStatistics.add(stats); // To accumulated sql stats
+      // Transform rows the same way as search results
+      return new SearchCursor()
+         {
+            public boolean hasNext()
+            {
+               return rawCursor.hasNext();
+            }
+
+            public Map next()
+            {
+               return reverseNames(rawCursor.next());
+            }
+
+            public void remove()
+            {
+               throw new UnsupportedOperationException("cursor does not support remove");
+            }
+
+            public void close()
+            {
+               rawCursor.close();
+            }
+         };
+   }
+
+   private List<QueryStatement> getRealStatements(Transaction transaction, List<QueryStatement> stmts)
+   {
+      List<QueryStatement> newStmts = new ArrayList<QueryStatement>();
+      for ( QueryStatement stmt : stmts )
+         newStmts.add(getRealStatement(transaction,stmt));
+      return newStmts;
+   }
+
+   /**
+    * Get the statement with the real table names.
+    */
+   private QueryStatement getRealStatement(Transaction transaction, QueryStatement stmt)
+   {
+      QueryStatement newStmt = new QueryStatement(stmt);
+      newStmt.setSpecifiedTerms(new HashSet(replaceTableNames(transaction,newStmt.getSpecifiedTerms())));
+      newStmt.setQueryExpression(replaceTableNames(transaction,newStmt.getQueryExpression()));
+      newStmt.setSelectTerms(replaceTableNames(transaction,newStmt.getSelectTerms()));
+      newStmt.setOrderByList(replaceOrderTableNames(transaction,newStmt.getOrderByList()));
+      if ( newStmt.getFetchColumns() != null )
+         newStmt.setFetchColumns(new HashSet(transformAttributes(
+                     new ArrayList(newStmt.getFetchColumns()))));
+      if ( isHistoryNeeded(newStmt) )
+      {
+         synchronized ( historyTables )
+         {
+            newStmt.setHistoryTables(new HashMap(historyTables));
+         }
+      }
+      return newStmt;
+   }
+
+   /**
+    * As the names of the select terms were altered, populate a new map
+    * based on the original names.
+    */
+   private Map reverseNames(Map rawResultMap)
+   {
+      if ( rawResultMap instanceof ResultRow )
+      {
+         // Rows of the same query share the schema, so names
+         // are only translated once
+         ResultRow row = (ResultRow) rawResultMap;
+         ResultRow.Schema schema = row.getSchema();
+         ResultRow.Schema reversedSchema = schema.getReversedSchema();
+         if ( reversedSchema == null )
+         {
+            String[] names = new String[schema.size()];
+            for ( int i=0; i<names.length; i++ )
+               names[i] = reverseName(schema.getName(i));
+            reversedSchema = schema.rename(names);
+            schema.setReversedSchema(reversedSchema);
+         }
+         return row.withSchema(reversedSchema);
+      }
+      Map resultMap = new HashMap();
+      Set<Map.Entry<String,Object>> rawResultMapEntries = rawResultMap.entrySet();
+      for ( Map.Entry<String,Object> rawResultEntry : rawResultMapEntries )
+         resultMap.put(reverseName(rawResultEntry.getKey()),rawResultEntry.getValue());
+      if ( logger.isDebugEnabled() )
+         logger.debug("transforming result: "+rawResultMap+", into: "+resultMap);
+      return resultMap;
+   }
+
    /**
     * Replace all table names in the list of terms.
     */
@@ -458,8 +1371,10 @@ public abstract class DatabaseBase implements PersistenceEventListener, Database
                Map attributes = (Map) result.getResult().get(i);
                tableNames.put(attributes.get("alias"),attributes.get("realname"));
             }
-            // Add self
+            // Add self and other internal tables
             tableNames.put("tablemap","tablemap");
+            tableNames.put("schemamap","schemamap");
+            tableNames.put("blobs","blobs");
             transactionNames = new HashMap();
          }
       }
@@ -477,12 +1392,55 @@ public abstract class DatabaseBase implements PersistenceEventListener, Database
             logger.debug("could not find table alias: "+tableNameCooked+" from: "+tableNames+", will create it.");
          }
       }
+      // Name is calculated and registered while holding the mutex, so
+      // concurrent transactions do not pick the same real name
+      String tableNameSimple = null;
+      synchronized ( tableNameMutex )
+      {
+         // If another running transaction already has a name for this
+         // alias, use the same name
+         Iterator transactionTables = transactionNames.values().iterator();
+         while ( (transactionTables.hasNext()) && (tableNameSimple == null) )
+            tableNameSimple = (String) ((Map) transactionTables.next()).get(tableNameCooked);
+         if ( tableNameSimple == null )
+            tableNameSimple = calculateTableName(transaction,tableNameCooked);
+         Map transactionTable = (Map) transactionNames.get(transaction);
+         if ( transactionTable == null )
+         {
+            transactionTable = new HashMap();
+            transactionNames.put(transaction,transactionTable);
+         }
+         transactionTable.put(tableNameCooked,tableNameSimple);
+      }
+      // There is a little dirty trick here. Before inserting a class,
+      // first remove it from the table. This work arounds a problem:
+      // if two nodes are active, both start without knowning a class,
+      // then the first inserts it, the second can not, because now it
+      // already is contained in the database.
+      Map insertTableName = new HashMap();
+      insertTableName.put("alias",tableNameCooked);
+      TransactionStatistics stats = remove(transaction.getConnection(),"tablemap",insertTableName);
+      transaction.getStats().add(stats);
+      sqlStatistics.add(stats); // To accumulated sql stats
+      insertTableName.put("realname",tableNameSimple);
+      stats = insert(transaction.getConnection(),"tablemap",insertTableName);
+      transaction.getStats().add(stats);
+      sqlStatistics.add(stats); // To accumulated sql stats
+      // Return already
+      return tableNameSimple;
+   }
+
+   /**
+    * Calculate a new real table name for the given alias.
+    */
+   private String calculateTableName(Transaction transaction, String tableNameCooked)
+   {
+      String tableNameSimple;
       // Ok, name does not exist yet, so create real name
       // for this alias.
       // First check whether simple names are approriate
       // so hu.netmind.beankeeper_Book becomes simply 'book'.
       logger.debug("could not find computed name for preliminary table name: "+tableNameCooked+", calculating one.");
-      String tableNameSimple;
       int lastIndex = tableNameCooked.length();
       if ( tableNameCooked.endsWith("_") )
       {
@@ -531,34 +1489,8 @@ public abstract class DatabaseBase implements PersistenceEventListener, Database
       }
       tableNameSimple = newTableName;
       // Ok, so far so good. tableNameSimple now contains an unambigous
-      // appropriately short name for given alias, now only insert, then
-      // append to table map and return.
-      // There is a little dirty trick though. Before inserting a class,
-      // first remove it from the table. This work arounds a problem:
-      // if two nodes are active, both start without knowning a class,
-      // then the first inserts it, the second can not, because now it
-      // already is contained in the database.
+      // appropriately short name for given alias.
       logger.debug("translated table name: "+tableNameCooked+" to: "+tableNameSimple);
-      Map insertTableName = new HashMap();
-      insertTableName.put("alias",tableNameCooked);
-      TransactionStatistics stats = remove(transaction.getConnection(),"tablemap",insertTableName);
-      transaction.getStats().add(stats);
-      sqlStatistics.add(stats); // To accumulated sql stats
-      insertTableName.put("realname",tableNameSimple);
-      stats = insert(transaction.getConnection(),"tablemap",insertTableName);
-      transaction.getStats().add(stats);
-      sqlStatistics.add(stats); // To accumulated sql stats
-      synchronized ( tableNameMutex )
-      {
-         Map transactionTable = (Map) transactionNames.get(transaction);
-         if ( transactionTable == null )
-         {
-            transactionTable = new HashMap();
-            transactionNames.put(transaction,transactionTable);
-         }
-         transactionTable.put(tableNameCooked,tableNameSimple);
-      }
-      // Return already
       return tableNameSimple;
    }
 
@@ -571,9 +1503,11 @@ public abstract class DatabaseBase implements PersistenceEventListener, Database
       {
          if ( tableNames.containsValue(tableName) )
             return true;
-         Map transactionTable = (Map) transactionNames.get(transaction);
-         if ( (transactionTable!=null) && (transactionTable.containsValue(tableName)) )
-            return true;
+         // Names of other running transactions are taken too
+         Iterator transactionTables = transactionNames.values().iterator();
+         while ( transactionTables.hasNext() )
+            if ( ((Map) transactionTables.next()).containsValue(tableName) )
+               return true;
          return false;
       }
    }
@@ -596,17 +1530,39 @@ public abstract class DatabaseBase implements PersistenceEventListener, Database
    }
 
    /**
-    * Activate or discard table names added in the transaction.
+    * Activate or discard table names added in the transaction. Also
+    * flush or discard buffered operations.
     */
    public void handle(PersistenceEvent event)
    {
+      if ( event instanceof ObjectsFinalizationEvent )
+      {
+         // Other nodes may have moved versions to history tables
+         updateHistorySerial(((ObjectsFinalizationEvent) event).getSerial());
+         return;
+      }
       if ( ! (event instanceof TransactionEvent) )
          return; // Quick exit
       Transaction transaction = ((TransactionEvent) event).getTransaction();
+      if ( event instanceof TransactionCommittingEvent )
+         flush(transaction);
+      if ( (event instanceof TransactionCommittedEvent) ||
+           (event instanceof TransactionRolledbackEvent) )
+      {
+         transaction.remove(WRITEBUFFER_KEY);
+         transaction.remove(BULK_KEY);
+      }
       if ( event instanceof TransactionCommittedEvent )
       {
          synchronized ( tableNameMutex )
          {
+            Map transactionFingerprintTable = null;
+            if ( transactionFingerprints != null )
+               transactionFingerprintTable = (Map) transactionFingerprints.remove(transaction);
+            if ( transactionFingerprintTable != null )
+               schemaFingerprints.putAll(transactionFingerprintTable);
+            if ( blobTransactions.remove(transaction) )
+               blobTableEnsured = true;
             Map transactionTables = (Map) transactionNames.get(transaction);
             if ( transactionTables == null )
                return;
@@ -618,11 +1574,52 @@ public abstract class DatabaseBase implements PersistenceEventListener, Database
       {
          synchronized ( tableNameMutex )
          {
+            if ( transactionFingerprints != null )
+               transactionFingerprints.remove(transaction);
+            blobTransactions.remove(transaction);
             transactionNames.remove(transaction);
          }
       }
    }
 
+   public void configurationChanged(ConfigurationEvent event)
+   {
+      if ( (event.getPropertyName()!=null) && 
+            (event.getPropertyName().startsWith("beankeeper.db")) )
+         configurationReload();
+   }
+
+   public void configurationReload()
+   {
+      BATCH_SIZE = configurationTracker.getConfiguration().
+         getInt("beankeeper.db.batch_size",100);
+      BULK_BATCH_SIZE = configurationTracker.getConfiguration().
+         getInt("beankeeper.db.bulk_batch_size",10000);
+      FETCH_SIZE = configurationTracker.getConfiguration().
+         getInt("beankeeper.db.fetch_size",100);
+      REPLICA_LAG = configurationTracker.getConfiguration().
+         getLong("beankeeper.db.replica_lag",10*1000);
+      SCHEMA_FINGERPRINT = configurationTracker.getConfiguration().
+         getBoolean("beankeeper.db.schema_fingerprint",true);
+      HISTORY_TABLES = configurationTracker.getConfiguration().
+         getBoolean("beankeeper.db.history_tables",false);
+      QUERY_TIMEOUT = configurationTracker.getConfiguration().
+         getLong("beankeeper.db.query_timeout",0);
+   }
+
+   /**
+    * Get the timeout of the selects of a statement in milliseconds.
+    * This is the timeout of the statement's control if given, or the
+    * configured default.
+    * @return The timeout, or 0 if there is no timeout.
+    */
+   protected long getQueryTimeout(QueryStatement stmt)
+   {
+      if ( (stmt.getControl() != null) && (stmt.getControl().getTimeout() > 0) )
+         return stmt.getControl().getTimeout();
+      return QUERY_TIMEOUT;
+   }
+
    /**
     * Read the reserved word list.
     */
@@ -676,6 +1673,104 @@ public abstract class DatabaseBase implements PersistenceEventListener, Database
    protected abstract TransactionStatistics insert(Connection connection, String tableName, 
          Map attributes);
 
+   /**
+    * Modify multiple objects in a single batch. All entries have the same
+    * keys and the same (non-null) attributes.
+    * @param tableName The table to save attributes to.
+    * @param keysList The keys of each object to save.
+    * @param attributesList The attributes of each object to save.
+    */
+   protected abstract TransactionStatistics save(Connection connection, String tableName, 
+         List<Map> keysList, List<Map> attributesList);
+
+   /**
+    * Insert multiple objects in a single batch. All entries have the same
+    * (non-null) attributes.
+    * @param tableName The table to insert objects to.
+    * @param attributesList The attributes of each object.
+    */
+   protected abstract TransactionStatistics insert(Connection connection, String tableName, 
+         List<Map> attributesList);
+
+   /**
+    * Insert many new objects in a bulk load. By default this is the
+    * same as the batch insert, implementations may override it to use
+    * a faster loading facility of the database.
+    * @param tableName The table to insert objects to.
+    * @param attributesList The attributes of each object.
+    */
+   protected TransactionStatistics insertBulk(Connection connection, String tableName, 
+         List<Map> attributesList)
+   {
+      return insert(connection,tableName,attributesList);
+   }
+
+   /**
+    * Insert the content of a binary large object.
+    * @param id The id of the blob.
+    * @param ownerTable The table alias of the owner.
+    * @param ownerColumn The column of the owner.
+    * @param content The content to stream into the database.
+    * @param length The number of bytes in the content.
+    */
+   protected abstract TransactionStatistics insertBlob(Connection connection, Long id,
+         String ownerTable, String ownerColumn, InputStream content, int length);
+
+   /**
+    * Open the content of a binary large object.
+    * @param id The id of the blob.
+    * @param stats The statistics to add the executed select to.
+    */
+   protected abstract InputStream selectBlob(Connection connection, Long id, 
+         TransactionStatistics stats);
+
+   /**
+    * Modify rows in more tables, possibly in a single round trip.
+    * @param tableNames The tables to modify, one for each update.
+    * @param keysList The keys which select the rows to modify.
+    * @param attributesList The attributes to set.
+    */
+   protected abstract TransactionStatistics saveTables(Connection connection, List<String> tableNames,
+         List<Map> keysList, List<Map> attributesList);
+
+   /**
+    * Move the versions closed by a transaction from a table to its
+    * history table.
+    * @param tableName The table to move closed versions from.
+    * @param historyTableName The history table with the same columns.
+    * @param txSerial The serial of the transaction which closed the versions.
+    */
+   protected abstract TransactionStatistics moveHistory(Connection connection, String tableName,
+         String historyTableName, Long txSerial);
+
+   /**
+    * Remove the oldest versions which ended before the given serial.
+    * @param tableName The table to remove versions from.
+    * @param serial Versions which ended before this serial are removed.
+    * @param maxCount The number of versions to remove at most, versions
+    * with the same end serial are removed together.
+    * @return The statistics, with the number of removed versions as
+    * delete count.
+    */
+   protected abstract TransactionStatistics removeHistory(Connection connection, String tableName,
+         Long serial, int maxCount);
+
+   /**
+    * Remove blobs of an owner column which are not referenced by the
+    * column in any of the given tables.
+    * @param ownerTable The table alias of the owner.
+    * @param ownerColumn The column of the owner.
+    * @param tableNames The live and history tables of the owner.
+    * @param columnName The real name of the column in the tables.
+    * @param serial Only blobs with a lower id are removed.
+    * @param maxCount The number of blobs to remove at most.
+    * @return The statistics, with the number of removed blobs as
+    * delete count.
+    */
+   protected abstract TransactionStatistics removeBlobs(Connection connection,
+         String ownerTable, String ownerColumn, List<String> tableNames, String columnName,
+         Long serial, int maxCount);
+
    /**
     * Remove an entry from database.
     * @param tableName The table to remove object from.
@@ -715,6 +1810,43 @@ public abstract class DatabaseBase implements PersistenceEventListener, Database
     */
    protected abstract TransactionStatistics search(Connection connection, QueryStatement stmt, 
          Limits limits, SearchResult result);
+
+   /**
+    * Determine whether the given statements can be selected together
+    * in a single select.
+    */
+   protected abstract boolean isUnionSupported(List<QueryStatement> stmts);
+
+   /**
+    * Select the concatenated results of more statements in a single select.
+    * @param connection The connection to use.
+    * @param stmts The query statements.
+    * @param limits The limits of the whole result.
+    * @param result The result object. It will be filled with data.
+    */
+   protected abstract TransactionStatistics search(Connection connection, List<QueryStatement> stmts, 
+         Limits limits, SearchResult result);
+
+   /**
+    * Select more independent statements, each with its own limits.
+    * @param connection The connection to use.
+    * @param stmts The query statements.
+    * @param limitsList The limits of each statement.
+    * @param searchResults The list to add the results to in the order of
+    * the statements.
+    */
+   protected abstract TransactionStatistics searchBatch(Connection connection, List<QueryStatement> stmts,
+         List<Limits> limitsList, List<SearchResult> searchResults);
+
+   /**
+    * Select objects from database as a forward-only cursor of attribute maps.
+    * @param connection The connection to use.
+    * @param stmt The query statement.
+    * @param fetchSize The number of rows to fetch from the database at once.
+    * @param stats The statistics to add the executed select to.
+    */
+   protected abstract SearchCursor stream(Connection connection, QueryStatement stmt,
+         int fetchSize, TransactionStatistics stats);
 }
 
 
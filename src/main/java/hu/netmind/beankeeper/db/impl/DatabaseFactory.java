@@ -29,6 +29,7 @@ import java.sql.DatabaseMetaData;
 import org.apache.log4j.Logger;
 import hu.netmind.beankeeper.config.ConfigurationTracker;
 import hu.netmind.beankeeper.logging.SnapshotLogger;
+import hu.netmind.beankeeper.management.ManagementTracker;
 import java.util.Map;
 
 /**
@@ -45,6 +46,7 @@ public class DatabaseFactory implements ServiceFactory
 
    private ConfigurationTracker configurationTracker = null; // Injected
    private SnapshotLogger snapshotLogger = null; // Injected
+   private ManagementTracker managementTracker = null; // Injected
 
    /**
     * Return the service instance created by this factory.
@@ -87,8 +89,19 @@ public class DatabaseFactory implements ServiceFactory
          String databaseName = databaseMetaData.getDatabaseProductName();
          conn.close();
          // Create connection pool and add to parameters
-         ConnectionSource connectionSource = new ConnectionSourceImpl(configurationTracker,snapshotLogger,source);
+         ConnectionSource connectionSource = new ConnectionSourceImpl(configurationTracker,snapshotLogger,
+               managementTracker,source);
          parameters.put(StoreContext.PARAM_CONNECTIONSOURCE,connectionSource);
+         // Create the pool of the replica, if there is one. The replica
+         // must be the same kind of database.
+         DataSource replicaSource = (DataSource) parameters.get(StoreContext.PARAM_REPLICA_DATASOURCE);
+         if ( replicaSource != null )
+         {
+            logger.info("read-only queries may be routed to replica data source: "+replicaSource);
+            parameters.put(StoreContext.PARAM_REPLICA_CONNECTIONSOURCE,
+                  new ConnectionSourceImpl(configurationTracker,snapshotLogger,
+                     managementTracker,replicaSource,"ReplicaConnectionPool"));
+         }
          // Create and return database implementation
          if ( databaseName.equalsIgnoreCase("postgresql") )
          {
@@ -21,6 +21,7 @@ package hu.netmind.beankeeper.db.impl;
 import java.util.Map;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
+import java.sql.Statement;
 import java.sql.SQLException;
 import java.util.Iterator;
 import java.util.ArrayList;
@@ -35,7 +36,17 @@ import java.util.List;
 import java.util.HashMap;
 import java.util.Stack;
 import java.util.LinkedList;
+import java.util.TreeSet;
+import java.util.TreeMap;
+import java.util.SortedMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.NoSuchElementException;
 import java.sql.Timestamp;
+import java.io.InputStream;
+import java.io.FilterInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
 import org.apache.log4j.Logger;
 import java.sql.ResultSet;
 import java.sql.DatabaseMetaData;
@@ -45,6 +56,8 @@ import hu.netmind.beankeeper.parser.*;
 import hu.netmind.beankeeper.common.StoreException;
 import hu.netmind.beankeeper.transaction.*;
 import hu.netmind.beankeeper.db.*;
+import hu.netmind.beankeeper.query.QueryControl;
+import hu.netmind.beankeeper.query.QueryCancelledException;
 import hu.netmind.beankeeper.logging.AggregatorLogger;
 
 /**
@@ -130,35 +143,59 @@ public class GenericDatabase extends DatabaseBase implements Database
     */
    protected TransactionStatistics save(Connection connection, String tableName, 
          Map keys, Map attributes)
+   {
+      List<Map> keysList = new ArrayList<Map>();
+      keysList.add(keys);
+      List<Map> attributesList = new ArrayList<Map>();
+      attributesList.add(attributes);
+      return save(connection,tableName,keysList,attributesList);
+   }
+
+   /**
+    * Modifies multiple objects with the same statement. If there are
+    * more objects, the statement is executed as a batch.
+    * @param tableName The table to save attributes to.
+    * @param keysList The keys of each object, all with the same names.
+    * @param attributesList The attributes of each object, all with the
+    * same non-null attribute names.
+    */
+   protected TransactionStatistics save(Connection connection, String tableName, 
+         List<Map> keysList, List<Map> attributesList)
    {
       TransactionStatistics stats = new TransactionStatistics();
       // Clear null values from attributes
-      attributes = new HashMap(attributes);
-      ArrayList nullArrayList = new ArrayList();
-      nullArrayList.add(null);
-      attributes.values().removeAll(nullArrayList);
-      // Make a generic insert statement
-      ArrayList attributeNames = new ArrayList(attributes.keySet());
-      ArrayList keyNames = new ArrayList(keys.keySet());
-      String statement = getSaveStatement(tableName,keyNames,attributeNames,keys);
+      attributesList = removeNullValues(attributesList);
+      // Make a generic update statement
+      Map firstKeys = keysList.get(0);
+      ArrayList attributeNames = new ArrayList(new TreeSet(attributesList.get(0).keySet()));
+      ArrayList keyNames = new ArrayList(new TreeSet(firstKeys.keySet()));
+      String statement = getSaveStatement(tableName,keyNames,attributeNames,firstKeys);
+      boolean batch = keysList.size() > 1;
       // Prepare
       PreparedStatement pstmt;
       try
       {
          pstmt = connection.prepareStatement(statement);
-         int i=0;
-         for ( ; i<attributeNames.size(); i++ )
-         {
-            Object value = getSQLValue(attributes.get(attributeNames.get(i)));
-            Class type = getAttributeType(tableName,(String) attributeNames.get(i));
-            sqlLogger.debug("setting statement parameter #"+i+": "+value);
-            pstmt.setObject(i+1,value,getSQLType(type));
-         }
-         for ( ; i<keyNames.size()+attributeNames.size(); i++ )
+         for ( int row=0; row<keysList.size(); row++ )
          {
-            Object value = getSQLValue(keys.get(keyNames.get(i-attributeNames.size())));
-            sqlLogger.debug("setting statement parameter #"+i+": "+value);
-            pstmt.setObject(i+1,value);
+            Map keys = keysList.get(row);
+            Map attributes = attributesList.get(row);
+            int i=0;
+            for ( ; i<attributeNames.size(); i++ )
+            {
+               Object value = getSQLValue(attributes.get(attributeNames.get(i)));
+               Class type = getAttributeType(tableName,(String) attributeNames.get(i));
+               sqlLogger.debug("setting statement parameter #"+i+": "+value);
+               pstmt.setObject(i+1,value,getSQLType(type));
+            }
+            for ( ; i<keyNames.size()+attributeNames.size(); i++ )
+            {
+               Object value = getSQLValue(keys.get(keyNames.get(i-attributeNames.size())));
+               sqlLogger.debug("setting statement parameter #"+i+": "+value);
+               pstmt.setObject(i+1,value);
+            }
+            if ( batch )
+               pstmt.addBatch();
          }
       } catch ( Exception e ) {
          throw new StoreException("cannot prepare statement: "+statement,e);
@@ -167,12 +204,16 @@ public class GenericDatabase extends DatabaseBase implements Database
       try
       {
          if ( logger.isDebugEnabled() )
-            logger.debug("excuting update statement: "+statement);
+            logger.debug("excuting update statement: "+statement+", rows: "+keysList.size());
          long startTime = System.currentTimeMillis();
-         pstmt.executeUpdate();
+         if ( batch )
+            pstmt.executeBatch();
+         else
+            pstmt.executeUpdate();
          long endTime = System.currentTimeMillis();
-         aggregatorLogger.log("Update statement execution",new int[] { (int) (endTime-startTime) });
-         stats.setUpdateCount(1);
+         aggregatorLogger.log(batch?"Update batch execution":"Update statement execution",
+               new int[] { (int) (endTime-startTime) });
+         stats.setUpdateCount(keysList.size());
          stats.setUpdateTime(endTime-startTime);
       } catch ( Exception e ) {
          throw new StoreException("exception while sql update",e);
@@ -188,6 +229,134 @@ public class GenericDatabase extends DatabaseBase implements Database
       return stats;
    }
 
+   /**
+    * Determine whether more different update statements can be sent
+    * to the database in a single statement batch.
+    */
+   protected boolean supportsStatementBatch()
+   {
+      return true;
+   }
+
+   /**
+    * Modify rows in more tables. If all values are numbers, the updates
+    * are sent to the database in a single statement batch, otherwise
+    * each update is executed separately.
+    * @param tableNames The tables to modify, one for each update.
+    * @param keysList The keys which select the rows to modify.
+    * @param attributesList The attributes to set.
+    */
+   protected TransactionStatistics saveTables(Connection connection, List<String> tableNames,
+         List<Map> keysList, List<Map> attributesList)
+   {
+      // Assemble the statements with the values inlined
+      List<String> statements = null;
+      if ( (supportsStatementBatch()) && (tableNames.size() > 1) )
+      {
+         statements = new ArrayList<String>(tableNames.size());
+         for ( int i=0; (i<tableNames.size()) && (statements!=null); i++ )
+         {
+            String statement = getLiteralSaveStatement(tableNames.get(i),
+                  keysList.get(i),attributesList.get(i));
+            if ( statement == null )
+               statements = null;
+            else
+               statements.add(statement);
+         }
+      }
+      if ( statements == null )
+      {
+         TransactionStatistics stats = new TransactionStatistics();
+         for ( int i=0; i<tableNames.size(); i++ )
+            stats.add(save(connection,tableNames.get(i),keysList.get(i),attributesList.get(i)));
+         return stats;
+      }
+      // Execute as one batch
+      TransactionStatistics stats = new TransactionStatistics();
+      Statement stmt = null;
+      try
+      {
+         stmt = connection.createStatement();
+         for ( String statement : statements )
+         {
+            sqlLogger.debug("adding update statement to batch: "+statement);
+            stmt.addBatch(statement);
+         }
+         if ( logger.isDebugEnabled() )
+            logger.debug("executing "+statements.size()+" update statements in one batch");
+         long startTime = System.currentTimeMillis();
+         stmt.executeBatch();
+         long endTime = System.currentTimeMillis();
+         aggregatorLogger.log("Update statements batch execution",
+               new int[] { (int) (endTime-startTime) });
+         stats.setUpdateCount(statements.size());
+         stats.setUpdateTime(endTime-startTime);
+      } catch ( Exception e ) {
+         throw new StoreException("exception while executing update batch: "+statements,e);
+      } finally {
+         try
+         {
+            if ( stmt != null )
+               stmt.close();
+         } catch ( Exception e ) {
+            logger.debug("unable to close statement",e);
+         }
+      }
+      return stats;
+   }
+
+   /**
+    * Make an update statement with the values inlined.
+    * @return The statement, or null if some value can not be safely
+    * written as a literal.
+    */
+   private String getLiteralSaveStatement(String tableName, Map keys, Map attributes)
+   {
+      attributes = removeNullValues(Collections.singletonList(attributes)).get(0);
+      ArrayList attributeNames = new ArrayList(new TreeSet(attributes.keySet()));
+      ArrayList keyNames = new ArrayList(new TreeSet(keys.keySet()));
+      String statement = getSaveStatement(tableName,keyNames,attributeNames,keys);
+      List values = new ArrayList();
+      for ( int i=0; i<attributeNames.size(); i++ )
+         values.add(getSQLValue(attributes.get(attributeNames.get(i))));
+      for ( int i=0; i<keyNames.size(); i++ )
+         values.add(getSQLValue(keys.get(keyNames.get(i))));
+      StringBuffer result = new StringBuffer();
+      int valueIndex = 0;
+      for ( int i=0; i<statement.length(); i++ )
+      {
+         char c = statement.charAt(i);
+         if ( c != '?' )
+         {
+            result.append(c);
+            continue;
+         }
+         Object value = values.get(valueIndex++);
+         if ( ! ((value instanceof Long) || (value instanceof Integer) ||
+                  (value instanceof Short) || (value instanceof Byte)) )
+            return null;
+         result.append(value);
+      }
+      return result.toString();
+   }
+
+   /**
+    * Return a copy of the given attribute maps without null values.
+    */
+   private List<Map> removeNullValues(List<Map> attributesList)
+   {
+      ArrayList nullArrayList = new ArrayList();
+      nullArrayList.add(null);
+      List<Map> result = new ArrayList<Map>(attributesList.size());
+      for ( Map attributes : attributesList )
+      {
+         attributes = new HashMap(attributes);
+         attributes.values().removeAll(nullArrayList);
+         result.add(attributes);
+      }
+      return result;
+   }
+
    /**
     * Make an insert statement for given table, id and attributes.
     * Override this method in a subclass for a non-generic behaviour.
@@ -222,27 +391,45 @@ public class GenericDatabase extends DatabaseBase implements Database
     * @param attributes The attributes in form of name:value pairs.
     */
    protected TransactionStatistics insert(Connection connection, String tableName, Map attributes)
+   {
+      List<Map> attributesList = new ArrayList<Map>();
+      attributesList.add(attributes);
+      return insert(connection,tableName,attributesList);
+   }
+
+   /**
+    * Insert multiple objects into the database with the same statement.
+    * If there are more objects, the statement is executed as a batch.
+    * @param tableName The table to save attributes to.
+    * @param attributesList The attributes of each object, all with the
+    * same non-null attribute names.
+    */
+   protected TransactionStatistics insert(Connection connection, String tableName, 
+         List<Map> attributesList)
    {
       TransactionStatistics stats = new TransactionStatistics();
       // Clear null values from attributes
-      attributes = new HashMap(attributes);
-      ArrayList nullArrayList = new ArrayList();
-      nullArrayList.add(null);
-      attributes.values().removeAll(nullArrayList);
+      attributesList = removeNullValues(attributesList);
       // Make a generic insert statement
-      ArrayList attributeNames = new ArrayList(attributes.keySet());
+      ArrayList attributeNames = new ArrayList(new TreeSet(attributesList.get(0).keySet()));
       String statement = getInsertStatement(tableName, attributeNames);
+      boolean batch = attributesList.size() > 1;
       // Execute
       PreparedStatement pstmt;
       try
       {
          pstmt = connection.prepareStatement(statement);
-         for ( int i=0; i<attributeNames.size(); i++ )
+         for ( Map attributes : attributesList )
          {
-            Object value = getSQLValue(attributes.get(attributeNames.get(i)));
-            Class type = getAttributeType(tableName,(String) attributeNames.get(i));
-            sqlLogger.debug("setting statement parameter #"+i+": "+value);
-            pstmt.setObject(i+1,value,getSQLType(type));
+            for ( int i=0; i<attributeNames.size(); i++ )
+            {
+               Object value = getSQLValue(attributes.get(attributeNames.get(i)));
+               Class type = getAttributeType(tableName,(String) attributeNames.get(i));
+               sqlLogger.debug("setting statement parameter #"+i+": "+value);
+               pstmt.setObject(i+1,value,getSQLType(type));
+            }
+            if ( batch )
+               pstmt.addBatch();
          }
       } catch ( Exception e ) {
          throw new StoreException("cannot prepare statement: "+statement,e);
@@ -251,12 +438,16 @@ public class GenericDatabase extends DatabaseBase implements Database
       try
       {
          if ( logger.isDebugEnabled() )
-            logger.debug("excuting insert statement: "+statement);
+            logger.debug("excuting insert statement: "+statement+", rows: "+attributesList.size());
          long startTime = System.currentTimeMillis();
-         pstmt.executeUpdate();
+         if ( batch )
+            pstmt.executeBatch();
+         else
+            pstmt.executeUpdate();
          long endTime = System.currentTimeMillis();
-         aggregatorLogger.log("Insert statement execution",new int[] { (int) (endTime-startTime) });
-         stats.setInsertCount(1);
+         aggregatorLogger.log(batch?"Insert batch execution":"Insert statement execution",
+               new int[] { (int) (endTime-startTime) });
+         stats.setInsertCount(attributesList.size());
          stats.setInsertTime(endTime-startTime);
       } catch ( Exception e ) {
          throw new StoreException("exception while sql insert",e);
@@ -272,6 +463,112 @@ public class GenericDatabase extends DatabaseBase implements Database
       return stats;
    }
 
+   /**
+    * Insert the content of a binary large object into the blobs table.
+    * The content is streamed to the database, it is not read into memory.
+    */
+   protected TransactionStatistics insertBlob(Connection connection, Long id,
+         String ownerTable, String ownerColumn, InputStream content, int length)
+   {
+      TransactionStatistics stats = new TransactionStatistics();
+      String statement = "insert into blobs (id,content,owner_table,owner_column) values (?,?,?,?)";
+      sqlLogger.debug("preparing blob insert statement: "+statement);
+      PreparedStatement pstmt;
+      try
+      {
+         pstmt = connection.prepareStatement(statement);
+      } catch ( Exception e ) {
+         throw new StoreException("cannot prepare statement: "+statement,e);
+      }
+      try
+      {
+         pstmt.setLong(1,id.longValue());
+         pstmt.setBinaryStream(2,content,length);
+         pstmt.setString(3,ownerTable);
+         pstmt.setString(4,ownerColumn);
+         if ( logger.isDebugEnabled() )
+            logger.debug("inserting blob "+id+", length: "+length);
+         long startTime = System.currentTimeMillis();
+         pstmt.executeUpdate();
+         long endTime = System.currentTimeMillis();
+         aggregatorLogger.log("Insert statement execution",
+               new int[] { (int) (endTime-startTime) });
+         stats.setInsertCount(1);
+         stats.setInsertTime(endTime-startTime);
+      } catch ( Exception e ) {
+         throw new StoreException("exception while inserting blob: "+id,e);
+      } finally {
+         try
+         {
+            pstmt.close();
+         } catch ( Exception e ) {
+            logger.debug("unable to close statement",e);
+         }
+      }
+      return stats;
+   }
+
+   /**
+    * Select the content of a binary large object. The returned stream
+    * reads the column directly, and closes the statement when it is closed.
+    */
+   protected InputStream selectBlob(Connection connection, Long id, 
+         TransactionStatistics stats)
+   {
+      String statement = "select content from blobs where id = ?";
+      sqlLogger.debug("running blob select statement: "+statement);
+      final PreparedStatement pstmt;
+      try
+      {
+         pstmt = connection.prepareStatement(statement);
+      } catch ( Exception e ) {
+         throw new StoreException("cannot prepare statement: "+statement,e);
+      }
+      try
+      {
+         pstmt.setLong(1,id.longValue());
+         long startTime = System.currentTimeMillis();
+         ResultSet rs = pstmt.executeQuery();
+         long endTime = System.currentTimeMillis();
+         aggregatorLogger.log("Query statement execution",new int[] { (int) (endTime-startTime) });
+         stats.setSelectCount(stats.getSelectCount()+1);
+         stats.setSelectTime(stats.getSelectTime()+(endTime-startTime));
+         if ( ! rs.next() )
+            throw new StoreException("blob "+id+" does not exist");
+         InputStream content = rs.getBinaryStream(1);
+         if ( content == null )
+            content = new ByteArrayInputStream(new byte[0]);
+         return new FilterInputStream(content)
+            {
+               public void close()
+                  throws IOException
+               {
+                  try
+                  {
+                     super.close();
+                  } finally {
+                     try
+                     {
+                        pstmt.close();
+                     } catch ( SQLException e ) {
+                        logger.debug("unable to close statement",e);
+                     }
+                  }
+               }
+            };
+      } catch ( Exception e ) {
+         try
+         {
+            pstmt.close();
+         } catch ( Exception ce ) {
+            logger.debug("unable to close statement",ce);
+         }
+         if ( e instanceof StoreException )
+            throw (StoreException) e;
+         throw new StoreException("exception while selecting blob: "+id,e);
+      }
+   }
+
    /**
     * Make a remove statement for given table and attributes.
     * Override this method in a subclass for a non-generic behaviour.
@@ -349,6 +646,207 @@ public class GenericDatabase extends DatabaseBase implements Database
       return stats;
    }
 
+   /**
+    * Move the versions closed by a transaction to the history table, by
+    * copying them and deleting them from the live table.
+    */
+   protected TransactionStatistics moveHistory(Connection connection, String tableName,
+         String historyTableName, Long txSerial)
+   {
+      TransactionStatistics stats = new TransactionStatistics();
+      String columns = getColumnList(tableName);
+      String condition = " where persistence_txendid = "+txSerial;
+      long startTime = System.currentTimeMillis();
+      executeUpdate(connection,"insert into "+historyTableName+" ("+columns+") select "+
+            columns+" from "+tableName+condition);
+      long middleTime = System.currentTimeMillis();
+      executeUpdate(connection,"delete from "+tableName+condition);
+      long endTime = System.currentTimeMillis();
+      aggregatorLogger.log("History move execution",new int[] { (int) (endTime-startTime) });
+      stats.setInsertCount(1);
+      stats.setInsertTime(middleTime-startTime);
+      stats.setDeleteCount(1);
+      stats.setDeleteTime(endTime-middleTime);
+      return stats;
+   }
+
+   /**
+    * Remove the oldest versions which ended before the given serial. The
+    * end serial of the last version in the chunk is selected first, then
+    * all versions up to that end serial are deleted in one statement.
+    */
+   protected TransactionStatistics removeHistory(Connection connection, String tableName,
+         Long serial, int maxCount)
+   {
+      TransactionStatistics stats = new TransactionStatistics();
+      String condition = null;
+      Long lastEnd = null;
+      int rowCount = 0;
+      long startTime = System.currentTimeMillis();
+      String selectStatement = "select persistence_end from "+tableName+
+         " where persistence_end < ? order by persistence_end";
+      PreparedStatement pstmt = null;
+      try
+      {
+         sqlLogger.debug("executing select statement: "+selectStatement);
+         pstmt = connection.prepareStatement(selectStatement);
+         pstmt.setMaxRows(maxCount);
+         pstmt.setLong(1,serial.longValue());
+         ResultSet rs = pstmt.executeQuery();
+         while ( rs.next() )
+         {
+            lastEnd = new Long(rs.getLong(1));
+            rowCount++;
+         }
+         rs.close();
+      } catch ( Exception e ) {
+         throw new StoreException("exception while selecting old versions of: "+tableName,e);
+      } finally {
+         try
+         {
+            if ( pstmt != null )
+               pstmt.close();
+         } catch ( Exception e ) {
+            logger.debug("unable to close statement",e);
+         }
+      }
+      long middleTime = System.currentTimeMillis();
+      stats.setSelectCount(1);
+      stats.setSelectTime(middleTime-startTime);
+      if ( rowCount == 0 )
+         return stats;
+      // If the chunk is full, delete only up to its last version
+      if ( rowCount < maxCount )
+         condition = " where persistence_end < "+serial;
+      else
+         condition = " where persistence_end <= "+lastEnd;
+      String deleteStatement = "delete from "+tableName+condition;
+      int deleteCount = 0;
+      pstmt = null;
+      try
+      {
+         sqlLogger.debug("executing update statement: "+deleteStatement);
+         pstmt = connection.prepareStatement(deleteStatement);
+         deleteCount = pstmt.executeUpdate();
+      } catch ( Exception e ) {
+         throw new StoreException("exception while removing old versions of: "+tableName,e);
+      } finally {
+         try
+         {
+            if ( pstmt != null )
+               pstmt.close();
+         } catch ( Exception e ) {
+            logger.debug("unable to close statement",e);
+         }
+      }
+      long endTime = System.currentTimeMillis();
+      aggregatorLogger.log("History removal execution",new int[] { (int) (endTime-startTime) });
+      stats.setDeleteCount(deleteCount);
+      stats.setDeleteTime(endTime-middleTime);
+      return stats;
+   }
+
+   /**
+    * Remove blobs of an owner column which are not referenced by the column
+    * in any of the given tables. The ids of a chunk are selected first, then
+    * deleted with the same condition, so a blob referenced in the meantime
+    * is kept.
+    */
+   protected TransactionStatistics removeBlobs(Connection connection,
+         String ownerTable, String ownerColumn, List<String> tableNames, String columnName,
+         Long serial, int maxCount)
+   {
+      TransactionStatistics stats = new TransactionStatistics();
+      StringBuffer condition = new StringBuffer(
+            " where owner_table = ? and owner_column = ? and id < ?");
+      for ( String tableName : tableNames )
+         condition.append(" and not exists (select 1 from "+tableName+
+               " where "+tableName+"."+columnName+" = blobs.id)");
+      List<Long> ids = new ArrayList<Long>();
+      long startTime = System.currentTimeMillis();
+      String selectStatement = "select id from blobs"+condition;
+      PreparedStatement pstmt = null;
+      try
+      {
+         sqlLogger.debug("executing select statement: "+selectStatement);
+         pstmt = connection.prepareStatement(selectStatement);
+         pstmt.setMaxRows(maxCount);
+         pstmt.setString(1,ownerTable);
+         pstmt.setString(2,ownerColumn);
+         pstmt.setLong(3,serial.longValue());
+         ResultSet rs = pstmt.executeQuery();
+         while ( rs.next() )
+            ids.add(new Long(rs.getLong(1)));
+         rs.close();
+      } catch ( Exception e ) {
+         throw new StoreException("exception while selecting unreferenced blobs of: "+
+               ownerTable+"."+ownerColumn,e);
+      } finally {
+         try
+         {
+            if ( pstmt != null )
+               pstmt.close();
+         } catch ( Exception e ) {
+            logger.debug("unable to close statement",e);
+         }
+      }
+      long middleTime = System.currentTimeMillis();
+      stats.setSelectCount(1);
+      stats.setSelectTime(middleTime-startTime);
+      if ( ids.isEmpty() )
+         return stats;
+      StringBuffer deleteStatement = new StringBuffer("delete from blobs"+condition+" and id in (");
+      for ( int i=0; i<ids.size(); i++ )
+         deleteStatement.append(i==0?"":",").append(ids.get(i));
+      deleteStatement.append(")");
+      int deleteCount = 0;
+      pstmt = null;
+      try
+      {
+         sqlLogger.debug("executing update statement: "+deleteStatement);
+         pstmt = connection.prepareStatement(deleteStatement.toString());
+         pstmt.setString(1,ownerTable);
+         pstmt.setString(2,ownerColumn);
+         pstmt.setLong(3,serial.longValue());
+         deleteCount = pstmt.executeUpdate();
+      } catch ( Exception e ) {
+         throw new StoreException("exception while removing unreferenced blobs of: "+
+               ownerTable+"."+ownerColumn,e);
+      } finally {
+         try
+         {
+            if ( pstmt != null )
+               pstmt.close();
+         } catch ( Exception e ) {
+            logger.debug("unable to close statement",e);
+         }
+      }
+      long endTime = System.currentTimeMillis();
+      aggregatorLogger.log("Blob removal execution",new int[] { (int) (endTime-startTime) });
+      stats.setDeleteCount(deleteCount);
+      stats.setDeleteTime(endTime-middleTime);
+      return stats;
+   }
+
+   /**
+    * Get all columns of a table separated by commas.
+    */
+   private String getColumnList(String tableName)
+   {
+      Map attributeTypes = getAttributes(tableName);
+      if ( attributeTypes == null )
+         throw new StoreException("attributes types not present for table: "+tableName+", map: "+tableAttributes.keySet());
+      StringBuffer columns = new StringBuffer();
+      Iterator attributeIterator = new TreeSet(attributeTypes.keySet()).iterator();
+      while ( attributeIterator.hasNext() )
+      {
+         columns.append((String) attributeIterator.next());
+         if ( attributeIterator.hasNext() )
+            columns.append(",");
+      }
+      return columns.toString();
+   }
+
    /**
     * Drop the table with given name.
     * This method is not called directly, but from <code>ensureTable</code>.
@@ -415,9 +913,14 @@ public class GenericDatabase extends DatabaseBase implements Database
       // Do not create for reserved tables
       if ( 
            (!tableName.equalsIgnoreCase("tablemap")) &&
+           (!tableName.equalsIgnoreCase("schemamap")) &&
+           (!tableName.equalsIgnoreCase("blobs")) &&
            (!tableName.equalsIgnoreCase("nodes")) &&
            (!tableName.equalsIgnoreCase("classes")) )
-         stats.add(createIndexes(connection, tableName, attributeTypes));
+      {
+         stats.add(createIndexes(connection, tableName, getSingleIndexTypes(attributeTypes)));
+         stats.add(createTemporalIndexes(connection, tableName, attributeTypes, false));
+      }
       return stats;
    }
 
@@ -572,13 +1075,165 @@ public class GenericDatabase extends DatabaseBase implements Database
    }
 
    /**
-    * Create indexes to the given attributes.
-    * @param connection The SQL connection.
-    * @param tableName The table to create indexes to.
-    * @param attributeTypes The attributes and their types to create indexes to.
+    * Get the composite indexes of the system columns, which serve the
+    * most frequent lookups: finding the current version of an object,
+    * finding the versions of a transaction when it commits, and the
+    * time constraints of queries. Only indexes whose columns all exist
+    * in the table are returned.
+    * @param attributeTypes The attributes of the table.
+    * @return A map of index name suffixes to the indexed columns.
     */
-   protected TransactionStatistics createIndexes(Connection connection, String tableName,
-         Map attributeTypes)
+   protected Map<String,String[]> getTemporalIndexes(Map attributeTypes)
+   {
+      Map<String,String[]> indexes = new LinkedHashMap<String,String[]>();
+      indexes.put("pcur",new String[] { "persistence_id", "persistence_end", "persistence_txend" });
+      indexes.put("ptxs",new String[] { "persistence_txstartid", "persistence_txstart" });
+      indexes.put("ptxe",new String[] { "persistence_txendid", "persistence_txend" });
+      indexes.put("pval",new String[] { "persistence_end", "persistence_start" });
+      Iterator<String[]> columnsIterator = indexes.values().iterator();
+      while ( columnsIterator.hasNext() )
+      {
+         String[] columns = columnsIterator.next();
+         for ( int i=0; i<columns.length; i++ )
+            if ( ! attributeTypes.containsKey(columns[i]) )
+            {
+               columnsIterator.remove();
+               break;
+            }
+      }
+      return indexes;
+   }
+
+   /**
+    * Get the attributes which receive a single column index. Columns
+    * which lead a composite temporal index do not need one.
+    * @param attributeTypes The attributes of the table.
+    */
+   protected Map getSingleIndexTypes(Map attributeTypes)
+   {
+      Map result = new HashMap(attributeTypes);
+      for ( String[] columns : getTemporalIndexes(attributeTypes).values() )
+         result.remove(columns[0]);
+      return result;
+   }
+
+   /**
+    * Get the composite index creation statement for a given table and fields.
+    * @return The statement to use, or null, if no such index can be
+    * created.
+    */
+   protected String getCreateIndexStatement(String indexName, String tableName, String[] fields)
+   {
+      StringBuffer statement = new StringBuffer("create index "+indexName+" on "+tableName+" (");
+      for ( int i=0; i<fields.length; i++ )
+      {
+         if ( i > 0 )
+            statement.append(",");
+         statement.append(fields[i]);
+      }
+      statement.append(")");
+      return statement.toString();
+   }
+
+   /**
+    * Get the indexes of a table.
+    * @return The set of indexes, each given as the comma separated
+    * list of its columns in lower case.
+    */
+   protected Set getTableIndexes(Connection connection, String tableName)
+      throws SQLException
+   {
+      DatabaseMetaData dmd = connection.getMetaData();
+      ResultSet rs = dmd.getIndexInfo(null,null,tableName,false,false);
+      Map<String,SortedMap<Integer,String>> indexColumns = new HashMap<String,SortedMap<Integer,String>>();
+      while ( rs.next() )
+      {
+         String indexName = rs.getString("INDEX_NAME");
+         String columnName = rs.getString("COLUMN_NAME");
+         if ( (indexName == null) || (columnName == null) )
+            continue;
+         SortedMap<Integer,String> columns = indexColumns.get(indexName);
+         if ( columns == null )
+         {
+            columns = new TreeMap<Integer,String>();
+            indexColumns.put(indexName,columns);
+         }
+         columns.put(new Integer(rs.getInt("ORDINAL_POSITION")),columnName.toLowerCase());
+      }
+      rs.close();
+      Set result = new HashSet();
+      for ( SortedMap<Integer,String> columns : indexColumns.values() )
+      {
+         StringBuffer index = new StringBuffer();
+         for ( String column : columns.values() )
+         {
+            if ( index.length() > 0 )
+               index.append(",");
+            index.append(column);
+         }
+         result.add(index.toString());
+      }
+      return result;
+   }
+
+   /**
+    * Create the composite temporal indexes of a table.
+    * @param connection The SQL connection.
+    * @param tableName The table to create indexes to.
+    * @param attributeTypes The attributes of the table.
+    * @param existing If true, the table already existed, so only the
+    * indexes missing from the table are created.
+    */
+   protected TransactionStatistics createTemporalIndexes(Connection connection, String tableName,
+         Map attributeTypes, boolean existing)
+   {
+      TransactionStatistics stats = new TransactionStatistics();
+      Map<String,String[]> indexes = getTemporalIndexes(attributeTypes);
+      if ( indexes.isEmpty() )
+         return stats;
+      try
+      {
+         Set tableIndexes = Collections.EMPTY_SET;
+         if ( existing )
+            tableIndexes = getTableIndexes(connection,tableName);
+         for ( Map.Entry<String,String[]> entry : indexes.entrySet() )
+         {
+            StringBuffer index = new StringBuffer();
+            for ( int i=0; i<entry.getValue().length; i++ )
+            {
+               if ( i > 0 )
+                  index.append(",");
+               index.append(entry.getValue()[i]);
+            }
+            if ( tableIndexes.contains(index.toString()) )
+               continue;
+            if ( existing )
+               logger.info("creating missing temporal index on table '"+tableName+"': "+index);
+            String indexName = getCreateIndexName(connection,tableName,entry.getKey());
+            String statement = getCreateIndexStatement(indexName,tableName,entry.getValue());
+            if ( statement != null )
+            {
+               long startTime = System.currentTimeMillis();
+               executeUpdate(connection,statement);
+               long endTime = System.currentTimeMillis();
+               stats.setSchemaCount(stats.getSchemaCount()+1);
+               stats.setSchemaTime(stats.getSchemaTime()+(endTime-startTime));
+            }
+         }
+      } catch ( SQLException e ) {
+         throw new StoreException("could not determine indexes of table: "+tableName,e);
+      }
+      return stats;
+   }
+
+   /**
+    * Create indexes to the given attributes.
+    * @param connection The SQL connection.
+    * @param tableName The table to create indexes to.
+    * @param attributeTypes The attributes and their types to create indexes to.
+    */
+   protected TransactionStatistics createIndexes(Connection connection, String tableName,
+         Map attributeTypes)
    {
       TransactionStatistics stats = new TransactionStatistics();
       Iterator entries = attributeTypes.entrySet().iterator();
@@ -704,8 +1359,10 @@ public class GenericDatabase extends DatabaseBase implements Database
                   // Partial change, only change what is necessary
                   logger.debug("table '"+tableName+"' has a partial change, removing: "+removedAttributes+", adding: "+addedAttributes);
                   stats.add(alterTable(connection,tableName,removedAttributes,addedAttributes,attributeTypes, keyAttributeNames));
+                  stats.add(createTemporalIndexes(connection,tableName,attributeTypes,true));
                } else {
                   logger.debug("nothing to change on table: "+tableName);
+                  stats.add(createTemporalIndexes(connection,tableName,attributeTypes,true));
                }
             }
          } else {
@@ -738,6 +1395,31 @@ public class GenericDatabase extends DatabaseBase implements Database
       return "select count(*) from ("+stmt+") as cr";
    }
 
+   /**
+    * Determine whether the database can compute the full size of the
+    * result in the same select as the page itself, using the
+    * <code>count(*) over()</code> window function. If not, the size
+    * is computed with a separate count statement.
+    */
+   protected boolean supportsWindowCount()
+   {
+      return false;
+   }
+
+   /**
+    * Get the statement which selects all columns of the given statement
+    * plus the full size of the result in the <code>persistence_total</code>
+    * column.
+    * @param stmt The statement without order and limits.
+    * @param orderByTerm The order by part, which can only reference
+    * the columns of the statement by alias.
+    */
+   protected String getWindowCountStatement(String stmt, String orderByTerm)
+   {
+      return "select cr.*, count(*) over() as persistence_total from ("+stmt+") cr"+
+         orderByTerm;
+   }
+
    /**
     * Get the table declaration for a select statment.
     */
@@ -749,10 +1431,28 @@ public class GenericDatabase extends DatabaseBase implements Database
          return tableName+" as "+alias;
    }
 
+   /**
+    * Get the table declaration of a term in the select. If the statement
+    * selects the table together with its history, the union of the live
+    * and history table is declared.
+    */
+   private String getTableDeclaration(QueryStatement stmt, TableTerm term)
+   {
+      String tableName = term.getTableName();
+      if ( (stmt.getHistoryTables() == null) || (! stmt.getHistoryTables().containsKey(tableName)) )
+         return getTableDeclaration(tableName,term.getAlias());
+      String columns = getColumnList(tableName);
+      return getTableDeclaration("(select "+columns+" from "+tableName+
+            " union all select "+columns+" from "+stmt.getHistoryTables().get(tableName)+")",
+            term.getAlias()==null?tableName:term.getAlias());
+   }
+
    /**
     * Assemble the query columns of a given term.
+    * @param fetchColumns The columns to select, or null if all
+    * columns of the term are selected.
     */
-   protected String getQuerySource(TableTerm term, Set queryColumns, List types)
+   protected String getQuerySource(TableTerm term, Set fetchColumns, Set queryColumns, List types)
    {
       // Determine name
       String name = term.getName();
@@ -767,7 +1467,8 @@ public class GenericDatabase extends DatabaseBase implements Database
          Map.Entry entry = (Map.Entry) attributeEntryIterator.next();
          String attributeName = (String) entry.getKey();
          Class attributeType = (Class) entry.getValue();
-         if ( ! attributeName.startsWith("persistence_") )
+         if ( (! attributeName.startsWith("persistence_")) &&
+              ((fetchColumns == null) || (fetchColumns.contains(attributeName))) )
          {
             result.append(name+"."+attributeName+",");
             types.add(attributeType);
@@ -797,10 +1498,24 @@ public class GenericDatabase extends DatabaseBase implements Database
     * @return The columns part of the select statement.
     */
    protected String getQuerySource(QueryStatement stmt, List types)
+   {
+      return getQuerySource(stmt,types,new ArrayList());
+   }
+
+   /**
+    * Assemble the query columns of select statement, and determine
+    * the names of the columns.
+    * @param stmt The statement to get query source from.
+    * @param types The type list to fill in.
+    * @param columns The column name list to fill in, in the same order
+    * as the types.
+    * @return The columns part of the select statement.
+    */
+   private String getQuerySource(QueryStatement stmt, List types, List columns)
    {
       if ( logger.isDebugEnabled() )
          logger.debug("computing query source from: "+stmt.getSelectTerms());
-      HashSet queryColumns = new HashSet();
+      Set queryColumns = new LinkedHashSet();
       StringBuffer querySource = new StringBuffer();
       for ( int i=0; i<stmt.getSelectTerms().size(); i++ )
       {
@@ -833,13 +1548,13 @@ public class GenericDatabase extends DatabaseBase implements Database
             if ( logger.isDebugEnabled() )
                logger.debug("adding table term: "+specifiedTerm);
             // This is a table
-            querySource.append(getQuerySource(specifiedTerm,queryColumns,types));
+            querySource.append(getQuerySource(specifiedTerm,stmt.getFetchColumns(),queryColumns,types));
             for ( int o=0; o<specifiedTerm.getRelatedLeftTerms().size(); o++ )
             {
                TableTerm leftTableTerm = 
                   ((SpecifiedTableTerm.LeftjoinEntry) 
                    specifiedTerm.getRelatedLeftTerms().get(o)).term;
-               String sourcePart = getQuerySource(leftTableTerm,queryColumns,types);
+               String sourcePart = getQuerySource(leftTableTerm,stmt.getFetchColumns(),queryColumns,types);
                if ( sourcePart.length() > 0 )
                {
                   if ( querySource.length()>0 )
@@ -849,11 +1564,13 @@ public class GenericDatabase extends DatabaseBase implements Database
             }
          }
       }
+      columns.addAll(queryColumns);
       // Add persistence id/startserial/endserial
       TableTerm firstTerm = null;
       if ( stmt.getSelectTerms().size()>0 )
          firstTerm = (TableTerm) stmt.getSelectTerms().get(0);
       if ( (!"tablemap".equalsIgnoreCase(firstTerm.getTableName())) && 
+           (!"schemamap".equalsIgnoreCase(firstTerm.getTableName())) &&
            (!"classes".equalsIgnoreCase(firstTerm.getTableName())) &&
            (!"nodes".equalsIgnoreCase(firstTerm.getTableName())) &&
            (stmt.getMode()!=QueryStatement.MODE_VIEW) )
@@ -863,6 +1580,7 @@ public class GenericDatabase extends DatabaseBase implements Database
             querySource.append(",");
          querySource.append(firstTerm.getName()+".persistence_id");
          types.add(Long.class);
+         columns.add("persistence_id");
          // Add serials
          ArrayList terms = new ArrayList();
          terms.add(firstTerm);
@@ -872,9 +1590,11 @@ public class GenericDatabase extends DatabaseBase implements Database
             querySource.append(",");
             querySource.append(firstTerm.getName()+".persistence_start as persistence_start"+i);
             types.add(Long.class);
+            columns.add("persistence_start"+i);
             querySource.append(",");
             querySource.append(firstTerm.getName()+".persistence_end as persistence_end"+i);
             types.add(Long.class);
+            columns.add("persistence_end"+i);
          }
       }
       // Return
@@ -1017,31 +1737,24 @@ public class GenericDatabase extends DatabaseBase implements Database
    }
 
    /**
-    * Select objects from database as ordered list of attribute maps.
-    * @param connection The connection to run statements in.
+    * Assemble the sql select for a query statement.
     * @param stmt The query statement.
-    * @param limits The limits of the result. (Offset, maximum result count)
-    * @param result The result object.
+    * @param windowCount Whether the full size of the result should be
+    * selected too.
+    * @param aliasOrders Whether all order by terms should reference
+    * columns by alias, so the select can be wrapped.
     */
-   protected TransactionStatistics search(Connection connection, 
-         QueryStatement stmt, Limits limits, SearchResult searchResult)
+   private SelectStatement getSelectStatement(QueryStatement stmt, boolean windowCount,
+         boolean aliasOrders)
    {
-      TransactionStatistics stats = new TransactionStatistics();
       Expression expression = stmt.getQueryExpression();
       List orderBys = stmt.getOrderByList();
-      // Assemble statement:
-      // - Create query source sql
-      // - Parse expression create sql
-      // - Create statement without orderbys and limits 
-      // - Run count statement to determine full count
-      // - Apply limits and orderbys to statement
-      // - Run statement to get results
-     
       // Transform statement to fit database
       stmt.setSelectTerms(transformTerms(stmt.getSelectTerms()));
       // Compute query columns and tables
       ArrayList types = new ArrayList();
-      String querySource = getQuerySource(stmt,types);
+      ArrayList columns = new ArrayList();
+      String querySource = getQuerySource(stmt,types,columns);
       if ( logger.isDebugEnabled() )
          logger.debug("query source: "+querySource+", type vector: "+types+", select terms: "+stmt.getSelectTerms());
       // Determine whether select will be distinct. Currently it is _not_
@@ -1056,15 +1769,14 @@ public class GenericDatabase extends DatabaseBase implements Database
       while ( tableIterator.hasNext() )
       {
          SpecifiedTableTerm tableTerm = (SpecifiedTableTerm) tableIterator.next();
-         tablesPart.append(getTableDeclaration(tableTerm.getTableName(),tableTerm.getAlias()));
+         tablesPart.append(getTableDeclaration(stmt,tableTerm));
          // This is a selected table, so include left terms
          for ( int i=0; i<tableTerm.getRelatedLeftTerms().size(); i++ )
          {
             SpecifiedTableTerm.LeftjoinEntry joinEntry = (SpecifiedTableTerm.LeftjoinEntry) 
                tableTerm.getRelatedLeftTerms().get(i);
             tablesPart.append(" left join ");
-            tablesPart.append(getTableDeclaration(joinEntry.term.getTableName(),
-                     joinEntry.term.getAlias()));
+            tablesPart.append(getTableDeclaration(stmt,joinEntry.term));
             tablesPart.append(" on ("+getExpression(joinEntry.expression,statementValues)+")");
          }
          // Add other left-joined tables on other specific attributes
@@ -1073,8 +1785,7 @@ public class GenericDatabase extends DatabaseBase implements Database
             SpecifiedTableTerm.LeftjoinEntry joinEntry = (SpecifiedTableTerm.LeftjoinEntry) 
                tableTerm.getReferencedLeftTerms().get(i);
             tablesPart.append(" left join ");
-            tablesPart.append(getTableDeclaration(joinEntry.term.getTableName(),
-                     joinEntry.term.getAlias()));
+            tablesPart.append(getTableDeclaration(stmt,joinEntry.term));
             tablesPart.append(" on ("+getExpression(joinEntry.expression,statementValues)+")");
          }
          // Comma
@@ -1099,7 +1810,7 @@ public class GenericDatabase extends DatabaseBase implements Database
          {
             OrderBy orderBy = (OrderBy) orderBys.get(i);
             ReferenceTerm orderReferenceTerm = new ReferenceTerm(orderBy.getReferenceTerm());
-            if ( 
+            if ( (windowCount) || (aliasOrders) ||
                   ( (stmt.getMode()==QueryStatement.MODE_FIND) &&
                     (! stmt.getSelectTerms().contains(orderBy.getReferenceTerm())) ) ||
                   ( (stmt.getMode()==QueryStatement.MODE_VIEW) &&
@@ -1107,12 +1818,15 @@ public class GenericDatabase extends DatabaseBase implements Database
                )
             {
                // Order by is not referencing the main tables. To maintain
-               // distinct select, we must add this attribute to result
+               // distinct select, we must add this attribute to result.
+               // Also, if the select will be wrapped for counting, the order
+               // by can only reference the select's columns by alias.
                querySource += ","+orderReferenceTerm.getName()+"."+orderReferenceTerm.getColumnName()+" as ordercol"+i;
                orderReferenceTerm.setColumnAlias("ordercol"+i);
                Class attributeType = getAttributeType(orderReferenceTerm.getTableName(),
                      orderReferenceTerm.getColumnName());
                types.add(attributeType);
+               columns.add("ordercol"+i);
             }
             // Add to order term
             if ( orderReferenceTerm.getColumnAlias() != null )
@@ -1129,34 +1843,188 @@ public class GenericDatabase extends DatabaseBase implements Database
       StringBuffer subStatement = new StringBuffer("select "+(isDistinct?"distinct ":"")+querySource+" from ");
       subStatement.append(tablesPart.toString());
       subStatement.append(conditionPart.toString());
-      StringBuffer statement = new StringBuffer(getCountStatement(subStatement.toString()));
-      logger.debug("preparing counting statement: "+statement.toString());
-      String countStatement = statement.toString();
-      // Prepare count statement
-      PreparedStatement countPstmt;
-      try
+      String countStatement = getCountStatement(subStatement.toString());
+      // Now create full statement (add order)
+      StringBuffer statement;
+      if ( windowCount )
+      {
+         statement = new StringBuffer(getWindowCountStatement(
+                  subStatement.toString(),orderByTerm.toString()));
+         types.add(Long.class);
+      } else {
+         statement = new StringBuffer(subStatement.toString());
+         statement.append(orderByTerm.toString());
+      }
+      return new SelectStatement(statement.toString(),countStatement,types,statementValues,
+            subStatement.toString(),orderByTerm.toString(),columns);
+   }
+
+   /**
+    * Determine whether the database can select the results of more
+    * statements with a single <code>union all</code> select.
+    */
+   protected boolean supportsUnion()
+   {
+      return true;
+   }
+
+   /**
+    * Assemble a single select for more statements. Each statement is
+    * selected in a sub-select, and these are concatenated with
+    * <code>union all</code>. Columns missing from a statement are selected
+    * as nulls, and the index of the statement is selected in the
+    * <code>persistence_branch</code> column.
+    * @return The select, or null if the statements can not be aligned.
+    */
+   private SelectStatement getUnionStatement(List<QueryStatement> stmts, boolean windowCount)
+   {
+      // Assemble all statements, and collect all columns
+      List<SelectStatement> branches = new ArrayList<SelectStatement>();
+      Map<String,Class> columnTypes = new LinkedHashMap<String,Class>();
+      String orderByTerm = null;
+      for ( QueryStatement stmt : stmts )
       {
-         countPstmt = connection.prepareStatement(countStatement);
-         for ( int i=0; i<statementValues.size(); i++ )
+         if ( stmt.getMode() != QueryStatement.MODE_FIND )
+            return null;
+         // Columns computed with functions have no common name
+         for ( int i=0; i<stmt.getSelectTerms().size(); i++ )
          {
-            Object value = getSQLValue(statementValues.get(i));
-            logger.debug("setting statement parameter #"+i+": "+value);
-            sqlLogger.debug("setting statement parameter #"+i+": "+value);
-            countPstmt.setObject(i+1,value);
+            Object term = stmt.getSelectTerms().get(i);
+            if ( (term instanceof ReferenceTerm) && (((ReferenceTerm) term).getFunction() != null) &&
+                  (((ReferenceTerm) term).getColumnAlias() == null) )
+               return null;
          }
-      } catch ( Exception e ) {
-         throw new StoreException("cannot prepare statement: "+statement.toString(),e);
+         SelectStatement branch = getSelectStatement(stmt,false,true);
+         // All statements must be ordered the same way
+         if ( (orderByTerm != null) && (! orderByTerm.equals(branch.orderByTerm)) )
+            return null;
+         orderByTerm = branch.orderByTerm;
+         // Columns with the same name must have the same type
+         for ( int i=0; i<branch.columns.size(); i++ )
+         {
+            String column = (String) branch.columns.get(i);
+            Class type = (Class) branch.types.get(i);
+            Class previousType = columnTypes.get(column);
+            if ( (type == null) || ((previousType != null) && (! previousType.equals(type))) )
+               return null;
+            columnTypes.put(column,type);
+         }
+         branches.add(branch);
       }
-      // Now create full statement (add order and limit)
-      statement = new StringBuffer("select "+(isDistinct?"distinct ":"")+querySource+" from ");
-      statement.append(tablesPart.toString());
-      statement.append(conditionPart.toString());
-      statement.append(orderByTerm.toString());
+      // Create the union
+      StringBuffer union = new StringBuffer();
+      List statementValues = new ArrayList();
+      for ( int i=0; i<branches.size(); i++ )
+      {
+         SelectStatement branch = branches.get(i);
+         if ( i > 0 )
+            union.append(" union all ");
+         union.append("select ");
+         for ( Map.Entry<String,Class> entry : columnTypes.entrySet() )
+         {
+            if ( branch.columns.contains(entry.getKey()) )
+               union.append("u"+i+"."+entry.getKey()+",");
+            else
+               union.append("cast(null as "+getSQLTypeName(getSQLType(entry.getValue()))+
+                     ") as "+entry.getKey()+",");
+         }
+         union.append(i+" as persistence_branch from ("+branch.subStatement+") u"+i);
+         statementValues.addAll(branch.values);
+      }
+      List types = new ArrayList(columnTypes.values());
+      types.add(Integer.class);
+      String subStatement = "select * from ("+union.toString()+") u";
+      String countStatement = getCountStatement(subStatement);
+      String statement;
+      if ( windowCount )
+      {
+         statement = getWindowCountStatement(subStatement,orderByTerm);
+         types.add(Long.class);
+      } else {
+         statement = subStatement+orderByTerm;
+      }
+      if ( logger.isDebugEnabled() )
+         logger.debug("union of "+stmts.size()+" statements: "+statement);
+      return new SelectStatement(statement,countStatement,types,statementValues,
+            subStatement,orderByTerm,null);
+   }
+
+   /**
+    * Select objects from database as ordered list of attribute maps.
+    * @param connection The connection to run statements in.
+    * @param stmt The query statement.
+    * @param limits The limits of the result. (Offset, maximum result count)
+    * @param result The result object.
+    */
+   protected TransactionStatistics search(Connection connection, 
+         QueryStatement stmt, Limits limits, SearchResult searchResult)
+   {
+      // Determine whether the full size should be computed in the same
+      // select. Only worth it if the size will be possibly needed.
+      boolean windowCount = (limits!=null) && (limits.getSize()<0) &&
+         (limits.getLimit()>0) && (supportsWindowCount());
+      SelectStatement select = getSelectStatement(stmt,windowCount,false);
+      select.control = stmt.getControl();
+      select.timeout = getQueryTimeout(stmt);
+      return search(connection,select,windowCount,limits,searchResult);
+   }
+
+   /**
+    * Determine whether the given statements can be selected together. This
+    * is the case if the database supports it, and the selected columns
+    * can be aligned.
+    */
+   protected boolean isUnionSupported(List<QueryStatement> stmts)
+   {
+      return (supportsUnion()) && (getUnionStatement(stmts,false) != null);
+   }
+
+   /**
+    * Select the results of all given statements in a single select.
+    * @param connection The connection to run statements in.
+    * @param stmts The query statements.
+    * @param limits The limits of the whole result.
+    * @param result The result object.
+    */
+   protected TransactionStatistics search(Connection connection, 
+         List<QueryStatement> stmts, Limits limits, SearchResult searchResult)
+   {
+      boolean windowCount = (limits!=null) && (limits.getSize()<0) &&
+         (limits.getLimit()>0) && (supportsWindowCount());
+      SelectStatement select = null;
+      if ( supportsUnion() )
+         select = getUnionStatement(stmts,windowCount);
+      if ( select == null )
+         throw new StoreException("statements can not be selected together: "+stmts);
+      // All statements of a list share the same control
+      select.control = stmts.get(0).getControl();
+      select.timeout = getQueryTimeout(stmts.get(0));
+      return search(connection,select,windowCount,limits,searchResult);
+   }
+
+   /**
+    * Run an assembled select.
+    */
+   private TransactionStatistics search(Connection connection, SelectStatement select,
+         boolean windowCount, Limits limits, SearchResult searchResult)
+   {
+      TransactionStatistics stats = new TransactionStatistics();
+      // Assemble statement:
+      // - Create query source sql
+      // - Parse expression create sql
+      // - Create statement without orderbys and limits 
+      // - Run count statement to determine full count
+      // - Apply limits and orderbys to statement
+      // - Run statement to get results
+      List types = select.types;
+      List statementValues = select.values;
+      StringBuffer statement = new StringBuffer(select.statement);
       // Add limits
       if ( limits != null )
          statement = new StringBuffer(getLimitStatement(statement.toString(),limits,types));
       // Run statement
       ArrayList result = new ArrayList();
+      long windowSize = -1;
       PreparedStatement pstmt = null;
       if ( (limits==null) || (!limits.isEmpty()) )
       {
@@ -1164,61 +2032,27 @@ public class GenericDatabase extends DatabaseBase implements Database
          try
          {
             pstmt = connection.prepareStatement(statement.toString());
-            for ( int i=0; i<statementValues.size(); i++ )
-            {
-               Object value = getSQLValue(statementValues.get(i));
-               logger.debug("setting statement parameter #"+i+": "+value);
-               sqlLogger.debug("setting statement parameter #"+i+": "+value);
-               pstmt.setObject(i+1,value);
-            }
+            setParameters(pstmt,statementValues);
          } catch ( Exception e ) {
             throw new StoreException("cannot prepare statement: "+statement.toString(),e);
          }
          // Execute
+         long startTime = System.currentTimeMillis();
          try
          {
             sqlLogger.debug("running select statement: "+statement.toString());
-            long startTime = System.currentTimeMillis();
             prepareStatement(pstmt,limits);
+            startStatement(pstmt,select);
             ResultSet rs = pstmt.executeQuery();
             long endTime = System.currentTimeMillis();
             aggregatorLogger.log("Query statement execution",new int[] { (int) (endTime-startTime) });
             stats.setSelectCount(stats.getSelectCount()+1);
             stats.setSelectTime(stats.getSelectTime()+(endTime-startTime));
-            ResultSetMetaData rsmd = rs.getMetaData();
-            // Get result and pack the attributes into a map
-            prepareResultSet(rs,limits);
-            while ( rs.next() )
-            {
-               Map attributes = new HashMap();
-               for ( int i=0; i<rsmd.getColumnCount(); i++ )
-               {
-                  String columnName = rsmd.getColumnName(i+1).toLowerCase();
-                  Object columnValue = getJavaValue(rs.getObject(i+1),rsmd.getColumnType(i+1),(Class) types.get(i));
-                  if ( columnName.startsWith("persistence_start") )
-                  {
-                     // Handle persistence_starts
-                     Long previousValue = (Long) attributes.get("persistence_start");
-                     if ( (previousValue==null) || (previousValue.longValue() < 
-                              ((Long) columnValue).longValue()) )
-                        attributes.put("persistence_start",columnValue);
-                  } else if ( columnName.startsWith("persistence_end") ) {
-                     // Handle persistence_ends
-                     Long previousValue = (Long) attributes.get("persistence_end");
-                     if ( (previousValue==null) || (previousValue.longValue() >
-                              ((Long) columnValue).longValue()) )
-                        attributes.put("persistence_end",columnValue);
-                  } else {
-                     // Normal attributes
-                     attributes.put(columnName, columnValue);
-                  }
-               }
-               result.add(attributes);
-            }
-            rs.close();
+            windowSize = readResultSet(rs,select,windowCount,limits,result);
          } catch ( Exception e ) {
-            throw new StoreException("exception while sql select",e);
+            throw getSelectException("exception while sql select",e,select,startTime);
          } finally {
+            finishStatement(pstmt,select);
             try
             {
                pstmt.close();
@@ -1227,6 +2061,52 @@ public class GenericDatabase extends DatabaseBase implements Database
             }
          }
       } // End valid limits (running of query)
+      // Assemble result and return
+      searchResult.setResultSize(getResultSize(connection,select,limits,result,windowSize,stats));
+      searchResult.setResult(result);
+      sqlLogger.debug("returning result, size: "+result.size()+" / "+searchResult.getResultSize());
+      return stats;
+   }
+
+   /**
+    * Read all rows of a result set of a select, and close it.
+    * @return The size of the full result if it was selected with the
+    * rows, -1 otherwise.
+    */
+   private long readResultSet(ResultSet rs, SelectStatement select, boolean windowCount,
+         Limits limits, List result)
+      throws SQLException
+   {
+      long windowSize = -1;
+      // The column layout is computed once for all rows
+      ResultRow.Schema schema = new ResultRow.Schema(rs.getMetaData(),select.types,
+            windowCount?"persistence_total":null);
+      // Get result and pack the attributes into a map
+      prepareResultSet(rs,limits);
+      while ( rs.next() )
+      {
+         if ( windowCount )
+         {
+            // Size of the full result, it's the same in all rows
+            Object total = rs.getObject("persistence_total");
+            if ( total != null )
+               windowSize = ((Number) total).longValue();
+         }
+         result.add(getAttributes(rs,schema));
+      }
+      rs.close();
+      return windowSize;
+   }
+
+   /**
+    * Determine the size of the full result of a select. If it can not be
+    * computed from the selected page, the count statement is run.
+    */
+   private long getResultSize(Connection connection, SelectStatement select, Limits limits,
+         List result, long windowSize, TransactionStatistics stats)
+   {
+      String countStatement = select.countStatement;
+      List statementValues = select.values;
       // Execute count statement if necessary
       long resultSize;
       if ( limits == null )
@@ -1240,13 +2120,25 @@ public class GenericDatabase extends DatabaseBase implements Database
          // Count statement not necessary, this is the last page, we can
          // compute the size
          resultSize = limits.getOffset()+result.size();
+      } else if ( windowSize >= 0 ) {
+         // Size was computed with the page itself
+         resultSize = windowSize;
       } else {
          // We must get the full size the hard way, so select
          if ( sqlLogger.isDebugEnabled() )
             sqlLogger.debug("running count statement: "+countStatement);
+         PreparedStatement countPstmt;
          try
          {
-            long startTime = System.currentTimeMillis();
+            countPstmt = connection.prepareStatement(countStatement);
+            setParameters(countPstmt,statementValues);
+         } catch ( Exception e ) {
+            throw new StoreException("cannot prepare statement: "+countStatement,e);
+         }
+         long startTime = System.currentTimeMillis();
+         try
+         {
+            startStatement(countPstmt,select);
             ResultSet rs = countPstmt.executeQuery();
             long endTime = System.currentTimeMillis();
             aggregatorLogger.log("Query count statement execution",new int[] { (int) (endTime-startTime) });
@@ -1256,8 +2148,9 @@ public class GenericDatabase extends DatabaseBase implements Database
             resultSize = rs.getLong(1);
             rs.close();
          } catch ( Exception e ) {
-            throw new StoreException("exception while sql select count",e);
+            throw getSelectException("exception while sql select count",e,select,startTime);
          } finally {
+            finishStatement(countPstmt,select);
             try
             {
                countPstmt.close();
@@ -1266,13 +2159,254 @@ public class GenericDatabase extends DatabaseBase implements Database
             }
          }
       }
-      // Assemble result and return
-      searchResult.setResultSize(resultSize);
-      searchResult.setResult(result);
-      sqlLogger.debug("returning result, size: "+result.size()+" / "+resultSize);
+      return resultSize;
+   }
+
+   /**
+    * Determine whether the driver can run more selects in a single
+    * statement, and return their results as multiple result sets.
+    */
+   protected boolean supportsMultipleResults()
+   {
+      return false;
+   }
+
+   /**
+    * Select more independent statements. If the database supports multiple
+    * results, the page selects of all statements are sent in a single
+    * statement, otherwise they are selected one after the other.
+    */
+   protected TransactionStatistics searchBatch(Connection connection, List<QueryStatement> stmts,
+         List<Limits> limitsList, List<SearchResult> searchResults)
+   {
+      TransactionStatistics stats = new TransactionStatistics();
+      if ( (! supportsMultipleResults()) || (stmts.size() < 2) )
+      {
+         for ( int i=0; i<stmts.size(); i++ )
+         {
+            SearchResult searchResult = new SearchResult();
+            stats.add(search(connection,stmts.get(i),limitsList.get(i),searchResult));
+            searchResults.add(searchResult);
+         }
+         return stats;
+      }
+      // Assemble all page selects into one statement
+      List<SelectStatement> selects = new ArrayList<SelectStatement>();
+      boolean[] windowCounts = new boolean[stmts.size()];
+      StringBuffer statement = new StringBuffer();
+      List statementValues = new ArrayList();
+      for ( int i=0; i<stmts.size(); i++ )
+      {
+         Limits limits = limitsList.get(i);
+         windowCounts[i] = (limits!=null) && (limits.getSize()<0) &&
+            (limits.getLimit()>0) && (supportsWindowCount());
+         SelectStatement select = getSelectStatement(stmts.get(i),windowCounts[i],false);
+         select.control = stmts.get(i).getControl();
+         select.timeout = getQueryTimeout(stmts.get(i));
+         selects.add(select);
+         if ( statement.length() > 0 )
+            statement.append("; ");
+         if ( limits != null )
+            statement.append(getLimitStatement(select.statement,limits,select.types));
+         else
+            statement.append(select.statement);
+         statementValues.addAll(select.values);
+      }
+      // Prepare
+      PreparedStatement pstmt = null;
+      try
+      {
+         pstmt = connection.prepareStatement(statement.toString());
+         setParameters(pstmt,statementValues);
+      } catch ( Exception e ) {
+         throw new StoreException("cannot prepare statement: "+statement.toString(),e);
+      }
+      // Execute, and read the result sets in order
+      List[] results = new List[stmts.size()];
+      long[] windowSizes = new long[stmts.size()];
+      long startTime = System.currentTimeMillis();
+      try
+      {
+         sqlLogger.debug("running batch select statement: "+statement.toString());
+         startStatement(pstmt,selects.get(0));
+         pstmt.execute();
+         long endTime = System.currentTimeMillis();
+         aggregatorLogger.log("Query statement execution",new int[] { (int) (endTime-startTime) });
+         stats.setSelectCount(stats.getSelectCount()+stmts.size());
+         stats.setSelectTime(stats.getSelectTime()+(endTime-startTime));
+         for ( int i=0; i<stmts.size(); i++ )
+         {
+            if ( (i > 0) && (! pstmt.getMoreResults()) )
+               throw new StoreException("batch select returned only "+i+" results of "+stmts.size());
+            results[i] = new ArrayList();
+            windowSizes[i] = readResultSet(pstmt.getResultSet(),selects.get(i),
+                  windowCounts[i],limitsList.get(i),results[i]);
+         }
+      } catch ( Exception e ) {
+         throw getSelectException("exception while sql batch select",e,selects.get(0),startTime);
+      } finally {
+         finishStatement(pstmt,selects.get(0));
+         try
+         {
+            pstmt.close();
+         } catch ( Exception e ) {
+            logger.debug("unable to close statement",e);
+         }
+      }
+      // Assemble results, sizes which are not known are counted
+      for ( int i=0; i<stmts.size(); i++ )
+      {
+         SearchResult searchResult = new SearchResult();
+         searchResult.setResultSize(getResultSize(connection,selects.get(i),
+                  limitsList.get(i),results[i],windowSizes[i],stats));
+         searchResult.setResult(results[i]);
+         searchResults.add(searchResult);
+      }
       return stats;
    }
 
+   /**
+    * Select objects from database as a forward-only cursor of attribute maps.
+    * The result set is read-only and forward-only, and rows are fetched
+    * from the database in chunks of the given fetch size, if the driver
+    * supports it.
+    */
+   protected SearchCursor stream(Connection connection, QueryStatement stmt,
+         int fetchSize, TransactionStatistics stats)
+   {
+      SelectStatement select = getSelectStatement(stmt,false,false);
+      select.control = stmt.getControl();
+      select.timeout = getQueryTimeout(stmt);
+      PreparedStatement pstmt = null;
+      try
+      {
+         pstmt = connection.prepareStatement(select.statement,
+               ResultSet.TYPE_FORWARD_ONLY,ResultSet.CONCUR_READ_ONLY);
+         setParameters(pstmt,select.values);
+      } catch ( Exception e ) {
+         throw new StoreException("cannot prepare statement: "+select.statement,e);
+      }
+      long startTime = System.currentTimeMillis();
+      try
+      {
+         sqlLogger.debug("running streamed select statement: "+select.statement);
+         pstmt.setFetchSize(fetchSize);
+         ResultSet rs;
+         try
+         {
+            startStatement(pstmt,select);
+            rs = pstmt.executeQuery();
+         } finally {
+            finishStatement(pstmt,select);
+         }
+         long endTime = System.currentTimeMillis();
+         aggregatorLogger.log("Query statement execution",new int[] { (int) (endTime-startTime) });
+         stats.setSelectCount(stats.getSelectCount()+1);
+         stats.setSelectTime(stats.getSelectTime()+(endTime-startTime));
+         return new ResultSetCursor(pstmt,rs,
+               new ResultRow.Schema(rs.getMetaData(),select.types,null));
+      } catch ( Exception e ) {
+         try
+         {
+            pstmt.close();
+         } catch ( Exception ce ) {
+            logger.debug("unable to close statement",ce);
+         }
+         throw getSelectException("exception while sql select",e,select,startTime);
+      }
+   }
+
+   /**
+    * Prepare a select statement to run with the timeout and control of
+    * the select. The timeout is always set, because the same statement
+    * may be reused with a different timeout.
+    * @throws QueryCancelledException If the query was already cancelled.
+    */
+   private void startStatement(Statement pstmt, SelectStatement select)
+      throws SQLException
+   {
+      pstmt.setQueryTimeout((int) ((select.timeout+999)/1000));
+      if ( select.control != null )
+         select.control.statementStarted(pstmt);
+   }
+
+   /**
+    * Unregister a select statement from its control after it ran.
+    */
+   private void finishStatement(Statement pstmt, SelectStatement select)
+   {
+      if ( (select.control != null) && (pstmt != null) )
+         select.control.statementFinished(pstmt);
+   }
+
+   /**
+    * Get the exception to throw when a select failed. If the select was
+    * cancelled or ran at least until its timeout, the failure is
+    * reported as a cancel.
+    */
+   private StoreException getSelectException(String message, Exception e,
+         SelectStatement select, long startTime)
+   {
+      if ( e instanceof QueryCancelledException )
+         return (QueryCancelledException) e;
+      if ( (select.control != null) && (select.control.isCancelled()) )
+         return new QueryCancelledException("query was cancelled",e);
+      if ( (select.timeout > 0) && (System.currentTimeMillis()-startTime >= select.timeout) )
+         return new QueryCancelledException("query timed out after "+select.timeout+" ms",e);
+      return new StoreException(message,e);
+   }
+
+   /**
+    * Set the parameters of a statement in order.
+    */
+   private void setParameters(PreparedStatement pstmt, List statementValues)
+      throws SQLException
+   {
+      for ( int i=0; i<statementValues.size(); i++ )
+      {
+         Object value = getSQLValue(statementValues.get(i));
+         logger.debug("setting statement parameter #"+i+": "+value);
+         sqlLogger.debug("setting statement parameter #"+i+": "+value);
+         pstmt.setObject(i+1,value);
+      }
+   }
+
+   /**
+    * Read the current row of the result set into a compact attribute map.
+    */
+   private Map getAttributes(ResultSet rs, ResultRow.Schema schema)
+      throws SQLException
+   {
+      Object[] values = new Object[schema.size()];
+      for ( int i=0; i<schema.getColumnCount(); i++ )
+      {
+         int index = schema.getColumnIndex(i);
+         if ( index < 0 )
+            continue;
+         Object columnValue = getJavaValue(rs.getObject(i+1),schema.getColumnType(i),
+               schema.getColumnJavaType(i));
+         switch ( schema.getColumnMerge(i) )
+         {
+            case ResultRow.Schema.MERGE_MAX:
+               // Handle persistence_starts
+               if ( (columnValue!=null) && ((values[index]==null) ||
+                        (((Long) values[index]).longValue() < ((Long) columnValue).longValue())) )
+                  values[index]=columnValue;
+               break;
+            case ResultRow.Schema.MERGE_MIN:
+               // Handle persistence_ends
+               if ( (columnValue!=null) && ((values[index]==null) ||
+                        (((Long) values[index]).longValue() > ((Long) columnValue).longValue())) )
+                  values[index]=columnValue;
+               break;
+            default:
+               // Normal attributes
+               values[index]=columnValue;
+         }
+      }
+      return new ResultRow(schema,values);
+   }
+
    /**
     * Convert incoming value from database into java format.
     */
@@ -1426,6 +2560,98 @@ public class GenericDatabase extends DatabaseBase implements Database
    {
    }
 
+   /**
+    * Cursor which reads the rows of an open result set one by one.
+    */
+   private class ResultSetCursor implements SearchCursor
+   {
+      private PreparedStatement pstmt;
+      private ResultSet rs;
+      private ResultRow.Schema schema;
+      private Map nextRow = null;
+      private boolean closed = false;
+
+      public ResultSetCursor(PreparedStatement pstmt, ResultSet rs, ResultRow.Schema schema)
+      {
+         this.pstmt=pstmt;
+         this.rs=rs;
+         this.schema=schema;
+      }
+
+      public boolean hasNext()
+      {
+         if ( (nextRow != null) || (closed) )
+            return nextRow != null;
+         try
+         {
+            if ( rs.next() )
+               nextRow = getAttributes(rs,schema);
+            else
+               close();
+         } catch ( SQLException e ) {
+            close();
+            throw new StoreException("exception while reading streamed select",e);
+         }
+         return nextRow != null;
+      }
+
+      public Map next()
+      {
+         if ( ! hasNext() )
+            throw new NoSuchElementException("cursor has no more rows");
+         Map result = nextRow;
+         nextRow = null;
+         return result;
+      }
+
+      public void remove()
+      {
+         throw new UnsupportedOperationException("cursor does not support remove");
+      }
+
+      public void close()
+      {
+         if ( closed )
+            return;
+         closed = true;
+         try
+         {
+            rs.close();
+            pstmt.close();
+         } catch ( Exception e ) {
+            logger.debug("unable to close streamed statement",e);
+         }
+      }
+   }
+
+   /**
+    * An assembled sql select with its parameters.
+    */
+   private static class SelectStatement
+   {
+      public String statement;
+      public String countStatement;
+      public List types;
+      public List values;
+      public String subStatement;
+      public String orderByTerm;
+      public List columns;
+      public QueryControl control;
+      public long timeout;
+
+      public SelectStatement(String statement, String countStatement, List types, List values,
+            String subStatement, String orderByTerm, List columns)
+      {
+         this.statement=statement;
+         this.countStatement=countStatement;
+         this.types=types;
+         this.values=values;
+         this.subStatement=subStatement;
+         this.orderByTerm=orderByTerm;
+         this.columns=columns;
+      }
+   }
+
 }
 
 
@@ -103,6 +103,15 @@ public class HSQLDatabaseImpl extends GenericDatabase implements Database
       return super.getTableAttributeTypes(connection,tableName.toUpperCase());
    }
 
+   /**
+    * Get the indexes of a table.
+    */
+   protected Set getTableIndexes(Connection connection, String tableName)
+      throws SQLException
+   {
+      return super.getTableIndexes(connection,tableName.toUpperCase());
+   }
+
    /**
     * Transform functions for hsql.
     */
@@ -112,7 +112,8 @@ public class MysqlDatabaseImpl extends GenericDatabase implements Database
       stats.setSchemaCount(1);
       stats.setSchemaTime(endTime-startTime);
       // Create initial indexes (currently all attributes will be indexed)
-      stats.add(createIndexes(connection, tableName, attributeTypes));
+      stats.add(createIndexes(connection, tableName, getSingleIndexTypes(attributeTypes)));
+      stats.add(createTemporalIndexes(connection, tableName, attributeTypes, false));
       return stats;
    }
 
@@ -26,6 +26,7 @@ import java.sql.PreparedStatement;
 import java.sql.SQLException;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Set;
 import java.util.Iterator;
 import java.util.List;
 import java.io.InputStream;
@@ -253,6 +254,15 @@ public class OracleDatabaseImpl extends GenericDatabase implements Database
       return method.invoke(obj, params);
    }
 
+   /**
+    * Oracle supports window functions, so the size of the result can be
+    * selected with the page.
+    */
+   protected boolean supportsWindowCount()
+   {
+      return true;
+   }
+
    /**
     * Get the count statement for the given statement.
     */
@@ -272,6 +282,15 @@ public class OracleDatabaseImpl extends GenericDatabase implements Database
       return super.getTableAttributeTypes(connection,tableName.toUpperCase());
    }
 
+   /**
+    * Get the indexes of a table.
+    */
+   protected Set getTableIndexes(Connection connection, String tableName)
+      throws SQLException
+   {
+      return super.getTableIndexes(connection,tableName.toUpperCase());
+   }
+
    /**
     * Fix custom data types not supported by database.
     */
@@ -19,8 +19,21 @@
 package hu.netmind.beankeeper.db.impl;
 
 import java.sql.Types;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
 import java.util.List;
+import java.util.Map;
+import java.util.ArrayList;
+import java.util.TreeSet;
+import java.io.StringReader;
+import java.io.Reader;
+import java.lang.reflect.Method;
+import java.lang.reflect.InvocationTargetException;
+import org.apache.log4j.Logger;
 import hu.netmind.beankeeper.db.*;
+import hu.netmind.beankeeper.common.StoreException;
+import hu.netmind.beankeeper.transaction.TransactionStatistics;
+import hu.netmind.beankeeper.logging.AggregatorLogger;
 
 /**
  * Postgres database implementation.
@@ -29,6 +42,139 @@ import hu.netmind.beankeeper.db.*;
  */
 public class PostgresDatabaseImpl extends GenericDatabase implements Database
 {
+   private static Logger logger = Logger.getLogger(PostgresDatabaseImpl.class);
+
+   private AggregatorLogger aggregatorLogger = null; // Injected
+
+   private boolean windowCount = false;
+
+   /**
+    * Determine the version of the server, window functions are only
+    * supported from 8.4.
+    */
+   public void init(Map parameters)
+   {
+      super.init(parameters);
+      Connection connection = getConnectionSource().getConnection();
+      try
+      {
+         DatabaseMetaData dmd = connection.getMetaData();
+         int majorVersion = dmd.getDatabaseMajorVersion();
+         int minorVersion = dmd.getDatabaseMinorVersion();
+         windowCount = (majorVersion > 8) || ((majorVersion == 8) && (minorVersion >= 4));
+         logger.debug("postgres server version is "+majorVersion+"."+minorVersion+
+               ", window count supported: "+windowCount);
+      } catch ( Exception e ) {
+         logger.debug("could not determine server version, window count is not used",e);
+      } catch ( AbstractMethodError e ) {
+         logger.debug("driver can not tell server version, window count is not used",e);
+      } finally {
+         getConnectionSource().releaseConnection(connection);
+      }
+   }
+
+   /**
+    * Insert new objects with the <code>copy</code> command of Postgres.
+    * The copy api of the driver is used through reflection, so if the
+    * driver does not support it (before 8.4), or the connection is
+    * not the driver's own, the objects are inserted in a batch.
+    */
+   protected TransactionStatistics insertBulk(Connection connection, String tableName, 
+         List<Map> attributesList)
+   {
+      Object copyManager = getCopyManager(connection);
+      if ( (copyManager == null) || (attributesList.size() <= 1) )
+         return super.insertBulk(connection,tableName,attributesList);
+      TransactionStatistics stats = new TransactionStatistics();
+      // Assemble the rows in csv format, all rows have the same attributes
+      ArrayList attributeNames = new ArrayList(new TreeSet(attributesList.get(0).keySet()));
+      StringBuffer statement = new StringBuffer("copy "+tableName+" (");
+      for ( int i=0; i<attributeNames.size(); i++ )
+      {
+         if ( i > 0 )
+            statement.append(",");
+         statement.append(attributeNames.get(i));
+      }
+      statement.append(") from stdin with csv");
+      StringBuffer rows = new StringBuffer();
+      for ( Map attributes : attributesList )
+      {
+         for ( int i=0; i<attributeNames.size(); i++ )
+         {
+            if ( i > 0 )
+               rows.append(',');
+            appendCopyValue(rows,getSQLValue(attributes.get(attributeNames.get(i))));
+         }
+         rows.append('\n');
+      }
+      // Execute
+      try
+      {
+         if ( logger.isDebugEnabled() )
+            logger.debug("executing copy statement: "+statement+", rows: "+attributesList.size());
+         long startTime = System.currentTimeMillis();
+         Method copyIn = copyManager.getClass().getMethod("copyIn",String.class,Reader.class);
+         copyIn.invoke(copyManager,statement.toString(),new StringReader(rows.toString()));
+         long endTime = System.currentTimeMillis();
+         aggregatorLogger.log("Insert copy execution",new int[] { (int) (endTime-startTime) });
+         stats.setInsertCount(attributesList.size());
+         stats.setInsertTime(endTime-startTime);
+      } catch ( InvocationTargetException e ) {
+         throw new StoreException("exception while sql copy: "+statement,e.getCause());
+      } catch ( Exception e ) {
+         throw new StoreException("exception while sql copy: "+statement,e);
+      }
+      return stats;
+   }
+
+   /**
+    * Get the copy manager of the driver for the given connection.
+    * @return The copy manager, or null if copy is not supported.
+    */
+   private Object getCopyManager(Connection connection)
+   {
+      Connection nativeConnection = getConnectionSource().getNativeConnection(connection);
+      try
+      {
+         Class pgConnectionClass = Class.forName("org.postgresql.PGConnection",
+               true,nativeConnection.getClass().getClassLoader());
+         if ( ! pgConnectionClass.isInstance(nativeConnection) )
+            return null;
+         return pgConnectionClass.getMethod("getCopyAPI").invoke(nativeConnection);
+      } catch ( Exception e ) {
+         logger.debug("copy api is not available, using batch inserts: "+e);
+         return null;
+      }
+   }
+
+   /**
+    * Append a value to a copy row in csv format. Null values are
+    * empty, strings are always quoted, so they differ from null.
+    */
+   private void appendCopyValue(StringBuffer row, Object value)
+   {
+      if ( value == null )
+         return;
+      if ( value instanceof byte[] )
+      {
+         // Bytea values are given in the escaped octal format
+         byte[] bytes = (byte[]) value;
+         StringBuffer escaped = new StringBuffer();
+         for ( int i=0; i<bytes.length; i++ )
+         {
+            String octal = Integer.toOctalString(bytes[i] & 0xff);
+            escaped.append('\\');
+            for ( int u=octal.length(); u<3; u++ )
+               escaped.append('0');
+            escaped.append(octal);
+         }
+         value = escaped.toString();
+      }
+      if ( (value instanceof String) || (value instanceof Character) )
+         row.append('"').append(value.toString().replace("\"","\"\"")).append('"');
+      else
+         row.append(value.toString());
+   }
    /**
     * Get the limit component of statement, if it can be expressed in
     * the current database with simple statement part.
@@ -44,6 +190,24 @@ public class PostgresDatabaseImpl extends GenericDatabase implements Database
       return result.toString();
    }
 
+   /**
+    * Postgres supports window functions from 8.4, so the size of the result
+    * can be selected with the page. Older servers count separately.
+    */
+   protected boolean supportsWindowCount()
+   {
+      return windowCount;
+   }
+
+   /**
+    * The Postgres driver sends more selects of a statement in a single
+    * round trip, and returns their results as multiple result sets.
+    */
+   protected boolean supportsMultipleResults()
+   {
+      return true;
+   }
+
    /**
     * Get the sql type for a class.
     */
@@ -0,0 +1,377 @@
+/**
+ * Copyright (C) 2008 NetMind Consulting Bt.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package hu.netmind.beankeeper.db.impl;
+
+import java.util.*;
+import java.io.Serializable;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+
+/**
+ * A row of a search result. The values are stored in a plain array,
+ * the column names are held by a schema, which is shared by all rows of
+ * the same query. The row behaves like a normal map. If it is
+ * structurally modified (an attribute removed or a new one added), the
+ * row converts itself into a normal map.
+ * @author Brautigam Robert
+ * @version Revision: $Revision$
+ */
+class ResultRow extends AbstractMap implements Serializable
+{
+   private Schema schema;
+   private Object[] values;
+   private Map map = null;
+
+   public ResultRow(Schema schema, Object[] values)
+   {
+      this.schema=schema;
+      this.values=values;
+   }
+
+   public Schema getSchema()
+   {
+      return schema;
+   }
+
+   /**
+    * Get the same row with a different schema. The values are not copied,
+    * so this row should not be used afterwards.
+    */
+   public ResultRow withSchema(Schema schema)
+   {
+      if ( map != null )
+         throw new IllegalStateException("row was already modified, schema can not be changed");
+      return new ResultRow(schema,values);
+   }
+
+   public int size()
+   {
+      if ( map != null )
+         return map.size();
+      return values.length;
+   }
+
+   public boolean containsKey(Object key)
+   {
+      if ( map != null )
+         return map.containsKey(key);
+      return schema.getIndex(key) >= 0;
+   }
+
+   public Object get(Object key)
+   {
+      if ( map != null )
+         return map.get(key);
+      int index = schema.getIndex(key);
+      if ( index < 0 )
+         return null;
+      return values[index];
+   }
+
+   public Object put(Object key, Object value)
+   {
+      if ( map == null )
+      {
+         int index = schema.getIndex(key);
+         if ( index >= 0 )
+         {
+            Object oldValue = values[index];
+            values[index]=value;
+            return oldValue;
+         }
+      }
+      return getMap().put(key,value);
+   }
+
+   public Object remove(Object key)
+   {
+      return getMap().remove(key);
+   }
+
+   public void clear()
+   {
+      getMap().clear();
+   }
+
+   /**
+    * Get the entries of this row. Entries can be modified, but can not
+    * be removed through the iterator.
+    */
+   public Set entrySet()
+   {
+      if ( map != null )
+         return map.entrySet();
+      return new AbstractSet()
+         {
+            public int size()
+            {
+               return values.length;
+            }
+
+            public Iterator iterator()
+            {
+               return new Iterator()
+                  {
+                     private int index = 0;
+
+                     public boolean hasNext()
+                     {
+                        return index < values.length;
+                     }
+
+                     public Object next()
+                     {
+                        if ( index >= values.length )
+                           throw new NoSuchElementException("no more entries in row");
+                        return new Entry(index++);
+                     }
+
+                     public void remove()
+                     {
+                        throw new UnsupportedOperationException("entries of a result row can not be removed while iterating");
+                     }
+                  };
+            }
+         };
+   }
+
+   /**
+    * Convert this row into a normal map. This happens on structural
+    * modifications, which are rare for result rows.
+    */
+   private Map getMap()
+   {
+      if ( map == null )
+      {
+         map = new HashMap();
+         for ( int i=0; i<values.length; i++ )
+            map.put(schema.getName(i),values[i]);
+         values = null;
+      }
+      return map;
+   }
+
+   /**
+    * An entry of the row backed by the values array.
+    */
+   private class Entry implements Map.Entry
+   {
+      private int index;
+
+      public Entry(int index)
+      {
+         this.index=index;
+      }
+
+      public Object getKey()
+      {
+         return schema.getName(index);
+      }
+
+      public Object getValue()
+      {
+         return values[index];
+      }
+
+      public Object setValue(Object value)
+      {
+         Object oldValue = values[index];
+         values[index]=value;
+         return oldValue;
+      }
+
+      public boolean equals(Object obj)
+      {
+         if ( ! (obj instanceof Map.Entry) )
+            return false;
+         Map.Entry entry = (Map.Entry) obj;
+         return getKey().equals(entry.getKey()) &&
+            (getValue()==null?entry.getValue()==null:getValue().equals(entry.getValue()));
+      }
+
+      public int hashCode()
+      {
+         return getKey().hashCode() ^ (getValue()==null?0:getValue().hashCode());
+      }
+
+      public String toString()
+      {
+         return getKey()+"="+getValue();
+      }
+   }
+
+   /**
+    * The column layout of the rows of a single query. It determines the
+    * attribute names, the types of the columns, and which columns
+    * are merged into a single attribute.
+    */
+   public static class Schema implements Serializable
+   {
+      public static final int MERGE_NONE = 0;
+      public static final int MERGE_MAX = 1;
+      public static final int MERGE_MIN = 2;
+
+      private String[] names;
+      private Map<String,Integer> indexes;
+      private int[] columnIndexes;
+      private int[] columnMerges;
+      private int[] columnTypes;
+      private Class[] columnJavaTypes;
+      private transient Schema reversedSchema = null;
+
+      /**
+       * Create the schema of a result set. The <code>persistence_start</code>
+       * and <code>persistence_end</code> columns of all tables are merged
+       * into a single attribute of each.
+       * @param rsmd The result set meta-data.
+       * @param types The java types of the columns.
+       * @param ignoredColumn A column name which should not be an attribute
+       * of the rows, can be null.
+       */
+      public Schema(ResultSetMetaData rsmd, List types, String ignoredColumn)
+         throws SQLException
+      {
+         int columnCount = rsmd.getColumnCount();
+         columnIndexes = new int[columnCount];
+         columnMerges = new int[columnCount];
+         columnTypes = new int[columnCount];
+         columnJavaTypes = new Class[columnCount];
+         List<String> nameList = new ArrayList<String>();
+         for ( int i=0; i<columnCount; i++ )
+         {
+            String columnName = rsmd.getColumnName(i+1).toLowerCase();
+            columnTypes[i] = rsmd.getColumnType(i+1);
+            columnJavaTypes[i] = (Class) types.get(i);
+            String name = columnName;
+            if ( columnName.equals(ignoredColumn) )
+            {
+               columnIndexes[i] = -1;
+               continue;
+            } else if ( columnName.startsWith("persistence_start") ) {
+               name = "persistence_start";
+               columnMerges[i] = MERGE_MAX;
+            } else if ( columnName.startsWith("persistence_end") ) {
+               name = "persistence_end";
+               columnMerges[i] = MERGE_MIN;
+            }
+            int index = nameList.indexOf(name);
+            if ( index < 0 )
+            {
+               index = nameList.size();
+               nameList.add(name);
+            }
+            columnIndexes[i] = index;
+         }
+         setNames(nameList.toArray(new String[nameList.size()]));
+      }
+
+      private Schema(Schema schema, String[] names)
+      {
+         this.columnIndexes=schema.columnIndexes;
+         this.columnMerges=schema.columnMerges;
+         this.columnTypes=schema.columnTypes;
+         this.columnJavaTypes=schema.columnJavaTypes;
+         setNames(names);
+      }
+
+      private void setNames(String[] names)
+      {
+         this.names=names;
+         indexes = new HashMap<String,Integer>();
+         for ( int i=0; i<names.length; i++ )
+            indexes.put(names[i],i);
+      }
+
+      /**
+       * Get a schema with the same columns, but with the attributes
+       * renamed. The names must be in the order of attribute indexes.
+       */
+      public Schema rename(String[] names)
+      {
+         return new Schema(this,names);
+      }
+
+      /**
+       * Get the number of attributes of a row.
+       */
+      public int size()
+      {
+         return names.length;
+      }
+
+      public String getName(int index)
+      {
+         return names[index];
+      }
+
+      /**
+       * Get the index of the attribute with the given name.
+       * @return The index, or -1 if there is no such attribute.
+       */
+      public int getIndex(Object name)
+      {
+         Integer index = indexes.get(name);
+         if ( index == null )
+            return -1;
+         return index;
+      }
+
+      public int getColumnCount()
+      {
+         return columnIndexes.length;
+      }
+
+      /**
+       * Get the attribute index the column's value goes to, or -1 if
+       * the column is ignored.
+       */
+      public int getColumnIndex(int column)
+      {
+         return columnIndexes[column];
+      }
+
+      /**
+       * Get how the column is merged with other columns of the
+       * same attribute.
+       */
+      public int getColumnMerge(int column)
+      {
+         return columnMerges[column];
+      }
+
+      public int getColumnType(int column)
+      {
+         return columnTypes[column];
+      }
+
+      public Class getColumnJavaType(int column)
+      {
+         return columnJavaTypes[column];
+      }
+
+      public Schema getReversedSchema()
+      {
+         return reversedSchema;
+      }
+      public void setReversedSchema(Schema reversedSchema)
+      {
+         this.reversedSchema=reversedSchema;
+      }
+   }
+}
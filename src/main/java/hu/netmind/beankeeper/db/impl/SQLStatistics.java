@@ -19,6 +19,7 @@
 package hu.netmind.beankeeper.db.impl;
 
 import hu.netmind.beankeeper.transaction.TransactionStatistics;
+import hu.netmind.beankeeper.db.ConnectionSource;
 
 /**
  * Offers sql execution statistics of the running system.
@@ -27,6 +28,47 @@ import hu.netmind.beankeeper.transaction.TransactionStatistics;
  */
 public class SQLStatistics extends TransactionStatistics implements SQLStatisticsMBean
 {
+   private ConnectionSource connectionSource;
+   private int finalizationCount;
+   private long finalizationTime;
+
+   public SQLStatistics(ConnectionSource connectionSource)
+   {
+      this.connectionSource=connectionSource;
+   }
+
+   /**
+    * Add the time of finalizing a commit.
+    */
+   public synchronized void addFinalization(long time)
+   {
+      finalizationCount++;
+      finalizationTime+=time;
+   }
+
+   public synchronized int getFinalizationCount()
+   {
+      return finalizationCount;
+   }
+
+   public synchronized long getFinalizationTime()
+   {
+      return finalizationTime;
+   }
+
+   public long getStatementCacheHits()
+   {
+      if ( connectionSource instanceof ConnectionSourceImpl )
+         return ((ConnectionSourceImpl) connectionSource).getStatementCacheHits();
+      return 0;
+   }
+
+   public long getStatementCacheMisses()
+   {
+      if ( connectionSource instanceof ConnectionSourceImpl )
+         return ((ConnectionSourceImpl) connectionSource).getStatementCacheMisses();
+      return 0;
+   }
 }
 
 
@@ -36,6 +36,12 @@ public interface SQLStatisticsMBean
    long getSelectTime();
    long getDeleteTime();
    long getSchemaTime();
+
+   int getFinalizationCount();
+   long getFinalizationTime();
+
+   long getStatementCacheHits();
+   long getStatementCacheMisses();
 }
 
 
@@ -0,0 +1,245 @@
+/**
+ * Copyright (C) 2008 NetMind Consulting Bt.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package hu.netmind.beankeeper.db.impl;
+
+import java.util.*;
+
+/**
+ * Holds the inserts and updates of a single transaction which were not
+ * yet sent to the database. Operations are grouped by table and column
+ * set, so that each group can be executed as a single jdbc batch. Groups
+ * are executed in the order they first appeared, so the buffer can only
+ * reorder operations which can not affect each other. If a new operation
+ * would possibly interfere with a buffered one, the caller must flush
+ * the buffer before adding the new operation.
+ * @author Brautigam Robert
+ * @version Revision: $Revision$
+ */
+class WriteBuffer
+{
+   private Map<String,Batch> batches = new LinkedHashMap<String,Batch>();
+   private int size = 0;
+
+   /**
+    * Get the number of operations buffered.
+    */
+   public int size()
+   {
+      return size;
+   }
+
+   public boolean isEmpty()
+   {
+      return size == 0;
+   }
+
+   /**
+    * Get the batches in the order they should be executed.
+    */
+   public List<Batch> getBatches()
+   {
+      return new ArrayList<Batch>(batches.values());
+   }
+
+   /**
+    * Remove all operations from the buffer.
+    */
+   public void clear()
+   {
+      batches.clear();
+      size = 0;
+   }
+
+   /**
+    * Add an insert operation to the buffer.
+    */
+   public void addInsert(String tableName, Map attributes)
+   {
+      attributes = removeNullValues(attributes);
+      String representation = "insert:"+tableName+":"+
+         new TreeSet(attributes.keySet());
+      getBatch(representation,tableName,true).add(null,attributes);
+   }
+
+   /**
+    * Add an update operation to the buffer.
+    */
+   public void addSave(String tableName, Map keys, Map attributes)
+   {
+      attributes = removeNullValues(attributes);
+      getBatch(getSaveRepresentation(tableName,keys,attributes),tableName,false).
+         add(keys,attributes);
+   }
+
+   /**
+    * Determine whether the given insert could affect the outcome of
+    * an already buffered operation. This is the case if a buffered update
+    * in the same table would select the inserted row too.
+    */
+   public boolean conflictsWithInsert(String tableName, Map attributes)
+   {
+      for ( Batch batch : batches.values() )
+      {
+         if ( (batch.isInsert()) || (!batch.getTableName().equals(tableName)) )
+            continue;
+         for ( Map keys : batch.getKeysList() )
+            if ( matches(keys,attributes) )
+               return true;
+      }
+      return false;
+   }
+
+   /**
+    * Determine whether the given update could affect the outcome of
+    * already buffered operations. This is the case, if there is a
+    * buffered row in the same table, which the update would modify, or
+    * there are other kind of updates to the same table buffered.
+    */
+   public boolean conflictsWithSave(String tableName, Map keys, Map attributes)
+   {
+      String representation = getSaveRepresentation(tableName,keys,
+            removeNullValues(attributes));
+      for ( Map.Entry<String,Batch> entry : batches.entrySet() )
+      {
+         Batch batch = entry.getValue();
+         if ( ! batch.getTableName().equals(tableName) )
+            continue;
+         if ( ! batch.isInsert() )
+         {
+            // Updates of the same kind are executed in order
+            if ( ! entry.getKey().equals(representation) )
+               return true;
+            continue;
+         }
+         for ( Map row : batch.getAttributesList() )
+            if ( matches(keys,row) )
+               return true;
+      }
+      return false;
+   }
+
+   private Batch getBatch(String representation, String tableName, boolean insert)
+   {
+      Batch batch = batches.get(representation);
+      if ( batch == null )
+      {
+         batch = new Batch(tableName,insert);
+         batches.put(representation,batch);
+      }
+      size++;
+      return batch;
+   }
+
+   /**
+    * Updates are only in the same batch, if they set the same attributes,
+    * and have the same keys (with the same keys being null).
+    */
+   private String getSaveRepresentation(String tableName, Map keys, Map attributes)
+   {
+      StringBuffer representation = new StringBuffer("update:"+tableName+":"+
+            new TreeSet(attributes.keySet())+":");
+      Iterator keyNameIterator = new TreeSet(keys.keySet()).iterator();
+      while ( keyNameIterator.hasNext() )
+      {
+         String keyName = (String) keyNameIterator.next();
+         representation.append(keyName);
+         if ( keys.get(keyName) == null )
+            representation.append(" is null");
+         representation.append(",");
+      }
+      return representation.toString();
+   }
+
+   /**
+    * Determine whether a row would be selected by the given keys. Null
+    * keys only match null (non-existent) values.
+    */
+   private boolean matches(Map keys, Map row)
+   {
+      Iterator keyIterator = keys.entrySet().iterator();
+      while ( keyIterator.hasNext() )
+      {
+         Map.Entry entry = (Map.Entry) keyIterator.next();
+         Object keyValue = entry.getValue();
+         Object rowValue = row.get(entry.getKey());
+         if ( (keyValue == null) || (rowValue == null) )
+         {
+            if ( keyValue != rowValue )
+               return false;
+         } else if ( (keyValue instanceof Number) && (rowValue instanceof Number) ) {
+            if ( ((Number) keyValue).longValue() != ((Number) rowValue).longValue() )
+               return false;
+         } else if ( ! keyValue.equals(rowValue) ) {
+            return false;
+         }
+      }
+      return true;
+   }
+
+   private Map removeNullValues(Map attributes)
+   {
+      Map result = new HashMap(attributes);
+      result.values().removeAll(Collections.singleton(null));
+      return result;
+   }
+
+   /**
+    * A batch is a list of operations with the same sql statement.
+    */
+   public static class Batch
+   {
+      private String tableName;
+      private boolean insert;
+      private List<Map> keysList = new ArrayList<Map>();
+      private List<Map> attributesList = new ArrayList<Map>();
+
+      public Batch(String tableName, boolean insert)
+      {
+         this.tableName=tableName;
+         this.insert=insert;
+      }
+
+      private void add(Map keys, Map attributes)
+      {
+         if ( ! insert )
+            keysList.add(keys);
+         attributesList.add(attributes);
+      }
+
+      public String getTableName()
+      {
+         return tableName;
+      }
+
+      public boolean isInsert()
+      {
+         return insert;
+      }
+
+      public List<Map> getKeysList()
+      {
+         return keysList;
+      }
+
+      public List<Map> getAttributesList()
+      {
+         return attributesList;
+      }
+   }
+}
@@ -0,0 +1,40 @@
+/**
+ * Copyright (C) 2008 NetMind Consulting Bt.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package hu.netmind.beankeeper.history;
+
+import hu.netmind.beankeeper.service.Service;
+
+/**
+ * Removes versions of objects which are older than the configured
+ * retention. This runs periodically in the background, but it can
+ * be also invoked directly.
+ * @author Brautigam Robert
+ * @version Revision: $Revision$
+ */
+public interface HistoryCompactor extends Service
+{
+   /**
+    * Remove all versions which ended before the retention of their class,
+    * and which are not visible to any open transaction or result list on any node.
+    * Blobs which are not referenced by any remaining version are also
+    * removed.
+    * @return The number of versions removed.
+    */
+   int compact();
+}
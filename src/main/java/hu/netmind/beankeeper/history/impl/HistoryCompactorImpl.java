@@ -0,0 +1,337 @@
+/**
+ * Copyright (C) 2008 NetMind Consulting Bt.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package hu.netmind.beankeeper.history.impl;
+
+import hu.netmind.beankeeper.history.HistoryCompactor;
+import hu.netmind.beankeeper.common.StoreException;
+import hu.netmind.beankeeper.config.ConfigurationTracker;
+import hu.netmind.beankeeper.config.ExtendedConfigurationListener;
+import hu.netmind.beankeeper.db.Database;
+import hu.netmind.beankeeper.model.ClassEntry;
+import hu.netmind.beankeeper.model.ClassInfo;
+import hu.netmind.beankeeper.model.ClassTracker;
+import hu.netmind.beankeeper.node.NodeManager;
+import hu.netmind.beankeeper.query.QueryService;
+import hu.netmind.beankeeper.schema.SchemaManager;
+import hu.netmind.beankeeper.serial.Serial;
+import hu.netmind.beankeeper.serial.SerialTracker;
+import hu.netmind.beankeeper.transaction.Transaction;
+import hu.netmind.beankeeper.transaction.TransactionTracker;
+import hu.netmind.beankeeper.type.PersistentBlob;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.apache.commons.configuration.event.ConfigurationEvent;
+import org.apache.log4j.Logger;
+
+/**
+ * History compactor implementation. The retention is given in milliseconds
+ * globally (<code>beankeeper.history.retention</code>), and can be overridden
+ * for each class entry with the class name appended to the key. Versions are
+ * removed in chunks, each chunk in its own transaction, so the tables
+ * are never locked for a long time. Blobs which are no longer referenced
+ * by any version are removed after the versions. Only the server node compacts,
+ * it asks all nodes for the oldest serial their transactions and result
+ * lists may still read, so versions visible to readers on client nodes stay.
+ * @author Brautigam Robert
+ * @version Revision: $Revision$
+ */
+public class HistoryCompactorImpl implements HistoryCompactor, ExtendedConfigurationListener
+{
+   private static Logger logger = Logger.getLogger(HistoryCompactorImpl.class);
+
+   private static long RETENTION = 0;
+   private static long INTERVAL = 10*60*1000;
+   private static int BATCH_SIZE = 1000;
+
+   private Object compactorMutex = new Object();
+   private boolean running = true;
+   private boolean blobsPending = true; // Blobs may be left from earlier runs
+   private Map<Long,Long> readerSerials = new HashMap<Long,Long>(); // Oldest reader serials by request
+
+   private ConfigurationTracker configurationTracker = null; // Injected
+   private Database database = null; // Injected
+   private TransactionTracker transactionTracker = null; // Injected
+   private QueryService queryService = null; // Injected
+   private ClassTracker classTracker = null; // Injected
+   private SchemaManager schemaManager = null; // Injected
+   private NodeManager nodeManager = null; // Injected
+   private SerialTracker serialTracker = null; // Injected
+
+   public void init(Map parameters)
+   {
+      configurationReload();
+      configurationTracker.addListener(this);
+      Thread compactorThread = new Thread(new Compactor());
+      compactorThread.setName("BeanKeeper History Compactor");
+      compactorThread.setDaemon(true);
+      compactorThread.start();
+   }
+
+   public void release()
+   {
+      configurationTracker.removeListener(this);
+      synchronized ( compactorMutex )
+      {
+         running = false;
+         compactorMutex.notifyAll();
+      }
+   }
+
+   /**
+    * Remove versions older than their retention.
+    */
+   public int compact()
+   {
+      if ( nodeManager.getRole() != NodeManager.NodeRole.SERVER )
+         return 0;
+      // Blobs inserted after this may belong to owners not yet committed.
+      // This is allocated before the readers are checked, so transactions
+      // not yet known to the tracker only insert newer blobs.
+      Long blobSerial = serialTracker.getNextSerial();
+      // Versions which are visible to a reader on any node must stay
+      Long readerSerial = getOldestReaderSerial();
+      if ( (readerSerial != null) && (readerSerial.longValue() < blobSerial.longValue()) )
+         blobSerial = readerSerial;
+      long now = System.currentTimeMillis();
+      int count = 0;
+      Map<String,List<String>> blobColumns = new HashMap<String,List<String>>();
+      for ( ClassEntry entry : classTracker.getClassEntries() )
+      {
+         ClassInfo info = classTracker.getClassInfo(entry);
+         if ( ! info.isStorable() )
+            continue;
+         // Blob columns of all classes are needed, not only the compacted ones
+         List<String> blobAttributeNames = new ArrayList<String>();
+         for ( String attributeName : info.getAttributeNames(entry) )
+         {
+            if ( PersistentBlob.class.isAssignableFrom(info.getAttributeType(attributeName)) )
+               blobAttributeNames.add(attributeName);
+         }
+         if ( ! blobAttributeNames.isEmpty() )
+            blobColumns.put(schemaManager.getTableName(entry),blobAttributeNames);
+         long retention = configurationTracker.getConfiguration().
+            getLong("beankeeper.history.retention."+entry.getFullName(),RETENTION);
+         if ( retention <= 0 )
+            continue;
+         Long serial = Serial.getSerial(new Date(now-retention)).getValue();
+         if ( (readerSerial != null) && (readerSerial.longValue() < serial.longValue()) )
+            serial = readerSerial;
+         // Compact the table of the entry, and the tables of its containers
+         count += compact(schemaManager.getTableName(entry),serial);
+         for ( String attributeName : info.getAttributeNames(entry) )
+         {
+            if ( (classTracker.getType(info.getAttributeType(attributeName)) == 
+                  ClassTracker.ClassType.TYPE_HANDLED) && (! blobAttributeNames.contains(attributeName)) )
+               count += compact(schemaManager.getTableName(entry,attributeName),serial);
+         }
+      }
+      if ( count > 0 )
+         logger.info("history compactor removed "+count+" old versions");
+      // Blobs only become unreferenced when versions are removed
+      if ( ((count > 0) || (blobsPending)) && (! blobColumns.isEmpty()) )
+      {
+         blobsPending = true;
+         int blobCount = removeBlobs(blobColumns,blobSerial);
+         blobsPending = false;
+         if ( blobCount > 0 )
+            logger.info("history compactor removed "+blobCount+" unreferenced blobs");
+      }
+      return count;
+   }
+
+   /**
+    * Get the oldest serial a transaction or a result list may still read
+    * on any node. All nodes report their oldest serial to the server
+    * before the broadcast call returns.
+    * @return The oldest serial, or null if there are no readers.
+    */
+   private Long getOldestReaderSerial()
+   {
+      Long requestId = serialTracker.getNextSerial();
+      synchronized ( readerSerials )
+      {
+         readerSerials.put(requestId,null);
+      }
+      Long serial = null;
+      try
+      {
+         nodeManager.callAll(HistoryCompactor.class.getName(),"reportOldestSerial",
+               new Class[] { Long.class }, new Object[] { requestId });
+      } finally {
+         synchronized ( readerSerials )
+         {
+            serial = readerSerials.remove(requestId);
+         }
+      }
+      return serial;
+   }
+
+   /**
+    * Report the oldest serial the local transactions and result lists
+    * may read to the server. This is called on all nodes by the server.
+    * @param requestId The id of the server's request.
+    */
+   public void reportOldestSerial(Long requestId)
+   {
+      Long serial = transactionTracker.getOldestTransactionSerial();
+      Long listSerial = queryService.getOldestListSerial();
+      if ( (listSerial != null) && 
+            ((serial == null) || (listSerial.longValue() < serial.longValue())) )
+         serial = listSerial;
+      if ( logger.isDebugEnabled() )
+         logger.debug("oldest reader serial for compaction request "+requestId+": "+serial);
+      if ( serial != null )
+         nodeManager.callServer(HistoryCompactor.class.getName(),"notifyOldestSerial",
+               new Class[] { Long.class, Long.class }, new Object[] { requestId, serial });
+   }
+
+   /**
+    * Receive the oldest reader serial of a node. This is called on the
+    * server by each node.
+    * @param requestId The id of the request the serial belongs to.
+    * @param serial The oldest serial the node's readers may read.
+    */
+   public void notifyOldestSerial(Long requestId, Long serial)
+   {
+      synchronized ( readerSerials )
+      {
+         if ( ! readerSerials.containsKey(requestId) )
+            return; // Request already finished
+         Long oldestSerial = readerSerials.get(requestId);
+         if ( (oldestSerial == null) || (serial.longValue() < oldestSerial.longValue()) )
+            readerSerials.put(requestId,serial);
+      }
+   }
+
+   /**
+    * Remove blobs not referenced by any version of their owner, in chunks.
+    * Blobs of owners which are not known here are kept.
+    */
+   private int removeBlobs(Map<String,List<String>> blobColumns, Long serial)
+   {
+      int count = 0;
+      int chunkCount = 0;
+      do
+      {
+         Transaction transaction = transactionTracker.getTransaction(TransactionTracker.TX_NEW);
+         transaction.begin();
+         try
+         {
+            chunkCount = database.removeBlobs(transaction,blobColumns,serial,BATCH_SIZE);
+         } catch ( StoreException e ) {
+            transaction.markRollbackOnly();
+            throw e;
+         } catch ( Throwable e ) {
+            transaction.markRollbackOnly();
+            throw new StoreException("unexpected error while removing blobs",e);
+         } finally {
+            transaction.commit();
+         }
+         count += chunkCount;
+         if ( logger.isDebugEnabled() )
+            logger.debug("removed "+chunkCount+" unreferenced blobs");
+      } while ( (chunkCount >= BATCH_SIZE) && (running) );
+      return count;
+   }
+
+   /**
+    * Remove old versions of a single table, in chunks.
+    */
+   private int compact(String tableName, Long serial)
+   {
+      int count = 0;
+      int chunkCount = 0;
+      do
+      {
+         Transaction transaction = transactionTracker.getTransaction(TransactionTracker.TX_NEW);
+         transaction.begin();
+         try
+         {
+            chunkCount = database.removeHistory(transaction,tableName,serial,BATCH_SIZE);
+         } catch ( StoreException e ) {
+            transaction.markRollbackOnly();
+            throw e;
+         } catch ( Throwable e ) {
+            transaction.markRollbackOnly();
+            throw new StoreException("unexpected error while compacting: "+tableName,e);
+         } finally {
+            transaction.commit();
+         }
+         count += chunkCount;
+         if ( logger.isDebugEnabled() )
+            logger.debug("removed "+chunkCount+" old versions from: "+tableName);
+      } while ( (chunkCount >= BATCH_SIZE) && (running) );
+      return count;
+   }
+
+   public void configurationChanged(ConfigurationEvent event)
+   {
+      if ( (event.getPropertyName()!=null) && 
+            (event.getPropertyName().startsWith("beankeeper.history")) )
+         configurationReload();
+   }
+
+   public void configurationReload()
+   {
+      RETENTION = configurationTracker.getConfiguration().
+         getLong("beankeeper.history.retention",0);
+      INTERVAL = configurationTracker.getConfiguration().
+         getLong("beankeeper.history.compact_interval",10*60*1000);
+      BATCH_SIZE = configurationTracker.getConfiguration().
+         getInt("beankeeper.history.compact_batch_size",1000);
+      // Interval may be shorter now
+      synchronized ( compactorMutex )
+      {
+         compactorMutex.notifyAll();
+      }
+   }
+
+   private class Compactor implements Runnable
+   {
+      public void run()
+      {
+         long lastRun = System.currentTimeMillis();
+         while ( running )
+         {
+            try
+            {
+               synchronized ( compactorMutex )
+               {
+                  // Wait again if only the interval changed
+                  long waitTime = lastRun+Math.max(1000,INTERVAL)-System.currentTimeMillis();
+                  if ( (running) && (waitTime > 0) )
+                  {
+                     compactorMutex.wait(waitTime);
+                     continue;
+                  }
+               }
+               lastRun = System.currentTimeMillis();
+               if ( running )
+                  compact();
+            } catch ( Exception e ) {
+               logger.error("history compactor encountered an error",e);
+            }
+         }
+         logger.debug("history compactor stopped");
+      }
+   }
+}
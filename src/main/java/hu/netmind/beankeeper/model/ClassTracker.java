@@ -100,6 +100,11 @@ public interface ClassTracker extends Service
     */
    ClassEntry getClassEntry(Integer id);
 
+   /**
+    * Get all class entries recorded in the database.
+    */
+   List<ClassEntry> getClassEntries();
+
    /**
     * Get a Class instance for a class name postfix. The given parameter
     * is treated as a postfix for a fully qualified class name. The postfix
@@ -251,6 +251,17 @@ public class ClassTrackerImpl implements ClassTracker, PersistenceEventListener
       }
    }
 
+   /**
+    * Get all class entries recorded in the database.
+    */
+   public List<ClassEntry> getClassEntries()
+   {
+      synchronized ( this )
+      {
+         return new ArrayList<ClassEntry>(entriesById.values());
+      }
+   }
+
    /**
     * Get the id for a class entry.
     */
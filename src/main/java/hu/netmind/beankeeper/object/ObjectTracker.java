@@ -159,6 +159,24 @@ public interface ObjectTracker extends Service
     */
    void updateObjectId(Long id, Map<String,Object> attributes);
 
+   /**
+    * Mark attributes of an object as not loaded. Until these attributes
+    * are set to a different value, they are not considered changed, so
+    * saving the object keeps their values in the database.
+    * @param obj The object which was partially loaded.
+    * @param attributes The names of the attributes not loaded, with
+    * the values the attributes had after loading.
+    */
+   void setUnloadedAttributes(Object obj, Map<String,Object> attributes);
+
+   /**
+    * Get the attributes of an object which were not loaded.
+    * @param obj The object which may be partially loaded.
+    * @return The names of the attributes not loaded, with the values the
+    * attributes had after loading, or null if all attributes were loaded.
+    */
+   Map<String,Object> getUnloadedAttributes(Object obj);
+
    /**
     * Get a wrapper for an object.
     */
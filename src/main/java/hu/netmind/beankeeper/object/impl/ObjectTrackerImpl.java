@@ -89,6 +89,18 @@ public class ObjectTrackerImpl implements ObjectTracker, WeakMapListener
          return true;
       // Get values  
       Object value = info.getAttributeValue(obj,attributeName);
+      // If the attribute was not loaded, and it was not set since,
+      // it is not changed, whatever is in the database
+      Map unloadedAttributes = getObjectData(obj).getUnloadedAttributes();
+      if ( (unloadedAttributes != null) && (unloadedAttributes.containsKey(attributeName)) )
+      {
+         Object unloadedValue = unloadedAttributes.get(attributeName);
+         if ( (value==unloadedValue) || ((value!=null) && (value.equals(unloadedValue))) )
+         {
+            logger.debug("attribute was not loaded, and it was not set, not changed.");
+            return false;
+         }
+      }
       Object dbValue = dbAttributes.get(attributeName);
       // Check nulls
       if ( (dbValue==null) && (value==null) )
@@ -455,6 +467,30 @@ public class ObjectTrackerImpl implements ObjectTracker, WeakMapListener
       }
    }
 
+   /**
+    * Mark attributes of an object as not loaded.
+    * @param obj The object which was partially loaded.
+    * @param attributes The names of the attributes not loaded, with
+    * the values the attributes had after loading.
+    */
+   public void setUnloadedAttributes(Object obj, Map attributes)
+   {
+      getObjectData(obj).setUnloadedAttributes(attributes);
+   }
+
+   /**
+    * Get the attributes of an object which were not loaded.
+    * @return The attributes not loaded with their values after loading,
+    * or null if all attributes were loaded.
+    */
+   public Map getUnloadedAttributes(Object obj)
+   {
+      ObjectData data = getObjectData(obj);
+      if ( data == null )
+         return null;
+      return data.getUnloadedAttributes();
+   }
+
    /**
     * Get an object wrapper for an object which disregards object's
     * own equals() and hashCode() methods.
@@ -476,11 +512,21 @@ public class ObjectTrackerImpl implements ObjectTracker, WeakMapListener
       private boolean exists;
       private boolean currentlyExists; // Inside transaction it may differ from 'exists'.
       private PersistenceMetaDataImpl metaData;
+      private Map unloadedAttributes; // Attributes not loaded, with their values
 
       public ObjectData()
       {
       }
 
+      public Map getUnloadedAttributes()
+      {
+         return unloadedAttributes;
+      }
+      public void setUnloadedAttributes(Map unloadedAttributes)
+      {
+         this.unloadedAttributes=unloadedAttributes;
+      }
+
       public PersistenceMetaDataImpl getMetaData()
       {
          return metaData;
@@ -21,10 +21,13 @@ package hu.netmind.beankeeper.parser;
 import java.util.Iterator;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.Set;
 import java.util.HashSet;
+import java.util.Map;
 import org.apache.log4j.Logger;
+import hu.netmind.beankeeper.query.QueryControl;
 
 /**
  * This class represents a query statement. A query statement
@@ -39,7 +42,11 @@ public class QueryStatement
 
    public static final int MODE_FIND = 1;
    public static final int MODE_VIEW = 2;
-   
+
+   private static final Set<String> TIME_COLUMNS = new HashSet<String>(Arrays.asList(new String[] {
+            "persistence_start", "persistence_end", "persistence_txstart",
+            "persistence_txstartid", "persistence_txend", "persistence_txendid" }));
+
    private int mode = MODE_FIND;
    private List selectTerms = new ArrayList();
    private Set specifiedTerms = new HashSet();
@@ -48,6 +55,9 @@ public class QueryStatement
    private TimeControl timeControl;
    private String originalStatement;   
    private String staticRepresentation;
+   private Set fetchColumns;
+   private Map historyTables;
+   private QueryControl control;
 
    public QueryStatement(QueryStatement stmt)
    {
@@ -59,6 +69,9 @@ public class QueryStatement
       setOrderByList(stmt.getOrderByList());
       setOriginalStatement(stmt.getOriginalStatement());
       setStaticRepresentation(stmt.getStaticRepresentation());
+      setFetchColumns(stmt.getFetchColumns());
+      setHistoryTables(stmt.getHistoryTables());
+      setControl(stmt.getControl());
    }
 
    public QueryStatement deepCopy()
@@ -136,6 +149,201 @@ public class QueryStatement
       return tables;
    }
 
+   /**
+    * Compute the ids the selected objects are bound to. The persistence
+    * id of the selected class must be compared to constant ids in "and"
+    * terms of the expression.
+    * @return The bound ids, or null if any object may be selected.
+    */
+   public Set<Long> computeBoundIds()
+   {
+      if ( (queryExpression == null) || (selectTerms.isEmpty()) || (isDisjunction(queryExpression)) )
+         return null;
+      TableTerm mainTerm = (TableTerm) selectTerms.get(0);
+      Set<Long> boundIds = new HashSet<Long>();
+      if ( ! addBoundIds(queryExpression,mainTerm,boundIds) )
+         return null;
+      return boundIds;
+   }
+
+   /**
+    * Compute the columns the expression of this statement references. The
+    * time control columns and the persistence id are not included, because
+    * they do not change with the attributes of an object.
+    * @param tableNames The tables the columns may belong to.
+    * @return The lower case column names, or null if the expression
+    * references other tables, or terms which are not simple columns.
+    */
+   public Set<String> computeColumns(Set<String> tableNames)
+   {
+      Set<String> columns = new HashSet<String>();
+      if ( (queryExpression != null) && (! addColumns(queryExpression,tableNames,columns)) )
+         return null;
+      return columns;
+   }
+
+   private boolean addColumns(Expression expr, Set<String> tableNames, Set<String> columns)
+   {
+      for ( Object item : expr )
+      {
+         if ( item instanceof Expression )
+         {
+            if ( ! addColumns((Expression) item,tableNames,columns) )
+               return false;
+         } else if ( item instanceof ReferenceTerm ) {
+            if ( ! addColumn((ReferenceTerm) item,tableNames,columns) )
+               return false;
+         } else if ( ! ((item instanceof ConstantTerm) || (item instanceof String)) ) {
+            return false;
+         }
+      }
+      return true;
+   }
+
+   private boolean addColumn(ReferenceTerm term, Set<String> tableNames, Set<String> columns)
+   {
+      if ( ! tableNames.contains(term.getTableName()) )
+         return false;
+      String columnName = term.getColumnName().toLowerCase();
+      if ( (! TIME_COLUMNS.contains(columnName)) && (! "persistence_id".equals(columnName)) )
+         columns.add(columnName);
+      return true;
+   }
+
+   /**
+    * Determine whether this statement selects objects of a single class
+    * only by their ids. Besides the id terms, the expression may only
+    * contain the time conditions of the selected class.
+    */
+   public boolean isIdSelect()
+   {
+      if ( (mode != MODE_FIND) || (specifiedTerms.size() != 1) || (selectTerms.size() != 1) ||
+            (computeBoundIds() == null) )
+         return false;
+      TableTerm mainTerm = (TableTerm) selectTerms.get(0);
+      return isIdCondition(queryExpression,mainTerm);
+   }
+
+   /**
+    * Determine whether the top level of the expression contains other
+    * logical operators than "and".
+    */
+   private boolean isDisjunction(Expression expr)
+   {
+      for ( Object item : expr )
+         if ( ("or".equalsIgnoreCase(item.toString())) || ("not".equalsIgnoreCase(item.toString())) )
+            return true;
+      return false;
+   }
+
+   /**
+    * Collect the ids the persistence id of the main term is compared to
+    * in "and" terms of the expression. Sub-expressions are only inspected
+    * if they are "and" terms of the expression themselves.
+    * @return True, if there was at least one such term.
+    */
+   private boolean addBoundIds(Expression expr, TableTerm mainTerm, Set<Long> boundIds)
+   {
+      boolean bound = false;
+      for ( int i=0; i<expr.size(); i++ )
+      {
+         // The term must be a whole "and" term
+         if ( (i>0) && (! "and".equalsIgnoreCase(expr.get(i-1).toString())) )
+            continue;
+         Object item = expr.get(i);
+         if ( item instanceof Expression )
+         {
+            Expression subExpr = (Expression) item;
+            if ( ((i+1==expr.size()) || ("and".equalsIgnoreCase(expr.get(i+1).toString()))) &&
+                  (! isDisjunction(subExpr)) )
+               bound |= addBoundIds(subExpr,mainTerm,boundIds);
+            continue;
+         }
+         if ( (i+2>=expr.size()) || (! "=".equals(expr.get(i+1))) ||
+               ((i+3<expr.size()) && (! "and".equalsIgnoreCase(expr.get(i+3).toString()))) )
+            continue;
+         // Term is: a = b
+         Long id = getBoundId(item,expr.get(i+2),mainTerm);
+         if ( id == null )
+            id = getBoundId(expr.get(i+2),item,mainTerm);
+         if ( id != null )
+         {
+            boundIds.add(id);
+            bound = true;
+         }
+      }
+      return bound;
+   }
+
+   /**
+    * Get the id if the left side is the persistence id of the main term,
+    * and the right side is a constant id.
+    */
+   private Long getBoundId(Object left, Object right, TableTerm mainTerm)
+   {
+      if ( (left instanceof ReferenceTerm) && (right instanceof ConstantTerm) &&
+            ("persistence_id".equals(((ReferenceTerm) left).getColumnName())) &&
+            (((ReferenceTerm) left).getFunction() == null) &&
+            (mainTerm.equals(left)) &&
+            (((ConstantTerm) right).getValue() instanceof Long) )
+         return (Long) ((ConstantTerm) right).getValue();
+      return null;
+   }
+
+   /**
+    * Determine whether all "and" terms of the expression are either id
+    * terms of the main term, or time conditions.
+    */
+   private boolean isIdCondition(Expression expr, TableTerm mainTerm)
+   {
+      int start = 0;
+      for ( int i=0; i<=expr.size(); i++ )
+      {
+         if ( (i<expr.size()) && (! "and".equalsIgnoreCase(expr.get(i).toString())) )
+            continue;
+         // Term is between start and i
+         List term = expr.subList(start,i);
+         start = i+1;
+         if ( (term.size() == 1) && (term.get(0) instanceof Expression) &&
+               (! isDisjunction((Expression) term.get(0))) )
+         {
+            if ( ! isIdCondition((Expression) term.get(0),mainTerm) )
+               return false;
+         } else if ( (term.size() == 3) && ("=".equals(term.get(1))) &&
+               ((getBoundId(term.get(0),term.get(2),mainTerm) != null) ||
+                (getBoundId(term.get(2),term.get(0),mainTerm) != null)) ) {
+            continue;
+         } else if ( ! isTimeCondition(term) ) {
+            return false;
+         }
+      }
+      return true;
+   }
+
+   /**
+    * Determine whether the term only references time control columns.
+    */
+   private boolean isTimeCondition(List term)
+   {
+      if ( term.isEmpty() )
+         return false;
+      for ( Object item : term )
+      {
+         if ( item instanceof Expression )
+         {
+            if ( ! isTimeCondition((Expression) item) )
+               return false;
+         } else if ( item instanceof ReferenceTerm ) {
+            ReferenceTerm refTerm = (ReferenceTerm) item;
+            if ( (refTerm.getFunction() != null) || (! TIME_COLUMNS.contains(refTerm.getColumnName())) )
+               return false;
+         } else if ( ! ((item instanceof ConstantTerm) || (item instanceof String)) ) {
+            return false;
+         }
+      }
+      return true;
+   }
+
    /**
     * Get the specified term for a given term.
     * @return The specified term for the given term, or an empty
@@ -273,6 +481,48 @@ public class QueryStatement
       this.staticRepresentation=staticRepresentation;
    }
 
+   /**
+    * Get the columns of the selected class which should be loaded.
+    * @return The column names, or null if all columns are loaded.
+    */
+   public Set getFetchColumns()
+   {
+      return fetchColumns;
+   }
+   public void setFetchColumns(Set fetchColumns)
+   {
+      this.fetchColumns=fetchColumns;
+   }
+
+   /**
+    * Get the tables which should be selected together with their
+    * history tables.
+    * @return The map of table names to history table names, or null
+    * if only the live tables are selected.
+    */
+   public Map getHistoryTables()
+   {
+      return historyTables;
+   }
+   public void setHistoryTables(Map historyTables)
+   {
+      this.historyTables=historyTables;
+   }
+
+   /**
+    * Get the control of the query this statement belongs to, which
+    * gives the timeout and may cancel the selects.
+    * @return The control, or null if the default timeout applies.
+    */
+   public QueryControl getControl()
+   {
+      return control;
+   }
+   public void setControl(QueryControl control)
+   {
+      this.control=control;
+   }
+
    public String getOriginalStatement()
    {
       return originalStatement;
@@ -108,6 +108,34 @@ public class WhereResolver
       return tableTerm;
    }
 
+   /**
+    * Resolve the attributes of a fetch group to the columns of the
+    * main table, which represent the attributes.
+    */
+   public Set resolveFetchGroup(List attributeNames)
+   {
+      Set columns = new TreeSet();
+      for ( int i=0; i<attributeNames.size(); i++ )
+      {
+         String attributeName = (String) attributeNames.get(i);
+         Class attributeClass = mainClassInfo.getAttributeType(attributeName);
+         if ( attributeClass == null )
+            throw new ParserException(ParserException.ABORT,"can not resolve the fetched attribute '"+
+                  attributeName+"', classinfo: "+mainClassInfo);
+         if ( classTracker.getType(attributeClass) == ClassTracker.ClassType.TYPE_HANDLED )
+         {
+            // Handled attributes may be represented by more columns
+            Iterator columnIterator = typeHandlerTracker.getHandler(attributeClass).
+               getAttributeTypes(attributeName).keySet().iterator();
+            while ( columnIterator.hasNext() )
+               columns.add(((String) columnIterator.next()).toLowerCase());
+         } else {
+            columns.add(attributeName.toLowerCase());
+         }
+      }
+      return columns;
+   }
+
    private ReferenceTerm getReferenceTerm(SymbolTableEntry entry)
    {
       switch ( entry.type )
@@ -1022,7 +1050,8 @@ public class WhereResolver
                subStmt.getSelectTerms().toString()+" "+
                subStmt.getSpecifiedTerms().toString()+" "+
                (subStmt.getQueryExpression()!=null?subStmt.getQueryExpression().toString():"")+
-               (subStmt.getOrderByList()!=null?subStmt.getOrderByList().toString():""));
+               (subStmt.getOrderByList()!=null?subStmt.getOrderByList().toString():"")+
+               (subStmt.getFetchColumns()!=null?" fetch "+subStmt.getFetchColumns():""));
          // Generate date constraints
          subStmt.setQueryExpression(
                fixDateConstraints(localAllTableTerms,
@@ -1048,7 +1077,8 @@ public class WhereResolver
                subStmt.getSelectTerms().toString()+" "+
                subStmt.getSpecifiedTerms().toString()+" "+
                (subStmt.getQueryExpression()!=null?subStmt.getQueryExpression().toString():"")+
-               (subStmt.getOrderByList()!=null?subStmt.getOrderByList().toString():""));
+               (subStmt.getOrderByList()!=null?subStmt.getOrderByList().toString():"")+
+               (subStmt.getFetchColumns()!=null?" fetch "+subStmt.getFetchColumns():""));
          // Generate date constraints on all but the main term
          subStmt.setQueryExpression(
                fixDateConstraints(localAllTableTermsCore,
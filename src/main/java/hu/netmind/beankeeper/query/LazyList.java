@@ -20,6 +20,7 @@ package hu.netmind.beankeeper.query;
 
 import hu.netmind.beankeeper.parser.QueryStatementList;
 import java.util.List;
+import java.util.concurrent.Future;
 
 /**
  * Lazy lists do not usually contain their full content in memory. The hooks
@@ -50,6 +51,17 @@ public interface LazyList extends List
     * like list is small, result window large, etc.
     */
    boolean isIterationCheap();
+
+   /**
+    * Load the page of the list which contains the given index in the
+    * background. If there is a current transaction, the page is loaded
+    * in that transaction in the calling thread instead. Accessing the
+    * list waits until the page is loaded.
+    * @param index The index of the item to load.
+    * @return The future of the item at the index, or of null if the list
+    * is shorter.
+    */
+   Future prefetch(int index);
 }
 
 
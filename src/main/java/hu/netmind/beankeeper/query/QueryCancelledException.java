@@ -0,0 +1,41 @@
+/**
+ * Copyright (C) 2008 NetMind Consulting Bt.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package hu.netmind.beankeeper.query;
+
+import hu.netmind.beankeeper.common.StoreException;
+
+/**
+ * Thrown if a select of a query was cancelled through its
+ * <code>QueryControl</code>, or did not finish within its timeout. The
+ * transaction the select ran in is marked rollback-only.
+ * @author Brautigam Robert
+ * @version Revision: $Revision$
+ */
+public class QueryCancelledException extends StoreException
+{
+   public QueryCancelledException(String message)
+   {
+      super(message);
+   }
+
+   public QueryCancelledException(String message, Throwable cause)
+   {
+      super(message,cause);
+   }
+}
@@ -0,0 +1,135 @@
+/**
+ * Copyright (C) 2008 NetMind Consulting Bt.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package hu.netmind.beankeeper.query;
+
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import org.apache.log4j.Logger;
+
+/**
+ * Controls the selects of a query. The timeout applies to each select
+ * of the result separately, so a result list which selects more pages
+ * may run longer in total. A query can be cancelled from another thread,
+ * in which case the currently running select is cancelled, and all further
+ * selects of the result fail with <code>QueryCancelledException</code>.
+ * @author Brautigam Robert
+ * @version Revision: $Revision$
+ */
+public class QueryControl
+{
+   private static Logger logger = Logger.getLogger(QueryControl.class);
+
+   private long timeout = 0;
+   private boolean cancelled = false;
+   private Set<Statement> statements = new HashSet<Statement>();
+
+   /**
+    * Create a control without timeout. The configured default timeout
+    * applies.
+    */
+   public QueryControl()
+   {
+   }
+
+   /**
+    * Create a control with the given timeout.
+    * @param timeout The timeout of each select in milliseconds.
+    */
+   public QueryControl(long timeout)
+   {
+      this.timeout=timeout;
+   }
+
+   /**
+    * Get the timeout of each select in milliseconds. If 0, the
+    * configured default timeout applies.
+    */
+   public long getTimeout()
+   {
+      return timeout;
+   }
+   public void setTimeout(long timeout)
+   {
+      this.timeout=timeout;
+   }
+
+   /**
+    * Returns whether the query was cancelled.
+    */
+   public boolean isCancelled()
+   {
+      synchronized ( statements )
+      {
+         return cancelled;
+      }
+   }
+
+   /**
+    * Cancel the query. The selects currently running are cancelled, and
+    * no more selects will be run.
+    */
+   public void cancel()
+   {
+      List<Statement> runningStatements = null;
+      synchronized ( statements )
+      {
+         cancelled = true;
+         runningStatements = new ArrayList<Statement>(statements);
+      }
+      for ( Statement statement : runningStatements )
+      {
+         try
+         {
+            statement.cancel();
+         } catch ( Exception e ) {
+            logger.debug("could not cancel statement",e);
+         }
+      }
+   }
+
+   /**
+    * Register a statement which is about to run. This is called by
+    * the database implementation.
+    * @throws QueryCancelledException If the query was already cancelled.
+    */
+   public void statementStarted(Statement statement)
+   {
+      synchronized ( statements )
+      {
+         if ( cancelled )
+            throw new QueryCancelledException("query was cancelled");
+         statements.add(statement);
+      }
+   }
+
+   /**
+    * Unregister a statement which finished. This is called by the
+    * database implementation.
+    */
+   public void statementFinished(Statement statement)
+   {
+      synchronized ( statements )
+      {
+         statements.remove(statement);
+      }
+   }
+}
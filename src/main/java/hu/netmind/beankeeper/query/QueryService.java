@@ -22,6 +22,7 @@ import hu.netmind.beankeeper.service.Service;
 import hu.netmind.beankeeper.parser.*;
 import hu.netmind.beankeeper.db.SearchResult;
 import hu.netmind.beankeeper.db.Limits;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -48,6 +49,27 @@ public interface QueryService extends Service
    LazyList find(String statement, Object[] parameters, TimeControl timeControl,
          Map unmashalledObjects);
 
+   /**
+    * Select with a control, which sets the timeout of the selects,
+    * and can cancel them.
+    */
+   LazyList find(String statement, Object[] parameters, QueryControl control);
+
+   /**
+    * Select more independent statements at the same time. The first
+    * pages of the results are selected together.
+    * @param statements The query statements.
+    * @param parameters The parameters of each statement, or null.
+    * @return The result lists in the order of the statements.
+    */
+   List<LazyList> findBatch(List<String> statements, List<Object[]> parameters);
+
+   /**
+    * Select objects as a cursor, which does not hold the result
+    * in memory.
+    */
+   ResultCursor stream(String statement, Object[] parameters);
+
    /**
     * Select object lazily from a given statement.
     */
@@ -65,11 +87,36 @@ public interface QueryService extends Service
     */
    SearchResult find(QueryStatement stmt, Limits limits, Map unmarshalledObjects);
 
+   /**
+    * Determine whether the given statements can be selected together
+    * in a single select.
+    */
+   boolean isUnionSupported(List<QueryStatement> stmts);
+
+   /**
+    * Determine whether the database sorts null values after all
+    * other values in the given direction.
+    */
+   boolean isNullSortedLast(boolean ascending);
+
+   /**
+    * Select objects of more statements in a single select. The order and
+    * limits apply to the whole result.
+    */
+   SearchResult find(List<QueryStatement> stmts, Limits limits, Map unmarshalledObjects);
+
    /**
     * Select objects from a given range, with a programmatic
     * query.
     */
    SearchResult find(QueryStatement stmt, Limits limits);
+
+   /**
+    * Get the serial of the oldest result list which is still referenced,
+    * and so may still select pages.
+    * @return The serial, or null if there are no such lists.
+    */
+   Long getOldestListSerial();
 }
 
 
@@ -0,0 +1,40 @@
+/**
+ * Copyright (C) 2008 NetMind Consulting Bt.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package hu.netmind.beankeeper.query;
+
+import java.util.Iterator;
+
+/**
+ * Iterates over the result of a query without holding the whole result
+ * in memory. Objects are unmarshalled as the cursor advances, and are not
+ * referenced by the cursor afterwards. The cursor keeps its transaction
+ * and database resources until it is closed, which happens automatically
+ * after the last object, or explicitly with <code>close()</code>.
+ * @author Brautigam Robert
+ * @version Revision: $Revision$
+ */
+public interface ResultCursor extends Iterator
+{
+   /**
+    * Release the resources of this cursor and end its transaction.
+    * Calling this method more than once has no effect.
+    */
+   void close();
+}
+
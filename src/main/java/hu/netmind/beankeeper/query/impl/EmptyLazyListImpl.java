@@ -19,6 +19,9 @@
 package hu.netmind.beankeeper.query.impl;
 
 import java.util.AbstractList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 import hu.netmind.beankeeper.query.LazyList;
 import hu.netmind.beankeeper.query.LazyListHooks;
 import hu.netmind.beankeeper.parser.*;
@@ -76,6 +79,22 @@ public class EmptyLazyListImpl extends AbstractList implements LazyList
    {
       return true;
    }
+
+   /**
+    * Returns a future of null, there is nothing to load.
+    */
+   public Future prefetch(int index)
+   {
+      FutureTask result = new FutureTask(new Callable()
+            {
+               public Object call()
+               {
+                  return null;
+               }
+            });
+      result.run();
+      return result;
+   }
 }
 
 
@@ -25,7 +25,10 @@ import hu.netmind.beankeeper.query.QueryService;
 import hu.netmind.beankeeper.model.*;
 import hu.netmind.beankeeper.config.ConfigurationTracker;
 import hu.netmind.beankeeper.schema.SchemaManager;
+import hu.netmind.beankeeper.async.AsyncService;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
 import java.io.Serializable;
 import java.io.ObjectStreamException;
 import org.apache.log4j.Logger;
@@ -47,6 +50,8 @@ public class LazyListImpl extends AbstractList implements LazyList, Serializable
    public int BATCH_SIZE_LINEARMULTIPLIER = 3;
    public int BATCH_SIZE_MAX = 2500;
    public int MAX_JOINS = 16;
+   public boolean KEYSET_PAGING = true;
+   public boolean UNION_SELECT = true;
    
    private Map unmarshalledObjects = null;
    private LazyListHooks hooks = null;
@@ -59,15 +64,23 @@ public class LazyListImpl extends AbstractList implements LazyList, Serializable
    private boolean initialized;
    private int linearCount = 0;
    private int linearLastIndex = -1;
+   private boolean keyset = false;
+   private List listKeys;
+   private boolean union = false;
+   private boolean merge = false; // Statements are selected separately, but merged in order
+   private Page aheadPage = null; // Page loaded in advance by prefetch
 
    private QueryService queryService = null;
    private ClassTracker classTracker = null;
    private ConfigurationTracker config = null;
    private SchemaManager schemaManager = null;
+   private AsyncService asyncService = null;
 
    LazyListImpl(QueryService queryService, ClassTracker classTracker, ConfigurationTracker config,
-         SchemaManager schemaManager, QueryStatementList stmts,Map unmarshalledObjects)
+         SchemaManager schemaManager, AsyncService asyncService,
+         QueryStatementList stmts,Map unmarshalledObjects)
    {
+      this.asyncService=asyncService;
       this.queryService=queryService;
       this.classTracker=classTracker;
       this.schemaManager=schemaManager;
@@ -102,7 +115,7 @@ public class LazyListImpl extends AbstractList implements LazyList, Serializable
    /**
     * Get the object on the given.
     */
-   public Object get(int index)
+   public synchronized Object get(int index)
    {
       initialize();
       updateList(index);
@@ -112,27 +125,31 @@ public class LazyListImpl extends AbstractList implements LazyList, Serializable
    /**
     * Calculate the offset of a given statement.
     */
-   public long getStmtOffset(int index)
+   public synchronized long getStmtOffset(int index)
    {
       // Initialize
       if ( stmtOffsets == null )
       {
-         stmtOffsets = new long[stmts.size()+1];
+         stmtOffsets = new long[getStmtCount()+1];
          stmtOffsets[0]=0;
-         for ( int i=0; i<stmts.size(); i++ )
+         for ( int i=0; i<getStmtCount(); i++ )
             stmtOffsets[i+1]=-1;
       }
       // Calculate
       if ( logger.isDebugEnabled() )
-         logger.debug("calculating size for stmt index: "+index+"/"+stmts.size());
+         logger.debug("calculating size for stmt index: "+index+"/"+getStmtCount());
       if ( stmtOffsets[index] < 0 )
       {
          for ( int i=0; i<index; i++ )
          {
             if ( stmtOffsets[i+1] >= 0 )
                continue;
-            SearchResult result = queryService.find( (QueryStatement) stmts.get(i),
-                  new Limits(0,0,-1),null);
+            SearchResult result = null;
+            if ( (union) || (merge) )
+               result = findAll(stmts,new Limits(0,0,-1));
+            else
+               result = queryService.find( (QueryStatement) stmts.get(i),
+                     new Limits(0,0,-1),null);
             stmtOffsets[i+1]=stmtOffsets[i]+result.getResultSize();
          }
       }
@@ -145,20 +162,33 @@ public class LazyListImpl extends AbstractList implements LazyList, Serializable
     * Get the predicted size from database. This value <strong>never</strong>
     * changes.
     */
-   public int size()
+   public synchronized int size()
    {
       initialize();
-      return (int) getStmtOffset(stmts.size());
+      return (int) getStmtOffset(getStmtCount());
    }
 
-   public void refresh()
+   /**
+    * Get the number of selects the list is paged over. If all statements
+    * are selected together, this is one.
+    */
+   private int getStmtCount()
+   {
+      if ( (union) || (merge) )
+         return 1;
+      return stmts.size();
+   }
+
+   public synchronized void refresh()
    {
       list = null;
+      listKeys = null;
       stmtOffsets=null;
       offset = 0;
       linearLastIndex = -1;
       linearCount = 0;
       hasNext = false;
+      aheadPage = null;
    }
 
    /**
@@ -179,10 +209,42 @@ public class LazyListImpl extends AbstractList implements LazyList, Serializable
          throw new ArrayIndexOutOfBoundsException("lazy list index given was: "+index+", thats < 0 and illegal.");
       if ( (list!=null) && (index<offset+list.size()) && (index>=offset) )
          return; // List has the desired item
+      // Use the page loaded in advance, if it has the desired item
+      if ( (aheadPage!=null) && (aheadPage.contains(index)) )
+      {
+         if ( logger.isDebugEnabled() )
+            logger.debug("list index: "+index+" was prefetched with offset: "+aheadPage.offset);
+         offset = aheadPage.offset;
+         list = aheadPage.list;
+         listKeys = aheadPage.keys;
+         hasNext = aheadPage.hasNext;
+         aheadPage = null;
+         linearCount = 0;
+         linearLastIndex = index;
+         return;
+      }
+      loadPage(index);
+      linearCount = 0;
+      linearLastIndex = index;
+   }
+
+   /**
+    * Load the page which contains the given index into the list window.
+    * The linear counters only determine the size of the page, they
+    * are not modified.
+    */
+   private void loadPage(int index)
+   {
       // Determine whether the update will get the next page linearly
       boolean nextPage = false;
       if ( list != null )
          nextPage = ( index == offset+list.size() );
+      // If the next page is selected, and the sort keys of the last item
+      // are known, the next page can be selected with a condition
+      // instead of an offset.
+      PageKey afterKey = null;
+      if ( (nextPage) && (keyset) && (KEYSET_PAGING) && (hooks==null) && (listKeys.size()>0) )
+         afterKey = (PageKey) listKeys.get(listKeys.size()-1);
       // Determine the startindex and size of the current select
       int batchSize = BATCH_SIZE;
       if ( list != null )
@@ -202,8 +264,6 @@ public class LazyListImpl extends AbstractList implements LazyList, Serializable
          startIndex = 0;
       if ( logger.isDebugEnabled() )
          logger.debug("list index: "+index+", startindex: "+startIndex+", batchsize: "+batchSize+", linearcount was: "+linearCount);
-      linearCount = 0;
-      linearLastIndex = index;
       // Determine the statement to use for given index
       HashMap session = new HashMap();
       getStmtOffset(0); // Initialize offsets
@@ -214,14 +274,14 @@ public class LazyListImpl extends AbstractList implements LazyList, Serializable
       if ( stmtIndex < 0 )
       {
          stmtIndex = 0;
-         while ( (stmtIndex<stmts.size()) && (stmtOffsets[stmtIndex]>=0) &&
+         while ( (stmtIndex<getStmtCount()) && (stmtOffsets[stmtIndex]>=0) &&
                (stmtOffsets[stmtIndex+1]>=0) && (stmtOffsets[stmtIndex+1]<=startIndex) )
          {
             realOffset=stmtOffsets[stmtIndex];
             stmtIndex++;
          }
       }
-      if ( stmtIndex >= stmts.size() )
+      if ( stmtIndex >= getStmtCount() )
          throw new ArrayIndexOutOfBoundsException("Tried to reach index: "+index+", but that was not available.");
       if ( logger.isDebugEnabled() )
          logger.debug("asked index is: "+index+", real offset: "+realOffset+", stmt index: "+stmtIndex+", start index: "+startIndex);
@@ -232,21 +292,62 @@ public class LazyListImpl extends AbstractList implements LazyList, Serializable
       if ( nextPage )
          previousList = new ArrayList(list);
       list = new ArrayList(batchSize);
+      listKeys = new ArrayList(batchSize);
       // Load the already unmarshalled objects. Load until
       // list vector is full, or out of result entries. Note: we load
       // plus one entry, so we know, that there is a next entry.
       boolean override = false;
-      while ( (stmtIndex<stmts.size()) && ((list.size()<=batchSize)||(override)) )
+      while ( (stmtIndex<getStmtCount()) && ((list.size()<=batchSize)||(override)) )
       {
          if ( logger.isDebugEnabled() )
-            logger.debug("lazy list statement iteration: "+stmtIndex+"/"+stmts.size()+
+            logger.debug("lazy list statement iteration: "+stmtIndex+"/"+getStmtCount()+
                   ", current size: "+list.size()+"/"+batchSize);
          override=false;
+         if ( (union) || (merge) )
+         {
+            // Select all statements together, the page is
+            // selected from the ordered whole list
+            Limits limits = new Limits(startIndex,batchSize+1,0);
+            List unionStmts = stmts;
+            if ( afterKey != null )
+            {
+               unionStmts = new ArrayList();
+               for ( int i=0; i<stmts.size(); i++ )
+                  unionStmts.add(getKeysetStatement((QueryStatement) stmts.get(i),afterKey.values));
+               limits.setOffset(0);
+            }
+            SearchResult result = findAll(unionStmts,limits);
+            startIndex+=result.getResult().size();
+            if ( keyset )
+               list.addAll(removeKeys(0,result.getResult()));
+            else
+               list.addAll(result.getResult());
+            if ( list.size() > batchSize )
+            {
+               list = list.subList(0,batchSize);
+               if ( keyset )
+                  listKeys = listKeys.subList(0,batchSize);
+               hasNext = true;
+            } else {
+               hasNext = false;
+               if ( (stmtOffsets[1] < 0) && (list.size() > 0) )
+                  stmtOffsets[1]=startIndex;
+               else if ( stmtOffsets[1] < 0 )
+                  getStmtOffset(1);
+            }
+            return;
+         }
          // Get the query, and optimize it
          QueryStatement stmt = (QueryStatement) stmts.get(stmtIndex);
          Limits limits = new Limits((int) (startIndex-stmtOffsets[stmtIndex]),batchSize+1-list.size(),0);
          if ( limits.getOffset() < 0 )
             limits.setOffset(0);
+         // Select the page after the last item of the previous page
+         if ( (afterKey!=null) && (afterKey.stmtIndex==stmtIndex) )
+         {
+            stmt = getKeysetStatement(stmt,afterKey.values);
+            limits.setOffset(0);
+         }
          // Compute the total join count of the selected term
          int totalJoinCount = 0;
          SpecifiedTableTerm mainTerm = stmt.getSpecifiedTerm(
@@ -273,7 +374,10 @@ public class LazyListImpl extends AbstractList implements LazyList, Serializable
          SearchResult result = queryService.find(stmt,limits,unmarshalledObjects);
          // Set for next iteration
          startIndex+=result.getResult().size();
-         list.addAll(result.getResult());
+         if ( keyset )
+            list.addAll(removeKeys(stmtIndex,result.getResult()));
+         else
+            list.addAll(result.getResult());
          if ( hooks != null )
             override = hooks.postSelect(session,list,new Limits(offset,batchSize+1,0));
          // Postoperation adjustments
@@ -284,6 +388,8 @@ public class LazyListImpl extends AbstractList implements LazyList, Serializable
             // the query, which means return only the exact results.
             // The size can not be determined now.
             list = list.subList(0,batchSize);
+            if ( keyset )
+               listKeys = listKeys.subList(0,batchSize);
             hasNext = true;
             // List is ok for now, we don't need more
             if ( logger.isDebugEnabled() )
@@ -323,12 +429,301 @@ public class LazyListImpl extends AbstractList implements LazyList, Serializable
       if ( initialized )
          return;
       initialized=true;
+      boolean ordered = (stmts.size()>1) &&
+         (((QueryStatement) stmts.get(0)).getOrderByList()!=null) &&
+         (((QueryStatement) stmts.get(0)).getOrderByList().size()>0);
+      // Select the sort keys for keyset paging, and for merging the
+      // statements of an ordered list. If there are hooks, those
+      // handle the paging themselves.
+      if ( ((KEYSET_PAGING) || (ordered)) && (hooks==null) )
+         prepareKeysetStatements();
+      // If the list has more statements, try to select them together
+      // in a single select. In this case the pre-select is not necessary.
+      union = (UNION_SELECT) && (hooks==null) && (isUnionPossible()) &&
+         (queryService.isUnionSupported(stmts));
       // If not yet queried, and the number of statements is big,
       // then do a pre-select, to determine which statements will be
       // used anyway, and drop those statements, which will have no
       // results.
-      if ( stmts.size()>2 )
+      if ( (stmts.size()>2) && (!union) )
          optimizeStatements();
+      // If an ordered list can not be selected together, the statements
+      // are selected separately, and merged by their sort keys, so the
+      // order applies to the whole list the same way.
+      merge = (!union) && (ordered) && (keyset) && (isUnionPossible());
+   }
+
+   /**
+    * Select a page of the whole list, either with a single select, or by
+    * merging the pages of each statement.
+    */
+   private SearchResult findAll(List allStmts, Limits limits)
+   {
+      if ( union )
+         return queryService.find(allStmts,limits,unmarshalledObjects);
+      // Each statement must be selected from the start of the list,
+      // because it is not known how many of its items precede the page
+      List[] results = new List[allStmts.size()];
+      long size = 0;
+      for ( int i=0; i<allStmts.size(); i++ )
+      {
+         Limits stmtLimits = new Limits(0,(int) (limits.getOffset()+limits.getLimit()),
+               (int) limits.getSize());
+         SearchResult result = queryService.find((QueryStatement) allStmts.get(i),
+               stmtLimits,unmarshalledObjects);
+         results[i] = result.getResult();
+         size += result.getResultSize();
+      }
+      // Merge the results up until the end of the page
+      List items = new ArrayList();
+      int[] positions = new int[results.length];
+      while ( items.size() < limits.getOffset()+limits.getLimit() )
+      {
+         int next = -1;
+         for ( int i=0; i<results.length; i++ )
+            if ( (positions[i] < results[i].size()) && ((next < 0) ||
+                     (compareKeys((Map) results[i].get(positions[i]),
+                                  (Map) results[next].get(positions[next])) < 0)) )
+               next = i;
+         if ( next < 0 )
+            break;
+         items.add(results[next].get(positions[next]++));
+      }
+      SearchResult result = new SearchResult();
+      result.setResultSize(size);
+      if ( items.size() > limits.getOffset() )
+         result.setResult(new ArrayList(items.subList((int) limits.getOffset(),items.size())));
+      else
+         result.setResult(new ArrayList());
+      return result;
+   }
+
+   /**
+    * Compare the sort keys of two items selected with keyset prepared
+    * statements. Keys are compared in Java, nulls are placed where the
+    * database sorts them.
+    * @return Negative if the first item precedes the other one, positive
+    * if it follows it, zero if the keys are equal.
+    */
+   private int compareKeys(Map item, Map other)
+   {
+      List orderBys = ((QueryStatement) stmts.get(0)).getOrderByList();
+      for ( int o=0; o<orderBys.size(); o++ )
+      {
+         boolean ascending = ((OrderBy) orderBys.get(o)).getDirection()==OrderBy.ASCENDING;
+         Object value = item.get("persistence_key"+o);
+         Object otherValue = other.get("persistence_key"+o);
+         int result = 0;
+         if ( (value == null) && (otherValue == null) )
+            continue;
+         if ( (value == null) || (otherValue == null) )
+         {
+            // Nulls are where the database sorts them in this direction
+            result = queryService.isNullSortedLast(ascending)?1:-1;
+            if ( otherValue == null )
+               result = -result;
+            return result;
+         }
+         if ( (value instanceof Number) && (otherValue instanceof Number) &&
+               (! value.getClass().equals(otherValue.getClass())) )
+            result = Double.compare(((Number) value).doubleValue(),((Number) otherValue).doubleValue());
+         else
+            result = ((Comparable) value).compareTo(otherValue);
+         if ( result != 0 )
+            return ascending?result:-result;
+      }
+      return 0;
+   }
+
+   /**
+    * Determine whether all statements can be selected together. Statements
+    * which are optimized locally because of their many left joins are
+    * not selected together.
+    */
+   private boolean isUnionPossible()
+   {
+      if ( stmts.size() < 2 )
+         return false;
+      int selectSize = ((QueryStatement) stmts.get(0)).getSelectTerms().size();
+      for ( int i=0; i<stmts.size(); i++ )
+      {
+         QueryStatement stmt = (QueryStatement) stmts.get(i);
+         if ( (stmt.getMode() != QueryStatement.MODE_FIND) ||
+               (stmt.getSelectTerms().size() != selectSize) )
+            return false;
+         SpecifiedTableTerm mainTerm = stmt.getSpecifiedTerm(
+               (TableTerm) stmt.getSelectTerms().get(0));
+         if ( mainTerm.getRelatedLeftTerms().size() > MAX_JOINS )
+            return false;
+      }
+      return true;
+   }
+
+   /**
+    * Modify all statements, so the result is fully ordered, and the sort
+    * keys of each row are selected too. To make the ordering full, the
+    * persistence id of the main term is added as a last order by. The sort
+    * keys are later used to select the next page linearly, without
+    * the database having to skip all the rows before the page.
+    */
+   private void prepareKeysetStatements()
+   {
+      for ( int i=0; i<stmts.size(); i++ )
+         if ( ((QueryStatement) stmts.get(i)).getMode() != QueryStatement.MODE_FIND )
+            return;
+      for ( int i=0; i<stmts.size(); i++ )
+      {
+         // Copy, because statements may share lists
+         QueryStatement stmt = ((QueryStatement) stmts.get(i)).deepCopy();
+         TableTerm mainTerm = (TableTerm) stmt.getSelectTerms().get(0);
+         if ( stmt.getOrderByList() == null )
+            stmt.setOrderByList(new ArrayList());
+         stmt.getOrderByList().add(new OrderBy(
+                  new ReferenceTerm(mainTerm,"persistence_id"),OrderBy.ASCENDING));
+         // Select all sort keys with unique aliases
+         for ( int o=0; o<stmt.getOrderByList().size(); o++ )
+         {
+            ReferenceTerm orderTerm = ((OrderBy) stmt.getOrderByList().get(o)).getReferenceTerm();
+            ReferenceTerm keyTerm = new ReferenceTerm(orderTerm);
+            keyTerm.setColumnAlias("persistence_key"+o);
+            stmt.getSelectTerms().add(keyTerm);
+         }
+         if ( stmt.getStaticRepresentation() != null )
+            stmt.setStaticRepresentation(stmt.getStaticRepresentation()+" keyset");
+         stmts.set(i,stmt);
+      }
+      keyset = true;
+   }
+
+   /**
+    * Remove the sort keys from the result of a keyset prepared statement,
+    * and remember them for the next page.
+    * @return The result as the original statement would return it.
+    */
+   private List removeKeys(int stmtIndex, List result)
+   {
+      QueryStatement stmt = (QueryStatement) stmts.get(stmtIndex);
+      int keyCount = stmt.getOrderByList().size();
+      List items = new ArrayList(result.size());
+      for ( int i=0; i<result.size(); i++ )
+      {
+         Map item = (Map) result.get(i);
+         Object[] values = new Object[keyCount];
+         for ( int o=0; o<keyCount; o++ )
+            values[o] = item.remove("persistence_key"+o);
+         listKeys.add(new PageKey(stmtIndex,values));
+         if ( stmt.getSelectTerms().size() == keyCount+1 )
+            items.add(item.get("object"));
+         else
+            items.add(item);
+      }
+      return items;
+   }
+
+   /**
+    * Get a statement which selects only the items after the given sort
+    * keys. For keys <code>(k1,k2,id)</code> with ascending order this is
+    * <code>k1 &gt; ? or (k1 = ? and (k2 &gt; ? or (k2 = ? and id &gt; ?)))</code>,
+    * which also works with mixed directions, and on databases which
+    * do not support row value comparisons. Null keys are compared
+    * according to where the database sorts nulls in the given direction,
+    * so rows with null sort keys are neither skipped nor repeated.
+    */
+   private QueryStatement getKeysetStatement(QueryStatement stmt, Object[] values)
+   {
+      QueryStatement result = stmt.deepCopy();
+      List orderBys = result.getOrderByList();
+      Expression bound = null;
+      for ( int i=orderBys.size()-1; i>=0; i-- )
+      {
+         OrderBy orderBy = (OrderBy) orderBys.get(i);
+         boolean ascending = orderBy.getDirection()==OrderBy.ASCENDING;
+         boolean nullsLast = queryService.isNullSortedLast(ascending);
+         // Items strictly after this key
+         Expression afterTerm = null;
+         if ( values[i] != null )
+         {
+            afterTerm = new Expression();
+            afterTerm.add(new ReferenceTerm(orderBy.getReferenceTerm()));
+            afterTerm.add(ascending?">":"<");
+            afterTerm.add(new ConstantTerm(values[i]));
+            if ( nullsLast )
+            {
+               afterTerm.add("or");
+               afterTerm.add(new ReferenceTerm(orderBy.getReferenceTerm()));
+               afterTerm.add("is null");
+            }
+         } else if ( ! nullsLast ) {
+            afterTerm = new Expression();
+            afterTerm.add(new ReferenceTerm(orderBy.getReferenceTerm()));
+            afterTerm.add("is not null");
+         }
+         // Items with the same key, which are after the following keys
+         Expression equalTerm = null;
+         if ( bound != null )
+         {
+            equalTerm = new Expression();
+            equalTerm.add(new ReferenceTerm(orderBy.getReferenceTerm()));
+            if ( values[i] != null )
+            {
+               equalTerm.add("=");
+               equalTerm.add(new ConstantTerm(values[i]));
+            } else {
+               equalTerm.add("is null");
+            }
+            equalTerm.add("and");
+            equalTerm.add(bound);
+         }
+         // Combine, the last key (the id) is never null
+         if ( (afterTerm != null) && (equalTerm != null) )
+         {
+            Expression term = new Expression();
+            term.add(afterTerm);
+            term.add("or");
+            term.add(equalTerm);
+            bound = term;
+         } else if ( afterTerm != null ) {
+            bound = afterTerm;
+         } else {
+            bound = equalTerm;
+         }
+      }
+      Expression expr = new Expression();
+      if ( (result.getQueryExpression()!=null) && (result.getQueryExpression().size()>0) )
+      {
+         expr.add(result.getQueryExpression());
+         expr.add("and");
+      }
+      expr.add(bound);
+      result.setQueryExpression(expr);
+      if ( result.getStaticRepresentation() != null )
+         result.setStaticRepresentation(result.getStaticRepresentation()+
+               " after "+getKeyRepresentation(values));
+      if ( logger.isDebugEnabled() )
+         logger.debug("selecting page after keys: "+Arrays.asList(values));
+      return result;
+   }
+
+   /**
+    * Get an unambiguous representation of key values for the cache.
+    */
+   private String getKeyRepresentation(Object[] values)
+   {
+      StringBuffer result = new StringBuffer();
+      for ( int i=0; i<values.length; i++ )
+      {
+         Object value = values[i];
+         if ( value == null )
+         {
+            result.append("null,");
+            continue;
+         }
+         if ( value instanceof Date )
+            value = new Long(((Date) value).getTime());
+         String valueString = value.toString();
+         result.append(value.getClass().getName()+":"+valueString.length()+":"+valueString+",");
+      }
+      return result.toString();
    }
 
    private Set getUsedTables(SearchResult result)
@@ -576,17 +971,20 @@ public class LazyListImpl extends AbstractList implements LazyList, Serializable
       {
          // Pre-read if there is a first item
          currentIndex=0;
-         if ( list == null )
+         synchronized ( LazyListImpl.this )
          {
-            try
+            if ( list == null )
             {
-               get(currentIndex);
-               currentHasNext = true;
-            } catch ( IndexOutOfBoundsException e ) {
-               currentHasNext = false;
+               try
+               {
+                  get(currentIndex);
+                  currentHasNext = true;
+               } catch ( IndexOutOfBoundsException e ) {
+                  currentHasNext = false;
+               }
+            } else {
+               currentHasNext = offset+list.size() > 0;
             }
-         } else {
-            currentHasNext = offset+list.size() > 0;
          }
       }
       
@@ -607,13 +1005,16 @@ public class LazyListImpl extends AbstractList implements LazyList, Serializable
 
       public Object next()
       {
-         Object result = get(currentIndex);
-         currentIndex++;
-         if ( currentIndex < offset+list.size() )
-            currentHasNext=true;
-         else
-            currentHasNext=hasNext;
-         return result;
+         synchronized ( LazyListImpl.this )
+         {
+            Object result = get(currentIndex);
+            currentIndex++;
+            if ( currentIndex < offset+list.size() )
+               currentHasNext=true;
+            else
+               currentHasNext=hasNext;
+            return result;
+         }
       }
       
       public int nextIndex()
@@ -645,6 +1046,126 @@ public class LazyListImpl extends AbstractList implements LazyList, Serializable
       }
    }
 
+   /**
+    * A loaded page of the list, with the sort keys of its items.
+    */
+   private static class Page
+   {
+      public int offset;
+      public List list;
+      public List keys;
+      public boolean hasNext;
+
+      public Page(int offset, List list, List keys, boolean hasNext)
+      {
+         this.offset=offset;
+         this.list=list;
+         this.keys=keys;
+         this.hasNext=hasNext;
+      }
+
+      public boolean contains(int index)
+      {
+         return (list!=null) && (index>=offset) && (index<offset+list.size());
+      }
+   }
+
+   /**
+    * The sort keys of a single item in the list.
+    */
+   private static class PageKey
+   {
+      public int stmtIndex;
+      public Object[] values;
+
+      public PageKey(int stmtIndex, Object[] values)
+      {
+         this.stmtIndex=stmtIndex;
+         this.values=values;
+      }
+   }
+
+   /**
+    * Get the statement which selects the first page of the list, if the
+    * first page is selected with a single select of a single statement.
+    * This is used to select the first pages of more lists together.
+    * @return The statement, or null if the first page is already loaded,
+    * or it needs some other select.
+    */
+   synchronized QueryStatement getFirstPageStatement()
+   {
+      initialize();
+      if ( (list != null) || (union) || (merge) || (hooks != null) || (getStmtCount() != 1) )
+         return null;
+      QueryStatement stmt = (QueryStatement) stmts.get(0);
+      SpecifiedTableTerm mainTerm = stmt.getSpecifiedTerm(
+            (TableTerm) stmt.getSelectTerms().get(0));
+      if ( mainTerm.getRelatedLeftTerms().size() > MAX_JOINS )
+         return null;
+      return stmt;
+   }
+
+   /**
+    * Get the limits of the first page select.
+    */
+   Limits getFirstPageLimits()
+   {
+      return new Limits(0,BATCH_SIZE+1,0);
+   }
+
+   /**
+    * Load the page of the given index in the background, or in the
+    * current transaction if there is one. The page is loaded into a
+    * separate buffer, so the current page and the detection of linear
+    * iteration are not changed, the page is used when it is accessed.
+    */
+   public Future prefetch(final int index)
+   {
+      return asyncService.submit(new Callable()
+            {
+               public Object call()
+               {
+                  try
+                  {
+                     return loadAheadPage(index);
+                  } catch ( IndexOutOfBoundsException e ) {
+                     return null;
+                  }
+               }
+            });
+   }
+
+   /**
+    * Load the page of the given index into the look-ahead buffer, if
+    * it is not loaded already.
+    * @return The item at the given index.
+    */
+   private synchronized Object loadAheadPage(int index)
+   {
+      initialize();
+      if ( index < 0 )
+         throw new ArrayIndexOutOfBoundsException("lazy list index given was: "+index+", thats < 0 and illegal.");
+      if ( (list!=null) && (index<offset+list.size()) && (index>=offset) )
+         return list.get(index-offset);
+      if ( (aheadPage==null) || (! aheadPage.contains(index)) )
+      {
+         // The page is loaded the same way as the current page, and the
+         // current page is restored after it
+         Page currentPage = new Page(offset,list,listKeys,hasNext);
+         try
+         {
+            loadPage(index);
+            aheadPage = new Page(offset,list,listKeys,hasNext);
+         } finally {
+            offset = currentPage.offset;
+            list = currentPage.list;
+            listKeys = currentPage.keys;
+            hasNext = currentPage.hasNext;
+         }
+      }
+      return aheadPage.list.get(index-aheadPage.offset);
+   }
+
    public LazyListHooks getHooks()
    {
       return hooks;
@@ -664,6 +1185,10 @@ public class LazyListImpl extends AbstractList implements LazyList, Serializable
          getInt("beankeeper.list.batch_size_linearmultiplier",3);
       MAX_JOINS = config.getConfiguration().
          getInt("beankeeper.list.max_joins",16);
+      KEYSET_PAGING = config.getConfiguration().
+         getBoolean("beankeeper.list.keyset_paging",true);
+      UNION_SELECT = config.getConfiguration().
+         getBoolean("beankeeper.list.union_select",true);
    }
 }
 
@@ -24,6 +24,8 @@ import hu.netmind.beankeeper.common.StoreException;
 import hu.netmind.beankeeper.query.LazyList;
 import hu.netmind.beankeeper.query.LazyListHooks;
 import hu.netmind.beankeeper.query.QueryService;
+import hu.netmind.beankeeper.query.QueryControl;
+import hu.netmind.beankeeper.query.ResultCursor;
 import hu.netmind.beankeeper.serial.SerialTracker;
 import hu.netmind.beankeeper.lock.LockTracker;
 import hu.netmind.beankeeper.config.ConfigurationTracker;
@@ -49,10 +51,14 @@ import hu.netmind.beankeeper.management.ManagementTracker;
 import hu.netmind.beankeeper.node.NodeManager;
 import hu.netmind.beankeeper.operation.OperationTracker;
 import hu.netmind.beankeeper.cache.ResultsCache;
+import hu.netmind.beankeeper.cache.ObjectCache;
 import hu.netmind.beankeeper.schema.SchemaManager;
+import hu.netmind.beankeeper.async.AsyncService;
 import hu.netmind.beankeeper.store.event.*;
 import hu.netmind.beankeeper.transaction.event.*;
 import javax.sql.DataSource;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
 
 /**
  * Implements the query interface to offer query methods based on
@@ -67,6 +73,9 @@ public class QueryServiceImpl implements QueryService, PersistenceEventListener
 
    private QueryStatistics queryStatistics = null;
    private Map<Transaction,Set<String>> transactionTables = Collections.synchronizedMap(new HashMap<Transaction,Set<String>>());
+   private Set<ListReference> openLists = new HashSet<ListReference>();
+   private ReferenceQueue<LazyList> openListsQueue = new ReferenceQueue<LazyList>();
+   private ThreadLocal<Map<QueryStatement,BatchEntry>> batchResults = new ThreadLocal<Map<QueryStatement,BatchEntry>>();
 
    private ManagementTracker managementTracker = null; // Injected
    private TransactionTracker transactionTracker = null; // Injected
@@ -77,9 +86,11 @@ public class QueryServiceImpl implements QueryService, PersistenceEventListener
    private TypeHandlerTracker typeHandlerTracker = null; // Injected
    private OperationTracker operationTracker = null; // Injected
    private ResultsCache cache = null; // Injected
+   private ObjectCache objectCache = null; // Injected
    private ConfigurationTracker config = null; // Injected
    private EventDispatcher eventDispatcher = null; // Injected
    private SchemaManager schemaManager = null; // Injected
+   private AsyncService asyncService = null; // Injected
 
    /**
     * Construct this store with the given parameters.
@@ -133,6 +144,25 @@ public class QueryServiceImpl implements QueryService, PersistenceEventListener
     * @param timeControl The exact default time of the query.
     */
    public LazyList find(String statement, Object[] parameters, TimeControl timeControl, Map unmarshalledObjects)
+   {
+      return find(statement,parameters,timeControl,unmarshalledObjects,null);
+   }
+
+   /**
+    * Same as <code>find(statement,parameters)</code>, but all selects
+    * of the result list are run with the given control.
+    * @param statement The query statement to execute.
+    * @param parameters The parameters.
+    * @param control The control which gives the timeout of the selects,
+    * and which can cancel them.
+    */
+   public LazyList find(String statement, Object[] parameters, QueryControl control)
+   {
+      return find(statement,parameters,null,null,control);
+   }
+
+   private LazyList find(String statement, Object[] parameters, TimeControl timeControl, 
+         Map unmarshalledObjects, QueryControl control)
    {
       // {{{ Parse statement, and create result list
       // Convert object parameters. If they contain
@@ -142,95 +172,321 @@ public class QueryServiceImpl implements QueryService, PersistenceEventListener
       long startTime = System.currentTimeMillis();
       try
       {
-         Object[] realParameters = null;
-         if ( parameters != null )
+         Object[] realParameters = getRealParameters(parameters);
+         // Process it, get expression
+         QueryStatementList stmts = parseStatement(statement,realParameters,timeControl,transaction);
+         if ( stmts == null )
+            return new EmptyLazyListImpl(); // Return empty list on non-fatal symbol errors
+         if ( control != null )
+         {
+            for ( int i=0; i<stmts.size(); i++ )
+               ((QueryStatement) stmts.get(i)).setControl(control);
+            if ( stmts.getRoot() != null )
+               stmts.getRoot().setControl(control);
+         }
+         return createList(stmts,unmarshalledObjects);
+      } catch ( StoreException e ) {
+         transaction.markRollbackOnly();
+         throw e;
+      } catch ( Throwable e ) {
+         transaction.markRollbackOnly();
+         throw new StoreException("unexpected exception",e);
+      } finally {
+         transaction.commit();
+         // Add to statistics
+         long endTime = System.currentTimeMillis();
+         synchronized ( queryStatistics )
          {
-            realParameters = new Object[parameters.length];
-            for ( int i=0; i<parameters.length; i++ )
+            queryStatistics.setQueryCount(queryStatistics.getQueryCount()+1);
+            queryStatistics.setQueryTime(queryStatistics.getQueryTime()+(endTime-startTime));
+         }
+      }
+      // }}}
+   }
+
+   /**
+    * Create the result list of the parsed statements.
+    */
+   private LazyList createList(QueryStatementList stmts, Map unmarshalledObjects)
+   {
+      LazyList result = new LazyListImpl(this,classTracker,config,schemaManager,
+            asyncService,stmts,unmarshalledObjects);
+      registerList(result,stmts);
+      return result;
+   }
+
+   /**
+    * Select more independent statements at the same time. All statements
+    * are selected at the same serial in the same transaction, and the
+    * first pages of the results are selected together. If the database
+    * supports it, those are selected in a single round trip.
+    * @param statements The query statements.
+    * @param parameters The parameters of each statement, or null.
+    * @return The result lists in the order of the statements.
+    */
+   public List<LazyList> findBatch(List<String> statements, List<Object[]> parameters)
+   {
+      if ( (parameters != null) && (parameters.size() != statements.size()) )
+         throw new StoreException("there must be parameters for each statement, statements: "+
+               statements.size()+", parameters: "+parameters.size());
+      Transaction transaction = transactionTracker.getTransaction(TransactionTracker.TX_REQUIRED);
+      transaction.begin();
+      try
+      {
+         // All statements see the same state of the database
+         Long serial = serialTracker.getNextSerial();
+         List<LazyList> results = new ArrayList<LazyList>();
+         for ( int i=0; i<statements.size(); i++ )
+            results.add(find(statements.get(i),parameters==null?null:parameters.get(i),
+                     new TimeControl(serial,transaction.getSerial(),false),null,null));
+         // Collect the first page selects which are not cached
+         List<QueryStatement> stmts = new ArrayList<QueryStatement>();
+         List<Limits> limitsList = new ArrayList<Limits>();
+         for ( LazyList result : results )
+         {
+            if ( ! (result instanceof LazyListImpl) )
+               continue;
+            QueryStatement stmt = ((LazyListImpl) result).getFirstPageStatement();
+            Limits limits = ((LazyListImpl) result).getFirstPageLimits();
+            if ( (stmt == null) || (isReplicated(stmt)) || (cache.getEntry(stmt,limits) != null) )
+               continue;
+            stmts.add(stmt);
+            limitsList.add(limits);
+         }
+         // Select them together, and fill the first pages
+         Map<QueryStatement,BatchEntry> batchEntries = new IdentityHashMap<QueryStatement,BatchEntry>();
+         if ( stmts.size() > 1 )
+         {
+            List<SearchResult> searchResults = database.searchBatch(transaction,stmts,limitsList);
+            for ( int i=0; i<stmts.size(); i++ )
             {
-               if ( parameters[i] == null )
-               {
-                  // Handle null parameters
-                  realParameters[i]=null;
-               } else {
-                  // If parameter is not null, translate object parameters
-                  // to persistent id, leave others
-                  ClassTracker.ClassType type = classTracker.getType(parameters[i].getClass());
-                  if ( type == ClassTracker.ClassType.TYPE_RESERVED )
-                     throw new StoreException("parameter at position: "+i+", value: "+parameters[i]+" is of unsupported type.");
-                  if ( (type == ClassTracker.ClassType.TYPE_OBJECT) && 
-                        (!(parameters[i] instanceof Collection)) && 
-                        (!(parameters[i] instanceof Identifier)) && 
-                        (!(parameters[i] instanceof TimeControl)) )
-                  {
-                     // If object has no id, that's not a problem. It will
-                     // receive an id of 0, and no object should match
-                     // that id anyway.
-                     realParameters[i]=new Identifier(objectTracker.getIdentifier(parameters[i]));
-                  } else if ( parameters[i] instanceof Collection ) {
-                     // Check, whether the collection's items are objects,
-                     // in which case translate them to their ids
-                     ArrayList result = new ArrayList();
-                     Iterator itemIterator = ((Collection) parameters[i]).iterator();
-                     while ( itemIterator.hasNext() )
-                     {
-                        Object item = itemIterator.next();
-                        if ( classTracker.getType(item.getClass()) == ClassTracker.ClassType.TYPE_OBJECT )
-                           result.add(objectTracker.getIdentifier(item));
-                        else
-                           result.add(item);
-                     }
-                     realParameters[i]=result;
-                  } else {
-                     realParameters[i]=parameters[i];
-                  }
-               }
-               if ( logger.isDebugEnabled() )
-                  logger.debug("parameter: "+parameters[i]+" -> real parameter #"+i+":"+realParameters[i]);
+               cache.addEntry(stmts.get(i),limitsList.get(i),searchResults.get(i));
+               batchEntries.put(stmts.get(i),new BatchEntry(limitsList.get(i),searchResults.get(i)));
             }
          }
-         // Process it, get expression
+         batchResults.set(batchEntries);
+         try
+         {
+            for ( LazyList result : results )
+               result.iterator(); // Selects the first page
+         } finally {
+            batchResults.set(null);
+         }
+         return results;
+      } catch ( StoreException e ) {
+         transaction.markRollbackOnly();
+         throw e;
+      } catch ( Throwable e ) {
+         transaction.markRollbackOnly();
+         throw new StoreException("unexpected exception",e);
+      } finally {
+         transaction.commit();
+      }
+   }
+
+   /**
+    * Select objects as a cursor, which does not hold the whole result
+    * in memory. If there is a current transaction, the cursor reads in
+    * that transaction. Otherwise the cursor has its own unbound
+    * transaction, so other operations of the thread do not join it
+    * while the cursor is open.
+    * @param statement The query statement to execute.
+    * @param parameters The parameters.
+    * @return The cursor, which must be closed if not iterated to the end.
+    */
+   public ResultCursor stream(String statement, Object[] parameters)
+   {
+      Transaction transaction = transactionTracker.getTransaction(TransactionTracker.TX_OPTIONAL);
+      boolean unbound = (transaction == null);
+      if ( unbound )
+         transaction = transactionTracker.getTransaction(TransactionTracker.TX_UNBOUND);
+      transaction.begin();
+      synchronized ( queryStatistics )
+      {
+         queryStatistics.setQueryCount(queryStatistics.getQueryCount()+1);
+      }
+      try
+      {
+         Object[] realParameters = getRealParameters(parameters);
          QueryStatementList stmts = null;
+         if ( unbound )
+            transactionTracker.bind(transaction);
          try
          {
-            // Only apply in-transaction search conditions if there is a transaction
-            // and something changed during transaction. Only calculate if
-            // no 'default default' is given.
-            Set modifiedTables = transactionTables.get(transaction);
-            if ( modifiedTables == null )
-               modifiedTables = new HashSet();
-            if ( timeControl == null )
-            {
-               Long serial = serialTracker.getNextSerial();
-               Long txSerial = transaction.getSerial();
-               timeControl = new TimeControl(serial,txSerial,false);
-            }
-            // Parse statement
-            if ( logger.isDebugEnabled() )
-               logger.debug("executing parser, serial: "+timeControl.getSerial()+", tx serial: "+timeControl.getTxSerial());
-            stmts = new QueryParser(statement,realParameters, new WhereResolver(classTracker,typeHandlerTracker,
-                     schemaManager),timeControl,modifiedTables).query();
-            // Wait now for all commits() before the given serial to finish.
-            // If this would not be the case, the lazy list might not
-            // contain the data from previously initiated commits. Which
-            // would mean, once those finished, the lazy list would change.
-            operationTracker.waitForQuery(timeControl.getSerial());
-         } catch ( ParserException e ) {
-            if ( e.getCode() == ParserException.ABORT )
+            stmts = parseStatement(statement,realParameters,null,transaction);
+         } finally {
+            if ( unbound )
+               transactionTracker.unbind(transaction);
+         }
+         if ( stmts == null )
+            stmts = new QueryStatementList(); // Empty cursor on non-fatal symbol errors
+         // The cursor commits the transaction when closed
+         return new ResultCursorImpl(this,database,transactionTracker,transaction,unbound,stmts,
+               config.getConfiguration().getInt("beankeeper.list.batch_size",30));
+      } catch ( StoreException e ) {
+         transaction.markRollbackOnly();
+         transaction.commit();
+         throw e;
+      } catch ( Throwable e ) {
+         transaction.markRollbackOnly();
+         transaction.commit();
+         throw new StoreException("unexpected exception",e);
+      }
+   }
+
+   /**
+    * Convert object parameters. If they contain objects, substitute 
+    * with object id.
+    */
+   private Object[] getRealParameters(Object[] parameters)
+   {
+      Object[] realParameters = null;
+      if ( parameters != null )
+      {
+         realParameters = new Object[parameters.length];
+         for ( int i=0; i<parameters.length; i++ )
+         {
+            if ( parameters[i] == null )
             {
-               logger.error("aborting query, because of parser exception.");
-               throw new StoreException(e.getMessage(),e);
+               // Handle null parameters
+               realParameters[i]=null;
             } else {
-               logger.info("returning empty result list because of non-fatal symbol error. Parser said: "+e.getMessage()+", statement was: "+statement);
-               return new EmptyLazyListImpl(); // Return empty list on non-fatal symbol errors
+               // If parameter is not null, translate object parameters
+               // to persistent id, leave others
+               ClassTracker.ClassType type = classTracker.getType(parameters[i].getClass());
+               if ( type == ClassTracker.ClassType.TYPE_RESERVED )
+                  throw new StoreException("parameter at position: "+i+", value: "+parameters[i]+" is of unsupported type.");
+               if ( (type == ClassTracker.ClassType.TYPE_OBJECT) && 
+                     (!(parameters[i] instanceof Collection)) && 
+                     (!(parameters[i] instanceof Identifier)) && 
+                     (!(parameters[i] instanceof TimeControl)) )
+               {
+                  // If object has no id, that's not a problem. It will
+                  // receive an id of 0, and no object should match
+                  // that id anyway.
+                  realParameters[i]=new Identifier(objectTracker.getIdentifier(parameters[i]));
+               } else if ( parameters[i] instanceof Collection ) {
+                  // Check, whether the collection's items are objects,
+                  // in which case translate them to their ids
+                  ArrayList result = new ArrayList();
+                  Iterator itemIterator = ((Collection) parameters[i]).iterator();
+                  while ( itemIterator.hasNext() )
+                  {
+                     Object item = itemIterator.next();
+                     if ( classTracker.getType(item.getClass()) == ClassTracker.ClassType.TYPE_OBJECT )
+                        result.add(objectTracker.getIdentifier(item));
+                     else
+                        result.add(item);
+                  }
+                  realParameters[i]=result;
+               } else {
+                  realParameters[i]=parameters[i];
+               }
             }
-         } catch ( StoreException e ) {
-            throw e;
-         } catch ( Exception e ) {
-            throw new StoreException("unknown exception while select",e);
+            if ( logger.isDebugEnabled() )
+               logger.debug("parameter: "+parameters[i]+" -> real parameter #"+i+":"+realParameters[i]);
+         }
+      }
+      return realParameters;
+   }
+
+   /**
+    * Parse the statement into query statements.
+    * @return The statements, or null if the statement refers to
+    * non-existing classes or attributes, so the result is surely empty.
+    */
+   private QueryStatementList parseStatement(String statement, Object[] realParameters,
+         TimeControl timeControl, Transaction transaction)
+   {
+      QueryStatementList stmts = null;
+      try
+      {
+         // Only apply in-transaction search conditions if there is a transaction
+         // and something changed during transaction. Only calculate if
+         // no 'default default' is given.
+         Set modifiedTables = transactionTables.get(transaction);
+         if ( modifiedTables == null )
+            modifiedTables = new HashSet();
+         if ( timeControl == null )
+            timeControl = createTimeControl(transaction);
+         // Parse statement
+         if ( logger.isDebugEnabled() )
+            logger.debug("executing parser, serial: "+timeControl.getSerial()+", tx serial: "+timeControl.getTxSerial());
+         stmts = new QueryParser(statement,realParameters, new WhereResolver(classTracker,typeHandlerTracker,
+                  schemaManager),timeControl,modifiedTables).query();
+         // Wait now for all commits() before the given serial to finish.
+         // If this would not be the case, the lazy list might not
+         // contain the data from previously initiated commits. Which
+         // would mean, once those finished, the lazy list would change.
+         operationTracker.waitForQuery(timeControl.getSerial());
+      } catch ( ParserException e ) {
+         if ( e.getCode() == ParserException.ABORT )
+         {
+            logger.error("aborting query, because of parser exception.");
+            throw new StoreException(e.getMessage(),e);
+         } else {
+            logger.info("returning empty result list because of non-fatal symbol error. Parser said: "+e.getMessage()+", statement was: "+statement);
+            return null;
          }
-         // Return list
-         return new LazyListImpl(this,classTracker,config,schemaManager,stmts,unmarshalledObjects);
+      } catch ( StoreException e ) {
+         throw e;
+      } catch ( Exception e ) {
+         throw new StoreException("unknown exception while select",e);
+      }
+      return stmts;
+   }
+
+   /**
+    * Create the default time control of queries in the transaction,
+    * which is the current time.
+    */
+   private TimeControl createTimeControl(Transaction transaction)
+   {
+      return new TimeControl(serialTracker.getNextSerial(),transaction.getSerial(),false);
+   }
+
+   /**
+    * Get the serial the rows selected with the given time control are
+    * valid at. This is the transaction's serial, if it is earlier.
+    */
+   private Long getSafeSerial(TimeControl timeControl)
+   {
+      Long serial = timeControl.getSerial();
+      if ( (timeControl.getTxSerial() != null) && 
+            (timeControl.getTxSerial().longValue() < serial.longValue()) )
+         serial = timeControl.getTxSerial();
+      return serial;
+   }
+
+   /**
+    * Same as <code>find(statement,parameters)</code>, but the result should be
+    * a single object. If the statement selects an object by its id, the
+    * object is taken from the object cache if possible.
+    * @param statement The query statement to execute.
+    * @param parameters The parameters to the statement.
+    * @return The object selected, or null if no such object exists. If
+    * the result contains more objects, an arbitrary one is selected.
+    */
+   public Object findSingle(String statement, Object[] parameters)
+   {
+      // {{{ Parse statement, and evaluate result
+      Transaction transaction = transactionTracker.getTransaction(TransactionTracker.TX_REQUIRED);
+      transaction.begin();
+      long startTime = System.currentTimeMillis();
+      try
+      {
+         Object[] realParameters = getRealParameters(parameters);
+         QueryStatementList stmts = parseStatement(statement,realParameters,null,transaction);
+         if ( stmts == null )
+            return null; // Empty result on non-fatal symbol errors
+         Map marshalledValues = getCachedObject(stmts);
+         if ( marshalledValues != null )
+            return unmarshallResult((QueryStatement) stmts.get(0),
+                  Collections.singletonList(marshalledValues),new HashMap()).get(0);
+         Iterator iterator = createList(stmts,null).iterator();
+         if ( iterator.hasNext() )
+            return iterator.next();
+         return null;
       } catch ( StoreException e ) {
          transaction.markRollbackOnly();
          throw e;
@@ -251,21 +507,32 @@ public class QueryServiceImpl implements QueryService, PersistenceEventListener
    }
 
    /**
-    * Same as <code>find(statement,parameters)</code>, but the result should be
-    * a single object.
-    * @param statement The query statement to execute.
-    * @param parameters The parameters to the statement.
-    * @return The object selected, or null if no such object exists. If
-    * the result contains more objects, an arbitrary one is selected.
+    * Get the object the statements select from the object cache. This
+    * is only possible, if the statements select a single object by id,
+    * without other conditions.
+    * @return The marshalled values of the object, or null if the object
+    * should be selected.
     */
-   public Object findSingle(String statement, Object[] parameters)
+   private Map getCachedObject(QueryStatementList stmts)
    {
-      // {{{ Call normal find and evaluate result
-      Iterator iterator = find(statement,parameters).iterator();
-      if ( iterator.hasNext() )
-         return iterator.next();
-      return null;
-      // }}}
+      if ( stmts.size() != 1 )
+         return null;
+      QueryStatement stmt = (QueryStatement) stmts.get(0);
+      if ( (stmt.getFetchColumns() != null) || (stmt.getHistoryTables() != null) || 
+            (stmt.getTimeControl().isApplyTransaction()) || (! stmt.isIdSelect()) )
+         return null;
+      Set<Long> boundIds = stmt.computeBoundIds();
+      if ( boundIds.size() != 1 )
+         return null;
+      Long id = boundIds.iterator().next();
+      // The object must be of the selected class
+      String tableName = ((TableTerm) stmt.getSelectTerms().get(0)).getTableName();
+      ClassEntry entry = classTracker.getClassEntry(new Identifier(id).getClassId());
+      while ( (entry != null) && (! tableName.equals(schemaManager.getTableName(entry))) )
+         entry = entry.getSuperEntry();
+      if ( entry == null )
+         return null;
+      return objectCache.getObject(id,getSafeSerial(stmt.getTimeControl()));
    }
 
    /**
@@ -292,22 +559,109 @@ public class QueryServiceImpl implements QueryService, PersistenceEventListener
       if ( transaction == null )
          throw new StoreException("there was not transaction in find");
       // First, check if statement is visible from this transaction
-      TimeControl timeControl = stmt.getTimeControl();
-      if ( (timeControl.isApplyTransaction()) && (timeControl.getTxSerial()!=null) &&
-           (!timeControl.getTxSerial().equals(transaction.getSerial())) &&
-           (transactionTracker.hasTransaction(timeControl.getTxSerial())) )
-         throw new StoreException("tried to do a query which was outside it's transaction '"+
-               timeControl.getTxSerial()+"', which was still open. Current tx was: "+transaction.getSerial());
-      // Get resultset from cache or database
-      SearchResult result = cache.getEntry(stmt,limits);
+      checkVisibility(transaction,stmt);
+      // Get resultset from a batch select, the cache or database
+      SearchResult result = getBatchResult(stmt,limits);
+      if ( result == null )
+         result = cache.getEntry(stmt,limits);
       if ( result == null )
       {
-         result = database.search(transaction,stmt,limits);
+         if ( isReplicated(stmt) )
+            result = searchReplica(transaction,Collections.singletonList(stmt),limits);
+         if ( result == null )
+            result = database.search(transaction,stmt,limits);
          cache.addEntry(stmt,limits,result);
       }
       return result;
       // }}}
    }
+
+   /**
+    * Get the result of the statement if it was selected in the batch
+    * select of the current thread.
+    */
+   private SearchResult getBatchResult(QueryStatement stmt, Limits limits)
+   {
+      Map<QueryStatement,BatchEntry> batchEntries = batchResults.get();
+      if ( batchEntries == null )
+         return null;
+      BatchEntry entry = batchEntries.remove(stmt);
+      if ( (entry == null) || (limits == null) || 
+            (! entry.limits.toString().equals(limits.toString())) )
+         return null;
+      return entry.result;
+   }
+
+   /**
+    * Internal raw loading of more statements in a single select.
+    */
+   private SearchResult findRaw(List<QueryStatement> stmts, Limits limits)
+   {
+      Transaction transaction = transactionTracker.getTransaction(
+            TransactionTracker.TX_OPTIONAL);
+      if ( transaction == null )
+         throw new StoreException("there was not transaction in find");
+      for ( QueryStatement stmt : stmts )
+         checkVisibility(transaction,stmt);
+      // Get resultset from cache or database
+      SearchResult result = cache.getEntry(stmts,limits);
+      if ( result == null )
+      {
+         boolean replicated = true;
+         for ( QueryStatement stmt : stmts )
+            replicated = (replicated) && (isReplicated(stmt));
+         if ( replicated )
+            result = searchReplica(transaction,stmts,limits);
+         if ( result == null )
+            result = database.search(transaction,stmts,limits);
+         cache.addEntry(stmts,limits,result);
+      }
+      return result;
+   }
+
+   /**
+    * Determine whether the statement can be selected from the replica.
+    * This is the case if it does not see the changes of the transaction,
+    * and its time is already replicated.
+    */
+   private boolean isReplicated(QueryStatement stmt)
+   {
+      TimeControl timeControl = stmt.getTimeControl();
+      return (!timeControl.isApplyTransaction()) && 
+         (database.isReplicated(timeControl.getSerial()));
+   }
+
+   /**
+    * Select from the replica database.
+    * @return The result, or null if the replica could not be used, in
+    * which case the statements should be selected from the primary.
+    */
+   private SearchResult searchReplica(Transaction transaction,
+         List<QueryStatement> stmts, Limits limits)
+   {
+      try
+      {
+         if ( stmts.size() == 1 )
+            return database.searchReplica(transaction,stmts.get(0),limits);
+         return database.searchReplica(transaction,stmts,limits);
+      } catch ( StoreException e ) {
+         logger.warn("could not select from replica, falling back to primary database",e);
+         return null;
+      }
+   }
+
+   /**
+    * Check if statement is visible from the given transaction.
+    */
+   private void checkVisibility(Transaction transaction, QueryStatement stmt)
+   {
+      TimeControl timeControl = stmt.getTimeControl();
+      if ( (timeControl.isApplyTransaction()) && (timeControl.getTxSerial()!=null) &&
+           (!timeControl.getTxSerial().equals(transaction.getSerial())) &&
+           (transactionTracker.hasTransaction(timeControl.getTxSerial())) )
+         throw new StoreException("tried to do a query which was outside it's transaction '"+
+               timeControl.getTxSerial()+"', which was still open. Current tx was: "+transaction.getSerial());
+   }
   
    /**
     * Unmarshall an object. This means create an object of given class
@@ -317,9 +671,12 @@ public class QueryServiceImpl implements QueryService, PersistenceEventListener
     * @param classInfo The class info of the object that needs to be instantiated.
     * @param marshalledValues The attributes values.
     * @param unmarshalledObjects The already unmarshalled objects.
+    * @param timeControl The time control the object was selected with.
+    * @param fetchColumns The columns which were loaded, or null if all.
     */
    private Object unmarshallObject(ClassInfo classInfo, Map marshalledValues, 
-         Map unmarshalledObjects, Map missingAttributes, QueryStatement stmt)
+         Map unmarshalledObjects, Map missingAttributes, TimeControl timeControl,
+         Set fetchColumns)
       throws InstantiationException, IllegalAccessException
    {
       // {{{ Umarshall object
@@ -332,10 +689,13 @@ public class QueryServiceImpl implements QueryService, PersistenceEventListener
       // state (instances of the same database row), but now no shared
       // state exists (at least, not with attributes).
       objectTracker.registerObject(obj,(Long) marshalledValues.get("persistence_id"),
-            stmt.getTimeControl().getSerial(),
+            timeControl.getSerial(),
             ((Long) marshalledValues.get("persistence_start")),
             ((Long) marshalledValues.get("persistence_end")));
-      objectTracker.updateObject(obj,marshalledValues);
+      // Partially loaded objects do not tell the current state of the object
+      if ( fetchColumns == null )
+         objectTracker.updateObject(obj,marshalledValues);
+      Map unloadedAttributes = new HashMap();
       unmarshalledObjects.put(marshalledValues.get("persistence_id"),obj);
       // Set properties in obj, go through object attributes
       // (except is the object is of primitive type)
@@ -353,6 +713,12 @@ public class QueryServiceImpl implements QueryService, PersistenceEventListener
             classInfo.setAttributeValue(obj,attributeName,marshalledValues.get("persistence_id"));
             continue;
          }
+         // Leave attributes outside the fetch group with their initial value
+         if ( (fetchColumns != null) && (! fetchColumns.contains(attributeName.toLowerCase())) )
+         {
+            unloadedAttributes.put(attributeName,classInfo.getAttributeValue(obj,attributeName));
+            continue;
+         }
          // Handle other (normal) attributes
          Object attributeValue = marshalledValues.get(attributeName.toLowerCase());
          if ( logger.isDebugEnabled() )
@@ -371,7 +737,7 @@ public class QueryServiceImpl implements QueryService, PersistenceEventListener
             case TYPE_HANDLED:
                TypeHandler handler = typeHandlerTracker.getHandler(attributeClass);
                Object value = handler.unmarshallType(
-                     classInfo,obj,attributeName,marshalledValues, stmt.getTimeControl());
+                     classInfo,obj,attributeName,marshalledValues,timeControl);
                classInfo.setAttributeValue(obj,attributeName,value);
                break;
             case TYPE_OBJECT:
@@ -415,6 +781,8 @@ public class QueryServiceImpl implements QueryService, PersistenceEventListener
                throw new StoreException("attribute: "+attributeName+"'s type was not valid.");
          }
       } // Iteration over attributes
+      if ( ! unloadedAttributes.isEmpty() )
+         objectTracker.setUnloadedAttributes(obj,unloadedAttributes);
       return obj;
       // }}}
    }
@@ -469,77 +837,253 @@ public class QueryServiceImpl implements QueryService, PersistenceEventListener
          // class which to select.
          if ( stmt.getMode() == QueryStatement.MODE_VIEW )
             return find(stmt,limits);
-         TableTerm mainTerm = (TableTerm) stmt.getSelectTerms().get(0);
-         SpecifiedTableTerm specifiedMainTerm = stmt.getSpecifiedTerm(mainTerm);
-         ClassInfo classInfo = classTracker.getClassInfo(
-               schemaManager.getClassEntry(mainTerm.getTableName()));
-         if ( classInfo == null )
-            throw new StoreException("no class found for table name: "+mainTerm.getTableName());
          // Run the real database search
          logger.debug("find running real select statement.");
          SearchResult rawResult = find(stmt,limits);
          // Take the raw data and umarshall them into objects
          logger.debug("find unmarshalling objects.");
          SearchResult cookedResult = new SearchResult();
-         HashMap missingAttributes = new HashMap();
          cookedResult.setResultSize(rawResult.getResultSize());
-         ArrayList cookedResultList = new ArrayList();
+         cookedResult.setResult(unmarshallResult(stmt,rawResult.getResult(),unmarshalledObjects));
+         // Debug code
+         if ( operationsLogger.isDebugEnabled() )
+         {
+            TransactionStatistics stats = new TransactionStatistics();
+            stats.add(transaction.getStats());
+            stats.substract(startStats);
+            operationsLogger.debug("operation find: "+stmt.getOriginalStatement()+", "+stats);
+            if ( operationsLogger.isDebugEnabled() )
+               operationsLogger.debug("previous operation trace:",new Exception("trace"));
+         }
+         // Return result
+         logger.debug("find returning result list");
+         return cookedResult;
+      } catch ( StoreException e ) {
+         transaction.markRollbackOnly();
+         logger.error("throwing store exception",e);
+         throw e;
+      } catch ( Throwable e ) {
+         transaction.markRollbackOnly();
+         logger.error("throwing unexpected exception",e);
+         throw new StoreException("unexpected exception",e);
+      } finally {
+         transaction.commit();
+         // Add to statistics
+         long endTime = System.currentTimeMillis();
+         synchronized ( queryStatistics )
+         {
+            queryStatistics.setQueryTime(queryStatistics.getQueryTime()+(endTime-startTime));
+         }
+      }
+      // }}}
+   }
+
+   /**
+    * Determine whether the given statements can be selected together
+    * in a single select.
+    */
+   public boolean isUnionSupported(List<QueryStatement> stmts)
+   {
+      Transaction transaction = transactionTracker.getTransaction(TransactionTracker.TX_REQUIRED);
+      transaction.begin();
+      try
+      {
+         return database.isUnionSupported(transaction,stmts);
+      } catch ( StoreException e ) {
+         transaction.markRollbackOnly();
+         throw e;
+      } finally {
+         transaction.commit();
+      }
+   }
+
+   /**
+    * Determine whether the database sorts null values after all
+    * other values in the given direction.
+    */
+   public boolean isNullSortedLast(boolean ascending)
+   {
+      return database.isNullSortedLast(ascending);
+   }
+
+   /**
+    * Select the concatenated results of more statements in a single
+    * select, and unmarshall the objects. The order and limits apply to
+    * the whole result.
+    */
+   public SearchResult find(List<QueryStatement> stmts, Limits limits, Map unmarshalledObjects)
+   {
+      if ( unmarshalledObjects == null )
+         unmarshalledObjects = new HashMap();
+      Transaction transaction = transactionTracker.getTransaction(TransactionTracker.TX_REQUIRED);
+      transaction.begin();
+      long startTime = System.currentTimeMillis();
+      try
+      {
+         SearchResult rawResult = findRaw(stmts,limits);
+         // Unmarshall the rows of each statement together, so referred
+         // objects are loaded once for each statement
+         List[] rawRows = new List[stmts.size()];
+         int[] branches = new int[rawResult.getResult().size()];
+         for ( int i=0; i<branches.length; i++ )
+         {
+            Map row = (Map) rawResult.getResult().get(i);
+            branches[i] = ((Number) row.get("persistence_branch")).intValue();
+            if ( rawRows[branches[i]] == null )
+               rawRows[branches[i]] = new ArrayList();
+            rawRows[branches[i]].add(row);
+         }
+         Iterator[] cookedIterators = new Iterator[stmts.size()];
+         for ( int i=0; i<stmts.size(); i++ )
+            if ( rawRows[i] != null )
+               cookedIterators[i] = unmarshallResult(stmts.get(i),rawRows[i],unmarshalledObjects).iterator();
+         // Assemble the result in the original order
+         ArrayList cookedResultList = new ArrayList(branches.length);
+         for ( int i=0; i<branches.length; i++ )
+            cookedResultList.add(cookedIterators[branches[i]].next());
+         SearchResult cookedResult = new SearchResult();
+         cookedResult.setResultSize(rawResult.getResultSize());
          cookedResult.setResult(cookedResultList);
-         for ( int i=0; i<rawResult.getResult().size(); i++ )
+         return cookedResult;
+      } catch ( StoreException e ) {
+         transaction.markRollbackOnly();
+         throw e;
+      } catch ( Throwable e ) {
+         transaction.markRollbackOnly();
+         throw new StoreException("unexpected exception",e);
+      } finally {
+         transaction.commit();
+         // Add to statistics
+         long endTime = System.currentTimeMillis();
+         synchronized ( queryStatistics )
          {
-            // Get values
-            Map marshalledValues = (Map) rawResult.getResult().get(i);
-            // If object already unmarshalled, then get from list,
-            // else instantiate
-            Object obj = unmarshalledObjects.get(marshalledValues.get("persistence_id"));
-            if ( obj == null )
+            queryStatistics.setQueryTime(queryStatistics.getQueryTime()+(endTime-startTime));
+         }
+      }
+   }
+
+   /**
+    * Unmarshall the raw rows of a non-view statement into objects.
+    * @param stmt The statement the rows were selected with.
+    * @param rawResult The raw rows as returned by the database.
+    * @param unmarshalledObjects The objects already unmarshalled, these
+    * will be used instead of creating new instances.
+    * @return The list of objects, or maps if the statement selects
+    * other attributes too.
+    */
+   List unmarshallResult(QueryStatement stmt, List rawResult, Map unmarshalledObjects)
+      throws InstantiationException, IllegalAccessException
+   {
+      TableTerm mainTerm = (TableTerm) stmt.getSelectTerms().get(0);
+      SpecifiedTableTerm specifiedMainTerm = stmt.getSpecifiedTerm(mainTerm);
+      ClassInfo classInfo = classTracker.getClassInfo(
+            schemaManager.getClassEntry(mainTerm.getTableName()));
+      if ( classInfo == null )
+         throw new StoreException("no class found for table name: "+mainTerm.getTableName());
+      // Whole objects selected without the changes of the transaction
+      // are shared with other queries
+      Set<String> selectedTables = null;
+      if ( (stmt.getFetchColumns() == null) && (stmt.getHistoryTables() == null) &&
+            (! stmt.getTimeControl().isApplyTransaction()) )
+      {
+         selectedTables = new HashSet<String>();
+         selectedTables.add(specifiedMainTerm.getTableName());
+         for ( int i=0; i<specifiedMainTerm.getRelatedLeftTerms().size(); i++ )
+            selectedTables.add(((SpecifiedTableTerm.LeftjoinEntry) 
+                     specifiedMainTerm.getRelatedLeftTerms().get(i)).term.getTableName());
+      }
+      HashMap missingAttributes = new HashMap();
+      ArrayList cookedResultList = new ArrayList();
+      for ( int i=0; i<rawResult.size(); i++ )
+      {
+         // Get values
+         Map marshalledValues = (Map) rawResult.get(i);
+         if ( selectedTables != null )
+            objectCache.addObject(marshalledValues,selectedTables,stmt.getTimeControl().getSerial());
+         // If object already unmarshalled, then get from list,
+         // else instantiate
+         Object obj = unmarshalledObjects.get(marshalledValues.get("persistence_id"));
+         if ( obj == null )
+         {
+            if ( logger.isDebugEnabled() )
+               logger.debug("got marshalled values: "+marshalledValues);
+            // Instantiate and unmarshall object
+            ClassInfo localClassInfo = classInfo;
+            if ( specifiedMainTerm.getRelatedLeftTerms().size() > 0 )
             {
-               if ( logger.isDebugEnabled() )
-                  logger.debug("got marshalled values: "+marshalledValues);
-               // Instantiate and unmarshall object
-               ClassInfo localClassInfo = classInfo;
-               if ( specifiedMainTerm.getRelatedLeftTerms().size() > 0 )
-               {
-                  // If there were left join tables, try to get the
-                  // correct class. This means, that the object
-                  // can be the subclass of queried class, and not
-                  // exactly that. We can determine the exact class
-                  // from the persistence id.
-                  Long persistenceId = (Long) marshalledValues.get("persistence_id");
-                  ClassEntry localClassEntry = classTracker.getClassEntry(new Identifier(persistenceId).getClassId());
-                  localClassInfo = classTracker.getClassInfo(localClassEntry);
-               }
-               // Unmarshall, with the exact class info given
-               obj = unmarshallObject(localClassInfo,marshalledValues,
-                     unmarshalledObjects,missingAttributes,stmt);
+               // If there were left join tables, try to get the
+               // correct class. This means, that the object
+               // can be the subclass of queried class, and not
+               // exactly that. We can determine the exact class
+               // from the persistence id.
+               Long persistenceId = (Long) marshalledValues.get("persistence_id");
+               ClassEntry localClassEntry = classTracker.getClassEntry(new Identifier(persistenceId).getClassId());
+               localClassInfo = classTracker.getClassInfo(localClassEntry);
             }
-            // Add object to result list. The 'obj' is an umarshalled full
-            // object, which is gethered from the main table of the query.
-            // How ever, if there are other referenced attributes the
-            // query should return, then we do the whole thing into a Map.
-            // The object itself will have the key 'object' in this case.
-            if ( stmt.getSelectTerms().size() > 1 )
+            // Unmarshall, with the exact class info given
+            obj = unmarshallObject(localClassInfo,marshalledValues,
+                  unmarshalledObjects,missingAttributes,stmt.getTimeControl(),stmt.getFetchColumns());
+         }
+         // Add object to result list. The 'obj' is an umarshalled full
+         // object, which is gethered from the main table of the query.
+         // How ever, if there are other referenced attributes the
+         // query should return, then we do the whole thing into a Map.
+         // The object itself will have the key 'object' in this case.
+         if ( stmt.getSelectTerms().size() > 1 )
+         {
+            // There are other attributes the caller wants, so
+            // do the whole thing into a Map. Insert all wanted attributes,
+            // and the unmarshalled main object too.
+            HashMap resultObj  = new HashMap();
+            for ( int o=1; o<stmt.getSelectTerms().size(); o++ )
             {
-               // There are other attributes the caller wants, so
-               // do the whole thing into a Map. Insert all wanted attributes,
-               // and the unmarshalled main object too.
-               HashMap resultObj  = new HashMap();
-               for ( int o=1; o<stmt.getSelectTerms().size(); o++ )
-               {
-                  ReferenceTerm refTerm = (ReferenceTerm) stmt.getSelectTerms().get(o);
-                  resultObj.put(refTerm.getColumnFinalName(),marshalledValues.get(refTerm.getColumnFinalName().toLowerCase()));
-               }
-               resultObj.put("object",obj);
-               cookedResultList.add(resultObj);
-            } else {
-               // There was just the object, so insert it into the result
-               // list, just in itself.
-               cookedResultList.add(obj);
+               ReferenceTerm refTerm = (ReferenceTerm) stmt.getSelectTerms().get(o);
+               resultObj.put(refTerm.getColumnFinalName(),marshalledValues.get(refTerm.getColumnFinalName().toLowerCase()));
             }
+            resultObj.put("object",obj);
+            cookedResultList.add(resultObj);
+         } else {
+            // There was just the object, so insert it into the result
+            // list, just in itself.
+            cookedResultList.add(obj);
          }
-         // Load all referred objects for all classes which were unmarshalled,
-         // the missing list was assembled in the unmarshall code.
-         Iterator missingAttributesIterator = missingAttributes.entrySet().iterator();
+      }
+      // Load all referred objects for all classes which were unmarshalled,
+      // the missing list was assembled in the unmarshall code.
+      loadMissingAttributes(missingAttributes,unmarshalledObjects);
+      return cookedResultList;
+   }
+
+   /**
+    * Load the referred objects of the given attributes, and set them
+    * into the referrer objects. Objects are taken from the object cache
+    * if possible, the others are selected.
+    * @param missingAttributes The ids entries of the attributes.
+    * @param unmarshalledObjects The objects already unmarshalled.
+    */
+   private void loadMissingAttributes(Map missingAttributes, Map unmarshalledObjects)
+      throws InstantiationException, IllegalAccessException
+   {
+      if ( missingAttributes.isEmpty() )
+         return;
+      // The cache can not be used if the transaction changed something,
+      // because the cache does not contain changes of the transaction
+      Transaction transaction = transactionTracker.getTransaction(TransactionTracker.TX_OPTIONAL);
+      TimeControl timeControl = null;
+      if ( (transaction != null) && ((! transactionTables.containsKey(transaction)) || 
+               (transactionTables.get(transaction).isEmpty())) )
+      {
+         timeControl = createTimeControl(transaction);
+         operationTracker.waitForQuery(timeControl.getSerial());
+      }
+      // Objects from the cache may refer to other objects too, these
+      // are loaded after the current attributes, for each class separately
+      LinkedList<Map> pendingAttributes = new LinkedList<Map>();
+      pendingAttributes.add(missingAttributes);
+      Map<ClassInfo,Map> cachedMissingAttributes = new HashMap<ClassInfo,Map>();
+      while ( ! pendingAttributes.isEmpty() )
+      {
+         Iterator missingAttributesIterator = pendingAttributes.removeFirst().entrySet().iterator();
          while ( missingAttributesIterator.hasNext() )
          {
             // Get all necessary meta-data
@@ -550,14 +1094,47 @@ public class QueryServiceImpl implements QueryService, PersistenceEventListener
             // We got the class of the object, so we select all objects to
             // this attribute into a map keyed with the persistence id.
             HashMap referredObjects = new HashMap();
-            if ( logger.isDebugEnabled() )
-               logger.debug("getting member attribute: "+selectClass+", for ids: "+idsEntry.ids);
-            List referredObjectList = find("find member("+selectClass.getName()+") where member in ?",new Object[] {idsEntry.ids},null,unmarshalledObjects);
-            Iterator referredObjectIterator = referredObjectList.iterator();
-            while ( referredObjectIterator.hasNext() )
+            Set selectIds = new HashSet();
+            Iterator idIterator = idsEntry.ids.iterator();
+            while ( idIterator.hasNext() )
             {
-               Object referredObject = referredObjectIterator.next();
-               referredObjects.put(objectTracker.getIdentifier(referredObject),referredObject);
+               Long id = (Long) idIterator.next();
+               Object referredObject = unmarshalledObjects.get(id);
+               Map marshalledValues = null;
+               if ( (referredObject == null) && (timeControl != null) )
+                  marshalledValues = objectCache.getObject(id,getSafeSerial(timeControl));
+               if ( marshalledValues != null )
+               {
+                  ClassInfo classInfo = classTracker.getClassInfo(
+                        classTracker.getClassEntry(new Identifier(id).getClassId()));
+                  if ( classInfo != null )
+                  {
+                     Map classMissingAttributes = cachedMissingAttributes.get(classInfo);
+                     if ( classMissingAttributes == null )
+                     {
+                        classMissingAttributes = new HashMap();
+                        cachedMissingAttributes.put(classInfo,classMissingAttributes);
+                     }
+                     referredObject = unmarshallObject(classInfo,marshalledValues,
+                           unmarshalledObjects,classMissingAttributes,timeControl,null);
+                  }
+               }
+               if ( referredObject != null )
+                  referredObjects.put(id,referredObject);
+               else
+                  selectIds.add(id);
+            }
+            if ( ! selectIds.isEmpty() )
+            {
+               if ( logger.isDebugEnabled() )
+                  logger.debug("getting member attribute: "+selectClass+", for ids: "+selectIds);
+               List referredObjectList = find("find member("+selectClass.getName()+") where member in ?",new Object[] {selectIds},null,unmarshalledObjects);
+               Iterator referredObjectIterator = referredObjectList.iterator();
+               while ( referredObjectIterator.hasNext() )
+               {
+                  Object referredObject = referredObjectIterator.next();
+                  referredObjects.put(objectTracker.getIdentifier(referredObject),referredObject);
+               }
             }
             // Now fill in this attribute with the ready referred objects
             Iterator objectEntryIterator = idsEntry.objects.entrySet().iterator();
@@ -575,37 +1152,75 @@ public class QueryServiceImpl implements QueryService, PersistenceEventListener
                }
             }
          }
-         // Debug code
-         if ( operationsLogger.isDebugEnabled() )
-         {
-            TransactionStatistics stats = new TransactionStatistics();
-            stats.add(transaction.getStats());
-            stats.substract(startStats);
-            operationsLogger.debug("operation find: "+stmt.getOriginalStatement()+", "+stats);
-            if ( operationsLogger.isDebugEnabled() )
-               operationsLogger.debug("previous operation trace:",new Exception("trace"));
-         }
-         // Return result
-         logger.debug("find returning result list");
-         return cookedResult;
-      } catch ( StoreException e ) {
-         transaction.markRollbackOnly();
-         logger.error("throwing store exception",e);
-         throw e;
-      } catch ( Throwable e ) {
-         transaction.markRollbackOnly();
-         logger.error("throwing unexpected exception",e);
-         throw new StoreException("unexpected exception",e);
-      } finally {
-         transaction.commit();
-         // Add to statistics
-         long endTime = System.currentTimeMillis();
-         synchronized ( queryStatistics )
-         {
-            queryStatistics.setQueryTime(queryStatistics.getQueryTime()+(endTime-startTime));
-         }
+         pendingAttributes.addAll(cachedMissingAttributes.values());
+         cachedMissingAttributes.clear();
+      }
+   }
+
+   /**
+    * Remember a result list until it is garbage collected, because it
+    * may select pages at its serial as long as it is referenced.
+    */
+   private void registerList(LazyList list, QueryStatementList stmts)
+   {
+      if ( (stmts.isEmpty()) || (((QueryStatement) stmts.get(0)).getTimeControl() == null) )
+         return;
+      Long serial = getSafeSerial(((QueryStatement) stmts.get(0)).getTimeControl());
+      synchronized ( openLists )
+      {
+         removeCollectedLists();
+         openLists.add(new ListReference(list,serial,openListsQueue));
+      }
+   }
+
+   /**
+    * Forget lists which were garbage collected.
+    */
+   private void removeCollectedLists()
+   {
+      Object reference = null;
+      while ( (reference = openListsQueue.poll()) != null )
+         openLists.remove(reference);
+   }
+
+   /**
+    * Get the serial of the oldest result list still referenced.
+    */
+   public Long getOldestListSerial()
+   {
+      synchronized ( openLists )
+      {
+         removeCollectedLists();
+         Long result = null;
+         for ( ListReference reference : openLists )
+            if ( (reference.get() != null) && 
+                  ((result == null) || (reference.serial.longValue() < result.longValue())) )
+               result = reference.serial;
+         return result;
+      }
+   }
+
+   private static class ListReference extends WeakReference<LazyList>
+   {
+      public Long serial;
+
+      public ListReference(LazyList list, Long serial, ReferenceQueue<LazyList> queue)
+      {
+         super(list,queue);
+         this.serial=serial;
+      }
+   }
+
+   private static class BatchEntry
+   {
+      public Limits limits;
+      public SearchResult result;
+
+      public BatchEntry(Limits limits, SearchResult result)
+      {
+         this.limits=limits;
+         this.result=result;
       }
-      // }}}
    }
 
    private static class IdsEntry
@@ -0,0 +1,170 @@
+/**
+ * Copyright (C) 2008 NetMind Consulting Bt.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package hu.netmind.beankeeper.query.impl;
+
+import hu.netmind.beankeeper.common.StoreException;
+import hu.netmind.beankeeper.db.Database;
+import hu.netmind.beankeeper.db.SearchCursor;
+import hu.netmind.beankeeper.parser.QueryStatement;
+import hu.netmind.beankeeper.parser.QueryStatementList;
+import hu.netmind.beankeeper.query.ResultCursor;
+import hu.netmind.beankeeper.transaction.Transaction;
+import hu.netmind.beankeeper.transaction.TransactionTracker;
+import java.util.*;
+import org.apache.log4j.Logger;
+
+/**
+ * Cursor over the results of the statements of a query. The rows are read
+ * from the database cursor in windows, and each window is unmarshalled
+ * on its own, so referred objects can be loaded for a whole window at once,
+ * but objects of previous windows are not referenced anymore.
+ * @author Brautigam Robert
+ * @version Revision: $Revision$
+ */
+public class ResultCursorImpl implements ResultCursor
+{
+   private static Logger logger = Logger.getLogger(ResultCursorImpl.class);
+
+   private QueryServiceImpl queryService;
+   private Database database;
+   private TransactionTracker transactionTracker;
+   private Transaction transaction;
+   private boolean unbound;
+   private QueryStatementList stmts;
+   private int windowSize;
+
+   private int stmtIndex = 0;
+   private QueryStatement stmt = null;
+   private SearchCursor cursor = null;
+   private List window = Collections.EMPTY_LIST;
+   private int windowIndex = 0;
+   private boolean closed = false;
+
+   /**
+    * Construct the cursor. The transaction given must be already begun,
+    * it will be committed when this cursor is closed. An unbound
+    * transaction is only bound to the calling thread while a window
+    * is read, so referred objects are loaded in the same transaction.
+    */
+   ResultCursorImpl(QueryServiceImpl queryService, Database database,
+         TransactionTracker transactionTracker, Transaction transaction,
+         boolean unbound, QueryStatementList stmts, int windowSize)
+   {
+      this.queryService=queryService;
+      this.database=database;
+      this.transactionTracker=transactionTracker;
+      this.transaction=transaction;
+      this.unbound=unbound;
+      this.stmts=stmts;
+      this.windowSize=windowSize;
+   }
+
+   public boolean hasNext()
+   {
+      if ( closed )
+         return false;
+      boolean available = true;
+      try
+      {
+         if ( unbound )
+            transactionTracker.bind(transaction);
+         try
+         {
+            while ( (available) && (windowIndex >= window.size()) )
+               available = nextWindow();
+         } finally {
+            if ( unbound )
+               transactionTracker.unbind(transaction);
+         }
+      } catch ( StoreException e ) {
+         transaction.markRollbackOnly();
+         close();
+         throw e;
+      } catch ( Throwable e ) {
+         transaction.markRollbackOnly();
+         close();
+         throw new StoreException("unexpected exception while reading cursor",e);
+      }
+      if ( ! available )
+         close();
+      return available;
+   }
+
+   public Object next()
+   {
+      if ( ! hasNext() )
+         throw new NoSuchElementException("cursor has no more objects");
+      Object result = window.get(windowIndex);
+      window.set(windowIndex++,null); // Do not reference returned objects
+      return result;
+   }
+
+   public void remove()
+   {
+      throw new UnsupportedOperationException("cursor does not support remove");
+   }
+
+   /**
+    * Read the next window of rows, and unmarshall them.
+    * @return False, if there are no more rows in any statement.
+    */
+   private boolean nextWindow()
+      throws InstantiationException, IllegalAccessException
+   {
+      // Open the next statement's cursor if the current one ended
+      while ( (cursor == null) || (! cursor.hasNext()) )
+      {
+         if ( cursor != null )
+            cursor.close();
+         cursor = null;
+         if ( stmtIndex >= stmts.size() )
+            return false;
+         stmt = (QueryStatement) stmts.get(stmtIndex++);
+         if ( logger.isDebugEnabled() )
+            logger.debug("opening cursor for statement: "+stmt.getStaticRepresentation());
+         cursor = database.stream(transaction,stmt);
+      }
+      // Read window
+      List rawRows = new ArrayList();
+      while ( (rawRows.size() < windowSize) && (cursor.hasNext()) )
+         rawRows.add(cursor.next());
+      if ( stmt.getMode() == QueryStatement.MODE_VIEW )
+         window = rawRows;
+      else
+         window = queryService.unmarshallResult(stmt,rawRows,new HashMap());
+      windowIndex = 0;
+      return true;
+   }
+
+   public void close()
+   {
+      if ( closed )
+         return;
+      closed = true;
+      window = Collections.EMPTY_LIST;
+      try
+      {
+         if ( cursor != null )
+            cursor.close();
+         cursor = null;
+      } finally {
+         transaction.commit();
+      }
+   }
+}
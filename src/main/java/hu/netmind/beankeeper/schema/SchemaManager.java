@@ -33,6 +33,12 @@ public interface SchemaManager extends Service
     */
    void ensureSchema(ClassEntry entry);
 
+   /**
+    * Ensure the schema of the classes already known, if the warm-up is
+    * enabled in the configuration.
+    */
+   void warmUp();
+
    /**
     * Get the table name for a given class entry.
     */
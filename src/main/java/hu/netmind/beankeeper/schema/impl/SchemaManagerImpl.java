@@ -29,7 +29,12 @@ import hu.netmind.beankeeper.transaction.Transaction;
 import hu.netmind.beankeeper.transaction.InternalTransactionTracker;
 import hu.netmind.beankeeper.common.StoreException;
 import hu.netmind.beankeeper.node.NodeManager;
+import hu.netmind.beankeeper.config.ConfigurationTracker;
 import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ExecutionException;
 import org.apache.log4j.Logger;
 
 /**
@@ -45,9 +50,17 @@ public class SchemaManagerImpl implements SchemaManager
    private TypeHandlerTracker typeHandlerTracker = null; // Injected
    private InternalTransactionTracker transactionTracker = null; // Injected
    private NodeManager nodeManager = null; // Injected
+   private ConfigurationTracker configurationTracker = null; // Injected
 
-   private Set<ClassEntry> ensuredEntries = new HashSet<ClassEntry>();
-   private Set<ClassEntry> processingEntries = new HashSet<ClassEntry>();
+   private Set<ClassEntry> ensuredEntries = Collections.synchronizedSet(new HashSet<ClassEntry>());
+   private Map<ClassEntry,Object> entryLocks = new HashMap<ClassEntry,Object>();
+   private ThreadLocal<Set<ClassEntry>> processingEntries = new ThreadLocal<Set<ClassEntry>>()
+      {
+         protected Set<ClassEntry> initialValue()
+         {
+            return new HashSet<ClassEntry>();
+         }
+      };
 
    /**
     * Load the table names from database.
@@ -63,15 +76,103 @@ public class SchemaManagerImpl implements SchemaManager
    {
    }
 
+   /**
+    * Ensure the schema of all classes already recorded in the database
+    * concurrently, so the first operations after startup do not have to
+    * wait for the tables to be checked. Only runs if
+    * <code>beankeeper.schema.warmup_threads</code> is positive. If
+    * <code>beankeeper.schema.warmup_packages</code> is given, only the
+    * classes in those packages are ensured.
+    */
+   public void warmUp()
+   {
+      int threadCount = configurationTracker.getConfiguration().
+         getInt("beankeeper.schema.warmup_threads",0);
+      if ( threadCount <= 0 )
+         return;
+      List<String> packages = new ArrayList<String>();
+      for ( String packageName : configurationTracker.getConfiguration().
+            getStringArray("beankeeper.schema.warmup_packages") )
+         if ( packageName.trim().length() > 0 )
+            packages.add(packageName.trim()+".");
+      List<ClassEntry> entries = new ArrayList<ClassEntry>();
+      for ( ClassEntry entry : classTracker.getClassEntries() )
+      {
+         boolean matches = packages.isEmpty();
+         for ( int i=0; (i<packages.size()) && (!matches); i++ )
+            matches = entry.getSourceClass().getName().startsWith(packages.get(i));
+         if ( matches )
+            entries.add(entry);
+      }
+      logger.info("warming up schema of "+entries.size()+" classes on "+threadCount+" threads");
+      long startTime = System.currentTimeMillis();
+      ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+      try
+      {
+         List<Future> futures = new ArrayList<Future>();
+         for ( final ClassEntry entry : entries )
+         {
+            futures.add(executor.submit(new Runnable()
+               {
+                  public void run()
+                  {
+                     ensureSchema(entry);
+                  }
+               }));
+         }
+         for ( Future future : futures )
+            future.get();
+      } catch ( ExecutionException e ) {
+         if ( e.getCause() instanceof StoreException )
+            throw (StoreException) e.getCause();
+         throw new StoreException("could not warm up schema",e.getCause());
+      } catch ( InterruptedException e ) {
+         throw new StoreException("interrupted while warming up schema",e);
+      } finally {
+         executor.shutdownNow();
+      }
+      logger.info("schema warm-up finished in "+(System.currentTimeMillis()-startTime)+" ms");
+   }
+
+   /**
+    * Get the lock object of an entry. Entries are ensured concurrently,
+    * but a single entry is only ensured by one thread at a time.
+    */
+   private Object getEntryLock(ClassEntry entry)
+   {
+      synchronized ( entryLocks )
+      {
+         Object lock = entryLocks.get(entry);
+         if ( lock == null )
+         {
+            lock = new Object();
+            entryLocks.put(entry,lock);
+         }
+         return lock;
+      }
+   }
+
    /**
     * Ensure that the specified entry is represented in the database
     * and synchronized with the Java model.
     */
-   public synchronized void ensureSchema(ClassEntry entry)
+   public void ensureSchema(ClassEntry entry)
    {
-      if ( (entry == null) || (processingEntries.contains(entry)) )
+      if ( (entry == null) || (processingEntries.get().contains(entry)) )
          return;
-      processingEntries.add(entry);
+      synchronized ( getEntryLock(entry) )
+      {
+         ensureSchemaLocked(entry);
+      }
+   }
+
+   /**
+    * Ensure the entry, while holding its lock. Superclasses are locked
+    * after their subclasses, so the locks are always taken in the same order.
+    */
+   private void ensureSchemaLocked(ClassEntry entry)
+   {
+      processingEntries.get().add(entry);
       try
       {
          // Determine if it needs to be ensured at all, or if it was before
@@ -161,7 +262,7 @@ public class SchemaManagerImpl implements SchemaManager
          // Now if everything went ok, remember this entry as already ensured
          ensuredEntries.add(entry);
       } finally {
-         processingEntries.remove(entry);
+         processingEntries.get().remove(entry);
       }
    }
 
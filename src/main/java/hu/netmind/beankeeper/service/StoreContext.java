@@ -32,6 +32,8 @@ public interface StoreContext extends Service
    public static final String PARAM_DRIVERCLASS = "db.driver.class";
    public static final String PARAM_DATASOURCE = "db.driver.datasource";
    public static final String PARAM_CONNECTIONSOURCE = "db.connection.source";
+   public static final String PARAM_REPLICA_DATASOURCE = "db.replica.datasource";
+   public static final String PARAM_REPLICA_CONNECTIONSOURCE = "db.replica.connection.source";
 
    /**
     * Return whether the given service is available.
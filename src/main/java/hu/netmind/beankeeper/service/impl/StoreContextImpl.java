@@ -47,16 +47,19 @@ public class StoreContextImpl implements StoreContext
       "hu.netmind.beankeeper.serial.impl.SerialTrackerImpl",
       "hu.netmind.beankeeper.operation.impl.OperationTrackerImpl",
       "hu.netmind.beankeeper.transaction.impl.TransactionTrackerImpl",
+      "hu.netmind.beankeeper.async.impl.AsyncServiceImpl",
       "hu.netmind.beankeeper.type.impl.TypeHandlerTrackerImpl",
       "hu.netmind.beankeeper.model.impl.ClassTrackerImpl",
       "hu.netmind.beankeeper.schema.impl.SchemaManagerImpl",
       "hu.netmind.beankeeper.object.impl.ObjectTrackerImpl",
       "hu.netmind.beankeeper.cache.impl.MinimalResultsCache",
+      "hu.netmind.beankeeper.cache.impl.ObjectCacheImpl",
       "hu.netmind.beankeeper.query.impl.QueryServiceImpl",
       "hu.netmind.beankeeper.modification.impl.ModificationTrackerImpl",
       "hu.netmind.beankeeper.lock.impl.LockTrackerImpl",
       "hu.netmind.beankeeper.type.impl.DefaultHandlersService",
       "hu.netmind.beankeeper.store.impl.StoreServiceImpl",
+      "hu.netmind.beankeeper.history.impl.HistoryCompactorImpl",
    };
    private static final Logger logger = Logger.getLogger(StoreContext.class);
 
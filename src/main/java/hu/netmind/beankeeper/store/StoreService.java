@@ -22,6 +22,7 @@ import hu.netmind.beankeeper.service.Service;
 import java.util.Map;
 import hu.netmind.beankeeper.transaction.Transaction;
 import java.util.List;
+import java.util.Collection;
 
 /**
  * This service encapsulates the update/save database operations into an 
@@ -36,11 +37,21 @@ public interface StoreService extends Service
     */
    void save(Object obj);
 
+   /**
+    * Save all objects in one transaction as a bulk load.
+    */
+   void saveAll(Collection objs);
+
    /**
     * Remove an object from store.
     */
    void remove(Object obj);
 
+   /**
+    * Load the attributes of a partially loaded object which were not selected.
+    */
+   void load(Object obj);
+
 }
 
 
@@ -21,6 +21,10 @@ package hu.netmind.beankeeper.store.event;
 import hu.netmind.beankeeper.object.PersistenceMetaData;
 import hu.netmind.beankeeper.event.PersistenceEvent;
 import java.util.List;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.HashMap;
+import java.util.Set;
 
 /**
  * This event is delivered when the changed objects are finalized in the database
@@ -34,12 +38,28 @@ public class ObjectsFinalizationEvent implements PersistenceEvent
    private List<PersistenceMetaData> metas = null;
    private Long txSerial = null;
    private Long serial = null;
+   private List<Long> removedIds = null;
+   private Map<Long,Set<String>> changedAttributes = null;
 
    public ObjectsFinalizationEvent(List<PersistenceMetaData> metas, Long serial, Long txSerial)
+   {
+      this(metas,serial,txSerial,new ArrayList<Long>());
+   }
+
+   public ObjectsFinalizationEvent(List<PersistenceMetaData> metas, Long serial, Long txSerial,
+         List<Long> removedIds)
+   {
+      this(metas,serial,txSerial,removedIds,new HashMap<Long,Set<String>>());
+   }
+
+   public ObjectsFinalizationEvent(List<PersistenceMetaData> metas, Long serial, Long txSerial,
+         List<Long> removedIds, Map<Long,Set<String>> changedAttributes)
    {
       this.metas=metas;
       this.serial=serial;
       this.txSerial=txSerial;
+      this.removedIds=removedIds;
+      this.changedAttributes=changedAttributes;
    }
 
    public List<PersistenceMetaData> getMetas()
@@ -56,5 +76,24 @@ public class ObjectsFinalizationEvent implements PersistenceEvent
    {
       return txSerial;
    }
+
+   /**
+    * Get the ids of objects which were removed, and not saved again
+    * in the same transaction. These are also contained in the metas.
+    */
+   public List<Long> getRemovedIds()
+   {
+      return removedIds;
+   }
+
+   /**
+    * Get the lower case names of the changed attributes of objects
+    * which were only updated. If an object is not contained, any of its
+    * attributes may have changed.
+    */
+   public Map<Long,Set<String>> getChangedAttributes()
+   {
+      return changedAttributes;
+   }
 }
 
@@ -93,6 +93,8 @@ public class StoreServiceImpl implements StoreService
       // Create the operations mbean and register
       storeStatistics = new StoreStatistics();
       managementTracker.registerBean("StoreStatistics",storeStatistics);      
+      // All services are present, so tables can be ensured now
+      schemaManager.warmUp();
       // }}}
    }
 
@@ -125,6 +127,23 @@ public class StoreServiceImpl implements StoreService
       return content;
    }
 
+   /**
+    * Remove the transaction content of a finished transaction.
+    * @return The content the transaction had, or an empty content if
+    * there was none.
+    */
+   private TransactionContentImpl removeTransactionContent(Transaction transaction)
+   {
+      TransactionContentImpl content = null;
+      synchronized ( transactionContent )
+      {
+         content = transactionContent.remove(transaction);
+      }
+      if ( content == null )
+         content = new TransactionContentImpl();
+      return content;
+   }
+
    /**
     * Save the given object to the store. 
     * @param obj The object to save.
@@ -191,6 +210,10 @@ public class StoreServiceImpl implements StoreService
             // then the reference id will be inserted into the change Map.
             Map changedAttributes = new HashMap();
             // }}}
+            // Attributes not selected by a fetch group are loaded first,
+            // so the object holds the values it is saved with
+            if ( objectTracker.exists(current) )
+               load(current);
             // {{{ Assemble previous state of object
             Map originalAttributes = objectTracker.getCurrentAttributes(current);
             TimeControl originalTimeControl = new TimeControl(currentSerial,currentTxSerial,true);
@@ -433,6 +456,7 @@ public class StoreServiceImpl implements StoreService
                            strictNonChanges);
                      // Add to modified tables list
                      content.addSaveTable(schemaManager.getTableName(entry));
+                     content.addChangedAttributes(currentId,strictChanges.keySet());
                   }
                } else {
                   // Insert
@@ -448,6 +472,7 @@ public class StoreServiceImpl implements StoreService
                         strictChanges);
                   // Add to modified tables list
                   content.addSaveTable(schemaManager.getTableName(entry));
+                  content.addChangedAttributes(currentId,null);
                }
             }
             if ( changedAttributes.size() != 0 )
@@ -517,6 +542,72 @@ public class StoreServiceImpl implements StoreService
       /// }}}
    }
 
+   /**
+    * Save all objects given in a single transaction. The transaction is
+    * switched to bulk mode while the objects are saved, so the database
+    * implementation may buffer more rows, and use a faster way to insert
+    * new objects.
+    * @param objs The objects to save.
+    * @throws StoreException If save is not successfull.
+    */
+   public void saveAll(Collection objs)
+   {
+      Transaction transaction = transactionTracker.getTransaction(TransactionTracker.TX_REQUIRED);
+      transaction.begin();
+      try
+      {
+         database.setBulk(transaction,true);
+         for ( Object obj : objs )
+            save(obj);
+         // Write the rows while still in bulk mode
+         database.flush(transaction);
+      } catch ( StoreException e ) {
+         transaction.markRollbackOnly();
+         throw e;
+      } catch ( Throwable e ) {
+         transaction.markRollbackOnly();
+         throw new StoreException("unexpected exception",e);
+      } finally {
+         database.setBulk(transaction,false);
+         transaction.commit();
+      }
+   }
+
+   /**
+    * Load the attributes of a partially loaded object which were not
+    * selected. Attributes which were set since the object was selected
+    * keep their values. The unloaded marks of the object are cleared,
+    * so all attributes are saved as they are in the object.
+    * @param obj The object to load.
+    */
+   public void load(Object obj)
+   {
+      Map unloadedAttributes = objectTracker.getUnloadedAttributes(obj);
+      if ( unloadedAttributes == null )
+         return;
+      Object loaded = queryService.findSingle("find member("+obj.getClass().getName()+
+               ") where member = ?",new Object[] { obj });
+      if ( loaded == null )
+      {
+         logger.debug("partially loaded object was not found, it can not be loaded");
+         return;
+      }
+      // Copy only attributes which were not set since the object was selected
+      ClassInfo classInfo = classTracker.getClassInfo(obj.getClass(),obj);
+      Iterator entryIterator = unloadedAttributes.entrySet().iterator();
+      while ( entryIterator.hasNext() )
+      {
+         Map.Entry entry = (Map.Entry) entryIterator.next();
+         String attributeName = (String) entry.getKey();
+         Object value = classInfo.getAttributeValue(obj,attributeName);
+         Object unloadedValue = entry.getValue();
+         if ( (value==unloadedValue) || ((value!=null) && (value.equals(unloadedValue))) )
+            classInfo.setAttributeValue(obj,attributeName,
+                  classInfo.getAttributeValue(loaded,attributeName));
+      }
+      objectTracker.setUnloadedAttributes(obj,null);
+   }
+
    /**
     * Remove the object given. If the object is not stored yet, no
     * operation will take place.
@@ -549,6 +640,7 @@ public class StoreServiceImpl implements StoreService
          // Lock object
          lockTracker.lock(obj);
          content.addRemovedObject(objectTracker.getWrapper(obj));
+         content.addChangedAttributes(id,null);
          // Get class info
          ClassInfo classInfo = classTracker.getClassInfo(obj.getClass(),obj);
          // Assemble attributes
@@ -663,8 +755,15 @@ public class StoreServiceImpl implements StoreService
          if ( ! (event instanceof TransactionEvent) )
             return; // Quick exit
          Transaction transaction = ((TransactionEvent) event).getTransaction();
-         // Get transaction contents.
-         TransactionContentImpl content = getTransactionContent(transaction);
+         // Get transaction contents. This is the last listener to handle
+         // the transaction, so the contents of a finished transaction are
+         // removed, otherwise they would keep all saved objects referenced.
+         TransactionContentImpl content = null;
+         if ( (event instanceof TransactionRolledbackEvent) ||
+           (event instanceof TransactionCommittedEvent) )
+            content = removeTransactionContent(transaction);
+         else
+            content = getTransactionContent(transaction);
          if ( content.isEmpty() )
             return; // No need to do anything, if there were no modifications
          List objects = new ArrayList();
@@ -698,6 +797,11 @@ public class StoreServiceImpl implements StoreService
             // All operations done must be finalized now. If an exception occurs,
             // the transaction tracker will roll back the transaction anyway,
             // so we don't have to worry about that.
+            // All fixes are sent to the database together, because
+            // the commit lock is held while they execute.
+            List<String> fixTables = new ArrayList<String>();
+            List<Map> fixKeys = new ArrayList<Map>();
+            List<Map> fixChanges = new ArrayList<Map>();
             // Save: set startdates where startdate is maxdate
             List saveTables = content.getSaveTables();
             HashMap keys = new HashMap();
@@ -708,7 +812,9 @@ public class StoreServiceImpl implements StoreService
             {
                String tableName = (String) saveTables.get(i);
                logger.debug("fixing save table: "+tableName);
-               database.save(transaction,tableName,keys,changes);
+               fixTables.add(tableName);
+               fixKeys.add(keys);
+               fixChanges.add(changes);
             }
             // Remove: set enddates where txenddate is not maxdate
             List removeTables = content.getRemoveTables();
@@ -720,31 +826,51 @@ public class StoreServiceImpl implements StoreService
             {
                String tableName = (String) removeTables.get(i);
                logger.debug("fixing remove table: "+tableName);
-               database.save(transaction,tableName,keys,changes);
+               fixTables.add(tableName);
+               fixKeys.add(keys);
+               fixChanges.add(changes);
             }
+            database.saveTables(transaction,fixTables,fixKeys,fixChanges);
+            // Closed versions now have their end serials, so they can
+            // be moved to history tables
+            database.moveHistory(transaction,removeTables);
             // Notify the server of all objects that changed. This operation
             // must be before the commit physically occurs, because this notification
             // will cause the server to know which objects are modified.
             List metas = new ArrayList();
             for ( int i=0; i<objects.size(); i++ )
                metas.add(objectTracker.getMetaData(((ObjectTracker.ObjectWrapper)objects.get(i)).getObject()));
+            // Objects which were only removed can not match new queries,
+            // this is sent too, so caches may keep more results
+            List<Long> removedIds = new ArrayList<Long>();
+            for ( Object wrapper : content.getRemovedObjects() )
+               removedIds.add(objectTracker.getIdentifier(((ObjectTracker.ObjectWrapper) wrapper).getObject()));
+            for ( Object wrapper : content.getSavedObjects() )
+               removedIds.remove(objectTracker.getIdentifier(((ObjectTracker.ObjectWrapper) wrapper).getObject()));
+            // The changed attributes of updated objects are sent too,
+            // so caches may keep results which do not depend on them
+            HashMap<Long,Set<String>> changedAttributes = content.getChangedAttributes();
             if ( logger.isDebugEnabled() )
-               logger.debug("sending changed objects' meta to all: "+metas);
+               logger.debug("sending changed objects' meta to all: "+metas+", removed: "+removedIds+
+                     ", changed attributes: "+changedAttributes);
             // TODO (DODGY): We should ensure that this call does not return until
             // all nodes finished processing of event. If we don't, it's possible that
             // a client does not clear cache for example but after the commit lock is
             // freed. Which would mean it might allow for an inconsistent query.
             nodeManager.callAll(StoreService.class.getName(),"notifyChange",
-                  new Class[] { List.class, Long.class, Long.class },
-                  new Object[] { metas, transaction.getEndSerial(), transaction.getSerial() });
+                  new Class[] { List.class, Long.class, Long.class, List.class, Map.class },
+                  new Object[] { metas, transaction.getEndSerial(), transaction.getSerial(), removedIds,
+                     changedAttributes });
             logger.debug("sending changed objects finished.");
          }
       }
    }
 
-   public void notifyChange(List<PersistenceMetaData> metas, Long serial, Long txSerial)
+   public void notifyChange(List<PersistenceMetaData> metas, Long serial, Long txSerial,
+         List<Long> removedIds, Map<Long,Set<String>> changedAttributes)
    {
-      eventDispatcher.notifyAll(new ObjectsFinalizationEvent(metas,serial,txSerial));
+      eventDispatcher.notifyAll(new ObjectsFinalizationEvent(metas,serial,txSerial,removedIds,
+               changedAttributes));
    }
 
    public static class TransactionContentImpl
@@ -754,6 +880,8 @@ public class StoreServiceImpl implements StoreService
       private LinkedList removedObjectList;
       private HashSet saveTables;
       private HashSet removeTables;
+      private HashMap<Long,Set<String>> changedAttributes; // Changed attributes of updated objects
+      private HashSet<Long> insertedIds; // Objects inserted or removed, all attributes changed
 
       private TransactionContentImpl()
       {
@@ -761,6 +889,8 @@ public class StoreServiceImpl implements StoreService
          removedObjectList = new LinkedList();
          saveTables = new HashSet();
          removeTables = new HashSet();
+         changedAttributes = new HashMap<Long,Set<String>>();
+         insertedIds = new HashSet<Long>();
       }
 
       private void addSavedObject(Object obj)
@@ -789,6 +919,41 @@ public class StoreServiceImpl implements StoreService
          return Collections.unmodifiableList(removedObjectList);
       }
 
+      /**
+       * Remember the attributes of an object changed in this transaction.
+       * @param attributeNames The names of the changed attributes, or null
+       * if the object was inserted or removed.
+       */
+      private void addChangedAttributes(Long id, Collection attributeNames)
+      {
+         if ( attributeNames == null )
+         {
+            insertedIds.add(id);
+            changedAttributes.remove(id);
+            return;
+         }
+         if ( insertedIds.contains(id) )
+            return;
+         Set<String> names = changedAttributes.get(id);
+         if ( names == null )
+         {
+            names = new HashSet<String>();
+            changedAttributes.put(id,names);
+         }
+         for ( Object attributeName : attributeNames )
+            names.add(attributeName.toString().toLowerCase());
+      }
+
+      /**
+       * Get the lower case names of the changed attributes of objects which
+       * were only updated in this transaction. Objects which were inserted
+       * or removed are not contained.
+       */
+      private HashMap<Long,Set<String>> getChangedAttributes()
+      {
+         return new HashMap<Long,Set<String>>(changedAttributes);
+      }
+
       public boolean isEmpty()
       {
          return savedObjectList.isEmpty() && removedObjectList.isEmpty();
@@ -39,6 +39,7 @@ public interface TransactionTracker extends Service
    int TX_REQUIRED = 1;
    int TX_NEW = 2;
    int TX_OPTIONAL = 3;
+   int TX_UNBOUND = 4;
 
    /**
     * Get a transaction. Following modes are supported:
@@ -48,6 +49,9 @@ public interface TransactionTracker extends Service
     *    <li>TX_NEW: A new transaction is allocated either way.</li>
     *    <li>TX_OPTIONAL: If there is a current transaction, that is returned,
     *    null otherwise.</li>
+    *    <li>TX_UNBOUND: A new transaction is allocated, which does not become
+    *    the current transaction of the calling thread. It can be used from
+    *    any thread, and made current temporarily with <code>bind()</code>.</li>
     * </ul>
     * Note, that each transaction can support multiple levels of begin-commit
     * blocks. Each transaction only commits/rollsback is the most outer
@@ -55,11 +59,30 @@ public interface TransactionTracker extends Service
     */
    Transaction getTransaction(int mode);
 
+   /**
+    * Make an unbound transaction the current transaction of the calling
+    * thread, until <code>unbind()</code> is called.
+    */
+   void bind(Transaction transaction);
+
+   /**
+    * Release an unbound transaction from the calling thread. The previous
+    * transaction of the thread becomes current again.
+    */
+   void unbind(Transaction transaction);
+
    /**
     * Determines whether the given transaction is a valid open transaction
     * in this tracker or not.
     */
    boolean hasTransaction(Long serial);
+
+   /**
+    * Get the serial of the oldest transaction currently open in this
+    * tracker.
+    * @return The serial, or null if there are no open transactions.
+    */
+   Long getOldestTransactionSerial();
 }
 
 
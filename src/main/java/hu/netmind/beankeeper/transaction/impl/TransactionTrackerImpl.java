@@ -71,6 +71,20 @@ public class TransactionTrackerImpl implements TransactionTracker
       }
    }
 
+   /**
+    * Get the serial of the oldest open transaction. Transactions are
+    * kept in order of allocation, so this is the first one.
+    */
+   public Long getOldestTransactionSerial()
+   {
+      synchronized ( allTransactions )
+      {
+         if ( allTransactions.isEmpty() )
+            return null;
+         return ((TransactionImpl) allTransactions.getFirst()).getSerial();
+      }
+   }
+
    /**
     * Get a transaction. Following modes are supported:
     * <ul>
@@ -79,6 +93,8 @@ public class TransactionTrackerImpl implements TransactionTracker
     *    <li>TX_NEW: A new transaction is allocated either way.</li>
     *    <li>TX_OPTIONAL: If there is a current transaction, that is returned,
     *    null otherwise.</li>
+    *    <li>TX_UNBOUND: A new transaction is allocated, which does not become
+    *    the current transaction of the calling thread.</li>
     * </ul>
     * Note, that each transaction can support multiple levels of begin-commit
     * blocks. Each transaction only commits/rollsback is the most outer
@@ -86,36 +102,75 @@ public class TransactionTrackerImpl implements TransactionTracker
     */
    public Transaction getTransaction(int mode)
    {
-      LinkedList list = (LinkedList) transactions.get();
-      if ( list == null )
+      if ( mode == TX_UNBOUND )
       {
-         // No list yet, initialize threadlocal
-         list = new LinkedList();
-         transactions.set(list);
+         TransactionImpl transaction = createTransaction();
+         transaction.setUnbound(true);
+         return transaction;
       }
+      LinkedList list = getThreadTransactions();
       if ( (list.size()==0) && (mode==TX_OPTIONAL) )
          return null;
       if ( (list.size() == 0) || (mode==TX_NEW) )
       {
          // No transaction, or new is explicitly required
-         Long txSerial = serialTracker.getNextSerial();
-         TransactionImpl transaction = new TransactionImpl(txSerial,
-               nodeManager.getServerId());
-         if ( logger.isDebugEnabled() )
-            logger.debug("transaction created: "+transaction);
-         if ( logger.isDebugEnabled() )
-            logger.debug("transaction allocation trace: "+getStackTrace(transaction.getAllocateTrace()));
-         transaction.setConnection(database.getConnectionSource().getConnection());
-         list.add(transaction);
-         synchronized ( allTransactions )
-         {
-            allTransactions.add(transaction);
-            allTransactionIds.add(transaction.getSerial());
-         }
+         list.add(createTransaction());
       }
       return (Transaction) list.getLast();
    }
 
+   public void bind(Transaction transaction)
+   {
+      if ( ! ((TransactionImpl) transaction).isUnbound() )
+         throw new StoreException("tried to bind a transaction which was not allocated unbound: "+transaction);
+      getThreadTransactions().add(transaction);
+   }
+
+   public void unbind(Transaction transaction)
+   {
+      LinkedList list = getThreadTransactions();
+      if ( (list.size()==0) || (! list.getLast().equals(transaction)) )
+         throw new StoreException("tried to unbind a transaction which is not the current transaction: "+transaction);
+      list.removeLast();
+   }
+
+   /**
+    * Get the transactions of the calling thread, the current transaction
+    * is the last one.
+    */
+   private LinkedList getThreadTransactions()
+   {
+      LinkedList list = (LinkedList) transactions.get();
+      if ( list == null )
+      {
+         // No list yet, initialize threadlocal
+         list = new LinkedList();
+         transactions.set(list);
+      }
+      return list;
+   }
+
+   /**
+    * Allocate a new transaction with its own connection.
+    */
+   private TransactionImpl createTransaction()
+   {
+      Long txSerial = serialTracker.getNextSerial();
+      TransactionImpl transaction = new TransactionImpl(txSerial,
+            nodeManager.getServerId());
+      if ( logger.isDebugEnabled() )
+         logger.debug("transaction created: "+transaction);
+      if ( logger.isDebugEnabled() )
+         logger.debug("transaction allocation trace: "+getStackTrace(transaction.getAllocateTrace()));
+      transaction.setConnection(database.getConnectionSource().getConnection());
+      synchronized ( allTransactions )
+      {
+         allTransactions.add(transaction);
+         allTransactionIds.add(transaction.getSerial());
+      }
+      return transaction;
+   }
+
    /**
     * Commit a transaction. This is called from a Transaction object.
     * @throws Exception If commit was unsuccessful.
@@ -148,6 +203,9 @@ public class TransactionTrackerImpl implements TransactionTracker
          // Notify listeners, that the end serial is ready. If
          // error occurs in this, rollback is invoked.
          eventDispatcher.notify(new TransactionCommitEndingEvent(transaction));
+         // Listeners of the previous event may have written into the database,
+         // so make sure nothing is left in the write buffers
+         database.flush(transaction);
          // Commit physically. Note if this fails, rollback is still invoked,
          // which will close the transaction
          transaction.getConnection().commit();
@@ -207,15 +265,17 @@ public class TransactionTrackerImpl implements TransactionTracker
 
    /**
     * Remove transaction from queue. Also, if this transaction is not
-    * toplevel, then throw exception.
+    * toplevel, then throw exception. Unbound transactions need not be
+    * current.
     */
    private void removeTransaction(TransactionImpl transaction)
    {
       // Remove from threadlocal list
-      LinkedList list = (LinkedList) transactions.get();
-      if ( (list == null) || (list.size()==0) )
+      LinkedList list = getThreadTransactions();
+      boolean current = (list.size()>0) && (list.getLast().equals(transaction));
+      if ( (list.size()==0) && (! transaction.isUnbound()) )
          throw new StoreException("no transactions present, and tried to use one.");
-      if ( ! list.getLast().equals(transaction) )
+      if ( (! current) && (! transaction.isUnbound()) )
       {
          TransactionImpl top = (TransactionImpl) list.getLast();
          logger.warn("possible transaction leak, tried to commit/rollback transaction, which was not the currenct transaction, investigate! Top was: "+
@@ -228,7 +288,8 @@ public class TransactionTrackerImpl implements TransactionTracker
       database.getConnectionSource().releaseConnection(transaction.getConnection());
       transaction.setConnection(null);
       // Remove from list
-      list.removeLast();
+      if ( current )
+         list.removeLast();
       // Remove from global list
       synchronized ( allTransactions )
       {
@@ -259,6 +320,7 @@ public class TransactionTrackerImpl implements TransactionTracker
       private Long serial;
       private Long endSerial;
       private Integer serverId;
+      private boolean unbound = false;
       
       // Statistical attributes
       private TransactionStatistics stats;
@@ -278,6 +340,16 @@ public class TransactionTrackerImpl implements TransactionTracker
          return serverId;
       }
 
+      private boolean isUnbound()
+      {
+         return unbound;
+      }
+
+      private void setUnbound(boolean unbound)
+      {
+         this.unbound=unbound;
+      }
+
       private Exception getAllocateTrace()
       {
          return allocateTrace;
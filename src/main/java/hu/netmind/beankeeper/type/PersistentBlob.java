@@ -0,0 +1,125 @@
+/**
+ * Copyright (C) 2008 NetMind Consulting Bt.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package hu.netmind.beankeeper.type;
+
+import java.io.InputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import hu.netmind.beankeeper.common.StoreException;
+
+/**
+ * A binary attribute which is not held in memory. The content of the blob
+ * is stored separately from the owner object, it is not selected with the
+ * object, but streamed from the database when it is read. Blobs are
+ * immutable, to change the content of an attribute assign a new blob.
+ * Contents which no version refers to any more are removed by the history
+ * compactor.
+ * @author Brautigam Robert
+ * @version Revision: $Revision$
+ */
+public class PersistentBlob
+{
+   private byte[] content;
+   private InputStream stream;
+   private int length;
+
+   /**
+    * Create a blob with the given content.
+    */
+   public PersistentBlob(byte[] content)
+   {
+      this.content=content;
+      this.length=content.length;
+   }
+
+   /**
+    * Create a blob which is read from the given stream when it is saved.
+    * The stream can be read only once, so the content of such a blob
+    * is only available after it was saved and selected again.
+    * @param stream The stream of the content.
+    * @param length The number of bytes in the stream.
+    */
+   public PersistentBlob(InputStream stream, int length)
+   {
+      this.stream=stream;
+      this.length=length;
+   }
+
+   /**
+    * Constructor for stored blobs, which read their content from the
+    * database.
+    */
+   protected PersistentBlob(int length)
+   {
+      this.length=length;
+   }
+
+   /**
+    * Get the number of bytes in this blob.
+    */
+   public int getLength()
+   {
+      return length;
+   }
+
+   /**
+    * Open the content of this blob. The stream should be closed after
+    * reading.
+    */
+   public InputStream getInputStream()
+   {
+      if ( content != null )
+         return new ByteArrayInputStream(content);
+      if ( stream == null )
+         throw new StoreException("content of blob was already read");
+      InputStream result = stream;
+      stream = null;
+      return result;
+   }
+
+   /**
+    * Read the whole content of this blob into memory.
+    */
+   public byte[] getBytes()
+   {
+      if ( content != null )
+         return content;
+      InputStream input = getInputStream();
+      try
+      {
+         ByteArrayOutputStream result = new ByteArrayOutputStream(Math.max(length,0));
+         byte[] buffer = new byte[8192];
+         int count;
+         while ( (count=input.read(buffer)) >= 0 )
+            result.write(buffer,0,count);
+         return result.toByteArray();
+      } catch ( IOException e ) {
+         throw new StoreException("could not read content of blob",e);
+      } finally {
+         try
+         {
+            input.close();
+         } catch ( IOException e ) {
+            // Nothing to do
+         }
+      }
+   }
+}
+
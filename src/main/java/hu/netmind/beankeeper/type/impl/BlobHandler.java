@@ -0,0 +1,186 @@
+/**
+ * Copyright (C) 2008 NetMind Consulting Bt.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package hu.netmind.beankeeper.type.impl;
+
+import java.util.*;
+import java.io.InputStream;
+import java.io.IOException;
+import hu.netmind.beankeeper.parser.*;
+import hu.netmind.beankeeper.model.*;
+import hu.netmind.beankeeper.db.Database;
+import hu.netmind.beankeeper.serial.SerialTracker;
+import hu.netmind.beankeeper.schema.SchemaManager;
+import hu.netmind.beankeeper.common.StoreException;
+import hu.netmind.beankeeper.service.StoreContext;
+import hu.netmind.beankeeper.type.PersistentBlob;
+import hu.netmind.beankeeper.transaction.Transaction;
+import org.apache.log4j.Logger;
+
+/**
+ * Handles blob attributes. The parent object only stores the id and
+ * the length of the blob, the content is in the blobs table. A blob
+ * is inserted once, and never updated, so old versions of the parent
+ * still reference the old content. Each blob records the table and
+ * column referencing it, so a blob is only ever referenced by its owner
+ * column, and the history compactor knows where to look for references.
+ * @author Brautigam Robert
+ * @version Revision: $Revision$
+ */
+public class BlobHandler extends AbstractTypeHandler
+{
+   private static Logger logger = Logger.getLogger(BlobHandler.class);
+
+   private StoreContext context = null; // Injected
+   private Database database = null; // Injected
+   private SerialTracker serialTracker = null; // Injected
+   private SchemaManager schemaManager = null; // Injected
+
+   /**
+    * The blobs table is created by the database when first used, so
+    * this method does nothing.
+    */
+   public void ensureTableExists(ClassInfo parentInfo, String attributeName, boolean create)
+   {
+   }
+
+   /**
+    * The blob is represented by its id and length in the parent.
+    */
+   public Map getAttributeTypes(String attributeName)
+   {
+      HashMap attributeTypes = new HashMap();
+      attributeTypes.put(attributeName,Long.class);
+      attributeTypes.put(attributeName+"_length",Integer.class);
+      return attributeTypes;
+   }
+
+   /**
+    * A blob changed if it is not the stored blob currently referenced.
+    */
+   public boolean hasChanged(ClassInfo info, Object obj, String attributeName, Map dbAttributes,
+         Long serial)
+   {
+      Object objectValue = info.getAttributeValue(obj,attributeName);
+      Long dbId = (Long) dbAttributes.get(attributeName);
+      if ( objectValue instanceof StoredBlob )
+         return ! ((StoredBlob) objectValue).getId().equals(dbId);
+      return ! ((objectValue==null) && (dbId==null));
+   }
+
+   /**
+    * Create a stored blob for the id in the parent. The content is not
+    * selected until it is read.
+    */
+   public Object unmarshallType(ClassInfo classInfo, Object obj,
+         String attributeName, Map marshalledValues, TimeControl timeControl)
+   {
+      Long id = (Long) marshalledValues.get(attributeName);
+      if ( id == null )
+         return null;
+      Integer length = (Integer) marshalledValues.get(attributeName+"_length");
+      StoredBlob blob = new StoredBlob(id,length==null?-1:length.intValue(),
+            getOwnerTable(classInfo,attributeName),attributeName.toLowerCase());
+      context.injectServices(blob);
+      return blob;
+   }
+
+   /**
+    * Get the table of the class which declares the attribute.
+    */
+   private String getOwnerTable(ClassInfo classInfo, String attributeName)
+   {
+      return schemaManager.getTableName(classInfo.getAttributeClassEntry(attributeName)).toLowerCase();
+   }
+
+   /**
+    * Insert the content of new blobs, and reference the blob from the
+    * parent. The saved blob replaces the attribute value in the parent,
+    * so the content is not inserted again on the next save. A stored blob
+    * of another owner column is copied, so it can be removed separately.
+    */
+   public Object save(ClassInfo classInfo, Object current, String attributeName,
+         Transaction transaction, Long currentSerial,
+         Object newValue, Set waitingObjects, Set saveTables, Set removeTables,
+         List events, Map changedAttributes, Map dbAttributes)
+   {
+      if ( newValue == null )
+      {
+         changedAttributes.put(attributeName,null);
+         changedAttributes.put(attributeName+"_length",null);
+         return null;
+      }
+      PersistentBlob blob = (PersistentBlob) newValue;
+      String ownerTable = getOwnerTable(classInfo,attributeName);
+      String ownerColumn = attributeName.toLowerCase();
+      if ( (! (newValue instanceof StoredBlob)) ||
+            (! ownerTable.equals(((StoredBlob) newValue).getOwnerTable())) ||
+            (! ownerColumn.equals(((StoredBlob) newValue).getOwnerColumn())) )
+      {
+         Long id = serialTracker.getNextSerial();
+         if ( logger.isDebugEnabled() )
+            logger.debug("inserting content of blob attribute "+attributeName+" as: "+id);
+         InputStream content = blob.getInputStream();
+         try
+         {
+            database.insertBlob(transaction,id,ownerTable,ownerColumn,content,blob.getLength());
+         } finally {
+            // The content of a stored blob is opened here, so it is closed here
+            if ( newValue instanceof StoredBlob )
+            {
+               try
+               {
+                  content.close();
+               } catch ( IOException e ) {
+                  throw new StoreException("could not close content of blob attribute: "+attributeName,e);
+               }
+            }
+         }
+         StoredBlob storedBlob = new StoredBlob(id,blob.getLength(),ownerTable,ownerColumn);
+         context.injectServices(storedBlob);
+         classInfo.setAttributeValue(current,attributeName,storedBlob);
+         blob = storedBlob;
+      }
+      changedAttributes.put(attributeName,((StoredBlob) blob).getId());
+      changedAttributes.put(attributeName+"_length",new Integer(blob.getLength()));
+      return blob;
+   }
+
+   public void postSave(Object value)
+   {
+   }
+
+   /**
+    * Blobs can not be dereferenced in queries, so there is no symbol entry.
+    */
+   public WhereResolver.SymbolTableEntry getSymbolEntry(AttributeSpecifier spec,
+         WhereResolver.SymbolTableEntry previousEntry, ClassInfo previousInfo,
+         ReferenceTerm previousTerm)
+      throws ParserException
+   {
+      return null;
+   }
+
+   public ClassInfo getSymbolInfo(WhereResolver.SymbolTableEntry entry,
+         AttributeSpecifier spec)
+      throws ParserException
+   {
+      throw new ParserException(ParserException.ABORT,"blob attribute can not be dereferenced");
+   }
+}
+
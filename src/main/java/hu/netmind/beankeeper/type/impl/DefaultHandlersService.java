@@ -20,6 +20,7 @@ package hu.netmind.beankeeper.type.impl;
 
 import hu.netmind.beankeeper.service.Service;
 import hu.netmind.beankeeper.type.TypeHandlerTracker;
+import hu.netmind.beankeeper.type.PersistentBlob;
 import java.util.*;
 
 /**
@@ -38,6 +39,7 @@ public class DefaultHandlersService implements Service
       typeHandlerTracker.registerHandler(List.class,new ListHandler(ListImpl.class));
       typeHandlerTracker.registerHandler(Set.class,new CollectionHandler(SetImpl.class));
       typeHandlerTracker.registerHandler(Map.class,new MapHandler());
+      typeHandlerTracker.registerHandler(PersistentBlob.class,new BlobHandler());
    }
 
    public void release()
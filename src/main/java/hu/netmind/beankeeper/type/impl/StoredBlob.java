@@ -0,0 +1,121 @@
+/**
+ * Copyright (C) 2008 NetMind Consulting Bt.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package hu.netmind.beankeeper.type.impl;
+
+import java.io.InputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import hu.netmind.beankeeper.common.StoreException;
+import hu.netmind.beankeeper.db.Database;
+import hu.netmind.beankeeper.type.PersistentBlob;
+import hu.netmind.beankeeper.transaction.Transaction;
+import hu.netmind.beankeeper.transaction.TransactionTracker;
+
+/**
+ * A blob which is already in the database. Each time the content is
+ * opened, it is streamed from the blobs table in a transaction, which
+ * is committed when the stream is closed.
+ * @author Brautigam Robert
+ * @version Revision: $Revision$
+ */
+public class StoredBlob extends PersistentBlob
+{
+   private Long id;
+   private String ownerTable;
+   private String ownerColumn;
+
+   private Database database = null; // Injected
+   private TransactionTracker transactionTracker = null; // Injected
+
+   StoredBlob(Long id, int length, String ownerTable, String ownerColumn)
+   {
+      super(length);
+      this.id=id;
+      this.ownerTable=ownerTable;
+      this.ownerColumn=ownerColumn;
+   }
+
+   public Long getId()
+   {
+      return id;
+   }
+
+   /**
+    * Get the table of the object which references this blob.
+    */
+   String getOwnerTable()
+   {
+      return ownerTable;
+   }
+
+   /**
+    * Get the column which references this blob.
+    */
+   String getOwnerColumn()
+   {
+      return ownerColumn;
+   }
+
+   /**
+    * Open the content of this blob from the database.
+    */
+   public InputStream getInputStream()
+   {
+      final Transaction transaction = transactionTracker.getTransaction(TransactionTracker.TX_REQUIRED);
+      transaction.begin();
+      InputStream content = null;
+      try
+      {
+         content = database.selectBlob(transaction,id);
+      } catch ( StoreException e ) {
+         transaction.markRollbackOnly();
+         transaction.commit();
+         throw e;
+      } catch ( Throwable e ) {
+         transaction.markRollbackOnly();
+         transaction.commit();
+         throw new StoreException("unexpected exception while opening blob: "+id,e);
+      }
+      // The transaction is committed when the stream is closed
+      return new FilterInputStream(content)
+         {
+            private boolean closed = false;
+
+            public void close()
+               throws IOException
+            {
+               if ( closed )
+                  return;
+               closed = true;
+               try
+               {
+                  super.close();
+               } finally {
+                  transaction.commit();
+               }
+            }
+         };
+   }
+
+   public String toString()
+   {
+      return "[Blob: "+id+", length: "+getLength()+"]";
+   }
+}
+
@@ -35,6 +35,7 @@ import org.testng.annotations.Test;
 import org.testng.Assert;
 import hu.netmind.beankeeper.transaction.Transaction;
 import hu.netmind.beankeeper.transaction.TransactionTracker;
+import hu.netmind.beankeeper.db.impl.DriverDataSource;
 
 /**
  * Provides database and other methods for simpler test cases.
@@ -113,6 +114,49 @@ public abstract class AbstractPersistenceTest
       return StoreProvider.getInstance().newStore();
    }
 
+   /**
+    * A test which runs with a store of its own.
+    */
+   protected interface SeparateStoreTest
+   {
+      void run(Store store)
+         throws Exception;
+   }
+
+   /**
+    * Get the data source of a new in-memory database.
+    */
+   protected DriverDataSource getMemoryDataSource(String databaseName)
+   {
+      return new DriverDataSource("org.hsqldb.jdbcDriver","jdbc:hsqldb:mem:"+databaseName);
+   }
+
+   /**
+    * Run a test with a store of its own. Only one store may run at a time,
+    * so the configured store is torn down while the test runs.
+    * @param dataSource The data source of the store.
+    * @param replicaDataSource The data source of the replica, or null.
+    */
+   protected void runWithSeparateStore(DataSource dataSource, DataSource replicaDataSource,
+         SeparateStoreTest test)
+      throws Exception
+   {
+      tearDownStore();
+      Store store = null;
+      try
+      {
+         if ( replicaDataSource == null )
+            store = new Store(dataSource);
+         else
+            store = new Store(dataSource,replicaDataSource);
+         test.run(store);
+      } finally {
+         if ( store != null )
+            store.close();
+         setUpStore();
+      }
+   }
+
    public int getCount(String table)
       throws Exception
    {
@@ -187,6 +231,16 @@ public abstract class AbstractPersistenceTest
          getConnection().commit();
       }
       rs.close();
+      // Forget the fingerprints, so dropped tables are created again
+      try
+      {
+         PreparedStatement pstmt = getConnection().prepareStatement("delete from schemamap");
+         pstmt.executeUpdate();
+         pstmt.close();
+      } catch ( Exception e ) {
+         logger.debug("could not delete schema fingerprints, error was: "+e.getMessage());
+      }
+      getConnection().commit();
       logger.debug("all tables matching '"+pattern+"' were dropped.");
    }
 
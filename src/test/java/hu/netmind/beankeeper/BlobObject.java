@@ -0,0 +1,57 @@
+/**
+ * Copyright (C) 2008 NetMind Consulting Bt.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package hu.netmind.beankeeper;
+
+import hu.netmind.beankeeper.type.PersistentBlob;
+
+/**
+ * A simple bean which holds a blob property.
+ * @author Brautigam Robert
+ * @version Revision: $Revision$
+ */
+public class BlobObject
+{
+   private String name;
+   private PersistentBlob content;
+
+   public BlobObject()
+   {
+   }
+
+   public BlobObject(String name, PersistentBlob content)
+   {
+      this.name=name;
+      this.content=content;
+   }
+
+   public String getName()
+   {
+      return name;
+   }
+
+   public PersistentBlob getContent()
+   {
+      return content;
+   }
+   public void setContent(PersistentBlob content)
+   {
+      this.content=content;
+   }
+}
+
@@ -19,6 +19,7 @@
 package hu.netmind.beankeeper;
 
 import java.util.List;
+import java.util.Vector;
 import java.util.Date;
 import org.testng.annotations.Test;
 import org.testng.Assert;
@@ -178,5 +179,163 @@ public class CacheTests extends AbstractPersistenceTest
       // Close transaction
    }
 
-}
+   public void testCacheConcurrentHits()
+      throws Exception
+   {
+      removeAll(Book.class);
+      // Create book
+      getStore().save(new Book("Cache","1-2-3-4"));
+      // Select once, so it is cached
+      Assert.assertEquals(getStore().find("find book where book.title='Cache'").size(),1);
+      // Hit from more threads at once
+      final List<String> errors = new Vector<String>();
+      Thread[] threads = new Thread[8];
+      for ( int i=0; i<threads.length; i++ )
+      {
+         threads[i] = new Thread(new Runnable()
+               {
+                  public void run()
+                  {
+                     for ( int o=0; o<50; o++ )
+                     {
+                        Transaction tx = getStore().getTransactionTracker().getTransaction(TransactionTracker.TX_NEW);
+                        tx.begin();
+                        try
+                        {
+                           if ( getStore().find("find book where book.title='Cache'").size() != 1 )
+                              errors.add("wrong result size");
+                           if ( tx.getStats().getSelectCount() != 0 )
+                              errors.add("cache was not hit");
+                        } finally {
+                           tx.commit();
+                        }
+                     }
+                  }
+               });
+         threads[i].start();
+      }
+      for ( Thread thread : threads )
+         thread.join();
+      Assert.assertEquals(errors.size(),0,"errors: "+errors);
+      // Modification is still visible
+      getStore().save(new Book("Cache","2-3-4-5"));
+      Assert.assertEquals(getStore().find("find book where book.title='Cache'").size(),2);
+   }
+
+   public void testCacheKeepsIdResultOnOtherChange()
+      throws Exception
+   {
+      removeAll(Author.class);
+      // Create authors
+      Author author = new Author("Cache","Id");
+      Author other = new Author("Other","Id");
+      getStore().save(author);
+      getStore().save(other);
+      String query = "find author where persistenceid = "+author.getPersistenceId();
+      Assert.assertEquals(getStore().find(query).size(),1);
+      // Modify other author, result can't change
+      other.setFirstName("Changed");
+      getStore().save(other);
+      Transaction tx = getStore().getTransactionTracker().getTransaction(TransactionTracker.TX_REQUIRED);
+      tx.begin();
+      Assert.assertEquals(getStore().find(query).size(),1);
+      Assert.assertEquals(tx.getStats().getSelectCount(),0);
+      tx.commit();
+      // Modify the author in the result
+      author.setFirstName("Changed");
+      getStore().save(author);
+      tx = getStore().getTransactionTracker().getTransaction(TransactionTracker.TX_REQUIRED);
+      tx.begin();
+      List<Author> result = getStore().find(query);
+      Assert.assertEquals(result.get(0).getFirstName(),"Changed");
+      Assert.assertEquals(tx.getStats().getSelectCount(),1);
+      tx.commit();
+   }
+
+   public void testCacheKeepsResultOnOtherRemove()
+      throws Exception
+   {
+      removeAll(Book.class);
+      // Create books
+      getStore().save(new Book("Cache","1-2-3-4"));
+      Book other = new Book("Other","2-3-4-5");
+      getStore().save(other);
+      List<Book> result = getStore().find("find book where book.title='Cache'");
+      Assert.assertEquals(result.get(0).getIsbn(),"1-2-3-4");
+      // Remove a book not in the result
+      getStore().remove(other);
+      Transaction tx = getStore().getTransactionTracker().getTransaction(TransactionTracker.TX_REQUIRED);
+      tx.begin();
+      result = getStore().find("find book where book.title='Cache'");
+      Assert.assertEquals(result.get(0).getIsbn(),"1-2-3-4");
+      Assert.assertEquals(tx.getStats().getSelectCount(),0);
+      tx.commit();
+      // A new book may match
+      getStore().save(new Book("Cache","3-4-5-6"));
+      Assert.assertEquals(getStore().find("find book where book.title='Cache'").size(),2);
+   }
+
+   public void testCacheKeepsResultOnOtherAttributeChange()
+      throws Exception
+   {
+      removeAll(Book.class);
+      // Create books
+      getStore().save(new Book("Cache","1-2-3-4"));
+      Book other = new Book("Other","2-3-4-5");
+      getStore().save(other);
+      List<Book> result = getStore().find("find book where book.title='Cache' order by isbn");
+      Assert.assertEquals(result.size(),1);
+      // Change an attribute the statement does not reference
+      other.setIsbn("3-4-5-6");
+      getStore().save(other);
+      Transaction tx = getStore().getTransactionTracker().getTransaction(TransactionTracker.TX_REQUIRED);
+      tx.begin();
+      result = getStore().find("find book where book.title='Cache' order by isbn");
+      Assert.assertEquals(result.size(),1);
+      Assert.assertEquals(tx.getStats().getSelectCount(),0);
+      tx.commit();
+      // Change the attribute in the condition, now it matches
+      other.setTitle("Cache");
+      getStore().save(other);
+      result = getStore().find("find book where book.title='Cache' order by isbn");
+      Assert.assertEquals(result.size(),2);
+      Assert.assertEquals(result.get(1).getIsbn(),"3-4-5-6");
+   }
+
 
+   public void testObjectCacheSharedByQueries()
+      throws Exception
+   {
+      removeAll(Book.class);
+      removeAll(Author.class);
+      // Create a book with an author
+      Author author = new Author("Object","Cache");
+      Book book = new Book("Object","4-5-6-7");
+      book.setMainAuthor(author);
+      getStore().save(book);
+      // Select the book, the author is loaded as reference
+      Book result = (Book) getStore().findSingle("find book where book.isbn='4-5-6-7'");
+      Assert.assertEquals(result.getMainAuthor().getFirstName(),"Object");
+      // Select the author by id, and as reference of an other book
+      Book other = new Book("Other","5-6-7-8");
+      other.setMainAuthor(author);
+      getStore().save(other);
+      Transaction tx = getStore().getTransactionTracker().getTransaction(TransactionTracker.TX_REQUIRED);
+      tx.begin();
+      Author authorResult = (Author) getStore().findSingle("find author where author.persistenceid = "+
+            author.getPersistenceId());
+      Assert.assertEquals(authorResult.getFirstName(),"Object");
+      Assert.assertEquals(tx.getStats().getSelectCount(),0);
+      result = (Book) getStore().findSingle("find book where book.isbn='5-6-7-8'");
+      Assert.assertEquals(result.getMainAuthor().getFirstName(),"Object");
+      Assert.assertEquals(tx.getStats().getSelectCount(),1);
+      tx.commit();
+      // Modify the author, the new version is selected
+      author.setFirstName("Changed");
+      getStore().save(author);
+      authorResult = (Author) getStore().findSingle("find author where author.persistenceid = "+
+            author.getPersistenceId());
+      Assert.assertEquals(authorResult.getFirstName(),"Changed");
+   }
+
+}
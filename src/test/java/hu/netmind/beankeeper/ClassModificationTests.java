@@ -21,6 +21,13 @@ package hu.netmind.beankeeper;
 import java.util.Map;
 import java.util.List;
 import java.util.Set;
+import java.util.HashSet;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
 import org.testng.annotations.Test;
 import org.testng.Assert;
 
@@ -164,6 +171,192 @@ public class ClassModificationTests extends AbstractPersistenceTest
       getStore().save(new DynamicObjectImpl());
    }
 
-}
+   private Set getIndexNames(String pattern)
+      throws Exception
+   {
+      DatabaseMetaData dmd = getConnection().getMetaData();
+      String databaseName = dmd.getDatabaseProductName();
+      if ( 
+           databaseName.equalsIgnoreCase("oracle") ||
+           databaseName.equalsIgnoreCase("hsql database engine") ||
+           databaseName.equalsIgnoreCase("apache derby") )
+         pattern = pattern.toUpperCase();
+      ResultSet tables = dmd.getTables(null,null,pattern,new String[] { "TABLE" });
+      Set result = new HashSet();
+      while ( tables.next() )
+      {
+         ResultSet rs = dmd.getIndexInfo(null,null,tables.getString("TABLE_NAME"),false,false);
+         while ( rs.next() )
+            if ( rs.getString("INDEX_NAME") != null )
+               result.add(rs.getString("INDEX_NAME").toLowerCase());
+         rs.close();
+      }
+      tables.close();
+      return result;
+   }
+
+   public void testTemporalIndexesMigrated()
+      throws Exception
+   {
+      DynamicObjectImpl.init();
+      removeAll(DynamicObjectImpl.class);
+      getStore().save(new DynamicObjectImpl());
+      // Find the current version index and drop it, like in a table
+      // created by an older version
+      String indexName = null;
+      for ( Object name : getIndexNames("%dynamicobjectimpl") )
+         if ( ((String) name).endsWith("_idx_pcur") )
+            indexName = (String) name;
+      Assert.assertNotNull(indexName);
+      PreparedStatement pstmt = getConnection().prepareStatement("drop index "+indexName);
+      pstmt.executeUpdate();
+      pstmt.close();
+      getConnection().commit();
+      Assert.assertFalse(getIndexNames("%dynamicobjectimpl").contains(indexName));
+      // Modify the class, so the table is checked again
+      Map attrs = DynamicObjectImpl.getPersistenceAttributeTypes(null,null);
+      attrs.put("extra",String.class);
+      getStore().save(new DynamicObjectImpl());
+      Assert.assertTrue(getIndexNames("%dynamicobjectimpl").contains(indexName));
+   }
+
+   private String getSchemaFingerprint(String pattern)
+      throws Exception
+   {
+      PreparedStatement pstmt = getConnection().prepareStatement(
+            "select fingerprint from schemamap where tablename like ?");
+      pstmt.setString(1,pattern);
+      ResultSet rs = pstmt.executeQuery();
+      String result = null;
+      if ( rs.next() )
+         result = rs.getString(1);
+      rs.close();
+      pstmt.close();
+      getConnection().commit();
+      return result;
+   }
 
+   public void testSchemaFingerprintChanged()
+      throws Exception
+   {
+      DynamicObjectImpl.init();
+      removeAll(DynamicObjectImpl.class);
+      getStore().save(new DynamicObjectImpl());
+      String fingerprint = getSchemaFingerprint("%dynamicobjectimpl");
+      Assert.assertNotNull(fingerprint);
+      // Modify the class, the table is checked and gets a new fingerprint
+      Map attrs = DynamicObjectImpl.getPersistenceAttributeTypes(null,null);
+      attrs.put("extra",String.class);
+      DynamicObjectImpl obj = new DynamicObjectImpl();
+      obj.put("extra","value");
+      getStore().save(obj);
+      Assert.assertFalse(fingerprint.equals(getSchemaFingerprint("%dynamicobjectimpl")));
+      Assert.assertEquals(getStore().find("find dynamicobjectimpl where extra = 'value'").size(),1);
+   }
+
+   public void testConcurrentFirstUse()
+      throws Exception
+   {
+      removeAll(Book.class);
+      removeAll(Author.class);
+      removeAll(Referrer.class);
+      // Restart, so no classes are ensured yet
+      tearDownStore();
+      setUpStore();
+      // Use the classes for the first time concurrently
+      final Object[] objs = new Object[] { new Book("Concurrent","1"), 
+         new Author("Concurrent","Author"), new Referrer(1) };
+      final List exceptions = Collections.synchronizedList(new ArrayList());
+      Thread[] threads = new Thread[objs.length];
+      for ( int i=0; i<objs.length; i++ )
+      {
+         final Object obj = objs[i];
+         threads[i] = new Thread(new Runnable()
+               {
+                  public void run()
+                  {
+                     try
+                     {
+                        getStore().save(obj);
+                     } catch ( Exception e ) {
+                        exceptions.add(e);
+                     }
+                  }
+               });
+         threads[i].start();
+      }
+      for ( int i=0; i<threads.length; i++ )
+         threads[i].join();
+      Assert.assertEquals(exceptions.size(),0,"exceptions: "+exceptions);
+      Assert.assertEquals(getStore().find("find book").size(),1);
+      Assert.assertEquals(getStore().find("find author").size(),1);
+      Assert.assertEquals(getStore().find("find referrer").size(),1);
+   }
+
+   public void testParallelWarmUp()
+      throws Exception
+   {
+      // Record the classes, then drop their tables
+      removeAll(Book.class);
+      Book book = new Book("Warm","1");
+      book.setMainAuthor(new Author("Warm","Up"));
+      getStore().save(book);
+      getStore().save(new Referrer(1));
+      List<String> tableNames = new ArrayList<String>();
+      Statement statement = getConnection().createStatement();
+      ResultSet rs = statement.executeQuery("select alias, realname from tablemap");
+      while ( rs.next() )
+         if ( rs.getString(1).matches("hu_netmind_beankeeper_(book|author|referrer)") )
+            tableNames.add(rs.getString(2));
+      rs.close();
+      Assert.assertEquals(tableNames.size(),3);
+      for ( String tableName : tableNames )
+      {
+         statement.executeUpdate("drop table "+tableName);
+         statement.executeUpdate("delete from schemamap where tablename = '"+tableName+"'");
+      }
+      statement.close();
+      getConnection().commit();
+      // Restart with parallel warm-up, it must not deadlock
+      tearDownStore();
+      final List exceptions = Collections.synchronizedList(new ArrayList());
+      System.setProperty("beankeeper.schema.warmup_threads","4");
+      try
+      {
+         Thread starter = new Thread(new Runnable()
+               {
+                  public void run()
+                  {
+                     try
+                     {
+                        setUpStore();
+                     } catch ( Exception e ) {
+                        exceptions.add(e);
+                     }
+                  }
+               });
+         starter.start();
+         starter.join(60000);
+         Assert.assertFalse(starter.isAlive(),"store did not start, warm-up is deadlocked");
+         Assert.assertEquals(exceptions.size(),0,"exceptions: "+exceptions);
+      } finally {
+         System.clearProperty("beankeeper.schema.warmup_threads");
+      }
+      // Tables exist before first use, and names are unique
+      statement = getConnection().createStatement();
+      for ( String tableName : tableNames )
+      {
+         rs = statement.executeQuery("select count(*) from "+tableName);
+         rs.close();
+      }
+      rs = statement.executeQuery("select realname from tablemap group by realname having count(*) > 1");
+      Assert.assertFalse(rs.next(),"table name is used for more classes");
+      rs.close();
+      statement.close();
+      getConnection().commit();
+      getStore().save(new Book("Warm","2"));
+      Assert.assertEquals(getStore().find("find book").size(),1);
+   }
+
+}
 
@@ -21,6 +21,9 @@ package hu.netmind.beankeeper;
 import java.util.List;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import org.apache.log4j.Logger;
 import org.testng.annotations.Test;
 import org.testng.Assert;
@@ -28,6 +31,8 @@ import hu.netmind.beankeeper.transaction.Transaction;
 import hu.netmind.beankeeper.transaction.TransactionTracker;
 import hu.netmind.beankeeper.lock.ConcurrentModificationException;
 import hu.netmind.beankeeper.query.impl.LazyListImpl;
+import hu.netmind.beankeeper.query.LazyList;
+import hu.netmind.beankeeper.common.StoreException;
 
 /**
  * Test the concurrence capabilities of library.
@@ -251,6 +256,138 @@ public class ConcurrenceTests extends AbstractPersistenceTest
       Assert.assertEquals(books.size(),1);
       bookTx.commit();
    }
-}
 
+   public void testFindAsync()
+      throws Exception
+   {
+      removeAll(Book.class);
+      removeAll(Author.class);
+      getStore().save(new Book("Snow Crash","1"));
+      getStore().save(new Book("Cryptonomicon","2"));
+      getStore().save(new Author("Neal","Stephenson"));
+      // Run queries concurrently
+      Future<List> books = getStore().findAsync("find book");
+      Future<List> authors = getStore().findAsync("find author where firstname=?",
+            new Object[] { "Neal" });
+      Assert.assertEquals(books.get().size(),2);
+      Assert.assertEquals(authors.get().size(),1);
+   }
+
+   public void testSaveAsyncInTransaction()
+      throws Exception
+   {
+      removeAll(Book.class);
+      Transaction tx = getStore().getTransactionTracker().getTransaction(TransactionTracker.TX_REQUIRED);
+      tx.begin();
+      try
+      {
+         // Save is in the current transaction
+         getStore().saveAsync(new Book("Async","1")).get();
+         Assert.assertEquals(getStore().find("find book").size(),1);
+      } finally {
+         tx.rollback();
+      }
+      Assert.assertEquals(getStore().find("find book").size(),0);
+   }
+
+   public void testSaveAsyncCommittedBeforeGet()
+      throws Exception
+   {
+      removeAll(Book.class);
+      Transaction tx = getStore().getTransactionTracker().getTransaction(TransactionTracker.TX_REQUIRED);
+      tx.begin();
+      Future result = getStore().saveAsync(new Book("Async","1"));
+      tx.commit();
+      // Save finished in the transaction before the commit
+      result.get();
+      Assert.assertEquals(getStore().find("find book").size(),1);
+      // Tasks in a transaction run in the calling thread
+      final Thread caller = Thread.currentThread();
+      tx = getStore().getTransactionTracker().getTransaction(TransactionTracker.TX_REQUIRED);
+      tx.begin();
+      try
+      {
+         result = getStore().getAsyncService().submit(new Callable()
+               {
+                  public Object call()
+                  {
+                     return Thread.currentThread();
+                  }
+               });
+         Assert.assertTrue(result.isDone());
+         Assert.assertSame(result.get(),caller);
+      } finally {
+         tx.commit();
+      }
+   }
+
+   public void testTransactionAsyncRollback()
+      throws Exception
+   {
+      removeAll(Book.class);
+      Future result = getStore().transactionAsync(new Callable()
+            {
+               public Object call()
+               {
+                  getStore().save(new Book("Rolled Back","1"));
+                  throw new IllegalStateException("rollback");
+               }
+            });
+      try
+      {
+         result.get();
+         Assert.fail("exception of work was not thrown");
+      } catch ( ExecutionException e ) {
+         Assert.assertTrue(e.getCause() instanceof IllegalStateException);
+      }
+      Assert.assertEquals(getStore().find("find book").size(),0);
+      // Committed if no exception
+      getStore().transactionAsync(new Callable()
+            {
+               public Object call()
+               {
+                  getStore().save(new Book("Committed","2"));
+                  return null;
+               }
+            }).get();
+      Assert.assertEquals(getStore().find("find book").size(),1);
+   }
+
+   public void testListPrefetch()
+      throws Exception
+   {
+      removeAll(Book.class);
+      for ( int i=0; i<40; i++ )
+         getStore().save(new Book("Title "+i,""+i));
+      LazyList list = (LazyList) getStore().find("find book order by isbn");
+      Assert.assertNotNull(list.prefetch(35).get());
+      Assert.assertNull(list.prefetch(40).get());
+      Assert.assertEquals(list.size(),40);
+   }
+
+   public void testListPrefetchKeepsCurrentPage()
+      throws Exception
+   {
+      removeAll(Book.class);
+      for ( int i=0; i<100; i++ )
+         getStore().save(new Book("Title "+i,""+(1000+i)));
+      LazyList list = (LazyList) getStore().find("find book order by isbn");
+      for ( int i=0; i<5; i++ )
+         list.get(i);
+      Assert.assertEquals(((Book) list.prefetch(50).get()).getIsbn(),"1050");
+      // Invalidate cached pages, so pages selected again are counted
+      getStore().save(new Book("Other","2000"));
+      Transaction tx = getStore().getTransactionTracker().getTransaction(TransactionTracker.TX_REQUIRED);
+      tx.begin();
+      try
+      {
+         Assert.assertEquals(((Book) list.get(5)).getIsbn(),"1005");
+         Assert.assertEquals(((Book) list.get(50)).getIsbn(),"1050");
+         Assert.assertEquals(((Book) list.get(51)).getIsbn(),"1051");
+         Assert.assertEquals(tx.getStats().getSelectCount(),0);
+      } finally {
+         tx.commit();
+      }
+   }
+}
 
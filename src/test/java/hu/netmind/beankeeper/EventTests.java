@@ -25,6 +25,7 @@ import hu.netmind.beankeeper.type.impl.SetImpl;
 import hu.netmind.beankeeper.store.event.*;
 import hu.netmind.beankeeper.type.event.*;
 import org.testng.annotations.Test;
+import org.testng.annotations.AfterMethod;
 import org.testng.Assert;
 
 /**
@@ -35,6 +36,29 @@ import org.testng.Assert;
 @Test
 public class EventTests extends AbstractPersistenceTest
 {
+   private List<PersistenceEventListener> listeners = new ArrayList<PersistenceEventListener>();
+
+   /**
+    * Register a listener for the current test only.
+    */
+   private void registerListener(PersistenceEventListener listener)
+   {
+      getStore().getEventDispatcher().registerListener(listener);
+      listeners.add(listener);
+   }
+
+   /**
+    * Remove the listeners of the test, so they do not keep the
+    * events and objects of later tests.
+    */
+   @AfterMethod
+   protected void unregisterListeners()
+   {
+      for ( PersistenceEventListener listener : listeners )
+         getStore().getEventDispatcher().unregisterListener(listener);
+      listeners.clear();
+   }
+
    private PersistenceEvent getEvent(List<PersistenceEvent> events, Class type)
    {
       for ( PersistenceEvent event : events )
@@ -55,7 +79,7 @@ public class EventTests extends AbstractPersistenceTest
       book.setIsbn("1-2-3-4");
       // Insert listener and save in store
       MemorizerListener listener = new MemorizerListener();
-      getStore().getEventDispatcher().registerListener(listener);
+      registerListener(listener);
       getStore().save(book);
       // Check
       Assert.assertEquals(getCount(listener.getEvents(),CreateObjectEvent.class),1);
@@ -76,7 +100,7 @@ public class EventTests extends AbstractPersistenceTest
       book.setTitle("Altered title.");
       // Insert listener and save in store
       MemorizerListener listener = new MemorizerListener();
-      getStore().getEventDispatcher().registerListener(listener);
+      registerListener(listener);
       getStore().save(book);
       // Check
       Assert.assertEquals(getCount(listener.getEvents(),ModifyObjectEvent.class),1);
@@ -96,7 +120,7 @@ public class EventTests extends AbstractPersistenceTest
       getStore().save(book);
       // Insert listener and save in store
       MemorizerListener listener = new MemorizerListener();
-      getStore().getEventDispatcher().registerListener(listener);
+      registerListener(listener);
       getStore().remove(book);
       // Check
       Assert.assertEquals(getCount(listener.getEvents(),DeleteObjectEvent.class),1);
@@ -119,7 +143,7 @@ public class EventTests extends AbstractPersistenceTest
       holder = (MapHolder) getStore().findSingle("find mapholder");
       // Register
       MemorizerListener listener = new MemorizerListener();
-      getStore().getEventDispatcher().registerListener(listener);
+      registerListener(listener);
       // Do
       holder.getMeta().clear();
       getStore().save(holder);
@@ -145,7 +169,7 @@ public class EventTests extends AbstractPersistenceTest
       holder = (ListHolder) getStore().findSingle("find listholder");
       // Register
       MemorizerListener listener = new MemorizerListener();
-      getStore().getEventDispatcher().registerListener(listener);
+      registerListener(listener);
       // Do
       holder.getList().clear();
       getStore().save(holder);
@@ -171,7 +195,7 @@ public class EventTests extends AbstractPersistenceTest
       holder = (SetHolder) getStore().findSingle("find setholder");
       // Register
       MemorizerListener listener = new MemorizerListener();
-      getStore().getEventDispatcher().registerListener(listener);
+      registerListener(listener);
       // Do
       holder.getSet().clear();
       getStore().save(holder);
@@ -197,7 +221,7 @@ public class EventTests extends AbstractPersistenceTest
       holder = (MapHolder) getStore().findSingle("find mapholder");
       // Register
       MemorizerListener listener = new MemorizerListener();
-      getStore().getEventDispatcher().registerListener(listener);
+      registerListener(listener);
       // Do
       Referrer ref =  new Referrer(3);
       holder.getMeta().put("Ni3",ref);
@@ -226,7 +250,7 @@ public class EventTests extends AbstractPersistenceTest
       holder = (ListHolder) getStore().findSingle("find listholder");
       // Register
       MemorizerListener listener = new MemorizerListener();
-      getStore().getEventDispatcher().registerListener(listener);
+      registerListener(listener);
       // Do
       Referrer ref = new Referrer(3);
       holder.getList().add(ref);
@@ -255,7 +279,7 @@ public class EventTests extends AbstractPersistenceTest
       Assert.assertEquals(holder.getSet().getClass(),SetImpl.class);
       // Register
       MemorizerListener listener = new MemorizerListener();
-      getStore().getEventDispatcher().registerListener(listener);
+      registerListener(listener);
       // Do
       Referrer ref = new Referrer(3);
       holder.getSet().add(ref);
@@ -285,7 +309,7 @@ public class EventTests extends AbstractPersistenceTest
       holder = (MapHolder) getStore().findSingle("find mapholder");
       // Register
       MemorizerListener listener = new MemorizerListener();
-      getStore().getEventDispatcher().registerListener(listener);
+      registerListener(listener);
       // Do
       holder.getMeta().remove("Ni3");
       getStore().save(holder);
@@ -315,7 +339,7 @@ public class EventTests extends AbstractPersistenceTest
       holder = (ListHolder) getStore().findSingle("find listholder");
       // Register
       MemorizerListener listener = new MemorizerListener();
-      getStore().getEventDispatcher().registerListener(listener);
+      registerListener(listener);
       // Do
       holder.getList().remove(ref);
       getStore().save(holder);
@@ -344,7 +368,7 @@ public class EventTests extends AbstractPersistenceTest
       holder = (SetHolder) getStore().findSingle("find setholder");
       // Register
       MemorizerListener listener = new MemorizerListener();
-      getStore().getEventDispatcher().registerListener(listener);
+      registerListener(listener);
       // Do
       holder.getSet().remove(ref);
       getStore().save(holder);
@@ -373,7 +397,7 @@ public class EventTests extends AbstractPersistenceTest
       book.setMainAuthor(author2);
       // Insert listener and save in store
       MemorizerListener listener = new MemorizerListener();
-      getStore().getEventDispatcher().registerListener(listener);
+      registerListener(listener);
       getStore().save(book);
       // Check
       Assert.assertEquals(getCount(listener.getEvents(),ModifyObjectEvent.class),1);
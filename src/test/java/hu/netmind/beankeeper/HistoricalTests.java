@@ -23,10 +23,19 @@ import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Collections;
+import java.util.Arrays;
+import java.sql.Connection;
+import java.sql.Statement;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import hu.netmind.beankeeper.db.impl.DriverDataSource;
 import org.apache.log4j.Logger;
 import org.testng.annotations.Test;
 import org.testng.Assert;
 import hu.netmind.beankeeper.object.PersistenceMetaData;
+import hu.netmind.beankeeper.type.PersistentBlob;
+import hu.netmind.beankeeper.transaction.Transaction;
+import hu.netmind.beankeeper.transaction.TransactionTracker;
 
 /**
  * Test the historical functions if library.
@@ -257,5 +266,392 @@ public class HistoricalTests extends AbstractPersistenceTest
       Assert.assertFalse(metaData.getPersistenceEnd()==null);
    }
 
-}
+   /**
+    * Copy the whole contents of a hsql database into another one.
+    */
+   private void copyDatabase(DriverDataSource source, DriverDataSource target)
+      throws Exception
+   {
+      Connection sourceConnection = source.getConnection();
+      Connection targetConnection = target.getConnection();
+      try
+      {
+         Statement sourceStatement = sourceConnection.createStatement();
+         Statement targetStatement = targetConnection.createStatement();
+         ResultSet rs = sourceStatement.executeQuery("script");
+         while ( rs.next() )
+         {
+            String command = rs.getString(1);
+            // Users and privileges already exist
+            if ( (command.startsWith("CREATE USER")) || (command.startsWith("GRANT")) ||
+                 (command.startsWith("CREATE SCHEMA")) )
+               continue;
+            targetStatement.execute(command);
+         }
+         rs.close();
+         // Copy the rows of all tables
+         rs = sourceConnection.getMetaData().getTables(null,null,"%",new String[] { "TABLE" });
+         while ( rs.next() )
+         {
+            String tableName = rs.getString("TABLE_NAME");
+            ResultSet rows = sourceStatement.executeQuery("select * from "+tableName);
+            int columnCount = rows.getMetaData().getColumnCount();
+            StringBuffer insert = new StringBuffer("insert into "+tableName+" values (");
+            for ( int i=0; i<columnCount; i++ )
+               insert.append(i==0?"?":",?");
+            insert.append(")");
+            PreparedStatement pstmt = targetConnection.prepareStatement(insert.toString());
+            while ( rows.next() )
+            {
+               for ( int i=1; i<=columnCount; i++ )
+                  pstmt.setObject(i,rows.getObject(i));
+               pstmt.executeUpdate();
+            }
+            pstmt.close();
+            rows.close();
+         }
+         rs.close();
+         sourceStatement.close();
+         targetStatement.close();
+      } finally {
+         sourceConnection.close();
+         targetConnection.close();
+      }
+   }
+
+   public void testReplicaQueries()
+      throws Exception
+   {
+      final DriverDataSource primary = getMemoryDataSource("replicaprimary");
+      final DriverDataSource replica = getMemoryDataSource("replicacopy");
+      runWithSeparateStore(primary,replica,new SeparateStoreTest()
+            {
+               public void run(Store store)
+                  throws Exception
+               {
+                  store.getConfigurationTracker().getConfiguration().
+                     setProperty("beankeeper.db.replica_lag",200);
+                  // Create the first book, and replicate the database
+                  store.save(new Book("Replicated Book","1"));
+                  store.find("find book").size();
+                  copyDatabase(primary,replica);
+                  waitMillis(100);
+                  // Create another book, which is only in the primary
+                  store.save(new Book("Primary Book","2"));
+                  Date date = new Date();
+                  waitMillis(300);
+                  // Current query goes to primary
+                  Assert.assertEquals(store.find("find book").size(),2);
+                  // Historical query goes to the replica, which does not know
+                  // about the second book
+                  List result = store.find("find book at ?", new Object[] { date });
+                  Assert.assertEquals(result.size(),1);
+                  Assert.assertEquals(((Book) result.get(0)).getTitle(),"Replicated Book");
+                  // If replica lag is not yet over, query goes to primary
+                  store.getConfigurationTracker().getConfiguration().
+                     setProperty("beankeeper.db.replica_lag",60*60*1000);
+                  Assert.assertEquals(store.find("find book at ?", new Object[] { new Date() }).size(),2);
+               }
+            });
+   }
+
+   public void testHistoryTables()
+      throws Exception
+   {
+      // The tables must be created with history tables enabled
+      final DriverDataSource dataSource = getMemoryDataSource("historytables");
+      runWithSeparateStore(dataSource,null,new SeparateStoreTest()
+            {
+               public void run(Store store)
+                  throws Exception
+               {
+                  store.getConfigurationTracker().getConfiguration().
+                     setProperty("beankeeper.db.history_tables",true);
+                  try
+                  {
+                     checkHistoryTables(store,dataSource);
+                  } finally {
+                     store.getConfigurationTracker().getConfiguration().
+                        setProperty("beankeeper.db.history_tables",false);
+                  }
+               }
+            });
+   }
+
+   private void checkHistoryTables(Store store, DriverDataSource dataSource)
+      throws Exception
+   {
+      // Create a book, then modify and remove it
+      Book book = new Book("First Title","1");
+      store.save(book);
+      Date firstDate = new Date();
+      waitMillis(100);
+      book.setTitle("Second Title");
+      store.save(book);
+      Date secondDate = new Date();
+      waitMillis(100);
+      store.remove(book);
+      // Current query sees nothing, historical queries see the
+      // closed versions
+      Assert.assertEquals(store.find("find book").size(),0);
+      List result = store.find("find book at ?", new Object[] { firstDate });
+      Assert.assertEquals(result.size(),1);
+      Assert.assertEquals(((Book) result.get(0)).getTitle(),"First Title");
+      result = store.find("find book at ?", new Object[] { secondDate });
+      Assert.assertEquals(result.size(),1);
+      Assert.assertEquals(((Book) result.get(0)).getTitle(),"Second Title");
+      // Both closed versions are in the history table
+      Connection connection = dataSource.getConnection();
+      try
+      {
+         Statement statement = connection.createStatement();
+         ResultSet rs = statement.executeQuery(
+               "select realname from tablemap where alias='hu_netmind_beankeeper_book_hist_'");
+         Assert.assertTrue(rs.next());
+         String historyTableName = rs.getString(1);
+         rs.close();
+         rs = statement.executeQuery("select count(*) from "+historyTableName);
+         rs.next();
+         Assert.assertEquals(rs.getInt(1),2);
+         rs.close();
+         rs = statement.executeQuery("select count(*) from book");
+         rs.next();
+         Assert.assertEquals(rs.getInt(1),0);
+         rs.close();
+         statement.close();
+      } finally {
+         connection.close();
+      }
+   }
+
+   public void testHistoryCompaction()
+      throws Exception
+   {
+      removeAll(Book.class);
+      removeAll(Author.class);
+      // Create a book and an author, then modify both
+      Book book = new Book("First Title","1");
+      Author author = new Author("First","Author");
+      getStore().save(book);
+      getStore().save(author);
+      // The first date must not be in the millisecond of the saves
+      waitMillis(100);
+      Date firstDate = new Date();
+      waitMillis(100);
+      book.setTitle("Second Title");
+      author.setFirstName("Second");
+      getStore().save(book);
+      getStore().save(author);
+      // A list at the first date still needs the first version
+      List oldBooks = getStore().find("find book at ?", new Object[] { firstDate });
+      // Only books are compacted, versions of earlier books are
+      // removed first
+      setRetention(Book.class,1);
+      try
+      {
+         waitMillis(100);
+         compactAll();
+         Assert.assertEquals(getStore().getHistoryCompactor().compact(),0);
+         Assert.assertEquals(oldBooks.size(),1);
+         Assert.assertEquals(((Book) oldBooks.get(0)).getTitle(),"First Title");
+         // If the list is gone, the first version is removed
+         oldBooks = null;
+         int count = 0;
+         for ( int i=0; (i<10) && (count==0); i++ )
+         {
+            System.gc();
+            count = getStore().getHistoryCompactor().compact();
+         }
+         Assert.assertEquals(count,1);
+         Assert.assertEquals(getStore().find("find book at ?", new Object[] { firstDate }).size(),0);
+         Assert.assertEquals(((Book) getStore().findSingle("find book")).getTitle(),"Second Title");
+         Assert.assertEquals(getStore().find("find author at ?", new Object[] { firstDate }).size(),1);
+      } finally {
+         setRetention(Book.class,0);
+      }
+   }
+
+   public void testBlobCompaction()
+      throws Exception
+   {
+      // Remove the blobs of earlier objects first
+      removeAll(BlobObject.class);
+      setRetention(BlobObject.class,1);
+      waitMillis(100);
+      compactAll();
+      setRetention(BlobObject.class,0);
+      try
+      {
+         // One blob is kept, one is replaced, and one is removed with its owner
+         BlobObject kept = new BlobObject("kept",new PersistentBlob(new byte[] { 1 }));
+         BlobObject changed = new BlobObject("changed",new PersistentBlob(new byte[] { 2 }));
+         BlobObject removed = new BlobObject("removed",new PersistentBlob(new byte[] { 3 }));
+         getStore().save(kept);
+         getStore().save(changed);
+         getStore().save(removed);
+         int blobCount = getBlobCount()-3; // Blobs not removed before
+         changed.setContent(new PersistentBlob(new byte[] { 4 }));
+         getStore().save(changed);
+         getStore().remove(removed);
+         Assert.assertEquals(getBlobCount(),blobCount+4);
+         // Old versions still refer to the blobs
+         Assert.assertEquals(getStore().getHistoryCompactor().compact(),0);
+         Assert.assertEquals(getBlobCount(),blobCount+4);
+         setRetention(BlobObject.class,1);
+         waitMillis(100);
+         int count = 0;
+         for ( int i=0; (i<10) && (count==0); i++ )
+         {
+            System.gc();
+            count = getStore().getHistoryCompactor().compact();
+         }
+         Assert.assertEquals(count,2);
+         Assert.assertEquals(getBlobCount(),blobCount+2);
+         List objects = getStore().find("find blobobject order by name");
+         Assert.assertEquals(objects.size(),2);
+         Assert.assertTrue(Arrays.equals(((BlobObject) objects.get(0)).getContent().getBytes(),
+                  new byte[] { 4 }));
+         Assert.assertTrue(Arrays.equals(((BlobObject) objects.get(1)).getContent().getBytes(),
+                  new byte[] { 1 }));
+      } finally {
+         setRetention(BlobObject.class,0);
+      }
+   }
 
+   public void testBlobCompactionKeepsUnknownOwners()
+      throws Exception
+   {
+      removeAll(BlobObject.class);
+      getStore().save(new BlobObject("kept",new PersistentBlob(new byte[] { 1 })));
+      // Blobs of a class not known to this node, and without owner. Serials
+      // are positive, so the ids do not collide with real blobs.
+      PreparedStatement pstmt = getConnection().prepareStatement(
+            "insert into blobs (id,content,owner_table,owner_column) values (?,?,?,?)");
+      pstmt.setLong(1,-1);
+      pstmt.setBytes(2,new byte[] { 2 });
+      pstmt.setString(3,"hu_netmind_beankeeper_unknownclass");
+      pstmt.setString(4,"content");
+      pstmt.executeUpdate();
+      pstmt.setLong(1,-2);
+      pstmt.setString(3,null);
+      pstmt.setString(4,null);
+      pstmt.executeUpdate();
+      pstmt.close();
+      getConnection().commit();
+      setRetention(BlobObject.class,1);
+      try
+      {
+         waitMillis(100);
+         getStore().getHistoryCompactor().compact();
+         pstmt = getConnection().prepareStatement("select count(*) from blobs where id < 0");
+         ResultSet rs = pstmt.executeQuery();
+         rs.next();
+         Assert.assertEquals(rs.getInt(1),2);
+         rs.close();
+         pstmt.close();
+         BlobObject kept = (BlobObject) getStore().findSingle("find blobobject");
+         Assert.assertTrue(Arrays.equals(kept.getContent().getBytes(),new byte[] { 1 }));
+      } finally {
+         setRetention(BlobObject.class,0);
+         pstmt = getConnection().prepareStatement("delete from blobs where id < 0");
+         pstmt.executeUpdate();
+         pstmt.close();
+         getConnection().commit();
+      }
+   }
+
+   public void testBlobCompactionKeepsInFlightOwner()
+      throws Exception
+   {
+      removeAll(BlobObject.class);
+      getStore().save(new BlobObject("first",new PersistentBlob(new byte[] { 1 })));
+      setRetention(BlobObject.class,1);
+      try
+      {
+         waitMillis(100);
+         compactAll();
+         int blobCount = getBlobCount();
+         // The blob is inserted, but the owner is not yet committed
+         Transaction tx = getStore().getTransactionTracker().getTransaction(TransactionTracker.TX_REQUIRED);
+         tx.begin();
+         BlobObject inFlight = new BlobObject("inflight",new PersistentBlob(new byte[] { 2 }));
+         try
+         {
+            getStore().save(inFlight);
+            Assert.assertEquals(getBlobCount(tx.getConnection()),blobCount+1);
+            waitMillis(100);
+            getStore().getHistoryCompactor().compact();
+            Assert.assertEquals(getBlobCount(tx.getConnection()),blobCount+1);
+         } finally {
+            tx.commit();
+         }
+         BlobObject result = (BlobObject) getStore().findSingle("find blobobject where name='inflight'");
+         Assert.assertTrue(Arrays.equals(result.getContent().getBytes(),new byte[] { 2 }));
+      } finally {
+         setRetention(BlobObject.class,0);
+      }
+   }
+
+   /**
+    * Set the retention of a class, 0 keeps all versions.
+    */
+   private void setRetention(Class type, long retention)
+   {
+      String key = "beankeeper.history.retention."+type.getName();
+      if ( retention == 0 )
+         getStore().getConfigurationTracker().getConfiguration().clearProperty(key);
+      else
+         getStore().getConfigurationTracker().getConfiguration().setProperty(key,retention);
+   }
+
+   /**
+    * Run the compaction until there is nothing more to remove. Lists of
+    * earlier selects are collected first, so they do not keep versions.
+    */
+   private void compactAll()
+   {
+      for ( int i=0; i<100; i++ )
+      {
+         System.gc();
+         if ( getStore().getHistoryCompactor().compact() == 0 )
+            return;
+      }
+   }
+
+   private int getBlobCount()
+      throws Exception
+   {
+      try
+      {
+         return getBlobCount(getConnection());
+      } finally {
+         getConnection().commit();
+      }
+   }
+
+   private int getBlobCount(Connection connection)
+      throws Exception
+   {
+      Statement statement = connection.createStatement();
+      try
+      {
+         ResultSet rs = statement.executeQuery("select count(*) from blobs");
+         rs.next();
+         int count = rs.getInt(1);
+         rs.close();
+         return count;
+      } finally {
+         statement.close();
+      }
+   }
+
+   private void waitMillis(long millis)
+      throws InterruptedException
+   {
+      synchronized ( this )
+      {
+         wait(millis);
+      }
+   }
+
+}
@@ -115,6 +115,7 @@ public class ManagementTests extends AbstractPersistenceTest
       Assert.assertFalse(queryBeanNames("hu.netmind.beankeeper:type=SQLStatistics,*").isEmpty());
       Assert.assertFalse(queryBeanNames("hu.netmind.beankeeper:type=StoreStatistics,*").isEmpty());
       Assert.assertFalse(queryBeanNames("hu.netmind.beankeeper:type=QueryStatistics,*").isEmpty());
+      Assert.assertFalse(queryBeanNames("hu.netmind.beankeeper:type=ConnectionPool,*").isEmpty());
    }
 
    public void testBeansNodeDisconnect()
@@ -128,6 +129,7 @@ public class ManagementTests extends AbstractPersistenceTest
          Assert.assertTrue(queryBeanNames("hu.netmind.beankeeper:type=Cache,*").isEmpty());
          Assert.assertTrue(queryBeanNames("hu.netmind.beankeeper:type=SQLStatistics,*").isEmpty());
          Assert.assertTrue(queryBeanNames("hu.netmind.beankeeper:type=OperationsStatistics,*").isEmpty());
+         Assert.assertTrue(queryBeanNames("hu.netmind.beankeeper:type=ConnectionPool,*").isEmpty());
       } finally {
          // Setup for next tests
          setUpStore();
@@ -267,6 +269,72 @@ public class ManagementTests extends AbstractPersistenceTest
       }
    }
 
+   public void testSQLStatisticsStatementCache()
+      throws Exception
+   {
+      removeAll(Book.class);
+      getStore().save(new Book("Famous Starships","NCC-1"));
+      // Get the reference
+      Map referenceData = readMBean("hu.netmind.beankeeper:type=SQLStatistics,*");
+      // Saving the same kind of object uses the same statements
+      for ( int i=0; i<5; i++ )
+         getStore().save(new Book("Famous Starships "+i,"NCC-"+i));
+      // Check
+      Map currentData = readMBean("hu.netmind.beankeeper:type=SQLStatistics,*");
+      Assert.assertTrue( (long)(Long)currentData.get("statementcachehits") >=
+            ((long)(Long)referenceData.get("statementcachehits")) + 5 );
+   }
+
+   public void testSQLStatisticsFinalization()
+      throws Exception
+   {
+      removeAll(Book.class);
+      Book book = new Book("Famous Starships","NCC-1");
+      getStore().save(book);
+      // Get the reference
+      Map referenceData = readMBean("hu.netmind.beankeeper:type=SQLStatistics,*");
+      // Modify and remove in one transaction, so both the saved and
+      // removed tables are finalized
+      Transaction tx = getStore().getTransactionTracker().getTransaction(
+            TransactionTracker.TX_NEW);
+      tx.begin();
+      try
+      {
+         getStore().save(new Book("Famous Starships 2","NCC-2"));
+         getStore().remove(book);
+      } finally {
+         tx.commit();
+      }
+      // Check
+      Map currentData = readMBean("hu.netmind.beankeeper:type=SQLStatistics,*");
+      Assert.assertTrue( (int)(Integer)currentData.get("finalizationcount") >=
+            ((int)(Integer)referenceData.get("finalizationcount")) + 1 );
+      List result = getStore().find("find book");
+      Assert.assertEquals(result.size(),1);
+      Assert.assertEquals(((Book) result.get(0)).getTitle(),"Famous Starships 2");
+   }
+
+   public void testConnectionPoolBeanCounts()
+      throws Exception
+   {
+      Map referenceData = readMBean("hu.netmind.beankeeper:type=ConnectionPool,*");
+      Transaction tx = getStore().getTransactionTracker().getTransaction(
+            TransactionTracker.TX_NEW);
+      tx.begin();
+      try
+      {
+         // The transaction holds a connection
+         Map currentData = readMBean("hu.netmind.beankeeper:type=ConnectionPool,*");
+         Assert.assertTrue( (int)(Integer)currentData.get("activecount") >= 1 );
+         Assert.assertTrue( (long)(Long)currentData.get("borrowcount") >=
+               ((long)(Long)referenceData.get("borrowcount")) + 1 );
+         Assert.assertTrue( (int)(Integer)currentData.get("totalcount") >=
+               (int)(Integer)currentData.get("activecount") );
+      } finally {
+         tx.commit();
+      }
+   }
+
    public void testCacheMBeanEntryCount()
       throws Exception
    {
@@ -314,5 +382,40 @@ public class ManagementTests extends AbstractPersistenceTest
             clearProperty("beankeeper.cache.min_free_rate");
       }
    }
+
+   public void testCacheMBeanByteBudget()
+      throws Exception
+   {
+      // Clean
+      removeAll(Book.class);
+      invokeMBean("hu.netmind.beankeeper:type=Cache,*","clear",
+            new Object[] {}, new String[] {});
+      // Allow only a few small results in the cache
+      getStore().getConfigurationTracker().getConfiguration().
+         setProperty("beankeeper.cache.max_bytes",2000);
+      try
+      {
+         getStore().save(new Book("Hot","1"));
+         for ( int i=0; i<10; i++ )
+            getStore().save(new Book("Scan "+i,"2"));
+         // Run the hot query more times, so it is frequent
+         for ( int i=0; i<4; i++ )
+            Assert.assertEquals(getStore().find("find book where title='Hot'").size(),1);
+         // Run one-off queries, which should not replace the hot result
+         for ( int i=0; i<10; i++ )
+            Assert.assertEquals(getStore().find("find book where title='Scan "+i+"'").size(),1);
+         Map referenceData = readMBean("hu.netmind.beankeeper:type=Cache,*");
+         Assert.assertTrue( (long)(Long)referenceData.get("rejectedcount") > 0 );
+         Assert.assertTrue( (long)(Long)referenceData.get("bytecount") <= 2000 );
+         // Hot query should still be a hit
+         Assert.assertEquals(getStore().find("find book where title='Hot'").size(),1);
+         Map currentData = readMBean("hu.netmind.beankeeper:type=Cache,*");
+         Assert.assertEquals( (long)(Long)currentData.get("hitcount"),
+               ((long)(Long)referenceData.get("hitcount")) + 1 );
+      } finally {
+         getStore().getConfigurationTracker().getConfiguration().
+            clearProperty("beankeeper.cache.max_bytes");
+      }
+   }
 }
 
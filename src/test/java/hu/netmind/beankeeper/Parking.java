@@ -0,0 +1,59 @@
+/**
+ * Copyright (C) 2008 NetMind Consulting Bt.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package hu.netmind.beankeeper;
+
+/**
+ * Holds a vehicle on a numbered place.
+ * @author Brautigam Robert
+ * @version Revision: $Revision$
+ */
+public class Parking
+{
+   private int place;
+   private Vehicle vehicle;
+
+   public Parking()
+   {
+   }
+
+   public Parking(int place, Vehicle vehicle)
+   {
+      setPlace(place);
+      setVehicle(vehicle);
+   }
+
+   public int getPlace()
+   {
+      return place;
+   }
+   public void setPlace(int place)
+   {
+      this.place=place;
+   }
+
+   public Vehicle getVehicle()
+   {
+      return vehicle;
+   }
+   public void setVehicle(Vehicle vehicle)
+   {
+      this.vehicle=vehicle;
+   }
+}
+
@@ -111,6 +111,87 @@ public class PolymorphicTests extends AbstractPersistenceTest
       Assert.assertEquals(countClass(MovieScript.class,result),10);
    }
 
+   public void testOrderedMultipleObjectSelect()
+      throws Exception
+   {
+      // Drop book table
+      removeAll(Writing.class);
+    
+      // Save, so that the classes alternate in the order
+      for ( int i=0; i<40; i++ )
+      {
+         String title = "Writing #"+(i<10?"0":"")+i;
+         if ( i%3 == 0 )
+            getStore().save(new Article(title,"Art"));
+         else if ( i%3 == 1 )
+            getStore().save(new ScreenPlay(title,i));
+         else
+            getStore().save(new MovieScript(title,i,i));
+      }
+
+      // Select ordered, the order must be global, not per class
+      List result = getStore().find("find writing order by title desc");
+      Assert.assertEquals(result.size(),40);
+      for ( int i=0; i<40; i++ )
+      {
+         Writing writing = (Writing) result.get(i);
+         Assert.assertEquals(writing.getTitle(),"Writing #"+(39-i<10?"0":"")+(39-i));
+         Assert.assertEquals(writing.getClass(),
+               (39-i)%3==0?Article.class:((39-i)%3==1?ScreenPlay.class:MovieScript.class));
+      }
+      // Iterate, which pages through the list
+      Iterator iterator = getStore().find("find writing order by title").iterator();
+      for ( int i=0; i<40; i++ )
+         Assert.assertEquals(((Writing) iterator.next()).getTitle(),"Writing #"+(i<10?"0":"")+i);
+      Assert.assertFalse(iterator.hasNext());
+   }
+
+   public void testOrderedMultipleStatementSelect()
+      throws Exception
+   {
+      // Vehicles are selected with a statement for each class, and
+      // ordered by their parking places
+      removeAll(Parking.class);
+      removeAll(Vehicle.class);
+      List vehicles = new ArrayList();
+      for ( int i=0; i<40; i++ )
+      {
+         Vehicle vehicle = (i%3==0?(Vehicle) new Car():(Vehicle) new Truck());
+         getStore().save(new Parking(i,vehicle));
+         vehicles.add(getStore().getPersistenceId(vehicle));
+      }
+
+      // Select in a single union, and each class separately with and
+      // without keyset paging, the order must be always global
+      try
+      {
+         for ( int p=0; p<3; p++ )
+         {
+            getStore().getConfigurationTracker().getConfiguration().
+               setProperty("beankeeper.list.union_select",p==0?"true":"false");
+            getStore().getConfigurationTracker().getConfiguration().
+               setProperty("beankeeper.list.keyset_paging",p<2?"true":"false");
+            // Iterate, which pages through the list
+            Iterator iterator = getStore().find(
+                  "find vehicle where parking.vehicle = vehicle order by parking.place desc").iterator();
+            for ( int i=39; i>=0; i-- )
+               Assert.assertEquals(getStore().getPersistenceId(iterator.next()),vehicles.get(i));
+            Assert.assertFalse(iterator.hasNext());
+            // Random access
+            List result = getStore().find(
+                  "find vehicle where parking.vehicle = vehicle order by parking.place");
+            Assert.assertEquals(getStore().getPersistenceId(result.get(35)),vehicles.get(35));
+            Assert.assertEquals(getStore().getPersistenceId(result.get(4)),vehicles.get(4));
+            Assert.assertEquals(result.size(),40);
+         }
+      } finally {
+         getStore().getConfigurationTracker().getConfiguration().
+            clearProperty("beankeeper.list.union_select");
+         getStore().getConfigurationTracker().getConfiguration().
+            clearProperty("beankeeper.list.keyset_paging");
+      }
+   }
+
    public void testBatchObjectSelect()
       throws Exception
    {
@@ -20,6 +20,7 @@ package hu.netmind.beankeeper;
 
 import java.util.*;
 import java.io.File;
+import java.io.ByteArrayInputStream;
 import org.apache.log4j.Logger;
 import org.testng.annotations.Test;
 import org.testng.Assert;
@@ -27,6 +28,8 @@ import hu.netmind.beankeeper.common.StoreException;
 import hu.netmind.beankeeper.query.impl.LazyListImpl;
 import hu.netmind.beankeeper.transaction.Transaction;
 import hu.netmind.beankeeper.transaction.TransactionTracker;
+import hu.netmind.beankeeper.type.PersistentBlob;
+import hu.netmind.beankeeper.type.impl.StoredBlob;
 
 /**
  * Save and load tests. These tests mainly look at saving and restoring
@@ -1045,5 +1048,58 @@ public class SaveTests extends AbstractPersistenceTest
       Assert.assertEquals(viewObject.get("file"),"/tmp");
    }
       
-}
+   public void testSaveAll()
+      throws Exception
+   {
+      // Drop
+      removeAll(Book.class);
+      Book existing = new Book("Existing","0");
+      getStore().save(existing);
+      // Save new books and modify the existing one in a bulk
+      List books = new ArrayList();
+      for ( int i=0; i<250; i++ )
+         books.add(new Book("Bulk Book","isbn"+i));
+      existing.setTitle("Modified");
+      books.add(existing);
+      getStore().saveAll(books);
+      // Check
+      Assert.assertEquals(getStore().find("find book where title='Bulk Book'").size(),250);
+      Assert.assertEquals(getStore().find("find book where title='Modified'").size(),1);
+      Assert.assertEquals(getStore().find("find book").size(),251);
+   }
 
+   public void testPersistentBlob()
+      throws Exception
+   {
+      // Drop
+      removeAll(BlobObject.class);
+      byte[] content = new byte[100000];
+      for ( int i=0; i<content.length; i++ )
+         content[i] = (byte) i;
+      // Save one blob from bytes and one from a stream
+      BlobObject bytesObject = new BlobObject("bytes",new PersistentBlob(content));
+      getStore().save(bytesObject);
+      getStore().save(new BlobObject("stream",new PersistentBlob(
+                  new ByteArrayInputStream(content),content.length)));
+      // Saving again does not insert the content again
+      Assert.assertTrue(bytesObject.getContent() instanceof StoredBlob);
+      Long id = ((StoredBlob) bytesObject.getContent()).getId();
+      getStore().save(bytesObject);
+      Assert.assertEquals(((StoredBlob) bytesObject.getContent()).getId(),id);
+      // Check, the content is read only when asked for
+      List objects = getStore().find("find blobobject order by name");
+      Assert.assertEquals(objects.size(),2);
+      for ( int i=0; i<objects.size(); i++ )
+      {
+         PersistentBlob blob = ((BlobObject) objects.get(i)).getContent();
+         Assert.assertEquals(blob.getLength(),content.length);
+         Assert.assertTrue(Arrays.equals(blob.getBytes(),content));
+      }
+      // Replace with null
+      bytesObject.setContent(null);
+      getStore().save(bytesObject);
+      Assert.assertNull(((BlobObject) getStore().findSingle(
+                  "find blobobject where name='bytes'")).getContent());
+   }
+
+}
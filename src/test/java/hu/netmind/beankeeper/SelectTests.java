@@ -23,6 +23,9 @@ import java.io.*;
 import org.apache.log4j.Logger;
 import org.testng.annotations.Test;
 import org.testng.Assert;
+import hu.netmind.beankeeper.query.ResultCursor;
+import hu.netmind.beankeeper.query.QueryControl;
+import hu.netmind.beankeeper.query.QueryCancelledException;
 import hu.netmind.beankeeper.query.impl.LazyListImpl;
 import hu.netmind.beankeeper.transaction.Transaction;
 import hu.netmind.beankeeper.transaction.TransactionTracker;
@@ -843,6 +846,179 @@ public class SelectTests extends AbstractPersistenceTest
       Assert.assertTrue( tx.getStats().getSelectCount()<4 );
    }
 
+   public void testKeysetPagingWithDuplicateKeys()
+      throws Exception
+   {
+      removeAll(Book.class);
+      for ( int i=0; i<200; i++ )
+         getStore().save(new Book("Book "+(i%7),""+(i%3)));
+      // Iterate linearly, so next pages are selected after the last keys
+      List result = getStore().find("find book order by title desc, isbn asc");
+      List linear = new ArrayList();
+      Set ids = new HashSet();
+      for ( Object book : result )
+      {
+         linear.add(book);
+         ids.add(getStore().getPersistenceId(book));
+      }
+      Assert.assertEquals(linear.size(),200);
+      Assert.assertEquals(ids.size(),200);
+      // Iterate backward, this uses offsets
+      result = getStore().find("find book order by title desc, isbn asc");
+      for ( int i=199; i>=0; i-- )
+         Assert.assertEquals(getStore().getPersistenceId(result.get(i)),
+               getStore().getPersistenceId(linear.get(i)));
+      // Check order
+      for ( int i=1; i<linear.size(); i++ )
+      {
+         Book previous = (Book) linear.get(i-1);
+         Book current = (Book) linear.get(i);
+         Assert.assertTrue( (previous.getTitle().compareTo(current.getTitle())>0) ||
+               ( (previous.getTitle().equals(current.getTitle())) &&
+                 (previous.getIsbn().compareTo(current.getIsbn())<=0) ) );
+      }
+   }
+
+   public void testKeysetPagingWithNullKeys()
+      throws Exception
+   {
+      removeAll(Book.class);
+      for ( int i=0; i<100; i++ )
+         getStore().save(new Book((i%4==0)?null:"Book "+(i%7),""+(i%3)));
+      assertNullKeyOrder("find book order by title asc, isbn asc");
+      assertNullKeyOrder("find book order by title desc, isbn desc");
+   }
+
+   private void assertNullKeyOrder(String query)
+   {
+      // Iterate linearly, so next pages are selected after the last keys
+      List result = getStore().find(query);
+      List linear = new ArrayList();
+      Set ids = new HashSet();
+      for ( Object book : result )
+      {
+         linear.add(book);
+         ids.add(getStore().getPersistenceId(book));
+      }
+      Assert.assertEquals(linear.size(),100);
+      Assert.assertEquals(ids.size(),100);
+      // Iterate backward, this uses offsets, which must give the same order
+      result = getStore().find(query);
+      for ( int i=99; i>=0; i-- )
+         Assert.assertEquals(getStore().getPersistenceId(result.get(i)),
+               getStore().getPersistenceId(linear.get(i)));
+      // Null titles must be together
+      int changes = 0;
+      for ( int i=1; i<linear.size(); i++ )
+         if ( (((Book) linear.get(i-1)).getTitle()==null) != (((Book) linear.get(i)).getTitle()==null) )
+            changes++;
+      Assert.assertEquals(changes,1);
+   }
+
+   public void testKeysetPagingDisabled()
+      throws Exception
+   {
+      createReferrers(100);
+      getStore().getConfigurationTracker().getConfiguration().
+         setProperty("beankeeper.list.keyset_paging","false");
+      try
+      {
+         List result = getStore().find("find referrer order by identity");
+         int index = 0;
+         for ( Object ref : result )
+            Assert.assertEquals(((Referrer) ref).getIdentity(),index++);
+         Assert.assertEquals(index,100);
+      } finally {
+         getStore().getConfigurationTracker().getConfiguration().
+            clearProperty("beankeeper.list.keyset_paging");
+      }
+   }
+
+   public void testStream()
+      throws Exception
+   {
+      // Create referrers which refer to the previous one
+      removeAll(Referrer.class);
+      Referrer previous = null;
+      for ( int i=0; i<100; i++ )
+      {
+         Referrer ref = new Referrer(i);
+         ref.setRef(previous);
+         getStore().save(ref);
+         previous = ref;
+      }
+      // Stream all, referred objects must be loaded too
+      ResultCursor cursor = getStore().stream("find referrer order by identity");
+      int index = 0;
+      while ( cursor.hasNext() )
+      {
+         Referrer ref = (Referrer) cursor.next();
+         Assert.assertEquals(ref.getIdentity(),index);
+         if ( index > 0 )
+            Assert.assertEquals(ref.getRef().getIdentity(),index-1);
+         else
+            Assert.assertNull(ref.getRef());
+         index++;
+      }
+      Assert.assertEquals(index,100);
+   }
+
+   public void testStreamClose()
+      throws Exception
+   {
+      createReferrers(100);
+      ResultCursor cursor = getStore().stream("find referrer where identity >= ? order by identity",
+            new Object[] { new Integer(50) });
+      Assert.assertEquals(((Referrer) cursor.next()).getIdentity(),50);
+      cursor.close();
+      Assert.assertFalse(cursor.hasNext());
+      // Transaction of the cursor must be ended
+      Assert.assertNull(getStore().getTransactionTracker().getTransaction(
+               TransactionTracker.TX_OPTIONAL));
+   }
+
+   public void testStreamDoesNotBindTransaction()
+      throws Exception
+   {
+      createReferrers(100);
+      ResultCursor cursor = getStore().stream("find referrer order by identity");
+      try
+      {
+         Assert.assertEquals(((Referrer) cursor.next()).getIdentity(),0);
+         Assert.assertNull(getStore().getTransactionTracker().getTransaction(
+                  TransactionTracker.TX_OPTIONAL));
+         // Save while the cursor is open, it must be committed immediately
+         getStore().save(new Referrer(1000));
+         final int[] count = new int[1];
+         Thread thread = new Thread(new Runnable()
+               {
+                  public void run()
+                  {
+                     count[0] = getStore().find("find referrer where identity = 1000").size();
+                  }
+               });
+         thread.start();
+         thread.join(10000);
+         Assert.assertEquals(count[0],1);
+         // The cursor still reads its own transaction's state
+         int index = 1;
+         while ( cursor.hasNext() )
+            Assert.assertEquals(((Referrer) cursor.next()).getIdentity(),index++);
+         Assert.assertEquals(index,100);
+      } finally {
+         cursor.close();
+      }
+      Assert.assertNull(getStore().getTransactionTracker().getTransaction(
+               TransactionTracker.TX_OPTIONAL));
+   }
+
+   public void testStreamNonexistingClass()
+      throws Exception
+   {
+      ResultCursor cursor = getStore().stream("find nonexistingclass");
+      Assert.assertFalse(cursor.hasNext());
+   }
+
    public void testReservedTableOrderBy()
       throws Exception
    {
@@ -1542,5 +1718,137 @@ public class SelectTests extends AbstractPersistenceTest
       Assert.assertEquals(result.size(),2);
    }
 
+   public void testFetchGroup()
+      throws Exception
+   {
+      // Remove all books
+      removeAll(Book.class);
+      removeAll(Author.class);
+      // Create a book with all kinds of attributes
+      Book book = new Book("Title","1");
+      book.setMainAuthor(new Author("Main","Author"));
+      book.setAuthors(new ArrayList());
+      book.getAuthors().add(new Author("Other","Author"));
+      getStore().save(book);
+      // Select only the title
+      Book partial = (Book) getStore().findSingle("find book{title} where isbn='1'");
+      Assert.assertEquals(partial.getTitle(),"Title");
+      Assert.assertNull(partial.getIsbn());
+      Assert.assertNull(partial.getMainAuthor());
+      Assert.assertNull(partial.getAuthors());
+      // Save a modification, attributes not loaded must remain
+      partial.setTitle("Modified");
+      getStore().save(partial);
+      Book result = (Book) getStore().findSingle("find book where isbn='1'");
+      Assert.assertEquals(result.getTitle(),"Modified");
+      Assert.assertEquals(result.getMainAuthor().getFirstName(),"Main");
+      Assert.assertEquals(result.getAuthors().size(),1);
+      // Attributes not loaded can be set
+      partial.setIsbn("2");
+      getStore().save(partial);
+      Assert.assertEquals(getStore().find("find book{isbn,mainAuthor} where isbn='2'").size(),1);
+   }
+
+   public void testFetchGroupSetToInitialValue()
+      throws Exception
+   {
+      // Create a book with an author
+      removeAll(Book.class);
+      Book book = new Book("Title","1");
+      book.setMainAuthor(new Author("Main","Author"));
+      getStore().save(book);
+      // Setting a not loaded attribute to its initial value is
+      // only seen on save, if the object was loaded before
+      Book partial = (Book) getStore().findSingle("find book{title} where isbn='1'");
+      getStore().load(partial);
+      Assert.assertEquals(partial.getIsbn(),"1");
+      Assert.assertEquals(partial.getMainAuthor().getFirstName(),"Main");
+      partial.setMainAuthor(null);
+      getStore().save(partial);
+      Book result = (Book) getStore().findSingle("find book where isbn='1'");
+      Assert.assertNull(result.getMainAuthor());
+      Assert.assertEquals(result.getTitle(),"Title");
+      // The first save loads the attributes too, later changes are saved
+      book.setMainAuthor(new Author("Other","Author"));
+      getStore().save(book);
+      partial = (Book) getStore().findSingle("find book{title} where isbn='1'");
+      partial.setTitle("Modified");
+      getStore().save(partial);
+      Assert.assertEquals(partial.getMainAuthor().getFirstName(),"Other");
+      partial.setMainAuthor(null);
+      getStore().save(partial);
+      result = (Book) getStore().findSingle("find book where isbn='1'");
+      Assert.assertNull(result.getMainAuthor());
+      Assert.assertEquals(result.getTitle(),"Modified");
+   }
+
+   public void testQueryCancel()
+      throws Exception
+   {
+      // Remove all books
+      removeAll(Book.class);
+      // Create more books than fit on the first page
+      for ( int i=0; i<40; i++ )
+         getStore().save(new Book("Title "+i,""+i));
+      // A query with a timeout works normally
+      List result = getStore().find("find book order by isbn",null,new QueryControl(60000));
+      Assert.assertEquals(result.size(),40);
+      Assert.assertNotNull(result.get(39));
+      // Cancel the query after the first page
+      Transaction tx = getStore().getTransactionTracker().getTransaction(TransactionTracker.TX_REQUIRED);
+      tx.begin();
+      try
+      {
+         QueryControl control = new QueryControl();
+         result = getStore().find("find book order by title",null,control);
+         Assert.assertNotNull(result.get(0));
+         control.cancel();
+         Assert.assertTrue(control.isCancelled());
+         try
+         {
+            result.get(39);
+            Assert.fail("page was selected after cancel");
+         } catch ( QueryCancelledException e ) {
+            logger.debug("expected exception",e);
+         }
+         Assert.assertTrue(tx.isRollbackOnly());
+      } finally {
+         tx.rollback();
+      }
+   }
+
+   public void testFindBatch()
+      throws Exception
+   {
+      removeAll(Book.class);
+      removeAll(Author.class);
+      getStore().save(new Book("Snow Crash","1"));
+      getStore().save(new Book("Cryptonomicon","2"));
+      getStore().save(new Author("Neal","Stephenson"));
+      Transaction tx = getStore().getTransactionTracker().getTransaction(TransactionTracker.TX_REQUIRED);
+      tx.begin();
+      try
+      {
+         List statements = new ArrayList();
+         statements.add("find book order by isbn");
+         statements.add("find author where firstname=?");
+         statements.add("find book where title=?");
+         List parameters = new ArrayList();
+         parameters.add(null);
+         parameters.add(new Object[] { "Neal" });
+         parameters.add(new Object[] { "Nonexistent" });
+         List<List> results = getStore().findBatch(statements,parameters);
+         Assert.assertEquals(results.size(),3);
+         // First pages are already selected
+         long selectCount = tx.getStats().getSelectCount();
+         Assert.assertEquals(results.get(0).size(),2);
+         Assert.assertEquals(((Book) results.get(0).get(1)).getTitle(),"Cryptonomicon");
+         Assert.assertEquals(results.get(1).size(),1);
+         Assert.assertEquals(results.get(2).size(),0);
+         Assert.assertEquals(tx.getStats().getSelectCount(),selectCount);
+      } finally {
+         tx.commit();
+      }
+   }
 }
 
@@ -19,9 +19,9 @@
 package hu.netmind.beankeeper;
 
 import java.sql.Connection;
+import java.sql.SQLException;
 import java.util.ResourceBundle;
-import hu.netmind.beankeeper.transaction.Transaction;
-import hu.netmind.beankeeper.transaction.TransactionTracker;
+import hu.netmind.beankeeper.db.impl.DriverDataSource;
 
 /**
  * Provides the store object to the tests.
@@ -57,13 +57,10 @@ public class StoreProvider
    {
       // Allocate objects
       store = newStore();
-      // Allocate a connection that will not influence
-      // this thread
-      ConnectionEstablisher establisher = new ConnectionEstablisher();
-      Thread establisherThread = new Thread(establisher);
-      establisherThread.start();
-      establisherThread.join();
-      connection = establisher.getConnection();
+      // Allocate a connection of its own, so it does not hold an
+      // open transaction in the store
+      connection = getDataSource().getConnection();
+      connection.setAutoCommit(false);
    }
 
    public Store newStore()
@@ -78,33 +75,29 @@ public class StoreProvider
       return new Store(driverclass,url);
    }
 
-   public void tearDownStore()
-   {
-      if ( store != null )
-         getStore().close();
-      connection = null;
-   }
-
-
    /**
-    * Establishes a connection in another thread.
+    * Get a data source of the database configured for the tests.
     */
-   private class ConnectionEstablisher implements Runnable
+   private DriverDataSource getDataSource()
    {
-      private Connection connection = null;
-
-      public Connection getConnection()
-      {
-         return connection;
-      }
+      ResourceBundle config = ResourceBundle.getBundle("test");
+      return new DriverDataSource(config.getString("db.driverclass"),config.getString("db.url"));
+   }
 
-      public void run()
+   public void tearDownStore()
+   {
+      if ( store != null )
+         getStore().close();
+      if ( connection != null )
       {
-         Transaction tx = getStore().getTransactionTracker().getTransaction(
-               TransactionTracker.TX_REQUIRED);
-         tx.begin();
-         connection = tx.getConnection();
+         try
+         {
+            connection.close();
+         } catch ( SQLException e ) {
+            e.printStackTrace();
+         }
       }
+      connection = null;
    }
 
    static
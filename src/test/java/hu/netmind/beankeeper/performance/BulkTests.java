@@ -267,6 +267,27 @@ public class BulkTests extends AbstractPersistenceTest
       selectAndRemoveObjects("Simple",count,SimpleObject.class); 
    }
 
+   @Test(groups = "performance")
+   public void testBulkInsertWithoutBatching()
+      throws Exception
+   {
+      System.out.println();
+      // Drop tables
+      dropTables("onesuperclass");
+      dropTables("onesubclass");
+      // Insert objects with batching turned off and on, to compare
+      getStore().getConfigurationTracker().getConfiguration().
+         setProperty("beankeeper.db.batch_size",new Integer(1));
+      try
+      {
+         saveObjects("One superclass unbatched",OneSubclass.class);
+      } finally {
+         getStore().getConfigurationTracker().getConfiguration().
+            clearProperty("beankeeper.db.batch_size");
+      }
+      saveObjects("One superclass batched",OneSubclass.class);
+   }
+
    @Test(groups = "performance")
    public void testBulkInsertSelectWithOneSuperclass()
       throws Exception